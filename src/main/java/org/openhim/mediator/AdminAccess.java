@@ -0,0 +1,80 @@
+package org.openhim.mediator;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Map;
+
+import org.apache.http.HttpStatus;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+
+/**
+ * Access to the admin routes: the admin API (AdminOrchestrator) and the dead letters (DeadLetterOrchestrator),
+ * which expose patient data and can resend traffic to the registry.
+ * <br/><br/>
+ * The routes need mediator.admin.enabled, and every request an X-Admin-Token header matching mediator.admin.token.
+ * A tenant's routes are checked against the tenant's config, which inherits both settings.
+ */
+public class AdminAccess {
+
+    /**
+     * Why a request was refused, as the HTTP status and error to answer with
+     */
+    public static class Refusal {
+        private final int status;
+        private final String error;
+
+        Refusal(int status, String error) {
+            this.status = status;
+            this.error = error;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        public String getError() {
+            return error;
+        }
+    }
+
+    private AdminAccess() {
+    }
+
+    /**
+     * @return whether the admin routes are enabled (mediator.admin.enabled)
+     */
+    public static boolean isEnabled(MediatorConfig config) {
+        return "true".equalsIgnoreCase(config.getProperty("mediator.admin.enabled"));
+    }
+
+    private static String header(MediatorHTTPRequest request, String name) {
+        if (request.getHeaders() != null) {
+            for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+                if (name.equalsIgnoreCase(header.getKey())) {
+                    return header.getValue();
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return why the request may not use the admin routes, or null if it may: 404 while they are disabled, 403 if
+     * no token is set and 401 for a missing or wrong X-Admin-Token. The token is compared in constant time.
+     */
+    public static Refusal check(MediatorConfig config, MediatorHTTPRequest request) {
+        if (!isEnabled(config)) {
+            return new Refusal(HttpStatus.SC_NOT_FOUND, "admin API disabled");
+        }
+        String token = config.getProperty("mediator.admin.token");
+        if (token == null || token.trim().isEmpty()) {
+            return new Refusal(HttpStatus.SC_FORBIDDEN, "mediator.admin.token isn't set");
+        }
+        String given = header(request, "X-Admin-Token");
+        if (given == null || !MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8), given.getBytes(StandardCharsets.UTF_8))) {
+            return new Refusal(HttpStatus.SC_UNAUTHORIZED, "missing or wrong X-Admin-Token");
+        }
+        return null;
+    }
+}
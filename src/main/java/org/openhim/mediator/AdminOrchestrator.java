@@ -0,0 +1,347 @@
+package org.openhim.mediator;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import akka.actor.UntypedActor;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.FileUtils;
+import org.apache.http.HttpStatus;
+import org.openhim.mediator.demographics.DemographicsCache;
+import org.openhim.mediator.denormalization.PIXRequestActor;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPResponse;
+import org.openhim.mediator.messages.GetRegistryStats;
+import org.openhim.mediator.messages.RegistryStats;
+import org.openhim.mediator.tenants.Tenants;
+import org.openhim.mediator.tracing.FlightRecording;
+
+/**
+ * Admin routes for tuning a running mediator. Like the dead letter routes, they need mediator.admin.enabled and
+ * an X-Admin-Token header matching mediator.admin.token (see AdminAccess).
+ * <ul>
+ * <li>GET /admin/settings - the current values of the tunable settings as JSON</li>
+ * <li>POST /admin/settings - changes the tunable settings given in a JSON object; null removes a setting</li>
+ * <li>GET /admin/stats - the registry statistics and the feeds waiting for a registry response</li>
+ * <li>POST /admin/jfr/start - starts a Flight Recorder recording, optionally bounded by durationSeconds and
+ * maxSizeMb in a JSON object</li>
+ * <li>POST /admin/jfr/stop - stops the recording, writing it to its file</li>
+ * <li>GET /admin/jfr - the state of the last recording</li>
+ * <li>GET /admin/jfr/recording - the last recording's file, base64 encoded, if it is at most
+ * mediator.jfr.maxDownloadMb</li>
+ * </ul>
+ * Changes are applied like a reload of the --conf file, and only last until the next reload or restart.
+ * An unknown setting or invalid value rejects the whole change with 400.
+ * <br/><br/>
+ * With tenants (see Tenants), the settings and stats routes are passed on by the TenantRouter, and work on the
+ * request's tenant, e.g. /tenants/north/admin/settings. A change to the mediator's own settings is applied to the
+ * tenants too, as they inherit them; it replaces changes made to a tenant's settings through the API. Where the feeds are sent (the registry
+ * hosts, ports, endpoints and TLS) is not tunable, and can only be changed in the --conf file.
+ * <br/><br/>
+ * See FlightRecording for the bounds of a recording. The file is base64 encoded since the response body is
+ * passed on to OpenHIM core as text. That takes about three times the file's size in memory, so larger files
+ * are refused with 413 and have to be picked up from mediator.jfr.dir.
+ */
+public class AdminOrchestrator extends UntypedActor {
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private enum Type { STRING, BOOLEAN, INTEGER, DECIMAL }
+
+    static final Map<String, Type> TUNABLE = new LinkedHashMap<>();
+    static {
+        TUNABLE.put("xds.registry.readTimeout", Type.INTEGER);
+        TUNABLE.put("xds.registry.failover.retryAfterMs", Type.INTEGER);
+        TUNABLE.put("xds.registry.hedge.enabled", Type.BOOLEAN);
+        TUNABLE.put("xds.registry.hedge.percentile", Type.DECIMAL);
+        TUNABLE.put("xds.registry.limit.enabled", Type.BOOLEAN);
+        TUNABLE.put("xds.registry.limit.initial", Type.INTEGER);
+        TUNABLE.put("xds.registry.limit.min", Type.INTEGER);
+        TUNABLE.put("xds.registry.limit.max", Type.INTEGER);
+        TUNABLE.put("xds.registry.limit.rttTolerance", Type.DECIMAL);
+        TUNABLE.put("xds.registry.limit.backoffRatio", Type.DECIMAL);
+        TUNABLE.put("xds.registry.limit.minRttWindowMs", Type.INTEGER);
+        TUNABLE.put("xds.registry.batch.enabled", Type.BOOLEAN);
+        TUNABLE.put("xds.registry.batch.maxSize", Type.INTEGER);
+        TUNABLE.put("xds.registry.batch.maxDelayMs", Type.INTEGER);
+        TUNABLE.put("xds.registry.lanes.realtime.weight", Type.INTEGER);
+        TUNABLE.put("xds.registry.lanes.bulk.weight", Type.INTEGER);
+        TUNABLE.put("xds.registry.lanes.bulk.maxShare", Type.DECIMAL);
+        TUNABLE.put("xds.registry.spill.threshold", Type.INTEGER);
+        TUNABLE.put("xds.merge.batch.maxSize", Type.INTEGER);
+        TUNABLE.put("xds.merge.batch.maxDelayMs", Type.INTEGER);
+        TUNABLE.put("xds.feed.maxInProgress", Type.INTEGER);
+        TUNABLE.put("pdq.timeoutMs", Type.INTEGER);
+        TUNABLE.put("mediator.ready.maxRegistryLatencyMs", Type.INTEGER);
+        TUNABLE.put("mediator.ready.maxInFlight", Type.INTEGER);
+        TUNABLE.put("mediator.ready.maxQueued", Type.INTEGER);
+    }
+
+    private final MediatorConfig config;
+
+    private MediatorHTTPRequest originalRequest;
+
+    public AdminOrchestrator(MediatorConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * @return the properties with the changes in the JSON object applied
+     * @throws IllegalArgumentException if the body isn't a JSON object, or has an unknown setting or invalid value
+     */
+    static Properties applyChanges(Properties current, String body) {
+        JsonElement json;
+        try {
+            json = new JsonParser().parse(body != null ? body : "");
+        } catch (JsonParseException ex) {
+            throw new IllegalArgumentException("invalid JSON: " + ex.getMessage());
+        }
+        if (!json.isJsonObject()) {
+            throw new IllegalArgumentException("expected a JSON object of settings");
+        }
+
+        Properties properties = new Properties();
+        properties.putAll(current);
+        for (Map.Entry<String, JsonElement> change : ((JsonObject) json).entrySet()) {
+            String name = change.getKey();
+            Type type = TUNABLE.get(name);
+            if (type == null) {
+                throw new IllegalArgumentException("not a tunable setting: " + name);
+            }
+
+            JsonElement value = change.getValue();
+            if (value.isJsonNull()) {
+                properties.remove(name);
+            } else if (value.isJsonPrimitive()) {
+                properties.setProperty(name, validate(name, type, value.getAsString().trim()));
+            } else {
+                throw new IllegalArgumentException("invalid value for " + name);
+            }
+        }
+        return properties;
+    }
+
+    private static String validate(String name, Type type, String value) {
+        try {
+            switch (type) {
+                case BOOLEAN:
+                    if (!"true".equalsIgnoreCase(value) && !"false".equalsIgnoreCase(value)) {
+                        throw new IllegalArgumentException();
+                    }
+                    break;
+                case INTEGER:
+                    if (Integer.parseInt(value) < 0) {
+                        throw new IllegalArgumentException();
+                    }
+                    break;
+                case DECIMAL:
+                    if (!(Double.parseDouble(value) >= 0)) {
+                        throw new IllegalArgumentException();
+                    }
+                    break;
+            }
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("invalid value for " + name + ": " + value);
+        }
+        return value;
+    }
+
+    private Map<String, String> tunableSettings() {
+        MediatorSettings current = MediatorSettings.holderFor(config).get();
+        Map<String, String> settings = new LinkedHashMap<>();
+        for (String name : TUNABLE.keySet()) {
+            settings.put(name, current.getProperty(name));
+        }
+        return settings;
+    }
+
+    private void respond(int status, Object body) {
+        MediatorHTTPResponse response = new MediatorHTTPResponse(originalRequest, new Gson().toJson(body), status,
+                Collections.singletonMap("content-type", "application/json"));
+        originalRequest.getRespondTo().tell(response.toFinishRequest(), getSelf());
+    }
+
+    private void respondError(int status, String error) {
+        respond(status, Collections.singletonMap("error", error));
+    }
+
+    private static Long longField(JsonObject json, String name) {
+        if (!json.has(name) || json.get(name).isJsonNull()) {
+            return null;
+        }
+        try {
+            return json.get(name).getAsLong();
+        } catch (NumberFormatException | ClassCastException | IllegalStateException ex) {
+            throw new IllegalArgumentException("invalid value for " + name);
+        }
+    }
+
+    private void startRecording(String body) {
+        Long durationSeconds = null;
+        Long maxSizeMb = null;
+        if (body != null && !body.trim().isEmpty()) {
+            try {
+                JsonElement json = new JsonParser().parse(body);
+                if (!json.isJsonObject()) {
+                    throw new IllegalArgumentException("expected a JSON object");
+                }
+                durationSeconds = longField((JsonObject) json, "durationSeconds");
+                maxSizeMb = longField((JsonObject) json, "maxSizeMb");
+            } catch (JsonParseException ex) {
+                respondError(HttpStatus.SC_BAD_REQUEST, "invalid JSON: " + ex.getMessage());
+                return;
+            } catch (IllegalArgumentException ex) {
+                respondError(HttpStatus.SC_BAD_REQUEST, ex.getMessage());
+                return;
+            }
+        }
+
+        try {
+            Map<String, Object> status = FlightRecording.start(config, durationSeconds, maxSizeMb);
+            log.info("Started a Flight Recorder recording to " + status.get("file"));
+            respond(HttpStatus.SC_OK, status);
+        } catch (IllegalStateException ex) {
+            respondError(HttpStatus.SC_CONFLICT, ex.getMessage());
+        } catch (IllegalArgumentException ex) {
+            respondError(HttpStatus.SC_BAD_REQUEST, ex.getMessage());
+        } catch (IOException ex) {
+            log.error(ex, "Failed to start a Flight Recorder recording");
+            respondError(HttpStatus.SC_INTERNAL_SERVER_ERROR, ex.getMessage());
+        }
+    }
+
+    private void stopRecording() {
+        try {
+            respond(HttpStatus.SC_OK, FlightRecording.stop());
+        } catch (IllegalStateException ex) {
+            respondError(HttpStatus.SC_CONFLICT, ex.getMessage());
+        } catch (IOException ex) {
+            log.error(ex, "Failed to stop the Flight Recorder recording");
+            respondError(HttpStatus.SC_INTERNAL_SERVER_ERROR, ex.getMessage());
+        }
+    }
+
+    private void downloadRecording() {
+        File file;
+        try {
+            file = FlightRecording.recordedFile();
+        } catch (IllegalStateException ex) {
+            respondError(HttpStatus.SC_CONFLICT, ex.getMessage());
+            return;
+        }
+        if (!file.isFile()) {
+            respondError(HttpStatus.SC_NOT_FOUND, "recording file " + file + " not found");
+            return;
+        }
+        String maxDownloadMb = config.getProperty("mediator.jfr.maxDownloadMb");
+        long maxDownloadBytes = (maxDownloadMb != null ? Long.parseLong(maxDownloadMb.trim()) : 10) * 1024 * 1024;
+        if (file.length() > maxDownloadBytes) {
+            respondError(HttpStatus.SC_REQUEST_TOO_LONG, "recording file " + file + " is larger than "
+                    + "mediator.jfr.maxDownloadMb, pick it up from the mediator's host instead");
+            return;
+        }
+
+        String body;
+        try {
+            body = Base64.encodeBase64String(FileUtils.readFileToByteArray(file));
+        } catch (IOException ex) {
+            log.error(ex, "Failed to read the Flight Recorder recording " + file);
+            respondError(HttpStatus.SC_INTERNAL_SERVER_ERROR, ex.getMessage());
+            return;
+        }
+
+        Map<String, String> headers = new HashMap<>();
+        headers.put("content-type", "application/octet-stream");
+        headers.put("content-transfer-encoding", "base64");
+        headers.put("content-disposition", "attachment; filename=\"" + file.getName() + "\"");
+        MediatorHTTPResponse response = new MediatorHTTPResponse(originalRequest, body, HttpStatus.SC_OK, headers);
+        originalRequest.getRespondTo().tell(response.toFinishRequest(), getSelf());
+    }
+
+    private void processRecordingRequest(String path, String method) {
+        if (!FlightRecording.isAvailable()) {
+            respondError(HttpStatus.SC_NOT_IMPLEMENTED, "Flight Recorder is not available in this JVM");
+        } else if (path.endsWith("/jfr") && "GET".equalsIgnoreCase(method)) {
+            respond(HttpStatus.SC_OK, FlightRecording.status());
+        } else if (path.endsWith("/jfr/start") && "POST".equalsIgnoreCase(method)) {
+            startRecording(originalRequest.getBody());
+        } else if (path.endsWith("/jfr/stop") && "POST".equalsIgnoreCase(method)) {
+            stopRecording();
+        } else if (path.endsWith("/jfr/recording") && "GET".equalsIgnoreCase(method)) {
+            downloadRecording();
+        } else {
+            respondError(HttpStatus.SC_METHOD_NOT_ALLOWED, "method not allowed");
+        }
+    }
+
+    private void changeSettings(String body) {
+        Properties properties;
+        try {
+            properties = applyChanges(config.getProperties(), body);
+            MediatorSettings.reload(config, properties, getContext().system());
+            if (Tenants.isEnabled(config)) {
+                Tenants.forConfig(config).reload(properties, getContext().system());
+            }
+        } catch (IllegalArgumentException ex) {
+            respondError(HttpStatus.SC_BAD_REQUEST, ex.getMessage());
+            return;
+        }
+
+        log.info("Changed mediator settings through the admin API: " + body);
+        respond(HttpStatus.SC_OK, tunableSettings());
+    }
+
+    private void processRequest(MediatorHTTPRequest request) {
+        originalRequest = request;
+
+        AdminAccess.Refusal refusal = AdminAccess.check(config, request);
+        if (refusal != null) {
+            respondError(refusal.getStatus(), refusal.getError());
+            return;
+        }
+
+        String method = request.getMethod();
+        if (request.getPath().contains("/admin/jfr")) {
+            processRecordingRequest(request.getPath(), method);
+        } else if (request.getPath().endsWith("/stats") && "GET".equalsIgnoreCase(method)) {
+            getContext().actorSelection(config.userPathFor("xds-registry-connector")).tell(new GetRegistryStats(), getSelf());
+        } else if (request.getPath().endsWith("/settings") && "GET".equalsIgnoreCase(method)) {
+            respond(HttpStatus.SC_OK, tunableSettings());
+        } else if (request.getPath().endsWith("/settings") && "POST".equalsIgnoreCase(method)) {
+            changeSettings(request.getBody());
+        } else {
+            respondError(HttpStatus.SC_METHOD_NOT_ALLOWED, "method not allowed");
+        }
+    }
+
+    private void respond(RegistryStats registry) {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("registry", registry);
+        stats.put("pendingFeeds", PIXRequestActor.getPendingFeeds(config));
+        stats.put("demographicsCacheSize", DemographicsCache.forConfig(config).size());
+        respond(HttpStatus.SC_OK, stats);
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof MediatorHTTPRequest) {
+            processRequest((MediatorHTTPRequest) msg);
+        } else if (msg instanceof RegistryStats) {
+            respond((RegistryStats) msg);
+        } else {
+            unhandled(msg);
+        }
+    }
+}
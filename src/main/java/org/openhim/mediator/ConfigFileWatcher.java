@@ -0,0 +1,117 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Properties;
+
+import akka.actor.ActorSystem;
+import akka.event.LoggingAdapter;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.tenants.Tenants;
+
+/**
+ * Reloads the mediator settings when the --conf file changes (mediator.config.watch).
+ * <br/><br/>
+ * Editors often write a file in several steps, so a reload waits for the file to be quiet for a moment.
+ * A file that can't be read or parsed is logged and ignored, keeping the current settings.
+ * <br/><br/>
+ * The server host and port, cluster settings and thread pool sizes only take effect on restart.
+ */
+public class ConfigFileWatcher implements Runnable {
+    private static final long SETTLE_MILLIS = 200;
+
+    private final File file;
+    private final MediatorConfig config;
+    private final ActorSystem system;
+    private final LoggingAdapter log;
+
+
+    public ConfigFileWatcher(File file, MediatorConfig config, ActorSystem system, LoggingAdapter log) {
+        this.file = file.getAbsoluteFile();
+        this.config = config;
+        this.system = system;
+        this.log = log;
+    }
+
+    public static boolean isEnabled(MediatorConfig config) {
+        return "true".equalsIgnoreCase(config.getProperty("mediator.config.watch"));
+    }
+
+    /**
+     * Starts watching the file on a daemon thread
+     */
+    public Thread start() {
+        Thread thread = new Thread(this, "config-watcher");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    @Override
+    public void run() {
+        try (WatchService watcher = FileSystems.getDefault().newWatchService()) {
+            Path dir = file.getParentFile().toPath();
+            dir.register(watcher, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_CREATE);
+
+            while (!Thread.currentThread().isInterrupted()) {
+                WatchKey key = watcher.take();
+                boolean changed = false;
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    Object context = event.context();
+                    if (context instanceof Path && file.getName().equals(((Path) context).getFileName().toString())) {
+                        changed = true;
+                    }
+                }
+                key.reset();
+
+                if (changed) {
+                    Thread.sleep(SETTLE_MILLIS);
+                    // drop the events caused by the rest of the write
+                    WatchKey pending = watcher.poll();
+                    if (pending != null) {
+                        pending.pollEvents();
+                        pending.reset();
+                    }
+                    reload();
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (IOException ex) {
+            log.error(ex, "Failed to watch " + file + " for configuration changes");
+        }
+    }
+
+    void reload() {
+        Properties props = new Properties();
+        InputStream in = null;
+        try {
+            in = FileUtils.openInputStream(file);
+            props.load(in);
+            MediatorSettings.reload(config, props, system);
+            if (Tenants.isEnabled(config)) {
+                Tenants.forConfig(config).reload(props, system);
+            }
+            log.info("Reloaded mediator configuration from '" + file + "'");
+        } catch (IOException | IllegalArgumentException ex) {
+            log.error("Ignoring invalid configuration in '" + file + "', keeping the current settings: " + ex.getMessage());
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package org.openhim.mediator;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import akka.actor.UntypedActor;
+import com.google.gson.Gson;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.http.HttpStatus;
+import org.openhim.mediator.deadletters.DeadLetter;
+import org.openhim.mediator.deadletters.DeadLetterActor;
+import org.openhim.mediator.deadletters.DeadLetterStore;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPResponse;
+import org.openhim.mediator.messages.DeadLetterList;
+import org.openhim.mediator.messages.ListDeadLetters;
+import org.openhim.mediator.messages.ReplayDeadLetters;
+
+/**
+ * Admin routes for the dead letters of failed feeds.
+ * <ul>
+ * <li>GET /dead-letters - lists the matching dead letters as JSON</li>
+ * <li>POST /dead-letters/replay - queues the matching pending dead letters for replay and lists them</li>
+ * </ul>
+ * Both take the optional query parameters status (pending, replaying or resolved), type (e.g. ADT^A04),
+ * error (a substring of the last error), since (epoch millis of the last failure) and limit.
+ * <br/><br/>
+ * Dead letters hold patient data, and a replay resends traffic to the registry, so the routes are admin routes
+ * (see AdminAccess). They answer 404 while xds.deadLetters.enabled is off.
+ */
+public class DeadLetterOrchestrator extends UntypedActor {
+    private final MediatorConfig config;
+
+    private MediatorHTTPRequest originalRequest;
+
+    public DeadLetterOrchestrator(MediatorConfig config) {
+        this.config = config;
+    }
+
+    static DeadLetterStore.Filter filter(MediatorHTTPRequest request) {
+        DeadLetterStore.Filter filter = new DeadLetterStore.Filter();
+        if (request.getParams() == null) {
+            return filter;
+        }
+
+        for (Pair<String, String> param : request.getParams()) {
+            String value = param.getValue();
+            switch (param.getKey()) {
+                case "status":
+                    filter.status(DeadLetter.Status.valueOf(value.toUpperCase()));
+                    break;
+                case "type":
+                    filter.messageType(value);
+                    break;
+                case "error":
+                    filter.errorContains(value);
+                    break;
+                case "since":
+                    filter.since(Long.parseLong(value));
+                    break;
+                case "limit":
+                    filter.limit(Integer.parseInt(value));
+                    break;
+            }
+        }
+        return filter;
+    }
+
+    private void respond(int status, String body) {
+        MediatorHTTPResponse response = new MediatorHTTPResponse(originalRequest, body, status,
+                Collections.singletonMap("content-type", "application/json"));
+        originalRequest.getRespondTo().tell(response.toFinishRequest(), getSelf());
+    }
+
+    private void processRequest(MediatorHTTPRequest request) {
+        originalRequest = request;
+        boolean replay = request.getPath().endsWith("/replay");
+
+        AdminAccess.Refusal refusal = AdminAccess.check(config, request);
+        if (refusal != null) {
+            respond(refusal.getStatus(), new Gson().toJson(Collections.singletonMap("error", refusal.getError())));
+            return;
+        }
+        if (!DeadLetterActor.isEnabled(config)) {
+            respond(HttpStatus.SC_NOT_FOUND, "{\"error\":\"dead letters disabled\"}");
+            return;
+        }
+
+        if (replay ? !"POST".equalsIgnoreCase(request.getMethod()) : !"GET".equalsIgnoreCase(request.getMethod())) {
+            respond(HttpStatus.SC_METHOD_NOT_ALLOWED, "{\"error\":\"method not allowed\"}");
+            return;
+        }
+
+        DeadLetterStore.Filter filter;
+        try {
+            filter = filter(request);
+        } catch (IllegalArgumentException ex) {
+            respond(HttpStatus.SC_BAD_REQUEST, new Gson().toJson(Collections.singletonMap("error", "invalid parameter: " + ex.getMessage())));
+            return;
+        }
+
+        Object msg = replay ? new ReplayDeadLetters(filter) : new ListDeadLetters(filter);
+        getContext().actorSelection(config.userPathFor("dead-letters")).tell(msg, getSelf());
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof MediatorHTTPRequest) {
+            processRequest((MediatorHTTPRequest) msg);
+        } else if (msg instanceof DeadLetterList) {
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("count", ((DeadLetterList) msg).getDeadLetters().size());
+            result.put("deadLetters", ((DeadLetterList) msg).getDeadLetters());
+            respond(originalRequest.getPath().endsWith("/replay") ? HttpStatus.SC_ACCEPTED : HttpStatus.SC_OK,
+                    new Gson().toJson(result));
+        } else {
+            unhandled(msg);
+        }
+    }
+}
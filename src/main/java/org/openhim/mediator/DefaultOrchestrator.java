@@ -1,29 +1,42 @@
 package org.openhim.mediator;
 
+import java.io.IOException;
+import java.net.SocketTimeoutException;
 import java.text.SimpleDateFormat;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.Map;
-import java.util.UUID;
-import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import akka.actor.ActorRef;
 import akka.actor.ActorSelection;
+import akka.actor.Cancellable;
 import akka.actor.Props;
 import akka.actor.UntypedActor;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
+import com.google.gson.Gson;
 import ca.uhn.hl7v2.model.Segment;
 import ca.uhn.hl7v2.model.Type;
 import ca.uhn.hl7v2.parser.EncodingCharacters;
 import org.apache.http.HttpStatus;
+import org.openhim.mediator.capture.TrafficCapture;
+import org.openhim.mediator.cluster.MediatorCluster;
+import org.openhim.mediator.denormalization.FeedCoalescer;
+import org.openhim.mediator.denormalization.MergeFeedAggregator;
 import org.openhim.mediator.denormalization.PIXRequestActor;
+import org.openhim.mediator.engine.CoreResponse;
 import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.AddOrchestrationToCoreResponse;
+import org.openhim.mediator.engine.messages.ExceptError;
 import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
 import org.openhim.mediator.engine.messages.MediatorHTTPResponse;
 import org.openhim.mediator.engine.messages.MediatorSocketRequest;
 import org.openhim.mediator.engine.messages.MediatorSocketResponse;
+import org.openhim.mediator.normalization.ParseOpenEMPINotificationActor;
+import org.openhim.mediator.tracing.Tracer;
 
 import ca.uhn.hl7v2.model.Message;
 import ca.uhn.hl7v2.model.Structure;
@@ -39,19 +52,20 @@ import ca.uhn.hl7v2.util.Terser;
 
 import org.openhim.mediator.datatypes.AssigningAuthority;
 import org.openhim.mediator.datatypes.Identifier;
+import org.openhim.mediator.messages.FeedPriority;
 import org.openhim.mediator.messages.RegisterNewPatient;
 import org.openhim.mediator.messages.RegisterNewPatientXds;
 import org.openhim.mediator.messages.MergePatientXds;
+import org.openhim.mediator.messages.ParseOpenEMPINotification;
+import org.openhim.mediator.messages.ParseOpenEMPINotificationResponse;
 import org.openhim.mediator.messages.RegisterNewPatientResponse;
 import org.openhim.mediator.messages.ResolvePatientIdentifier;
 import org.openhim.mediator.messages.ResolvePatientIdentifierResponse;
+import org.openhim.mediator.messages.ShardedFeedRequest;
+import org.openhim.mediator.messages.ShardedFeedResponse;
+import scala.concurrent.duration.Duration;
 import scala.util.parsing.combinator.testing.Tester;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonObject;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonParser;
-
 public class DefaultOrchestrator extends UntypedActor {
     LoggingAdapter log = Logging.getLogger(getContext().system(), this);
 
@@ -71,12 +85,42 @@ public class DefaultOrchestrator extends UntypedActor {
     private String messageBuffer;
     private String finalMediatorResponseBody;
 
+    private final Tracer tracer;
+    private Tracer.Trace trace;
+    private long parseStartMicros;
+
+    private final TrafficCapture capture;
+    private final MediatorDrain drain;
+
+    private boolean parsed;
+    private boolean finished;
+    private Cancellable feedTimeout;
+
+    private static class FeedTimeout {
+    }
+
     private static final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMddHHmmssZ");
     private static final SimpleDateFormat dateFormatDay = new SimpleDateFormat("yyyyMMdd");
 
+    /**
+     * Dispatcher for CPU bound work: JSON parsing, HL7 encoding and ACK parsing. See application.conf
+     */
+    public static final String TRANSFORM_DISPATCHER = "mpixds-sync.transform-dispatcher";
+
+    /**
+     * Response header saying how the feed ended when the status alone doesn't: "rejected" if the registry
+     * rejected the feed, as opposed to not being reached (both 502), and "queued" if the feed was stored to be
+     * sent later rather than acknowledged by the registry (both 200)
+     */
+    public static final String FEED_OUTCOME_HEADER = "x-feed-outcome";
+
     public DefaultOrchestrator(MediatorConfig config) {
         this.config = config;
-        resolvePatientIDActor = getContext().actorOf(Props.create(PIXRequestActor.class, config), "pix-denormalization");
+        this.tracer = Tracer.forConfig(config);
+        this.capture = TrafficCapture.forConfig(config);
+        this.drain = MediatorDrain.forConfig(config);
+        resolvePatientIDActor = getContext().actorOf(
+                Props.create(PIXRequestActor.class, config).withDispatcher(TRANSFORM_DISPATCHER), "pix-denormalization");
     }
 
     private void constructBasicMSHSegment(String correlationId, Terser t) throws HL7Exception {
@@ -132,89 +176,289 @@ public class DefaultOrchestrator extends UntypedActor {
             originalRequest = request;
             requestHandler = request.getRequestHandler();
 
+            if (!drain.started(getSelf())) {
+                respondError(HttpStatus.SC_SERVICE_UNAVAILABLE, "Mediator is shutting down");
+                return;
+            }
+            int maxInProgress = getMaxInProgress(config);
+            if (maxInProgress > 0 && drain.getInProgress() > maxInProgress) {
+                respondError(HttpStatus.SC_SERVICE_UNAVAILABLE, "Too many feeds in progress");
+                return;
+            }
+
+            trace = tracer.start(header(request, "traceparent"));
+
+            if (request.getBody() == null || request.getBody().trim().isEmpty()) {
+                respondError(HttpStatus.SC_BAD_REQUEST, "Empty notification");
+                return;
+            }
+            scheduleFeedTimeout();
+
             // Get the request body
             messageBuffer = request.getBody().trim();
+            if (capture != null) {
+                String headerName = config.getProperty("xds.priority.header");
+                capture.capture(request.getPath(), header(request, headerName != null ? headerName : "X-Feed-Priority"), messageBuffer);
+            }
+            parseStartMicros = Tracer.nowMicros();
 
-            JsonObject jsonObject = new JsonParser().parse(messageBuffer).getAsJsonObject();
-            String operation = jsonObject.get("source").toString();
-            String transition = jsonObject.get("transition").toString();
-
-            JsonArray preUpdateArr = jsonObject.getAsJsonArray("preUpdateIdentifiers");
-            JsonArray arr = jsonObject.getAsJsonArray("postUpdateIdentifiers");
+            ActorRef parseActor = getContext().actorOf(
+                    Props.create(ParseOpenEMPINotificationActor.class, config).withDispatcher(TRANSFORM_DISPATCHER));
+            parseActor.tell(new ParseOpenEMPINotification(getSelf(), getSelf(), messageBuffer, trace.getTraceId()), getSelf());
+    }
 
-            String identifier = "", assigningAuthority = "", assigningAuthorityId = "", assigningAuthorityIdType = "", 
-            preUpdateIdentifier = "";
+    /**
+     * @return the time to wait for the feed's outcome (xds.feed.timeoutMs), less than mediator.timeout so that
+     * the request gets a 504 instead of running into the root timeout
+     */
+    public static long getFeedTimeoutMillis(MediatorConfig config) {
+        String timeout = config.getProperty("xds.feed.timeoutMs");
+        return timeout != null ? Long.parseLong(timeout) : 50000;
+    }
 
-            for (int i = 0; i < arr.size(); i++) {
-                JsonElement identifierDomain = arr.get(i).getAsJsonObject().get("identifierDomain");
-                String identifierDomainName = identifierDomain.getAsJsonObject().get("identifierDomainName").getAsString();
+    /**
+     * @return the most feeds in progress at once (xds.feed.maxInProgress), more are turned away with 503;
+     * 0 for no limit. Set per tenant, it keeps a tenant with a slow registry from taking up the shared memory
+     */
+    public static int getMaxInProgress(MediatorConfig config) {
+        String max = config.getProperty("xds.feed.maxInProgress");
+        return max != null ? Integer.parseInt(max.trim()) : 0;
+    }
 
-                if(identifierDomainName.contains("OpenEMPI")) {
-                    identifier = arr.get(i).getAsJsonObject().get("identifier").getAsString();
-                    assigningAuthority = identifierDomain.getAsJsonObject().get("namespaceIdentifier").getAsString();
-                    assigningAuthorityId = identifierDomain.getAsJsonObject().get("universalIdentifier").getAsString();
-                    assigningAuthorityIdType = identifierDomain.getAsJsonObject().get("universalIdentifierTypeCode").getAsString();
-                }
-            }
+    private void scheduleFeedTimeout() {
+        feedTimeout = getContext().system().scheduler().scheduleOnce(
+                Duration.create(getFeedTimeoutMillis(config), TimeUnit.MILLISECONDS), getSelf(), new FeedTimeout(),
+                getContext().dispatcher(), getSelf());
+    }
 
-            for (int i = 0; i < preUpdateArr.size(); i++) {
-                JsonElement identifierDomain = preUpdateArr.get(i).getAsJsonObject().get("identifierDomain");
-                String identifierDomainName = identifierDomain.getAsJsonObject().get("identifierDomainName").getAsString();
+    /**
+     * @return the priority lane of the feed: as named in the request's priority header (xds.priority.header),
+     * else BULK for requests to the bulk route, else the operation's default (xds.priority.register/merge)
+     */
+    private FeedPriority priorityFor(boolean merge) {
+        String headerName = config.getProperty("xds.priority.header");
+        FeedPriority priority = FeedPriority.parse(header(originalRequest, headerName != null ? headerName : "X-Feed-Priority"));
+        if (priority != null) {
+            return priority;
+        }
+        if (originalRequest.getPath() != null && originalRequest.getPath().endsWith("/bulk")) {
+            return FeedPriority.BULK;
+        }
+        priority = FeedPriority.parse(config.getProperty(merge ? "xds.priority.merge" : "xds.priority.register"));
+        return priority != null ? priority : FeedPriority.REALTIME;
+    }
 
-                if(identifierDomainName.contains("OpenEMPI")) {
-                    preUpdateIdentifier = preUpdateArr.get(i).getAsJsonObject().get("identifier").getAsString();
-                    assigningAuthority = identifierDomain.getAsJsonObject().get("namespaceIdentifier").getAsString();
-                    assigningAuthorityId = identifierDomain.getAsJsonObject().get("universalIdentifier").getAsString();
-                    assigningAuthorityIdType = identifierDomain.getAsJsonObject().get("universalIdentifierTypeCode").getAsString();
+    private static String header(MediatorHTTPRequest request, String name) {
+        if (request.getHeaders() != null) {
+            for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+                if (name.equalsIgnoreCase(header.getKey())) {
+                    return header.getValue();
                 }
             }
+        }
+        return null;
+    }
+
+    private void sendToXDSRegistry(ParseOpenEMPINotificationResponse notification) {
+            parsed = true;
+            String operation = notification.getOperation();
+            String transition = notification.getTransition();
+            tracer.span(trace.getTraceId(), "parse notification", parseStartMicros, Tracer.nowMicros(),
+                    "operation", String.valueOf(operation), "transition", String.valueOf(transition));
 
-            // Declare Post Update and Pre-Update identifier lists
-            List<Identifier> identifierList = new LinkedList<>();
-            List<Identifier> preUpdateIdentifierList = new LinkedList<>();
+            if (MediatorCluster.isEnabled(config)) {
+                sendToFeedRegion(notification);
 
-            if (operation.contains("ADD") && transition.contains("JOIN")) {
-                Identifier patientIdentifier = new Identifier(identifier, new AssigningAuthority(
-                                            assigningAuthority, assigningAuthorityId, assigningAuthorityIdType));
+            } else if (FeedCoalescer.isEnabled(config)) {
+                sendToFeedCoalescer(notification);
 
-                identifierList.add(patientIdentifier);
-                RegisterNewPatientXds requestXds = new RegisterNewPatientXds(requestHandler, getSelf(), identifierList);
+            } else if (operation.contains("ADD") && transition.contains("JOIN")) {
+                RegisterNewPatientXds requestXds = new RegisterNewPatientXds(getSelf(), getSelf(),
+                        notification.getPatientIdentifiers(), trace.getTraceId(), priorityFor(false));
                 resolvePatientIDActor.tell(requestXds, getSelf());
 
             } else if (operation.contains("UPDATE") && transition.contains("JOIN")) {
-                Identifier patientIdentifier = new Identifier(identifier, new AssigningAuthority(
-                                            assigningAuthority, assigningAuthorityId, assigningAuthorityIdType));
-                Identifier preUpdatePatientId = new Identifier(preUpdateIdentifier, new AssigningAuthority(
-                                            assigningAuthority, assigningAuthorityId, assigningAuthorityIdType));
-
-                identifierList.add(patientIdentifier);
-                preUpdateIdentifierList.add(preUpdatePatientId);
-                MergePatientXds mergeRequestXds = new MergePatientXds(requestHandler, getSelf(), identifierList, preUpdateIdentifierList);
-                resolvePatientIDActor.tell(mergeRequestXds, getSelf());
+                MergePatientXds mergeRequestXds = new MergePatientXds(getSelf(), getSelf(),
+                        notification.getPatientIdentifiers(), notification.getPreUpdateIdentifiers(), trace.getTraceId(),
+                        priorityFor(true));
+                if (MergeFeedAggregator.getMaxBatchSize(config) > 1) {
+                    // collect with concurrent merges into a single ADT_A40
+                    getContext().actorSelection(config.userPathFor("merge-aggregator")).tell(mergeRequestXds, getSelf());
+                } else {
+                    resolvePatientIDActor.tell(mergeRequestXds, getSelf());
+                }
+
+            } else {
+                respondNoFeed(operation, transition);
             }
     }
 
+    /**
+     * Identical feeds in flight at the same time, e.g. a notification retried by OpenEMPI, are sent to the registry once
+     */
+    private void sendToFeedCoalescer(ParseOpenEMPINotificationResponse notification) {
+        String operation = notification.getOperation();
+        String transition = notification.getTransition();
+
+        Object request;
+        if (operation.contains("ADD") && transition.contains("JOIN")) {
+            request = new RegisterNewPatientXds(getSelf(), getSelf(), notification.getPatientIdentifiers(), trace.getTraceId(),
+                    priorityFor(false));
+        } else if (operation.contains("UPDATE") && transition.contains("JOIN")) {
+            request = new MergePatientXds(getSelf(), getSelf(),
+                    notification.getPatientIdentifiers(), notification.getPreUpdateIdentifiers(), trace.getTraceId(),
+                    priorityFor(true));
+        } else {
+            respondNoFeed(operation, transition);
+            return;
+        }
+
+        getContext().actorSelection(config.userPathFor("feed-coalescer")).tell(request, getSelf());
+    }
+
+    /**
+     * Clustered mode: the feed is handled by the node that owns the patient, in order with the patient's other feeds
+     */
+    private void sendToFeedRegion(ParseOpenEMPINotificationResponse notification) {
+        String operation = notification.getOperation();
+        String transition = notification.getTransition();
+
+        ShardedFeedRequest.Operation feedOperation;
+        if (operation.contains("ADD") && transition.contains("JOIN")) {
+            feedOperation = ShardedFeedRequest.Operation.REGISTER;
+        } else if (operation.contains("UPDATE") && transition.contains("JOIN")) {
+            feedOperation = ShardedFeedRequest.Operation.MERGE;
+        } else {
+            respondNoFeed(operation, transition);
+            return;
+        }
+
+        ShardedFeedRequest request = new ShardedFeedRequest(feedOperation, notification.getPatientIdentifiers(),
+                notification.getPreUpdateIdentifiers(), getSelf(), trace.getTraceId(),
+                priorityFor(feedOperation == ShardedFeedRequest.Operation.MERGE));
+        MediatorCluster.feedRegion(getContext().system()).tell(request, getSelf());
+    }
+
+    /**
+     * Notifications that don't change the registry, e.g. a patient leaving a link, are acknowledged straight away,
+     * so that OpenEMPI doesn't retry them
+     */
+    private void respondNoFeed(String operation, String transition) {
+        log.info("No XDS feed needed for " + operation + "/" + transition + " notification");
+        tracer.end(trace, "POST " + originalRequest.getPath(), "outcome", "ignored");
+        respond(HttpStatus.SC_OK, "", new HashMap<String, String>());
+    }
+
     private void processRegisterNewPatientResponse(RegisterNewPatientResponse response) {
-        if (response.isSuccessful()) {
+        processFeedOutcome(response.isSuccessful(), response.getErr(), response.isQueued());
+    }
+
+    private void processFeedOutcome(boolean successful, String err, boolean queued) {
+        tracer.end(trace, "POST " + originalRequest.getPath(), "outcome", successful ? "registered" : "rejected");
+        if (successful) {
             log.info("Patient successfully registered in XDS Registry.");
 
             Map<String, String> headers = new HashMap<>();
             headers.put("content-type", "application/hl7-v2; charset=ISO-8859-1");
+            headers.put(FEED_OUTCOME_HEADER, queued ? "queued" : "registered");
+            respond(HttpStatus.SC_OK, finalMediatorResponseBody, headers);
+        } else {
+            log.warning("XDS Registry rejected the feed: " + err);
+            Map<String, String> headers = new HashMap<>();
+            headers.put("content-type", "application/json");
+            headers.put(FEED_OUTCOME_HEADER, "rejected");
+            respond(HttpStatus.SC_BAD_GATEWAY, new Gson().toJson(Collections.singletonMap("error",
+                    err != null ? err : "Rejected by the XDS registry")), headers);
+        }
+    }
 
-            MediatorHTTPResponse httpresponse = new MediatorHTTPResponse(originalRequest, finalMediatorResponseBody,
-                    HttpStatus.SC_OK, headers);
-            originalRequest.getRespondTo().tell(httpresponse.toFinishRequest(), getSelf());
+    /**
+     * @return the HTTP status for a failed feed: 504 if the feed had no outcome in time, even if the notification
+     * was still being parsed, 400 if the notification couldn't be parsed, 502 if the registry couldn't be reached or
+     * its response couldn't be read, else 500
+     */
+    static int statusFor(Throwable error, boolean parsed) {
+        if (error instanceof SocketTimeoutException || error instanceof TimeoutException) {
+            return HttpStatus.SC_GATEWAY_TIMEOUT;
+        } else if (!parsed) {
+            return HttpStatus.SC_BAD_REQUEST;
+        } else if (error instanceof IOException || error instanceof HL7Exception) {
+            return HttpStatus.SC_BAD_GATEWAY;
+        }
+        return HttpStatus.SC_INTERNAL_SERVER_ERROR;
+    }
+
+    private void processError(Throwable error) {
+        if (finished) {
+            return;
+        }
+        int status = statusFor(error, parsed);
+        tracer.end(trace, "POST " + originalRequest.getPath(), "outcome", status == HttpStatus.SC_BAD_REQUEST ? "invalid" : "failed");
+        if (status == HttpStatus.SC_INTERNAL_SERVER_ERROR) {
+            log.error(error, "Failed to sync the notification");
         } else {
-            // do nothing for now
+            log.warning("Failed to sync the notification (" + status + "): " + error);
+        }
+        respondError(status, String.valueOf(error.getMessage()));
+    }
+
+    private void respondError(int status, String error) {
+        respond(status, new Gson().toJson(Collections.singletonMap("error", error)),
+                Collections.singletonMap("content-type", "application/json"));
+    }
+
+    /**
+     * Finishes the request with the first outcome; anything arriving later for the feed is ignored
+     */
+    private void respond(int status, String body, Map<String, String> headers) {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        if (feedTimeout != null) {
+            feedTimeout.cancel();
+        }
+        drain.finished(getSelf());
+
+        MediatorHTTPResponse httpresponse = new MediatorHTTPResponse(originalRequest, body, status, headers);
+        originalRequest.getRespondTo().tell(httpresponse.toFinishRequest(), getSelf());
+    }
+
+    @Override
+    public void postStop() throws Exception {
+        if (feedTimeout != null) {
+            feedTimeout.cancel();
         }
+        drain.finished(getSelf());
+        // the request failed or timed out
+        tracer.end(trace, "POST " + (originalRequest != null ? originalRequest.getPath() : "/mpixds-sync"), "outcome", "failed");
     }
 
     @Override
     public void onReceive(Object msg) throws Exception {
         if (msg instanceof MediatorHTTPRequest) {
             convertJSONMessageSendtoXDSRegistry((MediatorHTTPRequest) msg);
+        } else if (msg instanceof ParseOpenEMPINotificationResponse) {
+            sendToXDSRegistry((ParseOpenEMPINotificationResponse) msg);
         } else if (msg instanceof RegisterNewPatientResponse) {
             processRegisterNewPatientResponse((RegisterNewPatientResponse) msg);
+        } else if (msg instanceof ShardedFeedResponse) {
+            ShardedFeedResponse response = (ShardedFeedResponse) msg;
+            processFeedOutcome(response.isSuccessful(), response.getErr(), response.isQueued());
+        } else if (msg instanceof ExceptError) {
+            processError(((ExceptError) msg).getError());
+        } else if (msg instanceof FeedTimeout) {
+            processError(new SocketTimeoutException("No outcome for the feed within " + getFeedTimeoutMillis(config) + " ms"));
+        } else if (msg instanceof MediatorDrain.DrainDeadline) {
+            if (!finished) {
+                log.warning("Mediator shut down before the feed completed");
+                tracer.end(trace, "POST " + originalRequest.getPath(), "outcome", "failed");
+                respondError(HttpStatus.SC_SERVICE_UNAVAILABLE, "Mediator shut down before the feed completed");
+            }
+        } else if (msg instanceof AddOrchestrationToCoreResponse) {
+            requestHandler.tell(msg, getSelf());
+        } else if (msg instanceof CoreResponse.Orchestration) {
+            requestHandler.tell(new AddOrchestrationToCoreResponse((CoreResponse.Orchestration) msg), getSelf());
         } else {
             unhandled(msg);
         }
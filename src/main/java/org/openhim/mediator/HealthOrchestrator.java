@@ -0,0 +1,58 @@
+package org.openhim.mediator;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import akka.actor.UntypedActor;
+import com.google.gson.Gson;
+import org.apache.http.HttpStatus;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPResponse;
+import org.openhim.mediator.messages.GetRegistryStats;
+import org.openhim.mediator.messages.RegistryStats;
+
+/**
+ * Reports the mediator's health as JSON: readiness, and the rolling XDS registry acknowledgement latency,
+ * in-flight and queued message counts and the last registry error.
+ * <br/><br/>
+ * Always responds with 200 while the mediator is running; use /ready to decide whether to send it traffic.
+ */
+public class HealthOrchestrator extends UntypedActor {
+    private final MediatorConfig config;
+
+    private MediatorHTTPRequest originalRequest;
+
+    public HealthOrchestrator(MediatorConfig config) {
+        this.config = config;
+    }
+
+    private void respond(RegistryStats stats) {
+        String notReadyReason = MediatorReadiness.notReadyReason(config, stats);
+
+        Map<String, Object> health = new LinkedHashMap<>();
+        health.put("ready", notReadyReason == null);
+        if (notReadyReason != null) {
+            health.put("notReadyReason", notReadyReason);
+        }
+        health.put("warmedUp", MediatorReadiness.isWarmedUp());
+        health.put("registry", stats);
+
+        MediatorHTTPResponse response = new MediatorHTTPResponse(originalRequest, new Gson().toJson(health), HttpStatus.SC_OK,
+                Collections.singletonMap("content-type", "application/json"));
+        originalRequest.getRespondTo().tell(response.toFinishRequest(), getSelf());
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof MediatorHTTPRequest) {
+            originalRequest = (MediatorHTTPRequest) msg;
+            getContext().actorSelection(config.userPathFor("xds-registry-connector")).tell(new GetRegistryStats(), getSelf());
+        } else if (msg instanceof RegistryStats) {
+            respond((RegistryStats) msg);
+        } else {
+            unhandled(msg);
+        }
+    }
+}
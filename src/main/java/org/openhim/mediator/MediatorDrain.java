@@ -0,0 +1,149 @@
+package org.openhim.mediator;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import akka.actor.ActorRef;
+import akka.event.LoggingAdapter;
+import org.openhim.mediator.engine.MediatorConfig;
+
+/**
+ * Drains the mediator before it stops, so that a rolling restart neither loses feeds nor leaves OpenEMPI waiting
+ * for them to time out.
+ * <br/><br/>
+ * Once draining, /ready reports 503 so that traffic moves to other instances, new notifications are turned away
+ * with 503 and the change feed takes no more events. The feeds in progress get up to
+ * mediator.shutdown.drainTimeoutMs to be acknowledged by the registry. Any still in progress after that are
+ * answered with 503, so that OpenEMPI retries them elsewhere straight away. Nothing else is lost: the change feed
+ * cursor only moves past completed pages, and spilled messages stay on disk for the next start.
+ * <br/><br/>
+ * Thread safe.
+ */
+public class MediatorDrain {
+    private static final long POLL_MILLIS = 50;
+    // time for the answers at the deadline to go out
+    private static final long DEADLINE_ANSWER_MILLIS = 2000;
+
+    private static final Map<MediatorConfig, MediatorDrain> drains = new WeakHashMap<>();
+
+    /**
+     * Tells a feed still in progress at the drain deadline to give up
+     */
+    public static class DrainDeadline {
+    }
+
+    private volatile boolean draining = false;
+    private final Set<ActorRef> inProgress = Collections.newSetFromMap(new ConcurrentHashMap<ActorRef, Boolean>());
+
+
+    MediatorDrain() {
+    }
+
+    public static MediatorDrain forConfig(MediatorConfig config) {
+        synchronized (drains) {
+            MediatorDrain drain = drains.get(config);
+            if (drain == null) {
+                drain = new MediatorDrain();
+                drains.put(config, drain);
+            }
+            return drain;
+        }
+    }
+
+    /**
+     * @return how long the feeds in progress are given to complete on shutdown (mediator.shutdown.drainTimeoutMs)
+     */
+    public static long getDrainTimeoutMillis(MediatorConfig config) {
+        String timeout = config.getProperty("mediator.shutdown.drainTimeoutMs");
+        return timeout != null ? Long.parseLong(timeout.trim()) : 20000;
+    }
+
+    public boolean isDraining() {
+        return draining;
+    }
+
+    /**
+     * @return the number of feeds in progress
+     */
+    public int getInProgress() {
+        return inProgress.size();
+    }
+
+    /**
+     * Registers a feed in progress, until finished() is called for it.
+     *
+     * @return false if draining, in which case the feed must be turned away
+     */
+    public boolean started(ActorRef feed) {
+        inProgress.add(feed);
+        if (draining) {
+            inProgress.remove(feed);
+            return false;
+        }
+        return true;
+    }
+
+    public void finished(ActorRef feed) {
+        inProgress.remove(feed);
+    }
+
+    /**
+     * Starts draining, and blocks until the feeds in progress have finished or the timeout has passed. Feeds still
+     * in progress then are sent a DrainDeadline.
+     *
+     * @return whether all feeds finished within the timeout
+     */
+    public boolean drain(long timeoutMillis, LoggingAdapter log) throws InterruptedException {
+        startDraining();
+        log.info("Draining " + inProgress.size() + " feed(s) in progress");
+
+        if (await(timeoutMillis)) {
+            log.info("All feeds in progress completed");
+            return true;
+        }
+
+        log.warning(inProgress.size() + " feed(s) still in progress after " + timeoutMillis + " ms, answering them with 503");
+        for (ActorRef feed : inProgress) {
+            feed.tell(new DrainDeadline(), ActorRef.noSender());
+        }
+        await(DEADLINE_ANSWER_MILLIS);
+        return false;
+    }
+
+    /**
+     * Turns away new feeds from now on
+     */
+    public void startDraining() {
+        draining = true;
+    }
+
+    /**
+     * Drains the configs, e.g. the mediator's and its tenants', all within the same timeout
+     *
+     * @return whether all feeds finished within the timeout
+     */
+    public static boolean drain(Collection<MediatorConfig> configs, long timeoutMillis, LoggingAdapter log) throws InterruptedException {
+        for (MediatorConfig config : configs) {
+            forConfig(config).startDraining();
+        }
+
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        boolean drained = true;
+        for (MediatorConfig config : configs) {
+            drained &= forConfig(config).drain(Math.max(0, deadline - System.currentTimeMillis()), log);
+        }
+        return drained;
+    }
+
+    private boolean await(long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (!inProgress.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(POLL_MILLIS);
+        }
+        return inProgress.isEmpty();
+    }
+}
@@ -3,22 +3,64 @@ package org.openhim.mediator;
 import akka.actor.ActorSystem;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
+import akka.pattern.Patterns;
+import akka.util.Timeout;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.openhim.mediator.changefeed.ChangeFeedPoller;
+import org.openhim.mediator.cluster.MediatorCluster;
+import org.openhim.mediator.connectors.BlockingMLLPConnector;
+import org.openhim.mediator.connectors.XdsRegistryConnector;
+import org.openhim.mediator.deadletters.DeadLetterActor;
+import org.openhim.mediator.demographics.PDQEnrichmentActor;
+import org.openhim.mediator.denormalization.FeedCoalescer;
+import org.openhim.mediator.denormalization.MergeFeedAggregator;
 import org.openhim.mediator.engine.*;
+import org.openhim.mediator.engine.connectors.MLLPConnector;
+import org.openhim.mediator.messages.GetRegistryStats;
+import org.openhim.mediator.tenants.TenantRouter;
+import org.openhim.mediator.tenants.Tenants;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import scala.concurrent.Await;
+import scala.concurrent.duration.Duration;
 
 public class MediatorMain {
 
-    private static RoutingTable buildRoutingTable() throws RoutingTable.RouteAlreadyMappedException {
+    private static RoutingTable buildRoutingTable(MediatorConfig config) throws RoutingTable.RouteAlreadyMappedException {
         RoutingTable routingTable = new RoutingTable();
 
         //TODO Configure routes here
         //...
-        routingTable.addRoute("/mpixds-sync", DefaultOrchestrator.class);
+        if (Tenants.isEnabled(config)) {
+            // the tenant is picked by path or header
+            routingTable.addRoute("/mpixds-sync", TenantRouter.class);
+            routingTable.addRoute("/mpixds-sync/bulk", TenantRouter.class);
+            routingTable.addRoute("/dead-letters", TenantRouter.class);
+            routingTable.addRoute("/dead-letters/replay", TenantRouter.class);
+            routingTable.addRoute("/admin/settings", TenantRouter.class);
+            routingTable.addRoute("/admin/stats", TenantRouter.class);
+            routingTable.addRegexRoute("^/tenants/[^/]+/.+$", TenantRouter.class);
+        } else {
+            routingTable.addRoute("/mpixds-sync", DefaultOrchestrator.class);
+            routingTable.addRoute("/mpixds-sync/bulk", DefaultOrchestrator.class);
+            routingTable.addRoute("/dead-letters", DeadLetterOrchestrator.class);
+            routingTable.addRoute("/dead-letters/replay", DeadLetterOrchestrator.class);
+            routingTable.addRoute("/admin/settings", AdminOrchestrator.class);
+            routingTable.addRoute("/admin/stats", AdminOrchestrator.class);
+        }
+        routingTable.addRoute("/ready", ReadinessOrchestrator.class);
+        routingTable.addRoute("/health", HealthOrchestrator.class);
+        // the recording covers the whole process
+        routingTable.addRoute("/admin/jfr", AdminOrchestrator.class);
+        routingTable.addRoute("/admin/jfr/start", AdminOrchestrator.class);
+        routingTable.addRoute("/admin/jfr/stop", AdminOrchestrator.class);
+        routingTable.addRoute("/admin/jfr/recording", AdminOrchestrator.class);
 
         return routingTable;
     }
@@ -28,10 +70,26 @@ public class MediatorMain {
 
         //TODO Add own startup actors here
         //...
+        startupActors.addActor("blocking-mllp-connector", BlockingMLLPConnector.class);
+        startupActors.addActor("xds-registry-connector", XdsRegistryConnector.class);
+        startupActors.addActor("merge-aggregator", MergeFeedAggregator.class);
+        startupActors.addActor("feed-coalescer", FeedCoalescer.class);
+        startupActors.addActor("dead-letters", DeadLetterActor.class);
+        startupActors.addActor("pdq-enricher", PDQEnrichmentActor.class);
+        startupActors.addActor("change-feed", ChangeFeedPoller.class);
 
         return startupActors;
     }
 
+    /**
+     * @return the actors of each tenant: the startup actors, and the MLLP connector the engine starts for the mediator
+     */
+    private static StartupActorsConfig buildTenantActorsConfig() {
+        StartupActorsConfig tenantActors = buildStartupActorsConfig();
+        tenantActors.addActor("mllp-connector", MLLPConnector.class);
+        return tenantActors;
+    }
+
     private static MediatorConfig loadConfig(String configPath) throws IOException, RoutingTable.RouteAlreadyMappedException {
         MediatorConfig config = new MediatorConfig();
 
@@ -59,41 +117,94 @@ public class MediatorMain {
             config.setCoreAPIPort(Integer.parseInt(config.getProperty("core.api.port")));
         }
 
-        config.setRoutingTable(buildRoutingTable());
+        config.setRoutingTable(buildRoutingTable(config));
         config.setStartupActors(buildStartupActorsConfig());
 
         InputStream regInfo = MediatorMain.class.getClassLoader().getResourceAsStream("mediator-registration-info.json");
         RegistrationConfig regConfig = new RegistrationConfig(regInfo);
         config.setRegistrationConfig(regConfig);
 
+        //typed snapshot of the properties used per message
+        MediatorSettings.holderFor(config);
+
         return config;
     }
 
+    /**
+     * Waits until the registry connector of each config has started, and so subscribed to reloaded settings
+     */
+    private static void awaitStartupActors(ActorSystem system, List<MediatorConfig> configs, LoggingAdapter log) {
+        Timeout timeout = new Timeout(Duration.create(10, TimeUnit.SECONDS));
+        for (MediatorConfig config : configs) {
+            try {
+                Await.result(Patterns.ask(system.actorSelection(config.userPathFor("xds-registry-connector")),
+                        new GetRegistryStats(), timeout), timeout.duration());
+            } catch (Exception ex) {
+                log.warning("The XDS registry connector of " + config.getName() + " didn't start: " + ex);
+            }
+        }
+    }
+
     public static void main(String... args) throws Exception {
+        String configPath = null;
+        if (args.length==2 && args[0].equals("--conf")) {
+            configPath = args[1];
+        }
+
+        final MediatorConfig config = loadConfig(configPath);
+
         //setup actor system
-        final ActorSystem system = ActorSystem.create("mediator");
+        final ActorSystem system = MediatorCluster.createActorSystem(config);
         //setup logger for main
         final LoggingAdapter log = Logging.getLogger(system, "main");
 
         //setup actors
         log.info("Initializing mediator actors...");
 
-        String configPath = null;
-        if (args.length==2 && args[0].equals("--conf")) {
-            configPath = args[1];
-            log.info("Loading mediator configuration from '" + configPath + "'...");
+        if (configPath!=null) {
+            log.info("Loaded mediator configuration from '" + configPath + "'");
         } else {
             log.info("No configuration specified. Using default properties...");
         }
 
-        MediatorConfig config = loadConfig(configPath);
+        if (MediatorCluster.isEnabled(config)) {
+            log.info("Joining mediator cluster...");
+            MediatorCluster.startFeedRegion(system, config);
+            MediatorCluster.join(system, config);
+        }
+
+        if (Tenants.isEnabled(config)) {
+            log.info("Starting tenants " + Tenants.forConfig(config).getNames());
+            Tenants.forConfig(config).launch(system, buildTenantActorsConfig());
+        }
+
         final MediatorServer server = new MediatorServer(system, config);
 
+        //warm up the HL7 paths while the server starts and registers with core
+        Thread warmup = new Thread(new MediatorWarmup(config, log), "mediator-warmup");
+        if (!"false".equalsIgnoreCase(config.getProperty("mediator.warmup.enabled"))) {
+            log.info("Warming up HL7 message handling...");
+            warmup.start();
+        } else {
+            MediatorReadiness.markWarmedUp();
+        }
+
+        final List<MediatorConfig> configs = new ArrayList<>();
+        configs.add(config);
+        if (Tenants.isEnabled(config)) {
+            configs.addAll(Tenants.forConfig(config).getConfigs());
+        }
+
         //setup shutdown hook
         Runtime.getRuntime().addShutdownHook(new Thread() {
             @Override
             public void run() {
                 log.info("Shutting down mediator");
+                try {
+                    MediatorDrain.drain(configs, MediatorDrain.getDrainTimeoutMillis(config), log);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
                 server.stop();
                 system.shutdown();
             }
@@ -103,6 +214,16 @@ public class MediatorMain {
         server.start();
 
         log.info(String.format("%s listening on %s:%s", config.getName(), config.getServerHost(), config.getServerPort()));
+
+        if (configPath!=null && ConfigFileWatcher.isEnabled(config)) {
+            //a reload before the startup actors subscribe to it would be lost
+            awaitStartupActors(system, configs, log);
+            log.info("Watching '" + configPath + "' for configuration changes");
+            new ConfigFileWatcher(new File(configPath), config, system, log).start();
+        }
+
+        warmup.join();
+        log.info(config.getName() + " is ready");
         Thread.currentThread().join();
     }
 }
@@ -0,0 +1,69 @@
+package org.openhim.mediator;
+
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.messages.RegistryStats;
+
+/**
+ * Process wide readiness state of the mediator.
+ * <br/><br/>
+ * The mediator only reports itself as ready once startup warm-up has completed,
+ * so that load balancers don't route traffic to a cold instance.
+ * <br/><br/>
+ * Once warmed up, the mediator is not ready while the XDS registry exchanges cross any of the
+ * mediator.ready.* thresholds, so that traffic moves to other instances before requests start
+ * running into mediator.timeout.
+ */
+public class MediatorReadiness {
+    private static volatile boolean warmedUp = false;
+
+    private MediatorReadiness() {
+    }
+
+    public static void markWarmedUp() {
+        warmedUp = true;
+    }
+
+    /**
+     * Back to warming up. The state is process wide, so tests that mark it warmed up reset it afterwards.
+     */
+    static void reset() {
+        warmedUp = false;
+    }
+
+    public static boolean isWarmedUp() {
+        return warmedUp;
+    }
+
+    public static boolean isReady() {
+        return warmedUp;
+    }
+
+    /**
+     * @return why the mediator is not ready to take traffic, or null if it is ready
+     */
+    public static String notReadyReason(MediatorConfig config, RegistryStats stats) {
+        if (!warmedUp) {
+            return "warming up";
+        }
+
+        long maxLatency = threshold(config, "mediator.ready.maxRegistryLatencyMs", 30000);
+        if (stats.getLatencyP95Millis() > maxLatency) {
+            return "registry p95 latency " + stats.getLatencyP95Millis() + "ms exceeds " + maxLatency + "ms";
+        }
+        long maxInFlight = threshold(config, "mediator.ready.maxInFlight", 500);
+        if (stats.getInFlight() > maxInFlight) {
+            return stats.getInFlight() + " registry messages in flight exceeds " + maxInFlight;
+        }
+        long maxQueued = threshold(config, "mediator.ready.maxQueued", 1000);
+        if (stats.getQueued() > maxQueued) {
+            return stats.getQueued() + " registry messages queued exceeds " + maxQueued;
+        }
+
+        return null;
+    }
+
+    private static long threshold(MediatorConfig config, String property, long defaultValue) {
+        String value = config.getProperty(property);
+        return value != null ? Long.parseLong(value) : defaultValue;
+    }
+}
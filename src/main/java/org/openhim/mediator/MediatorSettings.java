@@ -0,0 +1,161 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator;
+
+import java.util.Map;
+import java.util.Properties;
+import java.util.WeakHashMap;
+
+import akka.actor.ActorSystem;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.messages.SettingsReloaded;
+import org.openhim.mediator.normalization.SyncDomains;
+
+/**
+ * Immutable, typed snapshot of the mediator properties used for every message.
+ * <br/><br/>
+ * Each MediatorConfig has one current snapshot, built from its properties on first use. Actors hold on to the
+ * {@link Holder} and read the current snapshot per message, so all values used for a message come from the same
+ * version of the configuration, without repeated property lookups and parsing.
+ * <br/><br/>
+ * {@link #reload(MediatorConfig, Properties, ActorSystem)} swaps in a new snapshot atomically and publishes
+ * SettingsReloaded on the actor system's event stream, for actors that derive state from the configuration.
+ */
+public final class MediatorSettings {
+
+    /**
+     * Reference to the current snapshot of a MediatorConfig
+     */
+    public static final class Holder {
+        private volatile MediatorSettings current;
+
+        private Holder(MediatorSettings current) {
+            this.current = current;
+        }
+
+        public MediatorSettings get() {
+            return current;
+        }
+    }
+
+    private static final Map<MediatorConfig, Holder> holders = new WeakHashMap<>();
+
+    private final Properties properties = new Properties();
+
+    private final String registryHost;
+    private final int registryPort;
+    private final int registrySecurePort;
+    private final boolean registrySecure;
+
+    private final String sendingApplication;
+    private final String sendingFacility;
+    private final String receivingApplication;
+    private final String receivingFacility;
+    private final SyncDomains syncDomains;
+
+
+    /**
+     * @throws NumberFormatException if a numeric property is invalid
+     */
+    public MediatorSettings(Properties properties) {
+        this.properties.putAll(properties);
+
+        registryHost = properties.getProperty("xds.registry.host");
+        registryPort = intProperty(properties, "xds.registry.port");
+        registrySecurePort = intProperty(properties, "xds.registry.securePort");
+        registrySecure = "true".equalsIgnoreCase(properties.getProperty("xds.registry.secure"));
+
+        sendingApplication = properties.getProperty("pix.sendingApplication");
+        sendingFacility = properties.getProperty("pix.sendingFacility");
+        receivingApplication = properties.getProperty("pix.receivingApplication");
+        receivingFacility = properties.getProperty("pix.receivingFacility");
+        syncDomains = new SyncDomains(properties.getProperty("pix.syncDomains"));
+    }
+
+    private static int intProperty(Properties properties, String name) {
+        String value = properties.getProperty(name);
+        return value != null ? Integer.parseInt(value.trim()) : 0;
+    }
+
+    /**
+     * @return the holder of the config's current snapshot
+     */
+    public static Holder holderFor(MediatorConfig config) {
+        synchronized (holders) {
+            Holder holder = holders.get(config);
+            if (holder == null) {
+                holder = new Holder(new MediatorSettings(config.getProperties()));
+                holders.put(config, holder);
+            }
+            return holder;
+        }
+    }
+
+    /**
+     * Replaces the config's properties and current snapshot. If the new properties are invalid, nothing changes.
+     *
+     * @return the new snapshot
+     * @throws NumberFormatException if a numeric property is invalid
+     */
+    public static MediatorSettings reload(MediatorConfig config, Properties properties, ActorSystem system) {
+        MediatorSettings settings = new MediatorSettings(properties);
+        Holder holder = holderFor(config);
+
+        synchronized (holder) {
+            // for the code reading the config directly, e.g. when creating actors
+            Properties configProperties = config.getProperties();
+            configProperties.putAll(properties);
+            configProperties.keySet().retainAll(properties.keySet());
+
+            holder.current = settings;
+        }
+
+        system.eventStream().publish(new SettingsReloaded(config, settings));
+        return settings;
+    }
+
+
+    public String getProperty(String name) {
+        return properties.getProperty(name);
+    }
+
+    public String getRegistryHost() {
+        return registryHost;
+    }
+
+    public int getRegistryPort() {
+        return registryPort;
+    }
+
+    public int getRegistrySecurePort() {
+        return registrySecurePort;
+    }
+
+    public boolean isRegistrySecure() {
+        return registrySecure;
+    }
+
+    public String getSendingApplication() {
+        return sendingApplication;
+    }
+
+    public String getSendingFacility() {
+        return sendingFacility;
+    }
+
+    public String getReceivingApplication() {
+        return receivingApplication;
+    }
+
+    public String getReceivingFacility() {
+        return receivingFacility;
+    }
+
+    public SyncDomains getSyncDomains() {
+        return syncDomains;
+    }
+}
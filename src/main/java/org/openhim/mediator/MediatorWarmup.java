@@ -0,0 +1,65 @@
+package org.openhim.mediator;
+
+import java.util.Collections;
+import java.util.List;
+
+import akka.event.LoggingAdapter;
+import ca.uhn.hl7v2.HL7Exception;
+import org.openhim.mediator.datatypes.AssigningAuthority;
+import org.openhim.mediator.datatypes.Identifier;
+import org.openhim.mediator.denormalization.XdsFeedMessageBuilder;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.messages.MergePatientXds;
+import org.openhim.mediator.messages.RegisterNewPatientXds;
+
+/**
+ * Exercises the HL7 encode and ACK parse paths on synthetic messages at startup.
+ * <br/><br/>
+ * HAPI loads the message model classes, builds its parser and resolves Terser paths lazily,
+ * which makes the first requests after a deploy several times slower than the rest.
+ * Running the same code paths once before taking traffic moves that cost to startup.
+ */
+public class MediatorWarmup implements Runnable {
+    private static final String SYNTHETIC_ACK =
+            "MSH|^~\\&|warmup|warmup|openhim|openhim|20000101000000||ACK^A04|warmup-ack|P|2.3.1\r" +
+            "MSA|AA|warmup\r";
+
+    private final MediatorConfig config;
+    private final LoggingAdapter log;
+    private final int iterations;
+
+
+    public MediatorWarmup(MediatorConfig config, LoggingAdapter log) {
+        this.config = config;
+        this.log = log;
+
+        String iterationsProperty = config.getProperty("mediator.warmup.iterations");
+        this.iterations = iterationsProperty != null ? Integer.parseInt(iterationsProperty) : 50;
+    }
+
+
+    @Override
+    public void run() {
+        long start = System.currentTimeMillis();
+        try {
+            XdsFeedMessageBuilder builder = new XdsFeedMessageBuilder(config);
+
+            List<Identifier> ids = Collections.singletonList(
+                    new Identifier("warmup", new AssigningAuthority("warmup", "1.2.3", "ISO")));
+            RegisterNewPatientXds register = new RegisterNewPatientXds(null, null, ids);
+            MergePatientXds merge = new MergePatientXds(null, null, ids, ids);
+
+            for (int i = 0; i < iterations; i++) {
+                builder.constructADT_A04("warmup", register);
+                builder.constructADT_A40("warmup", merge);
+                builder.parseACKError(SYNTHETIC_ACK);
+            }
+
+            log.info(String.format("Warm-up completed in %d ms (%d iterations)", System.currentTimeMillis() - start, iterations));
+        } catch (HL7Exception ex) {
+            log.warning("Warm-up failed: " + ex.getMessage());
+        } finally {
+            MediatorReadiness.markWarmedUp();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package org.openhim.mediator;
+
+import java.util.Collections;
+
+import akka.actor.UntypedActor;
+import org.apache.http.HttpStatus;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPResponse;
+import org.openhim.mediator.messages.GetRegistryStats;
+import org.openhim.mediator.messages.RegistryStats;
+
+/**
+ * Responds with 200 once the mediator is ready to take traffic, else 503 with the reason.
+ * See MediatorReadiness and MediatorDrain.
+ */
+public class ReadinessOrchestrator extends UntypedActor {
+    private final MediatorConfig config;
+
+    private MediatorHTTPRequest originalRequest;
+
+    public ReadinessOrchestrator(MediatorConfig config) {
+        this.config = config;
+    }
+
+    private void respond(String notReadyReason) {
+        boolean ready = notReadyReason == null;
+
+        MediatorHTTPResponse response = new MediatorHTTPResponse(originalRequest, ready ? "ready" : "not ready: " + notReadyReason,
+                ready ? HttpStatus.SC_OK : HttpStatus.SC_SERVICE_UNAVAILABLE,
+                Collections.singletonMap("content-type", "text/plain"));
+        originalRequest.getRespondTo().tell(response.toFinishRequest(), getSelf());
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof MediatorHTTPRequest) {
+            originalRequest = (MediatorHTTPRequest) msg;
+            if (!MediatorReadiness.isWarmedUp()) {
+                respond("warming up");
+            } else if (MediatorDrain.forConfig(config).isDraining()) {
+                respond("shutting down");
+            } else {
+                getContext().actorSelection(config.userPathFor("xds-registry-connector")).tell(new GetRegistryStats(), getSelf());
+            }
+        } else if (msg instanceof RegistryStats) {
+            respond(MediatorReadiness.notReadyReason(config, (RegistryStats) msg));
+        } else {
+            unhandled(msg);
+        }
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.capture;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Reads capture files written by TrafficCapture. The last record of a file that was still being written,
+ * or was cut off, is skipped.
+ */
+public class CaptureReader {
+
+    private CaptureReader() {
+    }
+
+    /**
+     * @param files capture files, or directories of capture files
+     * @return the records of all files, in order of arrival
+     */
+    public static List<CaptureRecord> read(List<File> files) throws IOException {
+        List<CaptureRecord> records = new ArrayList<>();
+        for (File file : files) {
+            if (file.isDirectory()) {
+                for (File capture : TrafficCapture.files(file)) {
+                    readFile(capture, records);
+                }
+            } else {
+                readFile(file, records);
+            }
+        }
+        return records;
+    }
+
+    private static void readFile(File file, List<CaptureRecord> records) throws IOException {
+        DataInputStream in = new DataInputStream(new GZIPInputStream(new BufferedInputStream(new FileInputStream(file))));
+        try {
+            byte[] magic = new byte[TrafficCapture.MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, TrafficCapture.MAGIC)) {
+                throw new IOException(file + " is not a capture file");
+            }
+
+            while (true) {
+                records.add(CaptureRecord.readFrom(in));
+            }
+        } catch (EOFException ex) {
+            // end of the file, or a cut off record
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+}
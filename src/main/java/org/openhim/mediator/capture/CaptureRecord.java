@@ -0,0 +1,69 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.capture;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A captured request: when it arrived, the route and priority header it came with, and the OpenEMPI JSON body.
+ * <br/><br/>
+ * Binary layout: arrival time (epoch millis, long), path (modified UTF-8), priority header (modified UTF-8,
+ * empty if none), body length (int) and the body (UTF-8).
+ */
+public class CaptureRecord {
+    private final long timestamp;
+    private final String path;
+    private final String priority;
+    private final String body;
+
+    public CaptureRecord(long timestamp, String path, String priority, String body) {
+        this.timestamp = timestamp;
+        this.path = path;
+        this.priority = priority;
+        this.body = body;
+    }
+
+    void writeTo(DataOutputStream out) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        out.writeLong(timestamp);
+        out.writeUTF(path != null ? path : "");
+        out.writeUTF(priority != null ? priority : "");
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static CaptureRecord readFrom(DataInputStream in) throws IOException {
+        long timestamp = in.readLong();
+        String path = in.readUTF();
+        String priority = in.readUTF();
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new CaptureRecord(timestamp, path, priority.isEmpty() ? null : priority, new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return the request's feed priority header, or null
+     */
+    public String getPriority() {
+        return priority;
+    }
+
+    public String getBody() {
+        return body;
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.capture;
+
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Replaces the patient data in OpenEMPI notifications with pseudonyms, keeping the structure the mediator acts on.
+ * <br/><br/>
+ * The notification type (source, transition) and the identifier domains are kept. Every other string value,
+ * such as identifiers, names and dates, is replaced by a keyed hash of the value. The same value always gives
+ * the same pseudonym with the same key, so feeds for one patient still go to one patient on replay.
+ * <br/><br/>
+ * Thread safe.
+ */
+public class CaptureRedactor {
+    private static final Set<String> KEPT = new HashSet<>(Arrays.asList("source", "transition", "identifierDomain"));
+
+    private final SecretKeySpec key;
+
+
+    /**
+     * @param key the pseudonym key; null for a random key, giving different pseudonyms on every start
+     */
+    public CaptureRedactor(String key) {
+        byte[] bytes;
+        if (key != null) {
+            bytes = key.getBytes(StandardCharsets.UTF_8);
+        } else {
+            bytes = new byte[32];
+            new SecureRandom().nextBytes(bytes);
+        }
+        this.key = new SecretKeySpec(bytes, "HmacSHA256");
+    }
+
+    /**
+     * @return the notification with the patient data replaced, or a placeholder if it isn't valid JSON
+     */
+    public String redact(String body) {
+        try {
+            JsonElement json = new JsonParser().parse(body);
+            return redact(json).toString();
+        } catch (JsonParseException | IllegalStateException ex) {
+            return "\"" + pseudonym(body) + "\"";
+        }
+    }
+
+    private JsonElement redact(JsonElement element) {
+        if (element.isJsonObject()) {
+            JsonObject redacted = new JsonObject();
+            for (Map.Entry<String, JsonElement> entry : element.getAsJsonObject().entrySet()) {
+                redacted.add(entry.getKey(), KEPT.contains(entry.getKey()) ? entry.getValue() : redact(entry.getValue()));
+            }
+            return redacted;
+        } else if (element.isJsonArray()) {
+            JsonArray redacted = new JsonArray();
+            for (JsonElement item : element.getAsJsonArray()) {
+                redacted.add(redact(item));
+            }
+            return redacted;
+        } else if (element.isJsonPrimitive() && element.getAsJsonPrimitive().isString()) {
+            return new JsonPrimitive(pseudonym(element.getAsString()));
+        }
+        return element;
+    }
+
+    String pseudonym(String value) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(key);
+            byte[] hash = mac.doFinal(value.getBytes(StandardCharsets.UTF_8));
+            StringBuilder hex = new StringBuilder("R");
+            for (int i = 0; i < 8; i++) {
+                hex.append(String.format("%02x", hash[i]));
+            }
+            return hex.toString();
+        } catch (GeneralSecurityException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
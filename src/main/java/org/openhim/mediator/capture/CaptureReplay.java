@@ -0,0 +1,272 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.capture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Plays a traffic capture back against a mediator, keeping the original spacing of the requests scaled by a speed
+ * factor, or as fast as possible, and reports the throughput and latency.
+ * <br/><br/>
+ * Each request is POSTed to the base url plus its captured path, with its captured priority header.
+ * <br/><br/>
+ * Run with
+ * <pre>java -cp &lt;mediator jar&gt; org.openhim.mediator.capture.CaptureReplay --url http://localhost:8500 [--speed 1|N|max] [--concurrency N] [--priorityHeader name] &lt;capture files or directories&gt;</pre>
+ */
+public class CaptureReplay {
+    /**
+     * Speed for sending without delays
+     */
+    public static final double MAX_SPEED = Double.POSITIVE_INFINITY;
+
+    private final String baseUrl;
+    private final double speed;
+    private final int concurrency;
+    private final String priorityHeader;
+    private int timeoutMillis = 60000;
+
+
+    /**
+     * Outcome of a replay. Latencies are in milliseconds.
+     */
+    public static class Report {
+        private final int sent;
+        private final Map<Integer, Integer> statusCounts;
+        private final long elapsedMillis;
+        private final long[] latencies;
+        private final long maxLagMillis;
+
+        Report(int sent, Map<Integer, Integer> statusCounts, long elapsedMillis, long[] latencies, long maxLagMillis) {
+            this.sent = sent;
+            this.statusCounts = statusCounts;
+            this.elapsedMillis = elapsedMillis;
+            this.latencies = latencies;
+            this.maxLagMillis = maxLagMillis;
+        }
+
+        public int getSent() {
+            return sent;
+        }
+
+        /**
+         * @return the number of responses per HTTP status; requests that failed without a response count as status 0
+         */
+        public Map<Integer, Integer> getStatusCounts() {
+            return statusCounts;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        public double getThroughput() {
+            return sent * 1000.0 / Math.max(1, elapsedMillis);
+        }
+
+        /**
+         * @param percentile between 0 and 100
+         */
+        public long getLatency(double percentile) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            int index = (int) Math.ceil(percentile / 100 * latencies.length) - 1;
+            return latencies[Math.min(latencies.length - 1, Math.max(0, index))];
+        }
+
+        /**
+         * @return how far the sending fell behind the captured schedule at worst,
+         * e.g. because all connections were busy
+         */
+        public long getMaxLagMillis() {
+            return maxLagMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d requests in %d ms -> %.1f req/s%nstatus: %s%nlatency ms: p50 %d, p95 %d, p99 %d, max %d%nmax send lag: %d ms",
+                    sent, elapsedMillis, getThroughput(), statusCounts,
+                    getLatency(50), getLatency(95), getLatency(99), getLatency(100), maxLagMillis);
+        }
+    }
+
+
+    /**
+     * @param speed replay speed relative to the capture, e.g. 1 or 10, or MAX_SPEED
+     * @param concurrency maximum number of requests in flight
+     */
+    public CaptureReplay(String baseUrl, double speed, int concurrency, String priorityHeader) {
+        if (!(speed > 0)) {
+            throw new IllegalArgumentException("Speed must be positive: " + speed);
+        }
+        this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+        this.speed = speed;
+        this.concurrency = Math.max(1, concurrency);
+        this.priorityHeader = priorityHeader;
+    }
+
+    public void setTimeoutMillis(int timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    public Report run(List<CaptureRecord> records) throws InterruptedException {
+        final List<Long> latencies = Collections.synchronizedList(new ArrayList<Long>());
+        final Map<Integer, Integer> statusCounts = new TreeMap<>();
+        final long[] maxLag = {0};
+
+        ExecutorService executor = Executors.newFixedThreadPool(concurrency);
+        final Semaphore slots = new Semaphore(concurrency);
+
+        long start = System.nanoTime();
+        long firstTimestamp = records.isEmpty() ? 0 : records.get(0).getTimestamp();
+
+        for (final CaptureRecord record : records) {
+            if (speed != MAX_SPEED) {
+                long dueNanos = start + (long) ((record.getTimestamp() - firstTimestamp) * 1000000 / speed);
+                long waitNanos = dueNanos - System.nanoTime();
+                if (waitNanos > 0) {
+                    TimeUnit.NANOSECONDS.sleep(waitNanos);
+                }
+                slots.acquire();
+                long lagMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - dueNanos);
+                maxLag[0] = Math.max(maxLag[0], lagMillis);
+            } else {
+                slots.acquire();
+            }
+
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    long sent = System.nanoTime();
+                    int status = send(record);
+                    latencies.add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sent));
+                    synchronized (statusCounts) {
+                        Integer count = statusCounts.get(status);
+                        statusCounts.put(status, count != null ? count + 1 : 1);
+                    }
+                    slots.release();
+                }
+            });
+        }
+
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        long[] sorted = new long[latencies.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = latencies.get(i);
+        }
+        Arrays.sort(sorted);
+        return new Report(records.size(), statusCounts, elapsedMillis, sorted, maxLag[0]);
+    }
+
+    /**
+     * @return the HTTP status, or 0 if the request failed
+     */
+    private int send(CaptureRecord record) {
+        HttpURLConnection connection = null;
+        try {
+            String path = record.getPath() != null ? record.getPath() : "/mpixds-sync";
+            connection = (HttpURLConnection) new URL(baseUrl + path).openConnection();
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setConnectTimeout(timeoutMillis);
+            connection.setReadTimeout(timeoutMillis);
+            connection.setRequestProperty("Content-Type", "application/json");
+            if (record.getPriority() != null && priorityHeader != null) {
+                connection.setRequestProperty(priorityHeader, record.getPriority());
+            }
+
+            byte[] body = record.getBody().getBytes(StandardCharsets.UTF_8);
+            connection.setFixedLengthStreamingMode(body.length);
+            OutputStream out = connection.getOutputStream();
+            out.write(body);
+            out.close();
+
+            int status = connection.getResponseCode();
+            // read the response fully, so the connection can be kept alive
+            InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+            if (in != null) {
+                IOUtils.toByteArray(in);
+                in.close();
+            }
+            return status;
+        } catch (IOException ex) {
+            if (connection != null) {
+                connection.disconnect();
+            }
+            return 0;
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: CaptureReplay --url <mediator url> [--speed 1|N|max] [--concurrency N] "
+                + "[--priorityHeader name] <capture files or directories>");
+        System.exit(1);
+    }
+
+    public static void main(String... args) throws Exception {
+        String url = null;
+        double speed = 1;
+        int concurrency = 16;
+        String priorityHeader = "X-Feed-Priority";
+        List<File> files = new ArrayList<>();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--url":
+                    url = i + 1 < args.length ? args[++i] : null;
+                    break;
+                case "--speed":
+                    if (i + 1 >= args.length) {
+                        usage();
+                    }
+                    String value = args[++i];
+                    speed = "max".equalsIgnoreCase(value) ? MAX_SPEED : Double.parseDouble(value.replaceAll("[xX]$", ""));
+                    break;
+                case "--concurrency":
+                    if (i + 1 >= args.length) {
+                        usage();
+                    }
+                    concurrency = Integer.parseInt(args[++i]);
+                    break;
+                case "--priorityHeader":
+                    priorityHeader = i + 1 < args.length ? args[++i] : null;
+                    break;
+                default:
+                    files.add(new File(args[i]));
+            }
+        }
+        if (url == null || files.isEmpty()) {
+            usage();
+        }
+
+        List<CaptureRecord> records = CaptureReader.read(files);
+        System.out.println("Replaying " + records.size() + " requests at "
+                + (speed == MAX_SPEED ? "max speed" : speed + "x") + " to " + url);
+        System.out.println(new CaptureReplay(url, speed, concurrency, priorityHeader).run(records));
+    }
+}
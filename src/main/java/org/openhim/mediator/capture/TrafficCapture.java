@@ -0,0 +1,197 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.capture;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.openhim.mediator.engine.MediatorConfig;
+
+/**
+ * Captures incoming OpenEMPI notifications to a rotating binary log, for replay with CaptureReplay.
+ * <br/><br/>
+ * Requests are written on a background thread as gzip compressed CaptureRecords, in files named
+ * capture-&lt;time&gt;.bin.gz in mediator.capture.dir. A new file is started once a file holds
+ * mediator.capture.maxFileBytes of records, and only the newest mediator.capture.maxFiles files are kept.
+ * With mediator.capture.redact (the default), patient data is replaced by pseudonyms, see CaptureRedactor.
+ * <br/><br/>
+ * Records are dropped rather than slowing down the feeds when the writer falls behind.
+ * <br/><br/>
+ * Thread safe.
+ */
+public class TrafficCapture implements Runnable {
+    static final byte[] MAGIC = {'M', 'P', 'X', 'C', 'A', 'P', 0, 1};
+
+    private static final int MAX_QUEUED = 10000;
+    private static final Map<MediatorConfig, TrafficCapture> captures = new WeakHashMap<>();
+
+    private final File dir;
+    private final long maxFileBytes;
+    private final int maxFiles;
+    private final CaptureRedactor redactor;
+
+    private final BlockingQueue<CaptureRecord> queue = new ArrayBlockingQueue<>(MAX_QUEUED);
+    private final AtomicLong dropped = new AtomicLong();
+
+    private DataOutputStream out;
+    private long fileBytes;
+    private int sequence = 0;
+
+
+    public TrafficCapture(File dir, long maxFileBytes, int maxFiles, CaptureRedactor redactor) {
+        this.dir = dir;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = Math.max(1, maxFiles);
+        this.redactor = redactor;
+    }
+
+    /**
+     * @return the config's capture, started on first use, or null if mediator.capture.enabled isn't set
+     */
+    public static TrafficCapture forConfig(MediatorConfig config) {
+        if (!"true".equalsIgnoreCase(config.getProperty("mediator.capture.enabled"))) {
+            return null;
+        }
+
+        synchronized (captures) {
+            TrafficCapture capture = captures.get(config);
+            if (capture == null) {
+                String dir = config.getProperty("mediator.capture.dir");
+                String maxFileBytes = config.getProperty("mediator.capture.maxFileBytes");
+                String maxFiles = config.getProperty("mediator.capture.maxFiles");
+                CaptureRedactor redactor = !"false".equalsIgnoreCase(config.getProperty("mediator.capture.redact")) ?
+                        new CaptureRedactor(config.getProperty("mediator.capture.redactKey")) : null;
+
+                capture = new TrafficCapture(new File(dir != null ? dir : "capture"),
+                        maxFileBytes != null ? Long.parseLong(maxFileBytes) : 64 * 1024 * 1024,
+                        maxFiles != null ? Integer.parseInt(maxFiles) : 20, redactor);
+                capture.start();
+                captures.put(config, capture);
+            }
+            return capture;
+        }
+    }
+
+    public Thread start() {
+        Thread thread = new Thread(this, "traffic-capture");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Queues a request for capture
+     */
+    public void capture(String path, String priority, String body) {
+        if (!queue.offer(new CaptureRecord(System.currentTimeMillis(), path, priority, body))) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the number of requests not captured because the writer fell behind or failed
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the capture files in the directory, oldest first
+     */
+    public static List<File> files(File dir) {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith("capture-") && name.endsWith(".bin.gz");
+            }
+        });
+        if (files == null) {
+            return new ArrayList<>();
+        }
+        // the names sort by time
+        Arrays.sort(files);
+        return new ArrayList<>(Arrays.asList(files));
+    }
+
+    @Override
+    public void run() {
+        List<CaptureRecord> batch = new ArrayList<>();
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                CaptureRecord first = queue.poll(1, TimeUnit.SECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch);
+                write(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    void write(List<CaptureRecord> records) {
+        try {
+            for (CaptureRecord record : records) {
+                if (out == null || fileBytes >= maxFileBytes) {
+                    rotate();
+                }
+                if (redactor != null) {
+                    record = new CaptureRecord(record.getTimestamp(), record.getPath(), record.getPriority(),
+                            redactor.redact(record.getBody()));
+                }
+                int before = out.size();
+                record.writeTo(out);
+                fileBytes += out.size() - before;
+            }
+            // readable up to here, even if the mediator stops
+            out.flush();
+        } catch (IOException ex) {
+            dropped.addAndGet(records.size());
+            IOUtils.closeQuietly(out);
+            out = null;
+        }
+    }
+
+    private void rotate() throws IOException {
+        IOUtils.closeQuietly(out);
+        out = null;
+        dir.mkdirs();
+
+        String name = "capture-" + new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date()) +
+                String.format("-%04d", sequence++ % 10000) + ".bin.gz";
+        out = new DataOutputStream(new GZIPOutputStream(new BufferedOutputStream(new FileOutputStream(new File(dir, name))), true));
+        out.write(MAGIC);
+        fileBytes = 0;
+
+        List<File> files = files(dir);
+        for (int i = 0; i < files.size() - maxFiles; i++) {
+            files.get(i).delete();
+        }
+    }
+}
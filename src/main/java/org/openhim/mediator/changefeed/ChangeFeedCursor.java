@@ -0,0 +1,45 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.changefeed;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * The position in the OpenEMPI change feed up to which all events have been handled, kept in a file.
+ * <br/><br/>
+ * The file is replaced atomically, so a crash while saving leaves the previous cursor.
+ */
+public class ChangeFeedCursor {
+    private final File file;
+
+    public ChangeFeedCursor(File file) {
+        this.file = file.getAbsoluteFile();
+    }
+
+    /**
+     * @return the saved cursor, or null to start from the beginning of the feed
+     */
+    public String load() throws IOException {
+        if (!file.exists()) {
+            return null;
+        }
+        String cursor = FileUtils.readFileToString(file, StandardCharsets.UTF_8).trim();
+        return cursor.isEmpty() ? null : cursor;
+    }
+
+    public void save(String cursor) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        FileUtils.writeStringToFile(tmp, cursor, StandardCharsets.UTF_8);
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
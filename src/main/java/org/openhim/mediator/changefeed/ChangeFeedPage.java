@@ -0,0 +1,111 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.changefeed;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+/**
+ * A page of the OpenEMPI change feed:
+ * <pre>{"events": [&lt;notification&gt;, ...], "nextCursor": "..."}</pre>
+ * Each event is a notification in the same JSON format OpenEMPI posts to /mpixds-sync. nextCursor is the position
+ * after the page's last event; it may be left out of an empty page.
+ */
+public class ChangeFeedPage {
+    private final List<String> events;
+    private final List<Set<String>> patientKeys;
+    private final String nextCursor;
+
+    public ChangeFeedPage(List<String> events, String nextCursor) {
+        this.events = Collections.unmodifiableList(events);
+        this.nextCursor = nextCursor;
+
+        this.patientKeys = new ArrayList<>();
+        for (String event : events) {
+            patientKeys.add(patientKeys(event));
+        }
+    }
+
+    /**
+     * @return the event's pre- and post-update identifiers, as domain name and identifier; empty if the event
+     * can't be read
+     */
+    static Set<String> patientKeys(String event) {
+        Set<String> keys = new HashSet<>();
+        try {
+            JsonObject notification = new JsonParser().parse(event).getAsJsonObject();
+            for (String list : new String[]{"preUpdateIdentifiers", "postUpdateIdentifiers"}) {
+                JsonElement identifiers = notification.get(list);
+                if (identifiers == null || !identifiers.isJsonArray()) {
+                    continue;
+                }
+                for (JsonElement identifier : (JsonArray) identifiers) {
+                    JsonObject domain = identifier.getAsJsonObject().getAsJsonObject("identifierDomain");
+                    keys.add(domain.get("identifierDomainName").getAsString() + "|" +
+                            identifier.getAsJsonObject().get("identifier").getAsString());
+                }
+            }
+        } catch (JsonParseException | IllegalStateException | ClassCastException | NullPointerException |
+                UnsupportedOperationException ex) {
+            // an invalid event is rejected when it is handled
+            return Collections.emptySet();
+        }
+        return keys;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the page isn't valid
+     */
+    public static ChangeFeedPage parse(String json) {
+        try {
+            JsonObject page = new JsonParser().parse(json).getAsJsonObject();
+
+            List<String> events = new ArrayList<>();
+            if (page.has("events") && !page.get("events").isJsonNull()) {
+                for (JsonElement event : page.getAsJsonArray("events")) {
+                    events.add(event.toString());
+                }
+            }
+
+            String nextCursor = page.has("nextCursor") && !page.get("nextCursor").isJsonNull() ?
+                    page.get("nextCursor").getAsString() : null;
+            if (nextCursor == null && !events.isEmpty()) {
+                throw new IllegalArgumentException("page of " + events.size() + " events has no nextCursor");
+            }
+            return new ChangeFeedPage(events, nextCursor);
+        } catch (JsonParseException | IllegalStateException | ClassCastException ex) {
+            throw new IllegalArgumentException("invalid change feed page: " + ex.getMessage(), ex);
+        }
+    }
+
+    public List<String> getEvents() {
+        return events;
+    }
+
+    /**
+     * @return the patients event i is about: events sharing a key are handled in order
+     */
+    public Set<String> getPatientKeys(int i) {
+        return patientKeys.get(i);
+    }
+
+    /**
+     * @return the cursor of the next page, or null if unchanged
+     */
+    public String getNextCursor() {
+        return nextCursor;
+    }
+}
@@ -0,0 +1,497 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.changefeed;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import akka.actor.ActorRef;
+import akka.actor.Props;
+import akka.actor.ReceiveTimeout;
+import akka.actor.UntypedActor;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.http.HttpStatus;
+import org.openhim.mediator.DefaultOrchestrator;
+import org.openhim.mediator.MediatorDrain;
+import org.openhim.mediator.deadletters.DeadLetterActor;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.AddOrchestrationToCoreResponse;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.FinishRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import scala.concurrent.duration.Duration;
+
+/**
+ * Pulls notifications from the OpenEMPI change feed (openempi.changes.enabled), as an alternative to OpenEMPI
+ * posting every event to /mpixds-sync.
+ * <br/><br/>
+ * Pages of up to openempi.changes.pageSize events are fetched from openempi.changes.url, starting at the cursor
+ * saved in openempi.changes.cursorFile. Up to openempi.changes.prefetch pages are fetched ahead while the current
+ * page is handled. Each event goes through a DefaultOrchestrator like a posted notification, at most
+ * openempi.changes.maxInFlight at a time. Events about the same patient, i.e. sharing an identifier, are handled one
+ * after the other in feed order; events about different patients run concurrently. Once all events of a page are
+ * done the cursor moves past it, so events are handled at least once: a page that was in progress when the mediator
+ * stopped is handled again on start.
+ * <br/><br/>
+ * An invalid event (400) is logged and skipped, as is a feed the registry rejected if it is kept as a dead letter
+ * (xds.deadLetters.enabled). Any other failure, e.g. the registry not being reached or an event not done within
+ * openempi.changes.eventTimeoutMs, keeps the cursor where it is and stops the page: no more of its events are
+ * started, so that none can overtake the failed one. Once the events in flight are done, the failed events and
+ * those not started yet are retried in feed order after a backoff, starting at openempi.changes.pollIntervalMs
+ * and doubling up to openempi.changes.maxRetryDelayMs, so that an outage of the registry doesn't lose events. When the feed is caught up, or can't be fetched, it is
+ * polled again after openempi.changes.pollIntervalMs.
+ * <br/><br/>
+ * While the mediator drains for shutdown (see MediatorDrain) no more events are started, and a page with events
+ * that weren't started or were cut short doesn't move the cursor, so they are handled again on the next start.
+ */
+public class ChangeFeedPoller extends UntypedActor {
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    /**
+     * Fetching a page blocks on the HTTP request
+     */
+    static final String FETCH_DISPATCHER = "mpixds-sync.io-dispatcher";
+
+    private final MediatorConfig config;
+    private final String url;
+    private final String sessionKey;
+    private final int pageSize;
+    private final int prefetch;
+    private final int maxInFlight;
+    private final long pollIntervalMillis;
+    private final long eventTimeoutMillis;
+    private final long maxRetryDelayMillis;
+    private final ChangeFeedCursor cursor;
+    private final MediatorDrain drain;
+
+    /** cursor of the next page to fetch */
+    private String fetchCursor;
+    private boolean fetching;
+    private boolean waitingToPoll;
+    private final Deque<ChangeFeedPage> fetched = new ArrayDeque<>();
+
+    private ChangeFeedPage current;
+    /** indexes of the current page's events being handled: all of them, or those being retried */
+    private List<Integer> events;
+    private boolean[] started;
+    private int startedCount;
+    /** patient keys of the events in flight */
+    private final Set<String> busy = new HashSet<>();
+    /** events that failed and have to be retried; once there are any, no more events are started */
+    private Set<Integer> failed;
+    private String failure;
+    private List<Integer> retry;
+    private int retryAttempts;
+    private int inFlight;
+    private boolean interrupted;
+    private long skipped;
+
+
+    private static class FetchPage {
+        final String cursor;
+
+        FetchPage(String cursor) {
+            this.cursor = cursor;
+        }
+    }
+
+    private static class PageFetched {
+        final ChangeFeedPage page;
+
+        PageFetched(ChangeFeedPage page) {
+            this.page = page;
+        }
+    }
+
+    private static class FetchFailed {
+        final String error;
+
+        FetchFailed(String error) {
+            this.error = error;
+        }
+    }
+
+    private static class Poll {
+    }
+
+    private static class RetryEvents {
+    }
+
+    private static class EventDone {
+        final int index;
+        final String error;
+        final boolean retry;
+
+        EventDone(int index, String error, boolean retry) {
+            this.index = index;
+            this.error = error;
+            this.retry = retry;
+        }
+    }
+
+
+    public ChangeFeedPoller(MediatorConfig config) {
+        this.config = config;
+        this.url = config.getProperty("openempi.changes.url");
+        this.sessionKey = config.getProperty("openempi.changes.sessionKey");
+        this.pageSize = intProperty(config, "openempi.changes.pageSize", 500);
+        this.prefetch = intProperty(config, "openempi.changes.prefetch", 2);
+        this.maxInFlight = Math.max(1, intProperty(config, "openempi.changes.maxInFlight", 64));
+        this.pollIntervalMillis = intProperty(config, "openempi.changes.pollIntervalMs", 1000);
+        this.eventTimeoutMillis = intProperty(config, "openempi.changes.eventTimeoutMs", 60000);
+        this.maxRetryDelayMillis = intProperty(config, "openempi.changes.maxRetryDelayMs", 60000);
+
+        String cursorFile = config.getProperty("openempi.changes.cursorFile");
+        this.cursor = new ChangeFeedCursor(new File(cursorFile != null ? cursorFile : "openempi-changes.cursor"));
+        this.drain = MediatorDrain.forConfig(config);
+    }
+
+    private static int intProperty(MediatorConfig config, String name, int defaultValue) {
+        String value = config.getProperty(name);
+        return value != null ? Integer.parseInt(value.trim()) : defaultValue;
+    }
+
+    /**
+     * @return whether notifications are pulled from the OpenEMPI change feed (openempi.changes.enabled)
+     */
+    public static boolean isEnabled(MediatorConfig config) {
+        return "true".equalsIgnoreCase(config.getProperty("openempi.changes.enabled"));
+    }
+
+    @Override
+    public void preStart() throws Exception {
+        if (!isEnabled(config)) {
+            return;
+        }
+        if (url == null) {
+            log.error("openempi.changes.url isn't set, not pulling the OpenEMPI change feed");
+            return;
+        }
+
+        fetchCursor = cursor.load();
+        log.info("Pulling the OpenEMPI change feed from " + (fetchCursor != null ? "cursor " + fetchCursor : "the start"));
+        fetchNext();
+    }
+
+    /**
+     * Fetches the next page, unless one is being fetched or enough pages are waiting
+     */
+    private void fetchNext() {
+        if (fetching || waitingToPoll || drain.isDraining()) {
+            return;
+        }
+        if (fetched.size() >= prefetch && (current != null || !fetched.isEmpty())) {
+            return;
+        }
+
+        fetching = true;
+        ActorRef fetch = getContext().actorOf(
+                Props.create(Fetch.class, url, sessionKey, pageSize).withDispatcher(FETCH_DISPATCHER));
+        fetch.tell(new FetchPage(fetchCursor), getSelf());
+    }
+
+    private void pollLater() {
+        waitingToPoll = true;
+        getContext().system().scheduler().scheduleOnce(
+                Duration.create(pollIntervalMillis, TimeUnit.MILLISECONDS), getSelf(), new Poll(),
+                getContext().dispatcher(), getSelf());
+    }
+
+    private void processPageFetched(ChangeFeedPage page) {
+        fetching = false;
+
+        if (page.getEvents().isEmpty()) {
+            // caught up
+            if (page.getNextCursor() != null && !page.getNextCursor().equals(fetchCursor)) {
+                fetchCursor = page.getNextCursor();
+                if (current == null && fetched.isEmpty()) {
+                    commit(fetchCursor);
+                }
+            }
+            pollLater();
+            return;
+        }
+
+        fetched.add(page);
+        fetchCursor = page.getNextCursor();
+        startNextPage();
+        fetchNext();
+    }
+
+    private void startNextPage() {
+        if (current != null || fetched.isEmpty()) {
+            return;
+        }
+
+        current = fetched.poll();
+        retryAttempts = 0;
+        interrupted = false;
+        List<Integer> all = new ArrayList<>();
+        for (int i = 0; i < current.getEvents().size(); i++) {
+            all.add(i);
+        }
+        startEvents(all);
+    }
+
+    private void startEvents(List<Integer> pageEvents) {
+        events = pageEvents;
+        started = new boolean[pageEvents.size()];
+        startedCount = 0;
+        failed = new HashSet<>();
+        failure = null;
+        dispatchEvents();
+    }
+
+    /**
+     * Starts the events, in feed order, that aren't about a patient with an earlier event in flight or waiting
+     */
+    private void dispatchEvents() {
+        if (drain.isDraining() || !failed.isEmpty()) {
+            return;
+        }
+        Set<String> waiting = new HashSet<>();
+        for (int i = 0; i < events.size() && inFlight < maxInFlight; i++) {
+            if (started[i]) {
+                continue;
+            }
+            int index = events.get(i);
+            Set<String> keys = current.getPatientKeys(index);
+            if (Collections.disjoint(keys, busy) && Collections.disjoint(keys, waiting)) {
+                getContext().actorOf(Props.create(Event.class, config, current.getEvents().get(index), index, eventTimeoutMillis));
+                started[i] = true;
+                startedCount++;
+                busy.addAll(keys);
+                inFlight++;
+            } else {
+                waiting.addAll(keys);
+            }
+        }
+    }
+
+    private void processEventDone(EventDone msg) {
+        inFlight--;
+        busy.removeAll(current.getPatientKeys(msg.index));
+        if (msg.error != null && drain.isDraining()) {
+            // turned away or cut short by the shutdown rather than failed
+            interrupted = true;
+        } else if (msg.retry) {
+            failed.add(msg.index);
+            failure = msg.error;
+        } else if (msg.error != null) {
+            skipped++;
+            log.warning("Skipping OpenEMPI change event (" + skipped + " skipped so far): " + msg.error);
+        }
+
+        dispatchEvents();
+        if (inFlight > 0) {
+            return;
+        }
+        if (interrupted || (failed.isEmpty() && startedCount < events.size())) {
+            log.info("Not moving the OpenEMPI change feed cursor past " + current.getNextCursor() + " while shutting down");
+            return;
+        }
+        if (!failed.isEmpty()) {
+            retry = new ArrayList<>();
+            for (int i = 0; i < events.size(); i++) {
+                if (!started[i] || failed.contains(events.get(i))) {
+                    retry.add(events.get(i));
+                }
+            }
+            retryLater();
+            return;
+        }
+
+        log.debug("Handled " + current.getEvents().size() + " OpenEMPI change events up to cursor " + current.getNextCursor());
+        commit(current.getNextCursor());
+        current = null;
+        startNextPage();
+        fetchNext();
+    }
+
+    /**
+     * Keeps the cursor before the current page and retries its failed and unstarted events after a backoff
+     */
+    private void retryLater() {
+        long delay = pollIntervalMillis << Math.min(retryAttempts, 20);
+        delay = Math.min(Math.max(delay, 1), maxRetryDelayMillis);
+        retryAttempts++;
+        log.warning(failed.size() + " OpenEMPI change events failed, retrying them and " + (retry.size() - failed.size()) +
+                " events not started in " + delay + " ms (attempt " + retryAttempts + "): " + failure);
+
+        getContext().system().scheduler().scheduleOnce(
+                Duration.create(delay, TimeUnit.MILLISECONDS), getSelf(), new RetryEvents(),
+                getContext().dispatcher(), getSelf());
+    }
+
+    private void commit(String position) {
+        try {
+            cursor.save(position);
+        } catch (IOException ex) {
+            log.error(ex, "Failed to save the OpenEMPI change feed cursor " + position);
+        }
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof PageFetched) {
+            processPageFetched(((PageFetched) msg).page);
+        } else if (msg instanceof FetchFailed) {
+            fetching = false;
+            log.error("Failed to fetch the OpenEMPI change feed, retrying in " + pollIntervalMillis + " ms: " +
+                    ((FetchFailed) msg).error);
+            pollLater();
+        } else if (msg instanceof Poll) {
+            waitingToPoll = false;
+            fetchNext();
+        } else if (msg instanceof EventDone) {
+            processEventDone((EventDone) msg);
+        } else if (msg instanceof RetryEvents) {
+            startEvents(retry);
+        } else {
+            unhandled(msg);
+        }
+    }
+
+
+    /**
+     * Fetches one page of the change feed
+     */
+    public static class Fetch extends UntypedActor {
+        private final String url;
+        private final String sessionKey;
+        private final int pageSize;
+
+        public Fetch(String url, String sessionKey, int pageSize) {
+            this.url = url;
+            this.sessionKey = sessionKey;
+            this.pageSize = pageSize;
+        }
+
+        static ChangeFeedPage fetch(String url, String sessionKey, String cursor, int pageSize) throws IOException {
+            String pageUrl = url + (url.contains("?") ? "&" : "?") + "limit=" + pageSize;
+            if (cursor != null) {
+                pageUrl += "&cursor=" + URLEncoder.encode(cursor, "UTF-8");
+            }
+
+            HttpURLConnection connection = null;
+            InputStream in = null;
+            try {
+                connection = (HttpURLConnection) new URL(pageUrl).openConnection();
+                connection.setConnectTimeout(10000);
+                connection.setReadTimeout(60000);
+                connection.setRequestProperty("Accept", "application/json");
+                if (sessionKey != null) {
+                    connection.setRequestProperty("OPENEMPI_SESSION_KEY", sessionKey);
+                }
+
+                if (connection.getResponseCode() != HttpStatus.SC_OK) {
+                    throw new IOException("HTTP " + connection.getResponseCode() + " from " + pageUrl);
+                }
+                in = connection.getInputStream();
+                return ChangeFeedPage.parse(IOUtils.toString(in, StandardCharsets.UTF_8));
+            } finally {
+                IOUtils.closeQuietly(in);
+                if (connection != null) {
+                    connection.disconnect();
+                }
+            }
+        }
+
+        @Override
+        public void onReceive(Object msg) throws Exception {
+            if (msg instanceof FetchPage) {
+                try {
+                    getSender().tell(new PageFetched(fetch(url, sessionKey, ((FetchPage) msg).cursor, pageSize)), getSelf());
+                } catch (IOException | IllegalArgumentException ex) {
+                    getSender().tell(new FetchFailed(ex.getMessage()), getSelf());
+                }
+                getContext().stop(getSelf());
+            } else {
+                unhandled(msg);
+            }
+        }
+    }
+
+
+    /**
+     * Sends one change event through a DefaultOrchestrator, as the request handler and response target of the
+     * request, and tells the poller when it is done and whether it should be retried
+     */
+    public static class Event extends UntypedActor {
+        private final MediatorConfig config;
+        private final int index;
+
+        /**
+         * @param index the event's position in its page
+         */
+        public Event(MediatorConfig config, String body, int index, long timeoutMillis) {
+            this.config = config;
+            this.index = index;
+            ActorRef orchestrator = getContext().actorOf(Props.create(DefaultOrchestrator.class, config));
+            orchestrator.tell(new MediatorHTTPRequest(getSelf(), getSelf(), "OpenEMPI change feed", "POST", "http",
+                    null, null, "/mpixds-sync", body, Collections.singletonMap("Content-Type", "application/json"),
+                    Collections.<Pair<String, String>>emptyList()), getSelf());
+            getContext().setReceiveTimeout(Duration.create(timeoutMillis, TimeUnit.MILLISECONDS));
+        }
+
+        private void done(String error, boolean retry) {
+            getContext().parent().tell(new EventDone(index, error, retry), getSelf());
+            getContext().stop(getSelf());
+        }
+
+        /**
+         * @return whether the event failed in a way that doesn't lose it if skipped: it is invalid, or the
+         * registry rejected it and it was kept as a dead letter
+         */
+        private boolean canSkip(FinishRequest response, int status) {
+            if (status == HttpStatus.SC_BAD_REQUEST) {
+                return true;
+            }
+            Map<String, String> headers = response.getResponseHeaders();
+            return headers != null && "rejected".equals(headers.get(DefaultOrchestrator.FEED_OUTCOME_HEADER)) &&
+                    DeadLetterActor.isEnabled(config);
+        }
+
+        @Override
+        public void onReceive(Object msg) throws Exception {
+            if (msg instanceof FinishRequest) {
+                FinishRequest response = (FinishRequest) msg;
+                int status = response.getResponseStatus() != null ? response.getResponseStatus() : HttpStatus.SC_OK;
+                if (status < 300) {
+                    done(null, false);
+                } else {
+                    done("HTTP " + status + " " + response.getResponse(), !canSkip(response, status));
+                }
+            } else if (msg instanceof ExceptError) {
+                done(String.valueOf(((ExceptError) msg).getError()), true);
+            } else if (msg instanceof ReceiveTimeout) {
+                done("timed out", true);
+            } else if (msg instanceof AddOrchestrationToCoreResponse) {
+                // only reported to OpenHIM core for posted notifications
+            } else {
+                unhandled(msg);
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.cluster;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Address;
+import akka.actor.AddressFromURIString;
+import akka.actor.Props;
+import akka.cluster.Cluster;
+import akka.contrib.pattern.ClusterSharding;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.openhim.mediator.DefaultOrchestrator;
+import org.openhim.mediator.engine.MediatorConfig;
+
+/**
+ * Clustered mode (mediator.cluster.enabled).
+ * <br/><br/>
+ * Mediator nodes form an Akka cluster and share the registry feeds between them. Feeds are sharded by patient:
+ * every node can accept notifications, but all feeds for a patient are handled by one PatientFeedEntity, on
+ * whichever node currently owns the patient's shard, so they still reach the registry in order. Shards are
+ * moved to new nodes as they join and away from nodes that leave.
+ * <br/><br/>
+ * The Akka settings for clustered mode are in application.conf (mpixds-sync.cluster), the node address and
+ * seed nodes in the mediator properties.
+ */
+public class MediatorCluster {
+    public static final String SYSTEM_NAME = "mediator";
+    public static final String FEED_REGION = "pix-feed";
+
+    private MediatorCluster() {
+    }
+
+    public static boolean isEnabled(MediatorConfig config) {
+        return "true".equalsIgnoreCase(config.getProperty("mediator.cluster.enabled"));
+    }
+
+    /**
+     * @return the actor system for the mediator, a cluster node if clustered mode is enabled
+     */
+    public static ActorSystem createActorSystem(MediatorConfig config) {
+        if (!isEnabled(config)) {
+            return ActorSystem.create(SYSTEM_NAME);
+        }
+        return ActorSystem.create(SYSTEM_NAME, akkaConfig(config));
+    }
+
+    /**
+     * @return the Akka configuration of a cluster node: mpixds-sync.cluster overlaid on the default configuration,
+     * bound to mediator.cluster.host and mediator.cluster.port
+     */
+    public static Config akkaConfig(MediatorConfig config) {
+        String host = config.getProperty("mediator.cluster.host");
+        String port = config.getProperty("mediator.cluster.port");
+
+        Config defaults = ConfigFactory.load();
+        return ConfigFactory.parseString(
+                "akka.remote.netty.tcp.hostname = \"" + (host != null ? host : "127.0.0.1") + "\"\n" +
+                "akka.remote.netty.tcp.port = " + (port != null ? port : "2551"))
+                .withFallback(defaults.getConfig("mpixds-sync.cluster"))
+                .withFallback(defaults);
+    }
+
+    /**
+     * @return the seed nodes (mediator.cluster.seedNodes, a comma separated list of host:port)
+     */
+    public static List<Address> seedNodes(MediatorConfig config) {
+        List<Address> seedNodes = new ArrayList<>();
+        String seeds = config.getProperty("mediator.cluster.seedNodes");
+        if (seeds != null) {
+            for (String seed : seeds.split(",")) {
+                if (!seed.trim().isEmpty()) {
+                    seedNodes.add(AddressFromURIString.parse("akka.tcp://" + SYSTEM_NAME + "@" + seed.trim()));
+                }
+            }
+        }
+        return seedNodes;
+    }
+
+    /**
+     * Joins the cluster through the seed nodes. Without seed nodes this node starts a new cluster.
+     */
+    public static void join(ActorSystem system, MediatorConfig config) {
+        Cluster cluster = Cluster.get(system);
+        List<Address> seedNodes = seedNodes(config);
+        if (seedNodes.isEmpty()) {
+            cluster.join(cluster.selfAddress());
+        } else {
+            cluster.joinSeedNodes(scala.collection.JavaConversions.asScalaBuffer(seedNodes).toList());
+        }
+    }
+
+    /**
+     * Starts this node's part of the feed shard region. Must be called on every node.
+     */
+    public static ActorRef startFeedRegion(ActorSystem system, MediatorConfig config) {
+        String shards = config.getProperty("mediator.cluster.shards");
+        int numberOfShards = shards != null ? Integer.parseInt(shards) : 100;
+
+        return ClusterSharding.get(system).start(FEED_REGION,
+                Props.create(PatientFeedEntity.class, config).withDispatcher(DefaultOrchestrator.TRANSFORM_DISPATCHER),
+                new PatientFeedMessageExtractor(numberOfShards));
+    }
+
+    /**
+     * @return the feed shard region, which routes feeds to the node owning the patient
+     */
+    public static ActorRef feedRegion(ActorSystem system) {
+        return ClusterSharding.get(system).shardRegion(FEED_REGION);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.cluster;
+
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+import akka.actor.ActorRef;
+import akka.actor.PoisonPill;
+import akka.actor.Props;
+import akka.actor.ReceiveTimeout;
+import akka.actor.UntypedActor;
+import akka.contrib.pattern.ShardRegion;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import org.openhim.mediator.DefaultOrchestrator;
+import org.openhim.mediator.denormalization.PIXRequestActor;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.AddOrchestrationToCoreResponse;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.messages.MergePatientXds;
+import org.openhim.mediator.messages.RegisterNewPatientResponse;
+import org.openhim.mediator.messages.RegisterNewPatientXds;
+import org.openhim.mediator.messages.ShardedFeedRequest;
+import org.openhim.mediator.messages.ShardedFeedResponse;
+import scala.concurrent.duration.Duration;
+
+/**
+ * The feed actor for a single patient in clustered mode.
+ * <br/><br/>
+ * Feeds are sent to the registry one at a time, in the order they arrived, through a local PIXRequestActor.
+ * The next feed is only sent once the previous one has been acknowledged (and its orchestration reported),
+ * has failed or has timed out. Idle entities passivate themselves.
+ * <br/><br/>
+ * Messages supported:
+ * <ul>
+ * <li>ShardedFeedRequest - responds to the request's replyTo with ShardedFeedResponse.
+ * Registry orchestrations are sent to replyTo as CoreResponse.Orchestration.</li>
+ * </ul>
+ */
+public class PatientFeedEntity extends UntypedActor {
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private static final long IDLE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(2);
+
+    private final long feedTimeoutMillis;
+    private final ActorRef pixRequestActor;
+
+    private final Queue<ShardedFeedRequest> queue = new LinkedList<>();
+    private ShardedFeedRequest current;
+    private boolean responded;
+    private boolean orchestrationReported;
+    private long sequence = 0;
+
+
+    public PatientFeedEntity(MediatorConfig config) {
+        String readTimeout = config.getProperty("xds.registry.readTimeout");
+        this.feedTimeoutMillis = (readTimeout != null ? Long.parseLong(readTimeout) : 60000) + 5000;
+
+        pixRequestActor = getContext().actorOf(
+                Props.create(PIXRequestActor.class, config).withDispatcher(DefaultOrchestrator.TRANSFORM_DISPATCHER), "pix-denormalization");
+        getContext().setReceiveTimeout(Duration.create(IDLE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
+    }
+
+
+    private static class FeedTimeout {
+        final long sequence;
+
+        FeedTimeout(long sequence) {
+            this.sequence = sequence;
+        }
+    }
+
+    private void sendNext() {
+        current = queue.poll();
+        if (current == null) {
+            return;
+        }
+
+        responded = false;
+        orchestrationReported = false;
+        sequence++;
+
+        if (current.getOperation() == ShardedFeedRequest.Operation.REGISTER) {
+            pixRequestActor.tell(new RegisterNewPatientXds(getSelf(), getSelf(), current.getPatientIdentifiers(),
+                    current.getCorrelationId(), current.getPriority()), getSelf());
+        } else {
+            pixRequestActor.tell(new MergePatientXds(getSelf(), getSelf(), current.getPatientIdentifiers(),
+                    current.getPreUpdateIdentifiers(), current.getCorrelationId(), current.getPriority()), getSelf());
+        }
+
+        getContext().system().scheduler().scheduleOnce(
+                Duration.create(feedTimeoutMillis, TimeUnit.MILLISECONDS), getSelf(), new FeedTimeout(sequence),
+                getContext().dispatcher(), getSelf());
+    }
+
+    private void reply(boolean successful, String err, boolean queued) {
+        current.getReplyTo().tell(new ShardedFeedResponse(current.getCorrelationId(), successful, err, queued), getSelf());
+        responded = true;
+    }
+
+    private void completeIfDone() {
+        if (responded && orchestrationReported) {
+            sendNext();
+        }
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof ShardedFeedRequest) {
+            queue.add((ShardedFeedRequest) msg);
+            if (current == null) {
+                sendNext();
+            }
+        } else if (msg instanceof RegisterNewPatientResponse && current != null) {
+            RegisterNewPatientResponse response = (RegisterNewPatientResponse) msg;
+            reply(response.isSuccessful(), response.getErr(), response.isQueued());
+            completeIfDone();
+        } else if (msg instanceof AddOrchestrationToCoreResponse && current != null) {
+            // the connectors report the orchestration after the registry response
+            current.getReplyTo().tell(((AddOrchestrationToCoreResponse) msg).getOrchestration(), getSelf());
+            orchestrationReported = true;
+            completeIfDone();
+        } else if (msg instanceof ExceptError && current != null) {
+            Throwable error = ((ExceptError) msg).getError();
+            log.warning("Feed for patient " + current.getPatientKey() + " failed: " + error);
+            if (!responded) {
+                reply(false, String.valueOf(error.getMessage()), false);
+            }
+            sendNext();
+        } else if (msg instanceof FeedTimeout) {
+            if (current != null && ((FeedTimeout) msg).sequence == sequence) {
+                if (!responded) {
+                    reply(false, "No response from the XDS registry", false);
+                }
+                sendNext();
+            }
+        } else if (msg instanceof ReceiveTimeout) {
+            if (current == null && queue.isEmpty()) {
+                getContext().parent().tell(new ShardRegion.Passivate(PoisonPill.getInstance()), getSelf());
+            }
+        } else {
+            unhandled(msg);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.cluster;
+
+import akka.contrib.pattern.ShardRegion;
+import org.openhim.mediator.messages.ShardedFeedRequest;
+
+/**
+ * Routes feeds to one entity per patient, and patients to a fixed number of shards.
+ * <br/><br/>
+ * The shard count must be the same on every node and should stay unchanged while the cluster is running,
+ * roughly ten times the maximum number of nodes.
+ */
+public class PatientFeedMessageExtractor implements ShardRegion.MessageExtractor {
+    private final int numberOfShards;
+
+    public PatientFeedMessageExtractor(int numberOfShards) {
+        this.numberOfShards = numberOfShards;
+    }
+
+    @Override
+    public String entryId(Object message) {
+        if (message instanceof ShardedFeedRequest) {
+            return ((ShardedFeedRequest) message).getPatientKey();
+        }
+        return null;
+    }
+
+    @Override
+    public Object entryMessage(Object message) {
+        return message;
+    }
+
+    @Override
+    public String shardId(Object message) {
+        if (message instanceof ShardedFeedRequest) {
+            return shardFor(((ShardedFeedRequest) message).getPatientKey());
+        }
+        return null;
+    }
+
+    String shardFor(String patientKey) {
+        return Integer.toString(Math.abs(patientKey.hashCode() % numberOfShards));
+    }
+}
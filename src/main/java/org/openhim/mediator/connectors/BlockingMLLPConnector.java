@@ -0,0 +1,230 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.connectors;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import akka.actor.ActorRef;
+import akka.actor.UntypedActor;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import org.openhim.mediator.engine.CoreResponse;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.connectors.MLLPConnector;
+import org.openhim.mediator.engine.messages.AddOrchestrationToCoreResponse;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.MediatorSocketRequest;
+import org.openhim.mediator.engine.messages.MediatorSocketResponse;
+
+/**
+ * MLLP connector that runs every exchange as plain blocking socket code on its own thread.
+ * <br/><br/>
+ * The engine's MLLPConnector blocks on the actor dispatcher, which caps the number of concurrent
+ * exchanges at the dispatcher size and takes threads away from message processing. This connector
+ * uses a dedicated pool of small-stack threads instead (xds.registry.connector.threads), so thousands
+ * of slow registry exchanges can be outstanding at once. Results are bridged back to the requesting
+ * actor as a MediatorSocketResponse, exactly like the engine connector.
+ * <br/><br/>
+ * Connections are opened through an MLLPConnectionPool, which handles TLS (requests with secure set) and keeps
+ * connections open for reuse. If a reused connection turns out to be dead, typically because the registry closed
+ * it while it was idle, the exchange is retried once on a new connection. That is only done when the message can't
+ * have reached the registry: the write failed, or the connection was closed before any of the response was read.
+ * Any other failure, a read timeout in particular, isn't retried, as the registry may already have processed the
+ * message.
+ * <br/><br/>
+ * Messages supported:
+ * <ul>
+ * <li>MediatorSocketRequest - responds with MediatorSocketResponse, or ExceptError to the request handler on failure</li>
+ * </ul>
+ */
+public class BlockingMLLPConnector extends UntypedActor {
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private static final long THREAD_STACK_SIZE = 256 * 1024;
+
+    private final ExecutorService exchangeExecutor;
+    private final MLLPConnectionPool connections;
+
+
+    public BlockingMLLPConnector(MediatorConfig config) {
+        this.connections = new MLLPConnectionPool(config);
+
+        int threads = intProperty(config, "xds.registry.connector.threads", 1024);
+        this.exchangeExecutor = Executors.newFixedThreadPool(threads, new ExchangeThreadFactory());
+    }
+
+    private static int intProperty(MediatorConfig config, String name, int defaultValue) {
+        String value = config.getProperty(name);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+
+    private static class ExchangeThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(null, r, "blocking-mllp-" + count.incrementAndGet(), THREAD_STACK_SIZE);
+            t.setDaemon(true);
+            return t;
+        }
+    }
+
+    /**
+     * The message wasn't delivered on the connection: the write failed, or the connection was closed before
+     * any of the response was received.
+     */
+    static class NotDeliveredException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        NotDeliveredException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+
+    private class Exchange implements Runnable {
+        private final MediatorSocketRequest request;
+        private final ActorRef self;
+
+        Exchange(MediatorSocketRequest request, ActorRef self) {
+            this.request = request;
+            this.self = self;
+        }
+
+        private String exchangeOn(MLLPConnectionPool.Connection connection) throws IOException {
+            try {
+                String body = exchange(connection.getSocket(), request.getBody());
+                connections.release(connection);
+                return body;
+            } catch (IOException | RuntimeException ex) {
+                connections.discard(connection);
+                throw ex;
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                String body;
+                MLLPConnectionPool.Connection connection = connections.borrow(request.getHost(), request.getPort(), request.isSecure());
+                try {
+                    body = exchangeOn(connection);
+                } catch (NotDeliveredException ex) {
+                    if (!connection.isReused()) {
+                        throw ex;
+                    }
+                    body = exchangeOn(connections.open(request.getHost(), request.getPort(), request.isSecure()));
+                }
+
+                MediatorSocketResponse response = new MediatorSocketResponse(request, body);
+                request.getRespondTo().tell(response, self);
+                if (request.getRequestHandler() != null) {
+                    request.getRequestHandler().tell(new AddOrchestrationToCoreResponse(buildOrchestration(request, response)), self);
+                }
+            } catch (IOException | RuntimeException ex) {
+                // anything else would end the thread without an answer, leaving the requester waiting
+                log.warning("Registry exchange with " + request.getHost() + ":" + request.getPort() + " failed: " + ex.getMessage());
+                if (request.getRequestHandler() != null) {
+                    request.getRequestHandler().tell(new ExceptError(ex), self);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Write an MLLP framed message to the socket and block until the framed response has been read.
+     *
+     * @return the response with the MLLP framing removed
+     */
+    public static String exchange(Socket socket, String message) throws IOException {
+        try {
+            OutputStream out = socket.getOutputStream();
+            out.write(MLLPConnector.wrapMLLP(message).getBytes("ISO-8859-1"));
+            out.flush();
+        } catch (IOException ex) {
+            throw new NotDeliveredException("Failed to send the message: " + ex.getMessage(), ex);
+        }
+
+        return readMLLPFrame(new BufferedInputStream(socket.getInputStream()));
+    }
+
+    /**
+     * Reads a single MLLP frame (VT ... FS CR) from the stream.
+     *
+     * @return the frame content without the framing characters
+     * @throws NotDeliveredException if the stream ended before anything was read
+     */
+    public static String readMLLPFrame(InputStream in) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(1024);
+        boolean started = false;
+        boolean read = false;
+        int prev = -1;
+        int b;
+
+        while ((b = in.read()) != -1) {
+            read = true;
+            if (!started) {
+                started = b == MLLPConnector.MLLP_HEADER_VT;
+                continue;
+            }
+            if (prev == MLLPConnector.MLLP_FOOTER_FS && b == MLLPConnector.MLLP_FOOTER_CR) {
+                byte[] content = buffer.toByteArray();
+                return new String(content, 0, content.length - 1, "ISO-8859-1");
+            }
+            buffer.write(b);
+            prev = b;
+        }
+
+        if (!read) {
+            throw new NotDeliveredException("Connection closed before any response was received", null);
+        }
+        throw new IOException("Connection closed before a complete MLLP frame was received");
+    }
+
+    private CoreResponse.Orchestration buildOrchestration(MediatorSocketRequest request, MediatorSocketResponse response) {
+        CoreResponse.Orchestration orchestration = new CoreResponse.Orchestration();
+        orchestration.setName(request.getOrchestration());
+
+        CoreResponse.Request orchestrationRequest = new CoreResponse.Request();
+        orchestrationRequest.setBody(MLLPConnector.wrapMLLP(request.getBody()));
+        orchestrationRequest.setHost(request.getHost());
+        orchestrationRequest.setPort(Integer.toString(request.getPort()));
+        orchestration.setRequest(orchestrationRequest);
+
+        CoreResponse.Response orchestrationResponse = new CoreResponse.Response();
+        orchestrationResponse.setBody(MLLPConnector.wrapMLLP(response.getBody()));
+        orchestration.setResponse(orchestrationResponse);
+
+        return orchestration;
+    }
+
+    @Override
+    public void postStop() throws Exception {
+        exchangeExecutor.shutdownNow();
+        connections.close();
+        super.postStop();
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof MediatorSocketRequest) {
+            exchangeExecutor.execute(new Exchange((MediatorSocketRequest) msg, getSelf()));
+        } else {
+            unhandled(msg);
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.connectors;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openhim.mediator.engine.MediatorConfig;
+
+/**
+ * Adaptive (AIMD) limit on the number of messages outstanding at the XDS registry, following the acknowledgement
+ * round trip time (RTT) and rejections.
+ * <br/><br/>
+ * The uncongested RTT is the minimum RTT seen over the last xds.registry.limit.minRttWindowMs. While
+ * acknowledgements return within xds.registry.limit.rttTolerance times that, the limit grows by about one message
+ * per round trip. A slower acknowledgement means the registry is queueing; so does a rejected message
+ * (MSA-1 other than AA/CA), connection failure or timeout. Either cuts the limit by xds.registry.limit.backoffRatio,
+ * at most once per round trip. The limit only grows while it is actually being used.
+ * <br/><br/>
+ * Because the minimum is windowed, a registry that becomes permanently slower is re-baselined and the limit
+ * grows back. The limit isn't lowered when a window starts: a registry with a long but steady RTT keeps the
+ * limit it grew to, so throughput isn't capped at a few round trips' worth of messages per window.
+ * <br/><br/>
+ * Not thread safe.
+ */
+public class ConcurrencyLimiter {
+    private final int minLimit;
+    private final int maxLimit;
+    private final double rttTolerance;
+    private final double backoffRatio;
+    private final long minRttWindowMillis;
+
+    private double limit;
+    private long lastDecreaseMillis = -1;
+
+    // minimum RTT of the current and the previous window
+    private long windowStartMillis = -1;
+    private long minRtt = Long.MAX_VALUE;
+    private long previousMinRtt = Long.MAX_VALUE;
+
+
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, double rttTolerance, double backoffRatio, long minRttWindowMillis) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.rttTolerance = rttTolerance;
+        this.backoffRatio = backoffRatio;
+        this.minRttWindowMillis = minRttWindowMillis;
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+    }
+
+    public ConcurrencyLimiter(MediatorConfig config) {
+        this(intProperty(config, "xds.registry.limit.initial", 20),
+                intProperty(config, "xds.registry.limit.min", 1),
+                intProperty(config, "xds.registry.limit.max", 500),
+                doubleProperty(config, "xds.registry.limit.rttTolerance", 2.0),
+                doubleProperty(config, "xds.registry.limit.backoffRatio", 0.9),
+                intProperty(config, "xds.registry.limit.minRttWindowMs", 2000));
+    }
+
+    /**
+     * @return whether adaptive limiting is enabled (xds.registry.limit.enabled)
+     */
+    public static boolean isEnabled(MediatorConfig config) {
+        return "true".equalsIgnoreCase(config.getProperty("xds.registry.limit.enabled"));
+    }
+
+    private static int intProperty(MediatorConfig config, String property, int defaultValue) {
+        String value = config.getProperty(property);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    private static double doubleProperty(MediatorConfig config, String property, double defaultValue) {
+        String value = config.getProperty(property);
+        return value != null ? Double.parseDouble(value) : defaultValue;
+    }
+
+
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * Sets the current limit, within the bounds
+     */
+    public void setLimit(int limit) {
+        this.limit = Math.min(maxLimit, Math.max(minLimit, limit));
+    }
+
+    /**
+     * @return the uncongested round trip time, or -1 if there is none yet
+     */
+    public long getMinRttMillis() {
+        long min = Math.min(minRtt, previousMinRtt);
+        return min != Long.MAX_VALUE ? min : -1;
+    }
+
+    /**
+     * Records the outcome of an exchange.
+     *
+     * @param rttMillis time from sending the message until its acknowledgement (or failure)
+     * @param dropped whether the registry rejected the message, or it failed or timed out
+     * @param inFlight messages outstanding when the exchange completed
+     */
+    public void onSample(long rttMillis, boolean dropped, int inFlight) {
+        onSample(rttMillis, dropped, inFlight, TimeUnit.NANOSECONDS.toMillis(System.nanoTime()));
+    }
+
+    void onSample(long rttMillis, boolean dropped, int inFlight, long nowMillis) {
+        if (windowStartMillis < 0) {
+            windowStartMillis = nowMillis;
+        } else if (nowMillis - windowStartMillis >= minRttWindowMillis) {
+            previousMinRtt = minRtt;
+            minRtt = Long.MAX_VALUE;
+            windowStartMillis = nowMillis;
+        }
+        if (!dropped) {
+            minRtt = Math.min(minRtt, rttMillis);
+        }
+
+        boolean congested = dropped || rttMillis > Math.max(1, getMinRttMillis()) * rttTolerance;
+
+        if (congested) {
+            // only back off once per round trip, for the exchanges that were outstanding at the same time
+            if (lastDecreaseMillis < 0 || nowMillis - lastDecreaseMillis >= rttMillis) {
+                limit = Math.max(minLimit, limit * backoffRatio);
+                lastDecreaseMillis = nowMillis;
+            }
+        } else if (inFlight * 2 >= (int) limit) {
+            limit = Math.min(maxLimit, limit + 1 / limit);
+        }
+    }
+}
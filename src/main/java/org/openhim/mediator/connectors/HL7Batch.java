@@ -0,0 +1,137 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.connectors;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openhim.mediator.engine.MediatorConfig;
+
+/**
+ * Encoding and decoding of HL7 v2 batch files (FHS/BHS ... BTS/FTS).
+ */
+public class HL7Batch {
+
+    private HL7Batch() {
+    }
+
+    /**
+     * Wraps the messages in a single HL7 batch file containing one batch.
+     *
+     * @param batchId used as the file and batch control IDs (FHS-11, BHS-11)
+     */
+    public static String encode(String batchId, List<String> messages, MediatorConfig config) {
+        String header = "|^~\\&|" + nullToEmpty(config.getProperty("pix.sendingApplication")) +
+                "|" + nullToEmpty(config.getProperty("pix.sendingFacility")) +
+                "|" + nullToEmpty(config.getProperty("pix.receivingApplication")) +
+                "|" + nullToEmpty(config.getProperty("pix.receivingFacility")) +
+                "|" + new SimpleDateFormat("yyyyMMddHHmmssZ").format(new Date()) +
+                "||||" + batchId;
+
+        StringBuilder batch = new StringBuilder();
+        batch.append("FHS").append(header).append('\r');
+        batch.append("BHS").append(header).append('\r');
+        for (String message : messages) {
+            batch.append(message);
+            if (!message.endsWith("\r")) {
+                batch.append('\r');
+            }
+        }
+        batch.append("BTS|").append(messages.size()).append('\r');
+        batch.append("FTS|1\r");
+
+        return batch.toString();
+    }
+
+    /**
+     * Splits a batch (or a single message) into its messages, keyed by the control ID they acknowledge (MSA-2).
+     * Messages without an MSA segment are keyed by their own control ID (MSH-10).
+     */
+    public static Map<String, String> splitAcknowledgements(String batch) {
+        Map<String, String> acks = new LinkedHashMap<>();
+
+        for (String message : splitMessages(batch)) {
+            String key = null;
+            for (String segment : message.split("\r")) {
+                if (segment.startsWith("MSA|")) {
+                    key = field(segment, 2);
+                    break;
+                }
+            }
+            if (key == null) {
+                key = field(message.split("\r")[0], 10);
+            }
+            acks.put(key, message);
+        }
+
+        return acks;
+    }
+
+    /**
+     * @return the acknowledgement code (MSA-1) of a message, or null if it has no MSA segment
+     */
+    public static String acknowledgementCode(String message) {
+        for (String segment : message.replace('\n', '\r').split("\r")) {
+            if (segment.startsWith("MSA|")) {
+                return field(segment, 1);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the messages contained in the batch, without the batch header and trailer segments
+     */
+    public static List<String> splitMessages(String batch) {
+        List<String> messages = new ArrayList<>();
+        StringBuilder current = null;
+
+        for (String segment : batch.replace("\r\n", "\r").replace('\n', '\r').split("\r")) {
+            if (segment.isEmpty()) {
+                continue;
+            }
+            if (segment.startsWith("MSH")) {
+                if (current != null) {
+                    messages.add(current.toString());
+                }
+                current = new StringBuilder();
+            } else if (segment.startsWith("FHS") || segment.startsWith("BHS") || segment.startsWith("BTS") || segment.startsWith("FTS")) {
+                if (current != null) {
+                    messages.add(current.toString());
+                    current = null;
+                }
+                continue;
+            }
+            if (current != null) {
+                current.append(segment).append('\r');
+            }
+        }
+        if (current != null) {
+            messages.add(current.toString());
+        }
+
+        return messages;
+    }
+
+    /**
+     * @return field n of the segment (the segment name being field 0), or null if not present.
+     * For MSH the field separator itself is MSH-1, so MSH-n is element n-1.
+     */
+    private static String field(String segment, int n) {
+        String[] fields = segment.split("\\|", -1);
+        int index = segment.startsWith("MSH") ? n - 1 : n;
+        return index < fields.length ? fields[index] : null;
+    }
+
+    private static String nullToEmpty(String s) {
+        return s != null ? s : "";
+    }
+}
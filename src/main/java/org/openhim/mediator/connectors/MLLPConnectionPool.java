@@ -0,0 +1,214 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.connectors;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+
+import org.apache.commons.io.IOUtils;
+import org.openhim.mediator.engine.MediatorConfig;
+
+/**
+ * Opens plain and TLS MLLP connections to the XDS registry and, when xds.registry.connection.reuse is set,
+ * keeps connections open after an exchange for the next exchange with the same endpoint.
+ * <br/><br/>
+ * Up to xds.registry.connection.maxIdle idle connections are kept per endpoint, for at most
+ * xds.registry.connection.idleTimeoutMs. The most recently used connection is reused first, so that surplus
+ * connections expire after a burst.
+ * <br/><br/>
+ * Thread safe.
+ */
+public class MLLPConnectionPool {
+
+    public static class Connection {
+        private final String key;
+        private final Socket socket;
+        private final boolean reused;
+        private long lastUsedMillis;
+
+        private Connection(String key, Socket socket, boolean reused) {
+            this.key = key;
+            this.socket = socket;
+            this.reused = reused;
+        }
+
+        public Socket getSocket() {
+            return socket;
+        }
+
+        /**
+         * @return whether the connection had been used for an earlier exchange
+         */
+        public boolean isReused() {
+            return reused;
+        }
+    }
+
+    private final MediatorConfig config;
+    private final int connectTimeout;
+    private final int readTimeout;
+    private final boolean reuse;
+    private final int maxIdle;
+    private final long idleTimeoutMillis;
+    private final boolean verifyHostname;
+
+    private final Map<String, Deque<Connection>> idle = new HashMap<>();
+    private SSLContext sslContext;
+
+
+    public MLLPConnectionPool(MediatorConfig config) {
+        this.config = config;
+        this.connectTimeout = intProperty(config, "xds.registry.connectTimeout", 10000);
+        this.readTimeout = intProperty(config, "xds.registry.readTimeout", 60000);
+        this.reuse = "true".equalsIgnoreCase(config.getProperty("xds.registry.connection.reuse"));
+        this.maxIdle = intProperty(config, "xds.registry.connection.maxIdle", 32);
+        this.idleTimeoutMillis = intProperty(config, "xds.registry.connection.idleTimeoutMs", 30000);
+        this.verifyHostname = !"false".equalsIgnoreCase(config.getProperty("xds.registry.tls.verifyHostname"));
+    }
+
+    private static int intProperty(MediatorConfig config, String name, int defaultValue) {
+        String value = config.getProperty(name);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    private synchronized SSLContext getSSLContext() throws IOException {
+        if (sslContext == null) {
+            sslContext = RegistryTls.createContext(config);
+        }
+        return sslContext;
+    }
+
+    private static String key(String host, int port, boolean secure) {
+        return (secure ? "tls:" : "tcp:") + host + ":" + port;
+    }
+
+
+    /**
+     * @return an idle connection to the endpoint if there is one, else a new connection
+     */
+    public Connection borrow(String host, int port, boolean secure) throws IOException {
+        String key = key(host, port, secure);
+
+        if (reuse) {
+            long now = System.currentTimeMillis();
+            Deque<Connection> connections;
+            synchronized (idle) {
+                connections = idle.get(key);
+            }
+            if (connections != null) {
+                while (true) {
+                    Connection connection;
+                    synchronized (connections) {
+                        connection = connections.pollFirst();
+                    }
+                    if (connection == null) {
+                        break;
+                    }
+                    if (now - connection.lastUsedMillis < idleTimeoutMillis && !connection.socket.isClosed()) {
+                        return new Connection(key, connection.socket, true);
+                    }
+                    IOUtils.closeQuietly(connection.socket);
+                }
+            }
+        }
+
+        return open(host, port, secure);
+    }
+
+    /**
+     * @return a new connection to the endpoint, never an idle one
+     */
+    public Connection open(String host, int port, boolean secure) throws IOException {
+        return new Connection(key(host, port, secure), connect(host, port, secure), false);
+    }
+
+    private Socket connect(String host, int port, boolean secure) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), connectTimeout);
+            socket.setSoTimeout(readTimeout);
+            socket.setTcpNoDelay(true);
+
+            if (!secure) {
+                return socket;
+            }
+
+            // layered over the plain socket to apply the connect timeout. Sessions are cached by host and port
+            SSLSocket sslSocket = (SSLSocket) getSSLContext().getSocketFactory().createSocket(socket, host, port, true);
+            if (verifyHostname) {
+                SSLParameters params = sslSocket.getSSLParameters();
+                params.setEndpointIdentificationAlgorithm("HTTPS");
+                sslSocket.setSSLParameters(params);
+            }
+            sslSocket.startHandshake();
+            return sslSocket;
+        } catch (IOException ex) {
+            IOUtils.closeQuietly(socket);
+            throw ex;
+        }
+    }
+
+    /**
+     * Returns a connection after a successful exchange. It is kept for reuse or closed.
+     */
+    public void release(Connection connection) {
+        if (!reuse) {
+            IOUtils.closeQuietly(connection.socket);
+            return;
+        }
+
+        connection.lastUsedMillis = System.currentTimeMillis();
+        Deque<Connection> connections;
+        synchronized (idle) {
+            connections = idle.get(connection.key);
+            if (connections == null) {
+                connections = new ArrayDeque<>();
+                idle.put(connection.key, connections);
+            }
+        }
+
+        synchronized (connections) {
+            if (connections.size() < maxIdle) {
+                connections.addFirst(connection);
+                return;
+            }
+        }
+        IOUtils.closeQuietly(connection.socket);
+    }
+
+    /**
+     * Closes a connection after a failed exchange.
+     */
+    public void discard(Connection connection) {
+        IOUtils.closeQuietly(connection.socket);
+    }
+
+    /**
+     * Closes all idle connections.
+     */
+    public void close() {
+        synchronized (idle) {
+            for (Deque<Connection> connections : idle.values()) {
+                synchronized (connections) {
+                    for (Connection connection : connections) {
+                        IOUtils.closeQuietly(connection.socket);
+                    }
+                    connections.clear();
+                }
+            }
+        }
+    }
+}
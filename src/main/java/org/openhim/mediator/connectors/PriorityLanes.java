@@ -0,0 +1,169 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.connectors;
+
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.messages.FeedPriority;
+
+/**
+ * Queues of messages waiting for a free registry slot, one per FeedPriority.
+ * <br/><br/>
+ * Lanes are served by smooth weighted round robin (xds.registry.lanes.&lt;lane&gt;.weight), so that with the
+ * default weights realtime feeds get 8 of every 9 freed slots while both lanes have messages waiting, and a
+ * lane gets all of them while the other is empty. In addition, bulk messages may only take up
+ * xds.registry.lanes.bulk.maxShare of the concurrency limit, keeping slots free for realtime feeds that arrive
+ * during a bulk run.
+ * <br/><br/>
+ * Messages are kept in arrival order within a lane. Not thread safe.
+ *
+ * @param <K> the key of a waiting message
+ * @param <V> the waiting message
+ */
+public class PriorityLanes<K, V> {
+
+    private static class Lane<K, V> {
+        final int weight;
+        final Map<K, V> queue = new LinkedHashMap<>();
+        int current = 0;
+        int inFlight = 0;
+
+        Lane(int weight) {
+            this.weight = weight;
+        }
+    }
+
+    private final Map<FeedPriority, Lane<K, V>> lanes = new EnumMap<>(FeedPriority.class);
+    private final Map<K, FeedPriority> priorities = new LinkedHashMap<>();
+    private final double bulkMaxShare;
+
+
+    public PriorityLanes(int realtimeWeight, int bulkWeight, double bulkMaxShare) {
+        lanes.put(FeedPriority.REALTIME, new Lane<K, V>(Math.max(1, realtimeWeight)));
+        lanes.put(FeedPriority.BULK, new Lane<K, V>(Math.max(1, bulkWeight)));
+        this.bulkMaxShare = bulkMaxShare;
+    }
+
+    public PriorityLanes(MediatorConfig config) {
+        this(intProperty(config, "xds.registry.lanes.realtime.weight", 8),
+                intProperty(config, "xds.registry.lanes.bulk.weight", 1),
+                config.getProperty("xds.registry.lanes.bulk.maxShare") != null ?
+                        Double.parseDouble(config.getProperty("xds.registry.lanes.bulk.maxShare")) : 0.8);
+    }
+
+    private static int intProperty(MediatorConfig config, String name, int defaultValue) {
+        String value = config.getProperty(name);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    /**
+     * Takes over the waiting messages and in-flight counts of another instance, e.g. after a settings reload
+     */
+    public void takeOver(PriorityLanes<K, V> previous) {
+        for (Map.Entry<K, FeedPriority> entry : previous.priorities.entrySet()) {
+            Lane<K, V> from = previous.lanes.get(entry.getValue());
+            V value = from.queue.get(entry.getKey());
+            if (value != null) {
+                add(entry.getKey(), value, entry.getValue());
+            } else {
+                priorities.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (FeedPriority priority : FeedPriority.values()) {
+            lanes.get(priority).inFlight = previous.lanes.get(priority).inFlight;
+        }
+    }
+
+    public void add(K key, V value, FeedPriority priority) {
+        lanes.get(priority).queue.put(key, value);
+        priorities.put(key, priority);
+    }
+
+    /**
+     * Removes a message that is still waiting
+     *
+     * @return the message, or null if it isn't waiting
+     */
+    public V remove(K key) {
+        FeedPriority priority = priorities.get(key);
+        if (priority == null) {
+            return null;
+        }
+        V value = lanes.get(priority).queue.remove(key);
+        if (value != null) {
+            priorities.remove(key);
+        }
+        return value;
+    }
+
+    /**
+     * Takes the next message to send, counting it as in flight until {@link #completed(Object)}.
+     *
+     * @param limit the current concurrency limit, for the bulk share
+     * @return the next message, or null if there is none that may be sent now
+     */
+    public Map.Entry<K, V> next(int limit) {
+        int bulkMax = limit == Integer.MAX_VALUE ? Integer.MAX_VALUE : Math.max(1, (int) (limit * bulkMaxShare));
+
+        Lane<K, V> best = null;
+        int total = 0;
+        for (Map.Entry<FeedPriority, Lane<K, V>> entry : lanes.entrySet()) {
+            Lane<K, V> lane = entry.getValue();
+            boolean eligible = !lane.queue.isEmpty() &&
+                    (entry.getKey() != FeedPriority.BULK || lane.inFlight < bulkMax);
+            if (!eligible) {
+                continue;
+            }
+            lane.current += lane.weight;
+            total += lane.weight;
+            if (best == null || lane.current > best.current) {
+                best = lane;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        best.current -= total;
+
+        Iterator<Map.Entry<K, V>> it = best.queue.entrySet().iterator();
+        Map.Entry<K, V> next = it.next();
+        it.remove();
+        best.inFlight++;
+        return next;
+    }
+
+    /**
+     * Counts a message taken by {@link #next(int)} as no longer in flight
+     */
+    public void completed(K key) {
+        FeedPriority priority = priorities.remove(key);
+        if (priority != null) {
+            Lane<K, V> lane = lanes.get(priority);
+            lane.inFlight = Math.max(0, lane.inFlight - 1);
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Lane<K, V> lane : lanes.values()) {
+            size += lane.queue.size();
+        }
+        return size;
+    }
+
+    public int size(FeedPriority priority) {
+        return lanes.get(priority).queue.size();
+    }
+
+    public int inFlight(FeedPriority priority) {
+        return lanes.get(priority).inFlight;
+    }
+}
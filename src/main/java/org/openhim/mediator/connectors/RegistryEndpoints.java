@@ -0,0 +1,140 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.connectors;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.openhim.mediator.engine.MediatorConfig;
+
+/**
+ * Ordered list of equivalent XDS registry endpoints (xds.registry.endpoints), in order of preference.
+ * <br/><br/>
+ * An endpoint that fails to connect is skipped for xds.registry.failover.retryAfterMs, doubling with every
+ * further consecutive failure (up to 64 times), and is used again once it has been reached successfully.
+ * Selection prefers the first endpoint that is not being skipped.
+ * <br/><br/>
+ * Not thread safe.
+ */
+public class RegistryEndpoints {
+
+    public static class Endpoint {
+        private final String host;
+        private final int port;
+        private int consecutiveFailures = 0;
+        private long downUntilMillis = 0;
+
+        Endpoint(String host, int port) {
+            this.host = host;
+            this.port = port;
+        }
+
+        public String getHost() {
+            return host;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        @Override
+        public String toString() {
+            return host + ":" + port;
+        }
+    }
+
+    private final List<Endpoint> endpoints;
+    private final long retryAfterMillis;
+
+
+    public RegistryEndpoints(List<String> endpoints, long retryAfterMillis) {
+        List<Endpoint> parsed = new ArrayList<>();
+        for (String endpoint : endpoints) {
+            int colon = endpoint.lastIndexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("Registry endpoint '" + endpoint + "' is not of the form host:port");
+            }
+            parsed.add(new Endpoint(endpoint.substring(0, colon).trim(), Integer.parseInt(endpoint.substring(colon + 1).trim())));
+        }
+        this.endpoints = Collections.unmodifiableList(parsed);
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /**
+     * @return the endpoints configured in xds.registry.endpoints, or null if there are none
+     */
+    public static RegistryEndpoints fromConfig(MediatorConfig config) {
+        String value = config.getProperty("xds.registry.endpoints");
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+
+        List<String> endpoints = new ArrayList<>();
+        for (String endpoint : value.split(",")) {
+            if (!endpoint.trim().isEmpty()) {
+                endpoints.add(endpoint.trim());
+            }
+        }
+
+        String retryAfter = config.getProperty("xds.registry.failover.retryAfterMs");
+        return new RegistryEndpoints(endpoints, retryAfter != null ? Long.parseLong(retryAfter) : 5000);
+    }
+
+
+    public List<Endpoint> getEndpoints() {
+        return endpoints;
+    }
+
+    public boolean isAvailable(Endpoint endpoint) {
+        return isAvailable(endpoint, System.currentTimeMillis());
+    }
+
+    private boolean isAvailable(Endpoint endpoint, long nowMillis) {
+        return nowMillis >= endpoint.downUntilMillis;
+    }
+
+    /**
+     * @param exclude endpoints that have already been tried
+     * @return the first available endpoint that is not excluded. If all of those are being skipped, the one that
+     * will be available soonest. Null if all endpoints are excluded.
+     */
+    public Endpoint select(Collection<Endpoint> exclude) {
+        return select(exclude, System.currentTimeMillis());
+    }
+
+    Endpoint select(Collection<Endpoint> exclude, long nowMillis) {
+        Endpoint soonest = null;
+        for (Endpoint endpoint : endpoints) {
+            if (exclude.contains(endpoint)) {
+                continue;
+            }
+            if (isAvailable(endpoint, nowMillis)) {
+                return endpoint;
+            }
+            if (soonest == null || endpoint.downUntilMillis < soonest.downUntilMillis) {
+                soonest = endpoint;
+            }
+        }
+        return soonest;
+    }
+
+    public void succeeded(Endpoint endpoint) {
+        endpoint.consecutiveFailures = 0;
+        endpoint.downUntilMillis = 0;
+    }
+
+    public void failed(Endpoint endpoint) {
+        failed(endpoint, System.currentTimeMillis());
+    }
+
+    void failed(Endpoint endpoint, long nowMillis) {
+        endpoint.consecutiveFailures++;
+        endpoint.downUntilMillis = nowMillis + (retryAfterMillis << Math.min(endpoint.consecutiveFailures - 1, 6));
+    }
+}
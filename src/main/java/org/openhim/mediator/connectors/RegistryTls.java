@@ -0,0 +1,87 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.connectors;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.openhim.mediator.engine.MediatorConfig;
+
+/**
+ * Builds the TLS context for secure MLLP exchanges with the XDS registry.
+ * <br/><br/>
+ * The client key (for mutual TLS) is read from xds.registry.tls.keyStore and the trusted registry certificates
+ * from xds.registry.tls.trustStore; either falls back to the JVM default when not set. The context keeps the
+ * registry's TLS sessions (xds.registry.tls.sessionCacheSize, xds.registry.tls.sessionTimeoutSeconds), so that new
+ * connections resume a session with an abbreviated handshake instead of a full one.
+ */
+public class RegistryTls {
+
+    private RegistryTls() {
+    }
+
+    public static SSLContext createContext(MediatorConfig config) throws IOException {
+        try {
+            KeyManager[] keyManagers = null;
+            KeyStore keyStore = loadKeyStore(config, "xds.registry.tls.keyStore");
+            if (keyStore != null) {
+                KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+                kmf.init(keyStore, password(config, "xds.registry.tls.keyStorePassword"));
+                keyManagers = kmf.getKeyManagers();
+            }
+
+            TrustManager[] trustManagers = null;
+            KeyStore trustStore = loadKeyStore(config, "xds.registry.tls.trustStore");
+            if (trustStore != null) {
+                TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                tmf.init(trustStore);
+                trustManagers = tmf.getTrustManagers();
+            }
+
+            String protocol = config.getProperty("xds.registry.tls.protocol");
+            SSLContext context = SSLContext.getInstance(protocol != null ? protocol : "TLS");
+            context.init(keyManagers, trustManagers, null);
+
+            String cacheSize = config.getProperty("xds.registry.tls.sessionCacheSize");
+            context.getClientSessionContext().setSessionCacheSize(cacheSize != null ? Integer.parseInt(cacheSize) : 1000);
+            String timeout = config.getProperty("xds.registry.tls.sessionTimeoutSeconds");
+            context.getClientSessionContext().setSessionTimeout(timeout != null ? Integer.parseInt(timeout) : 86400);
+
+            return context;
+        } catch (GeneralSecurityException ex) {
+            throw new IOException("Failed to set up TLS for the XDS registry: " + ex.getMessage(), ex);
+        }
+    }
+
+    private static KeyStore loadKeyStore(MediatorConfig config, String property) throws IOException, GeneralSecurityException {
+        String path = config.getProperty(property);
+        if (path == null || path.trim().isEmpty()) {
+            return null;
+        }
+
+        String type = config.getProperty(property + "Type");
+        KeyStore keyStore = KeyStore.getInstance(type != null ? type : KeyStore.getDefaultType());
+        try (InputStream in = new FileInputStream(path)) {
+            keyStore.load(in, password(config, property + "Password"));
+        }
+        return keyStore;
+    }
+
+    private static char[] password(MediatorConfig config, String property) {
+        String password = config.getProperty(property);
+        return password != null ? password.toCharArray() : null;
+    }
+}
@@ -0,0 +1,281 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.connectors;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedList;
+
+/**
+ * FIFO queue of records in memory-mapped segment files, for messages that don't fit in memory.
+ * <br/><br/>
+ * Records are appended to the newest segment and read from the oldest. A segment is deleted once it has been read
+ * and a new one is started when the newest is full, so the files only hold what is still queued. Only the oldest
+ * and the newest segments are mapped; the records are kept in the page cache rather than on the heap.
+ * <br/><br/>
+ * Each segment starts with a header holding its write and read positions, updated after each record is written
+ * or read. Records queued before the mediator stopped, or the process died, are read again when the queue is
+ * reopened. A record is only lost if the machine itself fails before the OS has written it out, unless it has been
+ * forced to disk.
+ * <br/><br/>
+ * A segment with a corrupt record is quarantined: it is renamed to spill-*.seg.corrupt and its records are dropped
+ * from the queue, so that the records after it can still be read.
+ * <br/><br/>
+ * Not thread safe.
+ */
+public class SpillQueue implements Closeable {
+    private static final int MAGIC = 0x4d505351;
+    // magic, write position, read position, unused
+    private static final int HEADER = 16;
+    private static final int WRITE_POSITION = 4;
+    private static final int READ_POSITION = 8;
+
+    private final File dir;
+    private final int segmentBytes;
+    private final LinkedList<Segment> segments = new LinkedList<>();
+    private long nextSequence = 0;
+    private int size = 0;
+
+
+    private static class Segment {
+        final File file;
+        final long sequence;
+        MappedByteBuffer buffer;
+        int count;
+
+        Segment(File file, long sequence) {
+            this.file = file;
+            this.sequence = sequence;
+        }
+
+        int writePosition() {
+            return buffer.getInt(WRITE_POSITION);
+        }
+
+        int readPosition() {
+            return buffer.getInt(READ_POSITION);
+        }
+
+        /**
+         * @return whether a whole record starts at the position
+         */
+        boolean hasRecordAt(int position) {
+            int writePosition = writePosition();
+            if (position < HEADER || writePosition > buffer.capacity() || position > writePosition - 4) {
+                return false;
+            }
+            int length = buffer.getInt(position);
+            return length >= 0 && length <= writePosition - position - 4;
+        }
+    }
+
+
+    /**
+     * Opens the queue in the directory, with the records left in it
+     *
+     * @param segmentBytes size of a segment file; larger records get a segment of their own
+     */
+    public SpillQueue(File dir, int segmentBytes) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = Math.max(HEADER + 4, segmentBytes);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create spill directory " + dir);
+        }
+        recover();
+    }
+
+    private void recover() throws IOException {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith("spill-") && name.endsWith(".seg");
+            }
+        });
+        if (files == null) {
+            return;
+        }
+        // the names sort by sequence
+        Arrays.sort(files);
+
+        for (File file : files) {
+            long sequence = Long.parseLong(file.getName().substring("spill-".length(), file.getName().length() - ".seg".length()));
+            nextSequence = Math.max(nextSequence, sequence + 1);
+
+            Segment segment = new Segment(file, sequence);
+            segment.buffer = map(file, file.length());
+            if (segment.buffer.capacity() < HEADER || segment.buffer.getInt(0) != MAGIC) {
+                throw new IOException(file + " is not a spill segment");
+            }
+
+            boolean corrupt = false;
+            int position = segment.readPosition();
+            while (position < segment.writePosition()) {
+                if (!segment.hasRecordAt(position)) {
+                    corrupt = true;
+                    break;
+                }
+                position += 4 + segment.buffer.getInt(position);
+                segment.count++;
+            }
+
+            if (corrupt) {
+                quarantine(segment);
+            } else if (segment.count == 0) {
+                delete(segment);
+            } else {
+                segments.add(segment);
+                size += segment.count;
+            }
+        }
+
+        // only the oldest and the newest stay mapped
+        for (int i = 1; i < segments.size() - 1; i++) {
+            segments.get(i).buffer = null;
+        }
+    }
+
+    private static MappedByteBuffer map(File file, long capacity) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            if (raf.length() < capacity) {
+                raf.setLength(capacity);
+            }
+            // the mapping stays valid after the file is closed
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+    }
+
+    private Segment newSegment(int capacity) throws IOException {
+        long sequence = nextSequence++;
+        Segment segment = new Segment(new File(dir, String.format("spill-%019d.seg", sequence)), sequence);
+        segment.buffer = map(segment.file, capacity);
+        segment.buffer.putInt(0, MAGIC);
+        segment.buffer.putInt(WRITE_POSITION, HEADER);
+        segment.buffer.putInt(READ_POSITION, HEADER);
+
+        if (segments.size() > 1) {
+            // no longer the newest
+            segments.getLast().buffer = null;
+        }
+        segments.add(segment);
+        return segment;
+    }
+
+    private static void delete(Segment segment) {
+        segment.buffer = null;
+        if (!segment.file.delete()) {
+            segment.file.deleteOnExit();
+        }
+    }
+
+    private static void quarantine(Segment segment) {
+        segment.buffer = null;
+        File corrupt = new File(segment.file.getPath() + ".corrupt");
+        if (!segment.file.renameTo(corrupt) && !segment.file.delete()) {
+            segment.file.deleteOnExit();
+        }
+    }
+
+    public void append(byte[] record) throws IOException {
+        Segment tail = segments.peekLast();
+        if (tail == null || tail.writePosition() + 4 + record.length > tail.buffer.capacity()) {
+            tail = newSegment(Math.max(segmentBytes, HEADER + 4 + record.length));
+        }
+
+        int position = tail.writePosition();
+        tail.buffer.putInt(position, record.length);
+        tail.buffer.position(position + 4);
+        tail.buffer.put(record);
+        // the record is only visible once it has been written in full
+        tail.buffer.putInt(WRITE_POSITION, position + 4 + record.length);
+
+        tail.count++;
+        size++;
+    }
+
+    /**
+     * Writes the newest segment out to disk, so that the records appended to it survive a failure of the machine
+     */
+    public void force() {
+        Segment tail = segments.peekLast();
+        if (tail != null && tail.buffer != null) {
+            tail.buffer.force();
+        }
+    }
+
+    /**
+     * @return the oldest record, removing it from the queue, or null if the queue is empty
+     * @throws IOException if the oldest segment can't be mapped, which leaves the queue as it was, or holds a corrupt
+     * record, in which case the segment is quarantined
+     */
+    public byte[] poll() throws IOException {
+        Segment head = segments.peekFirst();
+        while (head != null && head.count == 0 && segments.size() > 1) {
+            // emptied, then passed over for a record too large for it
+            segments.removeFirst();
+            delete(head);
+            head = segments.peekFirst();
+        }
+        if (head == null || head.count == 0) {
+            return null;
+        }
+        if (head.buffer == null) {
+            head.buffer = map(head.file, head.file.length());
+        }
+
+        int position = head.readPosition();
+        if (!head.hasRecordAt(position)) {
+            segments.removeFirst();
+            size -= head.count;
+            quarantine(head);
+            throw new IOException("Corrupt record at " + position + " in " + head.file + ", quarantined the segment");
+        }
+        byte[] record = new byte[head.buffer.getInt(position)];
+        head.buffer.position(position + 4);
+        head.buffer.get(record);
+        head.buffer.putInt(READ_POSITION, position + 4 + record.length);
+
+        head.count--;
+        size--;
+
+        if (head.count == 0) {
+            if (segments.size() > 1) {
+                segments.removeFirst();
+                delete(head);
+            } else {
+                // reuse the segment from the start
+                head.buffer.putInt(WRITE_POSITION, HEADER);
+                head.buffer.putInt(READ_POSITION, HEADER);
+            }
+        }
+        return record;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Unmaps the segments; the records stay on disk for the next time the queue is opened
+     */
+    @Override
+    public void close() {
+        for (Segment segment : segments) {
+            if (segment.buffer != null) {
+                segment.buffer.force();
+            }
+            segment.buffer = null;
+        }
+        segments.clear();
+        size = 0;
+    }
+}
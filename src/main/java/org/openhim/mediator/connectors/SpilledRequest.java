@@ -0,0 +1,111 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.connectors;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import akka.actor.ActorRef;
+import org.openhim.mediator.engine.messages.MediatorSocketRequest;
+import org.openhim.mediator.messages.FeedPriority;
+
+/**
+ * A registry request as stored in the SpillQueue: everything needed to send it, without its requester.
+ */
+class SpilledRequest {
+    private final String orchestration;
+    private final String correlationId;
+    private final String host;
+    private final Integer port;
+    private final boolean secure;
+    private final FeedPriority priority;
+    private final String body;
+
+
+    private SpilledRequest(String orchestration, String correlationId, String host, Integer port, boolean secure,
+                           FeedPriority priority, String body) {
+        this.orchestration = orchestration;
+        this.correlationId = correlationId;
+        this.host = host;
+        this.port = port;
+        this.secure = secure;
+        this.priority = priority;
+        this.body = body;
+    }
+
+    static byte[] encode(MediatorSocketRequest request, FeedPriority priority) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        writeString(out, request.getOrchestration());
+        writeString(out, request.getCorrelationId());
+        writeString(out, request.getHost());
+        out.writeInt(request.getPort() != null ? request.getPort() : -1);
+        out.writeBoolean(request.isSecure());
+        out.writeUTF(priority.name());
+        writeString(out, request.getBody());
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @throws IOException if the record is corrupt
+     */
+    static SpilledRequest decode(byte[] record) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        String orchestration = readString(in);
+        String correlationId = readString(in);
+        String host = readString(in);
+        int port = in.readInt();
+        boolean secure = in.readBoolean();
+        FeedPriority priority;
+        try {
+            priority = FeedPriority.valueOf(in.readUTF());
+        } catch (IllegalArgumentException ex) {
+            throw new IOException("Unknown priority in spilled record", ex);
+        }
+        return new SpilledRequest(orchestration, correlationId, host, port >= 0 ? port : null, secure, priority, readString(in));
+    }
+
+    // writeUTF is limited to 64KB
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > in.available()) {
+            throw new IOException("Spilled record is shorter than its " + length + " byte string");
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param requester receives the outcome
+     */
+    MediatorSocketRequest toRequest(ActorRef requester) {
+        return new MediatorSocketRequest(requester, requester, orchestration, correlationId, host, port, body, secure);
+    }
+
+    FeedPriority getPriority() {
+        return priority;
+    }
+}
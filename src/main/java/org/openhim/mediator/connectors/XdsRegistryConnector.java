@@ -0,0 +1,789 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.connectors;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSelection;
+import akka.actor.Props;
+import akka.actor.ReceiveTimeout;
+import akka.actor.UntypedActor;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import org.openhim.mediator.deadletters.DeadLetter;
+import org.openhim.mediator.deadletters.DeadLetterActor;
+import org.openhim.mediator.engine.CoreResponse;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.connectors.MLLPConnector;
+import org.openhim.mediator.engine.messages.AddOrchestrationToCoreResponse;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.MediatorSocketRequest;
+import org.openhim.mediator.engine.messages.MediatorSocketResponse;
+import org.openhim.mediator.messages.FeedPriority;
+import org.openhim.mediator.messages.GetRegistryStats;
+import org.openhim.mediator.messages.PrioritizedSocketRequest;
+import org.openhim.mediator.messages.RecordDeadLetter;
+import org.openhim.mediator.messages.RegistryStats;
+import org.openhim.mediator.messages.SettingsReloaded;
+import org.openhim.mediator.tracing.FlightEvents;
+import org.openhim.mediator.tracing.Tracer;
+import scala.concurrent.duration.Duration;
+
+/**
+ * Single entry point for all exchanges with the XDS registry.
+ * <br/><br/>
+ * Requests are passed on to the MLLP connector selected by xds.registry.connector. When
+ * xds.registry.batch.enabled is set, outgoing feed messages are collected for up to
+ * xds.registry.batch.maxDelayMs or xds.registry.batch.maxSize messages and sent as a single
+ * HL7 batch (FHS/BHS ... BTS/FTS). The batch acknowledgement is fanned back out to each original
+ * requester. If the registry does not acknowledge the batch, its messages are resent one by one.
+ * <br/><br/>
+ * Every exchange is tracked by an Exchange child, which relays the outcome to the original requester and
+ * reports the outcome back, for the registry health statistics.
+ * <br/><br/>
+ * When xds.registry.limit.enabled is set, the number of messages outstanding at the registry is limited by
+ * a ConcurrencyLimiter, which adapts the limit to the acknowledgement round trip times and rejections.
+ * Messages over the limit are queued here, in arrival order within their priority lane (see PriorityLanes).
+ * <br/><br/>
+ * When xds.registry.endpoints lists equivalent registry endpoints, each message is sent to the preferred
+ * available endpoint (see RegistryEndpoints) instead of the host and port in the request, and is sent to the
+ * next endpoint if the connection fails. With xds.registry.hedge.enabled, a message that has not been
+ * acknowledged within the xds.registry.hedge.percentile of recent round trip times is also sent to the next
+ * endpoint; the first acknowledgement of the message's control ID is used and any later ones are dropped.
+ * <br/><br/>
+ * When xds.deadLetters.enabled is set, messages that were rejected or not acknowledged are recorded by the
+ * dead-letters actor, for replay.
+ * <br/><br/>
+ * When xds.registry.spill.enabled is set and more than xds.registry.spill.threshold messages are held in memory
+ * (queued or in flight), further messages are spilled to a SpillQueue on disk instead, and the requester gets a
+ * commit acknowledgement (MSA-1 CA) once the message has been forced to disk: it has been safely stored and will
+ * be sent. The request handler gets an orchestration with the CA, as it would after a registry response. Spilled messages are sent in arrival order as room comes back; their outcome goes to the dead-letters
+ * actor only, so messages are only spilled while xds.deadLetters.enabled is set.
+ * <br/><br/>
+ * Messages supported:
+ * <ul>
+ * <li>MediatorSocketRequest - the MediatorSocketResponse is sent to the request's respondTo actor, as with the engine connectors</li>
+ * <li>PrioritizedSocketRequest - as MediatorSocketRequest, queued in the given priority lane</li>
+ * <li>GetRegistryStats - responds with RegistryStats</li>
+ * <li>SettingsReloaded (event stream) - applies the reloaded registry settings</li>
+ * </ul>
+ */
+public class XdsRegistryConnector extends UntypedActor {
+    // round trip times needed before a hedging delay is derived from them
+    private static final int HEDGE_MIN_SAMPLES = 20;
+
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private final MediatorConfig config;
+    private final Tracer tracer;
+
+    private boolean deadLettersEnabled;
+    private int spillThreshold;
+    private SpillQueue spill;
+    private ActorRef spillSink;
+    private boolean batchEnabled;
+    private int batchMaxSize;
+    private long batchMaxDelayMillis;
+
+    private List<MediatorSocketRequest> pending = new ArrayList<>();
+    private long generation = 0;
+
+    private final long exchangeTimeoutMillis;
+    private final LatencyWindow latencies;
+    private ConcurrencyLimiter limiter;
+
+    private RegistryEndpoints endpoints;
+    private boolean hedgeEnabled;
+    private double hedgePercentile;
+
+    private PriorityLanes<ActorRef, MediatorSocketRequest> waiting;
+    // when the waiting messages of sampled traces were queued
+    private final Map<ActorRef, Long> queuedAtMicros = new HashMap<>();
+    private final Map<ActorRef, Sent> sent = new HashMap<>();
+    private long completed = 0;
+    private long failed = 0;
+    private String lastError;
+    private Long lastErrorTime;
+
+
+    public XdsRegistryConnector(MediatorConfig config) {
+        this.config = config;
+        this.tracer = Tracer.forConfig(config);
+
+        String readTimeout = config.getProperty("xds.registry.readTimeout");
+        this.exchangeTimeoutMillis = (readTimeout != null ? Long.parseLong(readTimeout) : 60000) + 5000;
+        String samples = config.getProperty("mediator.health.latencySamples");
+        this.latencies = new LatencyWindow(samples != null ? Integer.parseInt(samples) : 200);
+
+        applySettings();
+    }
+
+    /**
+     * (Re)reads the batching, limit, endpoint and hedging settings. The current concurrency limit is kept,
+     * within the new bounds.
+     */
+    private void applySettings() {
+        deadLettersEnabled = DeadLetterActor.isEnabled(config);
+        String threshold = config.getProperty("xds.registry.spill.threshold");
+        spillThreshold = threshold != null ? Math.max(1, Integer.parseInt(threshold)) : 1000;
+
+        batchEnabled = "true".equalsIgnoreCase(config.getProperty("xds.registry.batch.enabled"));
+        String maxSize = config.getProperty("xds.registry.batch.maxSize");
+        batchMaxSize = maxSize != null ? Math.max(1, Integer.parseInt(maxSize)) : 50;
+        String maxDelay = config.getProperty("xds.registry.batch.maxDelayMs");
+        batchMaxDelayMillis = maxDelay != null ? Long.parseLong(maxDelay) : 20;
+
+        ConcurrencyLimiter previous = limiter;
+        limiter = ConcurrencyLimiter.isEnabled(config) ? new ConcurrencyLimiter(config) : null;
+        if (limiter != null && previous != null) {
+            limiter.setLimit(previous.getLimit());
+        }
+
+        endpoints = RegistryEndpoints.fromConfig(config);
+        hedgeEnabled = endpoints != null && endpoints.getEndpoints().size() > 1 &&
+                "true".equalsIgnoreCase(config.getProperty("xds.registry.hedge.enabled"));
+        String percentile = config.getProperty("xds.registry.hedge.percentile");
+        hedgePercentile = percentile != null ? Double.parseDouble(percentile) : 95;
+
+        PriorityLanes<ActorRef, MediatorSocketRequest> previousLanes = waiting;
+        waiting = new PriorityLanes<>(config);
+        if (previousLanes != null) {
+            waiting.takeOver(previousLanes);
+        }
+    }
+
+    @Override
+    public void preStart() throws Exception {
+        getContext().system().eventStream().subscribe(getSelf(), SettingsReloaded.class);
+
+        if ("true".equalsIgnoreCase(config.getProperty("xds.registry.spill.enabled"))) {
+            String dir = config.getProperty("xds.registry.spill.dir");
+            String segmentBytes = config.getProperty("xds.registry.spill.segmentBytes");
+            try {
+                spill = new SpillQueue(new File(dir != null ? dir : "spill"),
+                        segmentBytes != null ? Integer.parseInt(segmentBytes) : 16 * 1024 * 1024);
+                spillSink = getContext().actorOf(Props.create(SpillSink.class), "spill-sink");
+                if (!deadLettersEnabled) {
+                    log.error("xds.registry.spill.enabled needs xds.deadLetters.enabled, holding all messages in memory");
+                }
+                if (spill.size() > 0) {
+                    log.info("Sending " + spill.size() + " message(s) spilled before the last stop");
+                    sendWaiting();
+                }
+            } catch (IOException ex) {
+                log.error(ex, "Cannot open the spill queue, holding all messages in memory");
+                spill = null;
+            }
+        }
+    }
+
+    @Override
+    public void postStop() throws Exception {
+        getContext().system().eventStream().unsubscribe(getSelf());
+        if (spill != null) {
+            spill.close();
+        }
+    }
+
+    private void processSettingsReloaded(SettingsReloaded msg) {
+        if (msg.getConfig() != config) {
+            return;
+        }
+
+        try {
+            applySettings();
+            log.info("Applied reloaded XDS registry settings");
+        } catch (IllegalArgumentException ex) {
+            log.error(ex, "Invalid XDS registry settings, keeping the previous ones where they could not be applied");
+        }
+        // the limit may have been raised
+        sendWaiting();
+    }
+
+
+    /**
+     * @return the connector used for the actual MLLP exchanges (xds.registry.connector). TLS exchanges
+     * (xds.registry.secure) always use the blocking connector, as the engine connector only supports the JVM
+     * default key and trust stores and does a full handshake for every message.
+     */
+    static ActorSelection transport(UntypedActor actor, MediatorConfig config) {
+        boolean blocking = "blocking".equalsIgnoreCase(config.getProperty("xds.registry.connector")) ||
+                "true".equalsIgnoreCase(config.getProperty("xds.registry.secure"));
+        String name = blocking ? "blocking-mllp-connector" : "mllp-connector";
+        return actor.getContext().actorSelection(config.userPathFor(name));
+    }
+
+    private static class FlushBatch {
+        final long generation;
+
+        FlushBatch(long generation) {
+            this.generation = generation;
+        }
+    }
+
+    private static class ExchangeCompleted {
+        final String error;
+
+        ExchangeCompleted(String error) {
+            this.error = error;
+        }
+    }
+
+    private static class AttemptCompleted {
+        final ActorRef exchange;
+        final RegistryEndpoints.Endpoint endpoint;
+        final ExceptError error;
+
+        AttemptCompleted(ActorRef exchange, RegistryEndpoints.Endpoint endpoint, ExceptError error) {
+            this.exchange = exchange;
+            this.endpoint = endpoint;
+            this.error = error;
+        }
+    }
+
+    private static class Hedge {
+        final ActorRef exchange;
+
+        Hedge(ActorRef exchange) {
+            this.exchange = exchange;
+        }
+    }
+
+    private static class Sent {
+        final long sentAt = System.nanoTime();
+        final Object flightEvent = FlightEvents.begin(FlightEvents.Stage.REGISTRY_EXCHANGE);
+        final MediatorSocketRequest request;
+        final List<RegistryEndpoints.Endpoint> tried = new ArrayList<>();
+        int outstanding = 0;
+
+        Sent(MediatorSocketRequest request) {
+            this.request = request;
+        }
+    }
+
+    private void track(MediatorSocketRequest original, FeedPriority priority) {
+        // once spilling, later messages are spilled too, so that they are sent in arrival order
+        if (spill != null && (spill.size() > 0 || waiting.size() + sent.size() >= spillThreshold) && spill(original, priority)) {
+            return;
+        }
+
+        ActorRef exchange = getContext().actorOf(Props.create(Exchange.class, original, exchangeTimeoutMillis));
+
+        waiting.add(exchange, new MediatorSocketRequest(exchange, exchange, original.getOrchestration(), original.getCorrelationId(),
+                original.getHost(), original.getPort(), original.getBody(), original.isSecure()), priority);
+        if (tracer.isSampled(original.getCorrelationId())) {
+            queuedAtMicros.put(exchange, Tracer.nowMicros());
+        }
+        sendWaiting();
+    }
+
+    private boolean spill(MediatorSocketRequest original, FeedPriority priority) {
+        if (!deadLettersEnabled) {
+            // nothing would record a failure once the requester has been answered
+            return false;
+        }
+        try {
+            spill.append(SpilledRequest.encode(original, priority));
+            // the requester is told the message is stored
+            spill.force();
+        } catch (IOException ex) {
+            log.error(ex, "Failed to spill message " + original.getCorrelationId() + ", holding it in memory");
+            return false;
+        }
+
+        String ack = commitAcknowledgement(original.getCorrelationId());
+        original.getRespondTo().tell(new MediatorSocketResponse(original, ack), getSelf());
+        if (original.getRequestHandler() != null) {
+            // as the connectors do after a response; a requester may wait for both
+            original.getRequestHandler().tell(new AddOrchestrationToCoreResponse(spillOrchestration(original, ack)), getSelf());
+        }
+        return true;
+    }
+
+    private static CoreResponse.Orchestration spillOrchestration(MediatorSocketRequest request, String ack) {
+        CoreResponse.Orchestration orchestration = new CoreResponse.Orchestration();
+        orchestration.setName(request.getOrchestration() + " (spilled)");
+
+        CoreResponse.Request orchestrationRequest = new CoreResponse.Request();
+        orchestrationRequest.setBody(MLLPConnector.wrapMLLP(request.getBody()));
+        orchestrationRequest.setHost(request.getHost());
+        orchestrationRequest.setPort(Integer.toString(request.getPort()));
+        orchestration.setRequest(orchestrationRequest);
+
+        CoreResponse.Response orchestrationResponse = new CoreResponse.Response();
+        orchestrationResponse.setBody(MLLPConnector.wrapMLLP(ack));
+        orchestration.setResponse(orchestrationResponse);
+
+        return orchestration;
+    }
+
+    /**
+     * @return an HL7 commit accept (MSA-1 CA) for the message
+     */
+    private String commitAcknowledgement(String controlId) {
+        return "MSH|^~\\&|" + nullToEmpty(config.getProperty("pix.receivingApplication")) +
+                "|" + nullToEmpty(config.getProperty("pix.receivingFacility")) +
+                "|" + nullToEmpty(config.getProperty("pix.sendingApplication")) +
+                "|" + nullToEmpty(config.getProperty("pix.sendingFacility")) +
+                "|" + new SimpleDateFormat("yyyyMMddHHmmssZ").format(new Date()) +
+                "||ACK|" + UUID.randomUUID() + "|P|2.3.1\r" +
+                "MSA|CA|" + nullToEmpty(controlId) + "\r";
+    }
+
+    private static String nullToEmpty(String value) {
+        return value != null ? value : "";
+    }
+
+    /**
+     * Moves spilled messages back to the in-memory queue while there is room, oldest first
+     */
+    private void unspill() {
+        while (spill != null && spill.size() > 0 && waiting.size() + sent.size() < spillThreshold) {
+            byte[] record;
+            try {
+                record = spill.poll();
+            } catch (IOException ex) {
+                // a corrupt segment has been quarantined by now, anything else is tried again on the next send
+                log.error(ex, "Failed to read the spill queue, " + spill.size() + " spilled message(s) left");
+                return;
+            }
+            SpilledRequest spilled;
+            try {
+                spilled = SpilledRequest.decode(record);
+            } catch (IOException ex) {
+                log.error(ex, "Failed to decode a spilled message, skipping it");
+                continue;
+            }
+
+            MediatorSocketRequest request = spilled.toRequest(spillSink);
+            ActorRef exchange = getContext().actorOf(Props.create(Exchange.class, request, exchangeTimeoutMillis));
+            waiting.add(exchange, new MediatorSocketRequest(exchange, exchange, request.getOrchestration(), request.getCorrelationId(),
+                    request.getHost(), request.getPort(), request.getBody(), request.isSecure()), spilled.getPriority());
+        }
+    }
+
+    private int getLimit() {
+        return limiter != null ? limiter.getLimit() : Integer.MAX_VALUE;
+    }
+
+    private void sendWaiting() {
+        unspill();
+        while (sent.size() < getLimit()) {
+            Map.Entry<ActorRef, MediatorSocketRequest> next = waiting.next(getLimit());
+            if (next == null) {
+                break;
+            }
+
+            Sent exchange = new Sent(next.getValue());
+            sent.put(next.getKey(), exchange);
+            Long queuedAt = queuedAtMicros.remove(next.getKey());
+            if (queuedAt != null) {
+                tracer.span(exchange.request.getCorrelationId(), "registry queue wait", queuedAt, Tracer.nowMicros(),
+                        "inFlight", Integer.toString(sent.size() - 1));
+            }
+            if (endpoints == null) {
+                send(next.getValue());
+            } else {
+                attempt(next.getKey(), exchange, endpoints.select(exchange.tried));
+                scheduleHedge(next.getKey());
+            }
+        }
+    }
+
+    private void attempt(ActorRef exchange, Sent sentExchange, RegistryEndpoints.Endpoint endpoint) {
+        sentExchange.tried.add(endpoint);
+        sentExchange.outstanding++;
+
+        ActorRef attempt = getContext().actorOf(Props.create(Attempt.class, exchange, endpoint, exchangeTimeoutMillis));
+        MediatorSocketRequest request = sentExchange.request;
+        send(new MediatorSocketRequest(attempt, attempt, request.getOrchestration(), request.getCorrelationId(),
+                endpoint.getHost(), endpoint.getPort(), request.getBody(), request.isSecure()));
+    }
+
+    private void scheduleHedge(ActorRef exchange) {
+        if (!hedgeEnabled || latencies.size() < HEDGE_MIN_SAMPLES) {
+            return;
+        }
+
+        long delay = Math.max(1, latencies.percentile(hedgePercentile));
+        getContext().system().scheduler().scheduleOnce(
+                Duration.create(delay, TimeUnit.MILLISECONDS), getSelf(), new Hedge(exchange),
+                getContext().dispatcher(), getSelf());
+    }
+
+    private void processHedge(Hedge msg) {
+        Sent exchange = sent.get(msg.exchange);
+        if (exchange == null || endpoints == null) {
+            return;
+        }
+
+        RegistryEndpoints.Endpoint next = endpoints.select(exchange.tried);
+        if (next != null && endpoints.isAvailable(next)) {
+            log.debug("Hedging message " + exchange.request.getCorrelationId() + " to " + next);
+            attempt(msg.exchange, exchange, next);
+        }
+    }
+
+    private void processAttemptCompleted(AttemptCompleted msg) {
+        // the endpoints may have been reloaded since, in which case this one is no longer used
+        if (msg.error == null) {
+            if (endpoints != null) {
+                endpoints.succeeded(msg.endpoint);
+            }
+            return;
+        }
+
+        if (endpoints != null) {
+            endpoints.failed(msg.endpoint);
+        }
+
+        Sent exchange = sent.get(msg.exchange);
+        if (exchange == null) {
+            // already acknowledged through another endpoint
+            return;
+        }
+        exchange.outstanding--;
+
+        RegistryEndpoints.Endpoint next = endpoints != null ? endpoints.select(exchange.tried) : null;
+        if (next != null) {
+            log.warning("Failed to send message " + exchange.request.getCorrelationId() + " to " + msg.endpoint +
+                    " (" + msg.error.getError() + "). Failing over to " + next);
+            attempt(msg.exchange, exchange, next);
+        } else if (exchange.outstanding == 0) {
+            msg.exchange.tell(msg.error, getSelf());
+        }
+    }
+
+    private void processExchangeCompleted(ActorRef exchange, ExchangeCompleted msg) {
+        MediatorSocketRequest request;
+        Sent sentExchange = sent.remove(exchange);
+        if (sentExchange == null) {
+            // timed out before it could be sent
+            request = waiting.remove(exchange);
+            queuedAtMicros.remove(exchange);
+        } else {
+            waiting.completed(exchange);
+            request = sentExchange.request;
+            long rttNanos = System.nanoTime() - sentExchange.sentAt;
+            long rtt = TimeUnit.NANOSECONDS.toMillis(rttNanos);
+            latencies.add(rtt);
+            if (limiter != null) {
+                limiter.onSample(rtt, msg.error != null, sent.size() + 1);
+            }
+
+            long now = Tracer.nowMicros();
+            tracer.span(request.getCorrelationId(), "registry exchange", now - TimeUnit.NANOSECONDS.toMicros(rttNanos), now,
+                    "endpoints", Integer.toString(Math.max(1, sentExchange.tried.size())),
+                    "outcome", msg.error == null ? "acknowledged" : msg.error);
+            if (sentExchange.flightEvent != null) {
+                FlightEvents.end(sentExchange.flightEvent, request.getCorrelationId(),
+                        DeadLetter.messageType(request.getBody()), msg.error == null ? "acknowledged" : msg.error);
+            }
+        }
+
+        if (msg.error == null) {
+            completed++;
+        } else {
+            failed++;
+            lastError = msg.error;
+            lastErrorTime = System.currentTimeMillis();
+
+            if (deadLettersEnabled && request != null) {
+                getContext().actorSelection(config.userPathFor("dead-letters")).tell(
+                        new RecordDeadLetter(request.getCorrelationId(), request.getBody(), msg.error), getSelf());
+            }
+        }
+
+        sendWaiting();
+    }
+
+    private RegistryStats stats() {
+        return new RegistryStats(latencies.mean(), latencies.percentile(95), latencies.size(),
+                sent.size(), waiting.size() + pending.size(), completed, failed, lastError, lastErrorTime,
+                limiter != null ? limiter.getLimit() : null, spill != null ? spill.size() : 0);
+    }
+
+    private void send(MediatorSocketRequest request) {
+        if (!batchEnabled) {
+            transport(this, config).tell(request, getSelf());
+            return;
+        }
+
+        if (!pending.isEmpty() && !sameEndpoint(pending.get(0), request)) {
+            flush();
+        }
+
+        pending.add(request);
+
+        if (pending.size() >= batchMaxSize) {
+            flush();
+        } else if (pending.size() == 1) {
+            getContext().system().scheduler().scheduleOnce(
+                    Duration.create(batchMaxDelayMillis, TimeUnit.MILLISECONDS), getSelf(), new FlushBatch(generation),
+                    getContext().dispatcher(), getSelf());
+        }
+    }
+
+    private static boolean sameEndpoint(MediatorSocketRequest a, MediatorSocketRequest b) {
+        return a.getHost().equals(b.getHost()) && a.getPort().equals(b.getPort()) && a.isSecure() == b.isSecure();
+    }
+
+    private void flush() {
+        generation++;
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        List<MediatorSocketRequest> batch = pending;
+        pending = new ArrayList<>();
+
+        if (batch.size() == 1) {
+            transport(this, config).tell(batch.get(0), getSelf());
+        } else {
+            getContext().actorOf(Props.create(Batch.class, config, batch));
+        }
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof MediatorSocketRequest) {
+            track((MediatorSocketRequest) msg, FeedPriority.REALTIME);
+        } else if (msg instanceof PrioritizedSocketRequest) {
+            PrioritizedSocketRequest request = (PrioritizedSocketRequest) msg;
+            track(request.getRequest(), request.getPriority() != null ? request.getPriority() : FeedPriority.REALTIME);
+        } else if (msg instanceof ExchangeCompleted) {
+            processExchangeCompleted(getSender(), (ExchangeCompleted) msg);
+        } else if (msg instanceof AttemptCompleted) {
+            processAttemptCompleted((AttemptCompleted) msg);
+        } else if (msg instanceof Hedge) {
+            processHedge((Hedge) msg);
+        } else if (msg instanceof SettingsReloaded) {
+            processSettingsReloaded((SettingsReloaded) msg);
+        } else if (msg instanceof GetRegistryStats) {
+            getSender().tell(stats(), getSelf());
+        } else if (msg instanceof FlushBatch) {
+            if (((FlushBatch) msg).generation == generation) {
+                flush();
+            }
+        } else {
+            unhandled(msg);
+        }
+    }
+
+
+    /**
+     * Tracks a single exchange. Acts as both the request handler and the response target of the request sent to
+     * the registry, relays the outcome to the original requester and reports it to the parent connector.
+     */
+    public static class Exchange extends UntypedActor {
+        private final MediatorSocketRequest original;
+        private boolean responded = false;
+
+        public Exchange(MediatorSocketRequest original, long timeoutMillis) {
+            this.original = original;
+            getContext().setReceiveTimeout(Duration.create(timeoutMillis, TimeUnit.MILLISECONDS));
+        }
+
+        private void complete(String error) {
+            responded = true;
+            getContext().parent().tell(new ExchangeCompleted(error), getSelf());
+        }
+
+        @Override
+        public void onReceive(Object msg) throws Exception {
+            if (msg instanceof MediatorSocketResponse) {
+                if (responded) {
+                    // a hedged copy, acknowledging the same control ID
+                    return;
+                }
+                String body = ((MediatorSocketResponse) msg).getBody();
+                String ackCode = HL7Batch.acknowledgementCode(body);
+                if (ackCode == null) {
+                    // can't tell whether the registry took the message, so it counts as failed
+                    complete("Registry response to message " + original.getCorrelationId() + " has no acknowledgement code");
+                } else {
+                    complete("AA".equals(ackCode) || "CA".equals(ackCode) ? null :
+                            "Registry responded " + ackCode + " to message " + original.getCorrelationId());
+                }
+                original.getRespondTo().tell(new MediatorSocketResponse(original, body), getSelf());
+            } else if (msg instanceof ExceptError) {
+                if (!responded) {
+                    complete(String.valueOf(((ExceptError) msg).getError()));
+                    original.getRequestHandler().tell(msg, getSelf());
+                }
+                getContext().stop(getSelf());
+            } else if (msg instanceof AddOrchestrationToCoreResponse) {
+                // the connectors send the orchestration after the response
+                original.getRequestHandler().tell(msg, getSelf());
+                if (responded) {
+                    getContext().stop(getSelf());
+                }
+            } else if (msg instanceof ReceiveTimeout) {
+                if (!responded) {
+                    complete("No response from the XDS registry for message " + original.getCorrelationId());
+                    original.getRequestHandler().tell(new ExceptError(new SocketTimeoutException(
+                            "No response from the XDS registry for message " + original.getCorrelationId())), getSelf());
+                }
+                getContext().stop(getSelf());
+            } else {
+                unhandled(msg);
+            }
+        }
+    }
+
+
+    /**
+     * Receives the outcome of spilled messages, whose requesters already have their commit acknowledgement
+     */
+    public static class SpillSink extends UntypedActor {
+        @Override
+        public void onReceive(Object msg) throws Exception {
+            // the outcome has been recorded by the connector
+        }
+    }
+
+
+    /**
+     * Tracks one attempt to send an exchange's message to a specific registry endpoint. Relays the outcome to the
+     * exchange and reports connection failures to the parent connector, which fails over to the next endpoint.
+     */
+    public static class Attempt extends UntypedActor {
+        private final ActorRef exchange;
+        private final RegistryEndpoints.Endpoint endpoint;
+
+        public Attempt(ActorRef exchange, RegistryEndpoints.Endpoint endpoint, long timeoutMillis) {
+            this.exchange = exchange;
+            this.endpoint = endpoint;
+            getContext().setReceiveTimeout(Duration.create(timeoutMillis, TimeUnit.MILLISECONDS));
+        }
+
+        @Override
+        public void onReceive(Object msg) throws Exception {
+            if (msg instanceof MediatorSocketResponse) {
+                getContext().parent().tell(new AttemptCompleted(exchange, endpoint, null), getSelf());
+                exchange.tell(msg, getSelf());
+            } else if (msg instanceof AddOrchestrationToCoreResponse) {
+                exchange.tell(msg, getSelf());
+                getContext().stop(getSelf());
+            } else if (msg instanceof ExceptError) {
+                getContext().parent().tell(new AttemptCompleted(exchange, endpoint, (ExceptError) msg), getSelf());
+                getContext().stop(getSelf());
+            } else if (msg instanceof ReceiveTimeout) {
+                // the exchange times out on its own
+                getContext().stop(getSelf());
+            } else {
+                unhandled(msg);
+            }
+        }
+    }
+
+
+    /**
+     * Sends one HL7 batch and fans the acknowledgements out to the original requesters.
+     * Acts as both the request handler and the response target of the batch request.
+     */
+    public static class Batch extends UntypedActor {
+        LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+        private final MediatorConfig config;
+        private final List<MediatorSocketRequest> requests;
+        private final String batchId = UUID.randomUUID().toString();
+        private boolean responded = false;
+
+        public Batch(MediatorConfig config, List<MediatorSocketRequest> requests) {
+            this.config = config;
+            this.requests = requests;
+
+            String readTimeout = config.getProperty("xds.registry.readTimeout");
+            long timeout = (readTimeout != null ? Long.parseLong(readTimeout) : 60000) + 5000;
+            getContext().setReceiveTimeout(Duration.create(timeout, TimeUnit.MILLISECONDS));
+        }
+
+        @Override
+        public void preStart() throws Exception {
+            List<String> messages = new ArrayList<>();
+            for (MediatorSocketRequest request : requests) {
+                messages.add(request.getBody());
+            }
+
+            MediatorSocketRequest first = requests.get(0);
+            MediatorSocketRequest batchRequest = new MediatorSocketRequest(
+                    getSelf(), getSelf(), "Sync XDS Registry PixFeed Batch", batchId,
+                    first.getHost(), first.getPort(), HL7Batch.encode(batchId, messages, config), first.isSecure());
+            transport(this, config).tell(batchRequest, getSelf());
+        }
+
+        private void processBatchResponse(MediatorSocketResponse response) {
+            Map<String, String> acks = HL7Batch.splitAcknowledgements(response.getBody());
+
+            List<MediatorSocketRequest> unacknowledged = new ArrayList<>();
+            for (MediatorSocketRequest request : requests) {
+                String ack = acks.get(request.getCorrelationId());
+                if (ack == null && acks.size() == 1 && acks.containsKey(batchId)) {
+                    // a single acknowledgement for the whole batch
+                    ack = acks.get(batchId);
+                }
+
+                if (ack != null) {
+                    request.getRespondTo().tell(new MediatorSocketResponse(request, ack), getSelf());
+                } else {
+                    unacknowledged.add(request);
+                }
+            }
+
+            if (!unacknowledged.isEmpty()) {
+                log.warning(unacknowledged.size() + " message(s) were not acknowledged in batch " + batchId + ". Resending individually.");
+                for (MediatorSocketRequest request : unacknowledged) {
+                    transport(this, config).tell(request, getSelf());
+                }
+            }
+        }
+
+        private void failAll(ExceptError error) {
+            for (MediatorSocketRequest request : requests) {
+                request.getRequestHandler().tell(error, getSelf());
+            }
+            getContext().stop(getSelf());
+        }
+
+        @Override
+        public void onReceive(Object msg) throws Exception {
+            if (msg instanceof MediatorSocketResponse) {
+                processBatchResponse((MediatorSocketResponse) msg);
+                responded = true;
+            } else if (msg instanceof ExceptError) {
+                failAll((ExceptError) msg);
+            } else if (msg instanceof AddOrchestrationToCoreResponse) {
+                // the connectors send the orchestration after the response
+                for (MediatorSocketRequest request : requests) {
+                    request.getRequestHandler().tell(msg, getSelf());
+                }
+                if (responded) {
+                    getContext().stop(getSelf());
+                }
+            } else if (msg instanceof ReceiveTimeout) {
+                if (!responded) {
+                    failAll(new ExceptError(new SocketTimeoutException("No response from the XDS registry for batch " + batchId)));
+                }
+                getContext().stop(getSelf());
+            } else {
+                unhandled(msg);
+            }
+        }
+    }
+}
@@ -6,7 +6,11 @@
 
 package org.openhim.mediator.datatypes;
 
-public class AssigningAuthority {
+import java.io.Serializable;
+
+public class AssigningAuthority implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     private String assigningAuthority;
     private String assigningAuthorityId;
     private String assigningAuthorityIdType;
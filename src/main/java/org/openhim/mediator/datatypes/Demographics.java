@@ -0,0 +1,63 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.datatypes;
+
+import java.io.Serializable;
+
+/**
+ * A patient's demographics, as written to PID-5 (name), PID-7 (birth date), PID-8 (gender) and PID-13 (telecom).
+ * Any of the values may be null.
+ */
+public class Demographics implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * No demographics known for the patient
+     */
+    public static final Demographics NONE = new Demographics(null, null, null, null, null);
+
+    private final String familyName;
+    private final String givenName;
+    private final String birthDate;
+    private final String gender;
+    private final String telecom;
+
+    public Demographics(String familyName, String givenName, String birthDate, String gender, String telecom) {
+        this.familyName = familyName;
+        this.givenName = givenName;
+        this.birthDate = birthDate;
+        this.gender = gender;
+        this.telecom = telecom;
+    }
+
+    public String getFamilyName() {
+        return familyName;
+    }
+
+    public String getGivenName() {
+        return givenName;
+    }
+
+    /**
+     * @return the birth date as an HL7 date (yyyyMMdd)
+     */
+    public String getBirthDate() {
+        return birthDate;
+    }
+
+    public String getGender() {
+        return gender;
+    }
+
+    public String getTelecom() {
+        return telecom;
+    }
+
+    public boolean isEmpty() {
+        return familyName == null && givenName == null && birthDate == null && gender == null && telecom == null;
+    }
+}
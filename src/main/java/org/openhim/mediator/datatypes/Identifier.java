@@ -6,9 +6,13 @@
 
 package org.openhim.mediator.datatypes;
 
+import java.io.Serializable;
+
 import org.openhim.mediator.exceptions.CXParseException;
 
-public class Identifier {
+public class Identifier implements Serializable {
+    private static final long serialVersionUID = 1L;
+
     private String identifier;
     private AssigningAuthority assigningAuthority;
     private String typeCode;
@@ -0,0 +1,113 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.deadletters;
+
+/**
+ * A feed message that the XDS registry rejected, or that could not be delivered, with its HL7 payload.
+ * <br/><br/>
+ * Records are keyed by the message's control ID (MSH-10). A replay sends the same payload, so when it fails
+ * again the same record is updated and its attempt count goes up.
+ */
+public class DeadLetter {
+    public enum Status {
+        /** Failed, waiting to be replayed */
+        PENDING,
+        /** Queued or sent for replay */
+        REPLAYING,
+        /** Acknowledged by the registry on replay */
+        RESOLVED
+    }
+
+    private String id;
+    private String messageType;
+    private String error;
+    private int attempts;
+    private long firstFailedAt;
+    private long lastFailedAt;
+    private Status status;
+    private String payload;
+
+
+    public DeadLetter(String id, String messageType, String payload) {
+        this.id = id;
+        this.messageType = messageType;
+        this.payload = payload;
+        this.status = Status.PENDING;
+    }
+
+    DeadLetter copy() {
+        DeadLetter copy = new DeadLetter(id, messageType, payload);
+        copy.error = error;
+        copy.attempts = attempts;
+        copy.firstFailedAt = firstFailedAt;
+        copy.lastFailedAt = lastFailedAt;
+        copy.status = status;
+        return copy;
+    }
+
+    /**
+     * @return the message type (MSH-9, e.g. ADT^A04) of an HL7 message, or null if it can't be read
+     */
+    public static String messageType(String payload) {
+        String msh = payload.replace('\n', '\r').split("\r")[0];
+        if (!msh.startsWith("MSH")) {
+            return null;
+        }
+        String[] fields = msh.split("\\|", -1);
+        if (fields.length < 9) {
+            return null;
+        }
+        String[] components = fields[8].split("\\^");
+        return components.length > 1 ? components[0] + "^" + components[1] : components[0];
+    }
+
+    void failed(String error, long time) {
+        if (attempts == 0) {
+            firstFailedAt = time;
+        }
+        this.error = error;
+        this.lastFailedAt = time;
+        this.status = Status.PENDING;
+        attempts++;
+    }
+
+    void setStatus(Status status) {
+        this.status = status;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getMessageType() {
+        return messageType;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public int getAttempts() {
+        return attempts;
+    }
+
+    public long getFirstFailedAt() {
+        return firstFailedAt;
+    }
+
+    public long getLastFailedAt() {
+        return lastFailedAt;
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public String getPayload() {
+        return payload;
+    }
+}
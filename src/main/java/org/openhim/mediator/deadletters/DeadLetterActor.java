@@ -0,0 +1,233 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.deadletters;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import akka.actor.Cancellable;
+import akka.actor.UntypedActor;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import org.openhim.mediator.MediatorSettings;
+import org.openhim.mediator.connectors.HL7Batch;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.AddOrchestrationToCoreResponse;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.MediatorSocketRequest;
+import org.openhim.mediator.engine.messages.MediatorSocketResponse;
+import org.openhim.mediator.messages.DeadLetterList;
+import org.openhim.mediator.messages.FeedPriority;
+import org.openhim.mediator.messages.ListDeadLetters;
+import org.openhim.mediator.messages.PrioritizedSocketRequest;
+import org.openhim.mediator.messages.RecordDeadLetter;
+import org.openhim.mediator.messages.ReplayDeadLetters;
+import scala.concurrent.duration.Duration;
+
+/**
+ * Keeps the dead letter store (xds.deadLetters.file) and replays dead letters on request. The store is only
+ * opened while xds.deadLetters.enabled is set; otherwise there are no dead letters to list or replay.
+ * <br/><br/>
+ * Replays go through the xds-registry-connector's bulk lane, xds.deadLetters.replay.batchSize messages
+ * every xds.deadLetters.replay.intervalMs, so that replaying after an incident doesn't flood the registry.
+ * A dead letter is resolved once the registry acknowledges it; a replay that fails again is recorded by the
+ * connector as another attempt, and the dead letter goes back to pending. So does a replay whose response has
+ * no acknowledgement code, or that got no response within xds.deadLetters.replay.timeoutMs.
+ * <br/><br/>
+ * Messages supported:
+ * <ul>
+ * <li>RecordDeadLetter</li>
+ * <li>ListDeadLetters - responds with DeadLetterList</li>
+ * <li>ReplayDeadLetters - responds with DeadLetterList</li>
+ * </ul>
+ */
+public class DeadLetterActor extends UntypedActor {
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private final MediatorConfig config;
+    private final MediatorSettings.Holder settings;
+    private final int replayBatchSize;
+    private final long replayIntervalMillis;
+    private final long replayTimeoutMillis;
+
+    private DeadLetterStore store;
+    private final Deque<String> replayQueue = new ArrayDeque<>();
+    private final Map<String, Cancellable> replayTimeouts = new HashMap<>();
+
+
+    private static class ReplayNext {
+    }
+
+    private static class ReplayTimedOut {
+        final String id;
+
+        ReplayTimedOut(String id) {
+            this.id = id;
+        }
+    }
+
+
+    public DeadLetterActor(MediatorConfig config) {
+        this.config = config;
+        this.settings = MediatorSettings.holderFor(config);
+
+        String batchSize = config.getProperty("xds.deadLetters.replay.batchSize");
+        this.replayBatchSize = batchSize != null ? Math.max(1, Integer.parseInt(batchSize)) : 20;
+        String interval = config.getProperty("xds.deadLetters.replay.intervalMs");
+        this.replayIntervalMillis = interval != null ? Long.parseLong(interval) : 1000;
+        String timeout = config.getProperty("xds.deadLetters.replay.timeoutMs");
+        this.replayTimeoutMillis = timeout != null ? Long.parseLong(timeout) : 60000;
+    }
+
+    /**
+     * @return whether failed feeds are recorded (xds.deadLetters.enabled)
+     */
+    public static boolean isEnabled(MediatorConfig config) {
+        return "true".equalsIgnoreCase(config.getProperty("xds.deadLetters.enabled"));
+    }
+
+    public static File getFile(MediatorConfig config) {
+        String file = config.getProperty("xds.deadLetters.file");
+        return new File(file != null ? file : "dead-letters.jsonl");
+    }
+
+    @Override
+    public void preStart() throws Exception {
+        if (isEnabled(config)) {
+            store = new DeadLetterStore(getFile(config));
+        }
+    }
+
+    @Override
+    public void postStop() throws Exception {
+        for (Cancellable timeout : replayTimeouts.values()) {
+            timeout.cancel();
+        }
+        if (store != null) {
+            store.close();
+        }
+    }
+
+    private static List<DeadLetter> copies(List<DeadLetter> letters) {
+        List<DeadLetter> copies = new ArrayList<>();
+        for (DeadLetter letter : letters) {
+            copies.add(letter.copy());
+        }
+        return copies;
+    }
+
+    private void record(RecordDeadLetter msg) throws IOException {
+        DeadLetter letter = store.failed(msg.getControlId(), msg.getPayload(), msg.getError());
+        log.warning("Dead letter " + letter.getId() + " (" + letter.getMessageType() + ", attempt " + letter.getAttempts() +
+                "): " + letter.getError());
+    }
+
+    private List<DeadLetter> queueReplay(DeadLetterStore.Filter filter) throws IOException {
+        List<DeadLetter> letters = store.list(filter.status(DeadLetter.Status.PENDING));
+        for (DeadLetter letter : letters) {
+            store.setStatus(letter.getId(), DeadLetter.Status.REPLAYING);
+            replayQueue.add(letter.getId());
+        }
+
+        if (!letters.isEmpty()) {
+            log.info("Replaying " + letters.size() + " dead letter(s)");
+            if (replayQueue.size() == letters.size()) {
+                getSelf().tell(new ReplayNext(), getSelf());
+            }
+        }
+        return copies(letters);
+    }
+
+    private void replayNext() {
+        MediatorSettings current = settings.get();
+        boolean secure = current.isRegistrySecure();
+        int port = secure ? current.getRegistrySecurePort() : current.getRegistryPort();
+
+        for (int i = 0; i < replayBatchSize && !replayQueue.isEmpty(); i++) {
+            DeadLetter letter = store.get(replayQueue.poll());
+            MediatorSocketRequest request = new MediatorSocketRequest(getSelf(), getSelf(), "Replay dead letter", letter.getId(),
+                    current.getRegistryHost(), port, letter.getPayload(), secure);
+            getContext().actorSelection(config.userPathFor("xds-registry-connector")).tell(
+                    new PrioritizedSocketRequest(request, FeedPriority.BULK), getSelf());
+
+            Cancellable previous = replayTimeouts.put(letter.getId(), getContext().system().scheduler().scheduleOnce(
+                    Duration.create(replayTimeoutMillis, TimeUnit.MILLISECONDS), getSelf(),
+                    new ReplayTimedOut(letter.getId()), getContext().dispatcher(), getSelf()));
+            if (previous != null) {
+                previous.cancel();
+            }
+        }
+
+        if (!replayQueue.isEmpty()) {
+            getContext().system().scheduler().scheduleOnce(
+                    Duration.create(replayIntervalMillis, TimeUnit.MILLISECONDS), getSelf(), new ReplayNext(),
+                    getContext().dispatcher(), getSelf());
+        }
+    }
+
+    private void processReplayResponse(MediatorSocketResponse msg) throws IOException {
+        String id = msg.getOriginalRequest().getCorrelationId();
+        Cancellable timeout = replayTimeouts.remove(id);
+        if (timeout != null) {
+            timeout.cancel();
+        }
+
+        String ackCode = HL7Batch.acknowledgementCode(msg.getBody());
+        if ("AA".equals(ackCode) || "CA".equals(ackCode)) {
+            store.setStatus(id, DeadLetter.Status.RESOLVED);
+        } else if (ackCode == null) {
+            log.warning("Replay of dead letter " + id + " got a response without an acknowledgement code, leaving it pending");
+            store.setStatus(id, DeadLetter.Status.PENDING);
+        }
+        // else recorded as another attempt by the connector
+    }
+
+    private void processReplayTimedOut(ReplayTimedOut msg) throws IOException {
+        replayTimeouts.remove(msg.id);
+        DeadLetter letter = store.get(msg.id);
+        if (letter != null && letter.getStatus() == DeadLetter.Status.REPLAYING) {
+            log.warning("Replay of dead letter " + msg.id + " got no response within " + replayTimeoutMillis +
+                    " ms, leaving it pending");
+            store.setStatus(msg.id, DeadLetter.Status.PENDING);
+        }
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (store == null) {
+            // xds.deadLetters.enabled is off, so there is no store
+            if (msg instanceof ListDeadLetters || msg instanceof ReplayDeadLetters) {
+                getSender().tell(new DeadLetterList(new ArrayList<DeadLetter>()), getSelf());
+            } else {
+                unhandled(msg);
+            }
+        } else if (msg instanceof RecordDeadLetter) {
+            record((RecordDeadLetter) msg);
+        } else if (msg instanceof ListDeadLetters) {
+            getSender().tell(new DeadLetterList(copies(store.list(((ListDeadLetters) msg).getFilter()))), getSelf());
+        } else if (msg instanceof ReplayDeadLetters) {
+            getSender().tell(new DeadLetterList(queueReplay(((ReplayDeadLetters) msg).getFilter())), getSelf());
+        } else if (msg instanceof ReplayNext) {
+            replayNext();
+        } else if (msg instanceof MediatorSocketResponse) {
+            processReplayResponse((MediatorSocketResponse) msg);
+        } else if (msg instanceof ReplayTimedOut) {
+            processReplayTimedOut((ReplayTimedOut) msg);
+        } else if (msg instanceof ExceptError || msg instanceof AddOrchestrationToCoreResponse) {
+            // failed replays are recorded by the connector
+        } else {
+            unhandled(msg);
+        }
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.deadletters;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Append-only file of dead letters, one JSON record per line.
+ * <br/><br/>
+ * Every change to a dead letter appends its full record; when the file is opened, the last record for each
+ * control ID wins. A partly written last line, e.g. after a crash, is skipped, and replays interrupted by a
+ * restart are pending again.
+ * <br/><br/>
+ * Not thread safe; owned by the DeadLetterActor.
+ */
+public class DeadLetterStore {
+
+    /**
+     * Selects dead letters. Unset criteria match everything.
+     */
+    public static class Filter {
+        private DeadLetter.Status status;
+        private String messageType;
+        private String errorContains;
+        private Long since;
+        private int limit = Integer.MAX_VALUE;
+
+        public Filter status(DeadLetter.Status status) {
+            this.status = status;
+            return this;
+        }
+
+        public Filter messageType(String messageType) {
+            this.messageType = messageType;
+            return this;
+        }
+
+        public Filter errorContains(String errorContains) {
+            this.errorContains = errorContains;
+            return this;
+        }
+
+        /**
+         * Only dead letters that last failed at or after the given time
+         */
+        public Filter since(Long since) {
+            this.since = since;
+            return this;
+        }
+
+        public Filter limit(int limit) {
+            this.limit = limit;
+            return this;
+        }
+
+        boolean matches(DeadLetter letter) {
+            return (status == null || status == letter.getStatus()) &&
+                    (messageType == null || messageType.equals(letter.getMessageType())) &&
+                    (errorContains == null || (letter.getError() != null && letter.getError().contains(errorContains))) &&
+                    (since == null || letter.getLastFailedAt() >= since);
+        }
+    }
+
+    private final Gson gson = new Gson();
+    private final Map<String, DeadLetter> letters = new LinkedHashMap<>();
+    private final Writer out;
+
+
+    public DeadLetterStore(File file) throws IOException {
+        if (file.exists()) {
+            load(file);
+        } else if (file.getAbsoluteFile().getParentFile() != null) {
+            file.getAbsoluteFile().getParentFile().mkdirs();
+        }
+        out = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8);
+    }
+
+    private void load(File file) throws IOException {
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                try {
+                    DeadLetter letter = gson.fromJson(line, DeadLetter.class);
+                    if (letter != null && letter.getId() != null) {
+                        if (letter.getStatus() == DeadLetter.Status.REPLAYING) {
+                            // the replay was interrupted by a restart
+                            letter.setStatus(DeadLetter.Status.PENDING);
+                        }
+                        // keep the order of first failure
+                        letters.put(letter.getId(), letter);
+                    }
+                } catch (JsonParseException ex) {
+                    // partly written record
+                }
+            }
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+    }
+
+    private void append(DeadLetter letter) throws IOException {
+        out.write(gson.toJson(letter));
+        out.write('\n');
+        out.flush();
+    }
+
+    /**
+     * Records a failed delivery of a message, adding a dead letter or updating the one with the same control ID
+     */
+    public DeadLetter failed(String id, String payload, String error) throws IOException {
+        DeadLetter letter = letters.get(id);
+        if (letter == null) {
+            letter = new DeadLetter(id, DeadLetter.messageType(payload), payload);
+            letters.put(id, letter);
+        }
+        letter.failed(error, System.currentTimeMillis());
+        append(letter);
+        return letter;
+    }
+
+    /**
+     * @return the updated dead letter, or null if there is none with the ID
+     */
+    public DeadLetter setStatus(String id, DeadLetter.Status status) throws IOException {
+        DeadLetter letter = letters.get(id);
+        if (letter != null && letter.getStatus() != status) {
+            letter.setStatus(status);
+            append(letter);
+        }
+        return letter;
+    }
+
+    public DeadLetter get(String id) {
+        return letters.get(id);
+    }
+
+    /**
+     * @return the matching dead letters, in the order they first failed
+     */
+    public List<DeadLetter> list(Filter filter) {
+        List<DeadLetter> result = new ArrayList<>();
+        for (DeadLetter letter : letters.values()) {
+            if (result.size() >= filter.limit) {
+                break;
+            }
+            if (filter.matches(letter)) {
+                result.add(letter);
+            }
+        }
+        return result;
+    }
+
+    public void close() {
+        IOUtils.closeQuietly(out);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.demographics;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openhim.mediator.datatypes.Demographics;
+import org.openhim.mediator.datatypes.Identifier;
+import org.openhim.mediator.engine.MediatorConfig;
+
+/**
+ * Demographics recently fetched from the PDQ supplier, by patient identifier.
+ * <br/><br/>
+ * Entries expire after pdq.cache.ttlMs, or pdq.cache.notFoundTtlMs for patients the supplier didn't know.
+ * Beyond pdq.cache.maxEntries, the least recently used entries are dropped.
+ * <br/><br/>
+ * Thread safe; the feed actors read it directly, so that a patient seen recently is enriched without waiting.
+ */
+public class DemographicsCache {
+    private static final Map<MediatorConfig, DemographicsCache> caches = new WeakHashMap<>();
+
+    private final long ttlNanos;
+    private final long notFoundTtlNanos;
+    private final Map<Identifier, Entry> entries;
+
+
+    private static class Entry {
+        final Demographics demographics;
+        final long expiresAt;
+
+        Entry(Demographics demographics, long expiresAt) {
+            this.demographics = demographics;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+
+    public DemographicsCache(long ttlMillis, long notFoundTtlMillis, final int maxEntries) {
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.notFoundTtlNanos = TimeUnit.MILLISECONDS.toNanos(notFoundTtlMillis);
+        this.entries = new LinkedHashMap<Identifier, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Identifier, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * @return the config's cache
+     */
+    public static DemographicsCache forConfig(MediatorConfig config) {
+        synchronized (caches) {
+            DemographicsCache cache = caches.get(config);
+            if (cache == null) {
+                String ttl = config.getProperty("pdq.cache.ttlMs");
+                String notFoundTtl = config.getProperty("pdq.cache.notFoundTtlMs");
+                String maxEntries = config.getProperty("pdq.cache.maxEntries");
+                cache = new DemographicsCache(ttl != null ? Long.parseLong(ttl) : 3600000,
+                        notFoundTtl != null ? Long.parseLong(notFoundTtl) : 60000,
+                        maxEntries != null ? Integer.parseInt(maxEntries) : 100000);
+                caches.put(config, cache);
+            }
+            return cache;
+        }
+    }
+
+    /**
+     * @return the patient's demographics, Demographics.NONE if the supplier didn't know the patient,
+     * or null if not cached
+     */
+    public synchronized Demographics get(Identifier identifier) {
+        Entry entry = entries.get(identifier);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expiresAt - System.nanoTime() <= 0) {
+            entries.remove(identifier);
+            return null;
+        }
+        return entry.demographics;
+    }
+
+    /**
+     * @param demographics the patient's demographics, or Demographics.NONE if the supplier didn't know the patient
+     */
+    public synchronized void put(Identifier identifier, Demographics demographics) {
+        long ttl = demographics.isEmpty() ? notFoundTtlNanos : ttlNanos;
+        entries.put(identifier, new Entry(demographics, System.nanoTime() + ttl));
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+}
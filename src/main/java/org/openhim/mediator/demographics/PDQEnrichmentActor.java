@@ -0,0 +1,257 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.demographics;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import akka.actor.ActorRef;
+import akka.actor.Props;
+import akka.actor.ReceiveTimeout;
+import akka.actor.UntypedActor;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.parser.GenericParser;
+import ca.uhn.hl7v2.parser.Parser;
+import ca.uhn.hl7v2.util.Terser;
+import org.openhim.mediator.datatypes.Demographics;
+import org.openhim.mediator.datatypes.Identifier;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.AddOrchestrationToCoreResponse;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.MediatorSocketRequest;
+import org.openhim.mediator.engine.messages.MediatorSocketResponse;
+import org.openhim.mediator.messages.LookupDemographics;
+import org.openhim.mediator.messages.LookupDemographicsResponse;
+import scala.concurrent.duration.Duration;
+
+/**
+ * Fetches patient demographics from the PDQ supplier (pdq.manager.host and pdq.manager.port), for the feeds sent
+ * to the XDS registry (pdq.enrich.enabled).
+ * <br/><br/>
+ * Each patient is queried as soon as it is looked up (QBP^Q22), and concurrent lookups for the same patient share
+ * a single query. Results are kept in the DemographicsCache. A lookup that fails or isn't answered within
+ * pdq.timeoutMs gives Demographics.NONE, cached like a patient the supplier doesn't know: the feed is sent without
+ * demographics rather than not at all.
+ * <br/><br/>
+ * Messages supported:
+ * <ul>
+ * <li>LookupDemographics - responds with LookupDemographicsResponse</li>
+ * </ul>
+ */
+public class PDQEnrichmentActor extends UntypedActor {
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private final MediatorConfig config;
+    private final DemographicsCache cache;
+
+    private final Map<Identifier, List<LookupDemographics>> waiting = new HashMap<>();
+
+    /**
+     * Sent by a query when it has completed
+     */
+    private static class QueryCompleted {
+        final Identifier identifier;
+        final Demographics demographics;
+
+        QueryCompleted(Identifier identifier, Demographics demographics) {
+            this.identifier = identifier;
+            this.demographics = demographics;
+        }
+    }
+
+
+    public PDQEnrichmentActor(MediatorConfig config) {
+        this.config = config;
+        this.cache = DemographicsCache.forConfig(config);
+    }
+
+    /**
+     * @return whether feeds are enriched with demographics from the PDQ supplier (pdq.enrich.enabled)
+     */
+    public static boolean isEnabled(MediatorConfig config) {
+        return "true".equalsIgnoreCase(config.getProperty("pdq.enrich.enabled"));
+    }
+
+    private void lookup(LookupDemographics msg) {
+        Demographics cached = cache.get(msg.getIdentifier());
+        if (cached != null) {
+            msg.getRespondTo().tell(new LookupDemographicsResponse(msg, cached), getSelf());
+            return;
+        }
+
+        List<LookupDemographics> lookups = waiting.get(msg.getIdentifier());
+        if (lookups != null) {
+            // a query for the patient is already on its way
+            lookups.add(msg);
+            return;
+        }
+
+        lookups = new ArrayList<>();
+        lookups.add(msg);
+        waiting.put(msg.getIdentifier(), lookups);
+        getContext().actorOf(Props.create(Query.class, config, msg.getIdentifier()));
+    }
+
+    private void processQueryCompleted(QueryCompleted msg) {
+        cache.put(msg.identifier, msg.demographics);
+
+        List<LookupDemographics> lookups = waiting.remove(msg.identifier);
+        if (lookups != null) {
+            for (LookupDemographics lookup : lookups) {
+                lookup.getRespondTo().tell(new LookupDemographicsResponse(lookup, msg.demographics), getSelf());
+            }
+        }
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof LookupDemographics) {
+            lookup((LookupDemographics) msg);
+        } else if (msg instanceof QueryCompleted) {
+            processQueryCompleted((QueryCompleted) msg);
+        } else {
+            unhandled(msg);
+        }
+    }
+
+
+    /**
+     * Builds the PDQ query for a patient identifier (QBP^Q22)
+     */
+    static String constructQBP_Q22(String controlId, Identifier identifier, MediatorConfig config) {
+        String receivingApplication = config.getProperty("pdq.receivingApplication");
+        String receivingFacility = config.getProperty("pdq.receivingFacility");
+
+        StringBuilder qpd = new StringBuilder("QPD|IHE PDQ Query|").append(controlId).append("|@PID.3.1^").append(identifier.getIdentifier());
+        if (identifier.getAssigningAuthority() != null) {
+            if (identifier.getAssigningAuthority().getAssigningAuthority() != null) {
+                qpd.append("~@PID.3.4.1^").append(identifier.getAssigningAuthority().getAssigningAuthority());
+            }
+            if (identifier.getAssigningAuthority().getAssigningAuthorityId() != null) {
+                qpd.append("~@PID.3.4.2^").append(identifier.getAssigningAuthority().getAssigningAuthorityId());
+            }
+            if (identifier.getAssigningAuthority().getAssigningAuthorityIdType() != null) {
+                qpd.append("~@PID.3.4.3^").append(identifier.getAssigningAuthority().getAssigningAuthorityIdType());
+            }
+        }
+
+        return "MSH|^~\\&|" + nullToEmpty(config.getProperty("pix.sendingApplication")) +
+                "|" + nullToEmpty(config.getProperty("pix.sendingFacility")) +
+                "|" + nullToEmpty(receivingApplication != null ? receivingApplication : config.getProperty("pix.receivingApplication")) +
+                "|" + nullToEmpty(receivingFacility != null ? receivingFacility : config.getProperty("pix.receivingFacility")) +
+                "|" + new SimpleDateFormat("yyyyMMddHHmmssZ").format(new Date()) +
+                "||QBP^Q22^QBP_Q21|" + controlId + "|P|2.5\r" +
+                qpd + "\r" +
+                "RCP|I\r";
+    }
+
+    private static String nullToEmpty(String value) {
+        return value != null ? value : "";
+    }
+
+    /**
+     * @return the demographics of the first patient in the PDQ response (RSP^K22), or Demographics.NONE if
+     * the supplier found no patient
+     */
+    static Demographics parseRSP_K22(String response) throws HL7Exception {
+        Parser parser = new GenericParser();
+        Terser terser = new Terser(parser.parse(response));
+
+        if (!"OK".equalsIgnoreCase(terser.get("/.QAK-2"))) {
+            return Demographics.NONE;
+        }
+
+        Demographics demographics = new Demographics(terser.get("/.PID-5-1"), terser.get("/.PID-5-2"),
+                terser.get("/.PID-7-1"), terser.get("/.PID-8"), terser.get("/.PID-13-1"));
+        return demographics.isEmpty() ? Demographics.NONE : demographics;
+    }
+
+
+    /**
+     * Sends one PDQ query and reports the outcome to the parent. Acts as both the request handler and the
+     * response target of the query.
+     */
+    public static class Query extends UntypedActor {
+        LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+        private final MediatorConfig config;
+        private final Identifier identifier;
+        private boolean completed = false;
+
+        public Query(MediatorConfig config, Identifier identifier) {
+            this.config = config;
+            this.identifier = identifier;
+
+            String timeout = config.getProperty("pdq.timeoutMs");
+            getContext().setReceiveTimeout(Duration.create(timeout != null ? Long.parseLong(timeout) : 2000, TimeUnit.MILLISECONDS));
+        }
+
+        @Override
+        public void preStart() throws Exception {
+            String host = config.getProperty("pdq.manager.host");
+            String port = config.getProperty("pdq.manager.port");
+            String controlId = UUID.randomUUID().toString();
+
+            MediatorSocketRequest request;
+            try {
+                request = new MediatorSocketRequest(getSelf(), getSelf(), "PDQ Demographics Query",
+                        controlId, host != null ? host : config.getProperty("pix.manager.host"), Integer.parseInt(port),
+                        constructQBP_Q22(controlId, identifier, config));
+            } catch (NumberFormatException ex) {
+                log.error("Invalid pdq.manager.port: " + port);
+                complete(Demographics.NONE);
+                getContext().stop(getSelf());
+                return;
+            }
+            getContext().actorSelection(config.userPathFor("mllp-connector")).tell(request, getSelf());
+        }
+
+        private void complete(Demographics demographics) {
+            if (!completed) {
+                completed = true;
+                getContext().parent().tell(new QueryCompleted(identifier, demographics), getSelf());
+            }
+        }
+
+        @Override
+        public void onReceive(Object msg) throws Exception {
+            if (msg instanceof MediatorSocketResponse) {
+                try {
+                    complete(parseRSP_K22(((MediatorSocketResponse) msg).getBody()));
+                } catch (HL7Exception ex) {
+                    log.warning("Invalid PDQ response for " + identifier + ": " + ex.getMessage());
+                    complete(Demographics.NONE);
+                }
+            } else if (msg instanceof AddOrchestrationToCoreResponse) {
+                // the connector sends the orchestration after the response
+                if (completed) {
+                    getContext().stop(getSelf());
+                }
+            } else if (msg instanceof ExceptError) {
+                log.warning("PDQ query for " + identifier + " failed: " + ((ExceptError) msg).getError());
+                complete(Demographics.NONE);
+                getContext().stop(getSelf());
+            } else if (msg instanceof ReceiveTimeout) {
+                if (!completed) {
+                    log.warning("No PDQ response for " + identifier);
+                    complete(Demographics.NONE);
+                }
+                getContext().stop(getSelf());
+            } else {
+                unhandled(msg);
+            }
+        }
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.denormalization;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import akka.actor.ActorRef;
+import akka.actor.Props;
+import akka.actor.UntypedActor;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import org.openhim.mediator.DefaultOrchestrator;
+import org.openhim.mediator.datatypes.Identifier;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.AddOrchestrationToCoreResponse;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.MediatorRequestMessage;
+import org.openhim.mediator.messages.MergePatientXds;
+import org.openhim.mediator.messages.RegisterNewPatientResponse;
+import org.openhim.mediator.messages.RegisterNewPatientXds;
+
+/**
+ * Single-flight handling of identical feeds.
+ * <br/><br/>
+ * OpenEMPI retries a notification that timed out, often while the original is still being sent to the registry.
+ * A feed with the same operation and identifiers as a feed in flight is attached to it instead of being sent
+ * again, and gets the same outcome. A feed arriving after the one in flight has completed is sent as normal.
+ * <br/><br/>
+ * The coalescer only keeps track of the feeds in flight. Each flight encodes and sends its feed with its own
+ * PIXRequestActor on the transform dispatcher, so distinct feeds are processed in parallel.
+ * <br/><br/>
+ * Messages supported:
+ * <ul>
+ * <li>RegisterNewPatientXds - responds with RegisterNewPatientResponse</li>
+ * <li>MergePatientXds - responds with RegisterNewPatientResponse</li>
+ * </ul>
+ */
+public class FeedCoalescer extends UntypedActor {
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private final MediatorConfig config;
+
+    private final Map<String, InFlight> inFlight = new HashMap<>();
+
+
+    private static class InFlight {
+        final ActorRef flight;
+        final List<MediatorRequestMessage> requests = new ArrayList<>();
+        final List<AddOrchestrationToCoreResponse> orchestrations = new ArrayList<>();
+
+        InFlight(ActorRef flight) {
+            this.flight = flight;
+        }
+    }
+
+    /**
+     * Sent by a flight for every message it receives about the feed
+     */
+    private static class FlightUpdate {
+        final String fingerprint;
+        final ActorRef flight;
+        final Object msg;
+
+        FlightUpdate(String fingerprint, ActorRef flight, Object msg) {
+            this.fingerprint = fingerprint;
+            this.flight = flight;
+            this.msg = msg;
+        }
+    }
+
+
+    public FeedCoalescer(MediatorConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * @return whether identical concurrent feeds are sent once (xds.feed.coalesce.enabled)
+     */
+    public static boolean isEnabled(MediatorConfig config) {
+        return "true".equalsIgnoreCase(config.getProperty("xds.feed.coalesce.enabled"));
+    }
+
+    private static String fingerprint(List<Identifier> identifiers) {
+        List<String> cxs = new ArrayList<>();
+        for (Identifier identifier : identifiers) {
+            cxs.add(identifier != null ? identifier.toCX() : "");
+        }
+        // the same patient's identifiers may come in any order
+        Collections.sort(cxs);
+        return cxs.toString();
+    }
+
+    static String fingerprint(RegisterNewPatientXds msg) {
+        return "REGISTER" + fingerprint(msg.getPatientIdentifiers());
+    }
+
+    static String fingerprint(MergePatientXds msg) {
+        // pairs are sent by index, so the order of the pairs is kept
+        List<String> pairs = new ArrayList<>();
+        for (int i = 0; i < msg.getPatientIdentifiers().size(); i++) {
+            Identifier patient = msg.getPatientIdentifiers().get(i);
+            Identifier preUpdate = i < msg.getPreUpdateIdentifiers().size() ? msg.getPreUpdateIdentifiers().get(i) : null;
+            pairs.add((patient != null ? patient.toCX() : "") + "<" + (preUpdate != null ? preUpdate.toCX() : ""));
+        }
+        return "MERGE" + pairs;
+    }
+
+    private void send(String fingerprint, MediatorRequestMessage msg) {
+        InFlight existing = inFlight.get(fingerprint);
+        if (existing != null) {
+            log.info("Identical feed already in flight, attaching to it: " + fingerprint);
+            existing.requests.add(msg);
+            for (AddOrchestrationToCoreResponse orchestration : existing.orchestrations) {
+                msg.getRequestHandler().tell(orchestration, getSelf());
+            }
+            return;
+        }
+
+        String mergeAggregatorPath = null;
+        if (MergeFeedAggregator.getMaxBatchSize(config) > 1) {
+            mergeAggregatorPath = config.userPathFor("merge-aggregator");
+        }
+
+        ActorRef flight = getContext().actorOf(Props.create(Flight.class, fingerprint, config, mergeAggregatorPath, msg));
+        InFlight entry = new InFlight(flight);
+        entry.requests.add(msg);
+        inFlight.put(fingerprint, entry);
+    }
+
+    private void processFlightUpdate(FlightUpdate update) {
+        InFlight entry = inFlight.get(update.fingerprint);
+        if (entry == null || !entry.flight.equals(update.flight)) {
+            return;
+        }
+
+        if (update.msg instanceof RegisterNewPatientResponse) {
+            RegisterNewPatientResponse response = (RegisterNewPatientResponse) update.msg;
+            for (MediatorRequestMessage request : entry.requests) {
+                request.getRespondTo().tell(new RegisterNewPatientResponse(request, response.isSuccessful(), response.getErr(),
+                        response.isQueued()), getSelf());
+            }
+            complete(update.fingerprint, entry);
+        } else if (update.msg instanceof ExceptError) {
+            for (MediatorRequestMessage request : entry.requests) {
+                request.getRequestHandler().tell(update.msg, getSelf());
+            }
+            complete(update.fingerprint, entry);
+        } else if (update.msg instanceof AddOrchestrationToCoreResponse) {
+            entry.orchestrations.add((AddOrchestrationToCoreResponse) update.msg);
+            for (MediatorRequestMessage request : entry.requests) {
+                request.getRequestHandler().tell(update.msg, getSelf());
+            }
+        }
+    }
+
+    private void complete(String fingerprint, InFlight entry) {
+        if (entry.requests.size() > 1) {
+            log.info("Sent " + entry.requests.size() + " identical feeds to the XDS registry once");
+        }
+        inFlight.remove(fingerprint);
+        getContext().stop(entry.flight);
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof RegisterNewPatientXds) {
+            send(fingerprint((RegisterNewPatientXds) msg), (RegisterNewPatientXds) msg);
+        } else if (msg instanceof MergePatientXds) {
+            send(fingerprint((MergePatientXds) msg), (MergePatientXds) msg);
+        } else if (msg instanceof FlightUpdate) {
+            processFlightUpdate((FlightUpdate) msg);
+        } else {
+            unhandled(msg);
+        }
+    }
+
+
+    /**
+     * Sends one feed on behalf of all identical requests. Acts as both the request handler and the response
+     * target of the request, and passes everything it receives to the coalescer, which owns the attached requests.
+     */
+    public static class Flight extends UntypedActor {
+        private final String fingerprint;
+
+        /**
+         * @param mergeAggregatorPath where merges are sent to be batched, or null to send them directly
+         */
+        public Flight(String fingerprint, MediatorConfig config, String mergeAggregatorPath, MediatorRequestMessage msg) {
+            this.fingerprint = fingerprint;
+
+            if (msg instanceof MergePatientXds) {
+                MergePatientXds merge = (MergePatientXds) msg;
+                MergePatientXds request = new MergePatientXds(getSelf(), getSelf(),
+                        merge.getPatientIdentifiers(), merge.getPreUpdateIdentifiers(), merge.getTraceId(), merge.getPriority());
+                if (mergeAggregatorPath != null) {
+                    // collect with concurrent merges into a single ADT_A40
+                    getContext().actorSelection(mergeAggregatorPath).tell(request, getSelf());
+                } else {
+                    pixRequestActor(config).tell(request, getSelf());
+                }
+            } else {
+                RegisterNewPatientXds register = (RegisterNewPatientXds) msg;
+                pixRequestActor(config).tell(new RegisterNewPatientXds(getSelf(), getSelf(), register.getPatientIdentifiers(),
+                        register.getTraceId(), register.getPriority()), getSelf());
+            }
+        }
+
+        private ActorRef pixRequestActor(MediatorConfig config) {
+            return getContext().actorOf(
+                    Props.create(PIXRequestActor.class, config).withDispatcher(DefaultOrchestrator.TRANSFORM_DISPATCHER), "pix-denormalization");
+        }
+
+        @Override
+        public void onReceive(Object msg) throws Exception {
+            if (msg instanceof RegisterNewPatientResponse || msg instanceof ExceptError
+                    || msg instanceof AddOrchestrationToCoreResponse) {
+                getContext().parent().tell(new FlightUpdate(fingerprint, getSelf(), msg), getSelf());
+            } else {
+                unhandled(msg);
+            }
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.denormalization;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import akka.actor.ActorRef;
+import akka.actor.Props;
+import akka.actor.UntypedActor;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import org.openhim.mediator.DefaultOrchestrator;
+import org.openhim.mediator.datatypes.Identifier;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.AddOrchestrationToCoreResponse;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.messages.FeedPriority;
+import org.openhim.mediator.messages.MergePatientXds;
+import org.openhim.mediator.messages.RegisterNewPatientResponse;
+import scala.concurrent.duration.Duration;
+
+/**
+ * Collects concurrent patient merges into a single ADT_A40 with one PATIENT group per merge.
+ * <br/><br/>
+ * Merges are held for at most xds.merge.batch.maxDelayMs, or until xds.merge.batch.maxSize merges have
+ * been collected, and are then sent to the registry as one message. The registry outcome is fanned back
+ * out to every original requester. This cuts registry round trips during merge storms. Each batch is encoded
+ * and sent by its own PIXRequestActor on the transform dispatcher, so batches don't wait on each other.
+ * <br/><br/>
+ * Messages supported:
+ * <ul>
+ * <li>MergePatientXds - responds with RegisterNewPatientResponse once the batch containing the merge has been acknowledged</li>
+ * </ul>
+ */
+public class MergeFeedAggregator extends UntypedActor {
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private final MediatorConfig config;
+    private final int maxSize;
+    private final long maxDelayMillis;
+
+    private List<MergePatientXds> pending = new ArrayList<>();
+    private long generation = 0;
+
+
+    public MergeFeedAggregator(MediatorConfig config) {
+        this.config = config;
+        this.maxSize = getMaxBatchSize(config);
+
+        String maxDelay = config.getProperty("xds.merge.batch.maxDelayMs");
+        this.maxDelayMillis = maxDelay != null ? Long.parseLong(maxDelay) : 20;
+    }
+
+    /**
+     * @return the maximum number of merges per ADT_A40 (xds.merge.batch.maxSize). A value of 1 disables batching.
+     */
+    public static int getMaxBatchSize(MediatorConfig config) {
+        String maxSize = config.getProperty("xds.merge.batch.maxSize");
+        return maxSize != null ? Math.max(1, Integer.parseInt(maxSize)) : 1;
+    }
+
+
+    private static class FlushBatch {
+        final long generation;
+
+        FlushBatch(long generation) {
+            this.generation = generation;
+        }
+    }
+
+    private void addMerge(MergePatientXds msg) {
+        pending.add(msg);
+
+        if (pending.size() >= maxSize) {
+            flush();
+        } else if (pending.size() == 1) {
+            getContext().system().scheduler().scheduleOnce(
+                    Duration.create(maxDelayMillis, TimeUnit.MILLISECONDS), getSelf(), new FlushBatch(generation),
+                    getContext().dispatcher(), getSelf());
+        }
+    }
+
+    private void flush() {
+        generation++;
+        if (pending.isEmpty()) {
+            return;
+        }
+
+        List<MergePatientXds> batch = pending;
+        pending = new ArrayList<>();
+
+        log.info("Sending " + batch.size() + " merge(s) to the XDS registry in one ADT_A40");
+        getContext().actorOf(Props.create(Batch.class, config, batch));
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof MergePatientXds) {
+            addMerge((MergePatientXds) msg);
+        } else if (msg instanceof FlushBatch) {
+            if (((FlushBatch) msg).generation == generation) {
+                flush();
+            }
+        } else {
+            unhandled(msg);
+        }
+    }
+
+
+    /**
+     * Sends one combined merge and fans the outcome out to the original requesters.
+     * Acts as both the request handler and the response target of the combined request.
+     */
+    public static class Batch extends UntypedActor {
+        private final List<MergePatientXds> merges;
+
+        public Batch(MediatorConfig config, List<MergePatientXds> merges) {
+            this.merges = merges;
+
+            List<Identifier> patientIdentifiers = new ArrayList<>();
+            List<Identifier> preUpdateIdentifiers = new ArrayList<>();
+            // realtime if any of the merges is
+            FeedPriority priority = FeedPriority.BULK;
+            for (MergePatientXds merge : merges) {
+                if (merge.getPriority() != FeedPriority.BULK) {
+                    priority = FeedPriority.REALTIME;
+                }
+                for (int i = 0; i < merge.getPatientIdentifiers().size(); i++) {
+                    patientIdentifiers.add(merge.getPatientIdentifiers().get(i));
+                    preUpdateIdentifiers.add(i < merge.getPreUpdateIdentifiers().size() ? merge.getPreUpdateIdentifiers().get(i) : null);
+                }
+            }
+
+            // a batch of several merges isn't part of any one trace
+            String traceId = merges.size() == 1 ? merges.get(0).getTraceId() : null;
+            MergePatientXds combined = new MergePatientXds(getSelf(), getSelf(), patientIdentifiers, preUpdateIdentifiers,
+                    traceId, priority);
+            ActorRef pixRequestActor = getContext().actorOf(
+                    Props.create(PIXRequestActor.class, config).withDispatcher(DefaultOrchestrator.TRANSFORM_DISPATCHER), "pix-denormalization");
+            pixRequestActor.tell(combined, getSelf());
+        }
+
+        @Override
+        public void onReceive(Object msg) throws Exception {
+            if (msg instanceof RegisterNewPatientResponse) {
+                RegisterNewPatientResponse response = (RegisterNewPatientResponse) msg;
+                for (MergePatientXds merge : merges) {
+                    merge.getRespondTo().tell(new RegisterNewPatientResponse(merge, response.isSuccessful(), response.getErr(),
+                            response.isQueued()), getSelf());
+                }
+                getContext().stop(getSelf());
+            } else if (msg instanceof ExceptError) {
+                for (MergePatientXds merge : merges) {
+                    merge.getRequestHandler().tell(msg, getSelf());
+                }
+                getContext().stop(getSelf());
+            } else if (msg instanceof AddOrchestrationToCoreResponse) {
+                for (MergePatientXds merge : merges) {
+                    merge.getRequestHandler().tell(msg, getSelf());
+                }
+            } else {
+                unhandled(msg);
+            }
+        }
+    }
+}
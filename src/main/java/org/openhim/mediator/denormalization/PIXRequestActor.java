@@ -6,49 +6,61 @@
 
 package org.openhim.mediator.denormalization;
 
-import java.text.SimpleDateFormat;
+import java.net.SocketTimeoutException;
 import java.util.Collections;
-import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import akka.actor.ActorRef;
 import akka.actor.ActorSelection;
+import akka.actor.Cancellable;
 import akka.actor.UntypedActor;
 import akka.event.Logging;
 import akka.event.LoggingAdapter;
 import ca.uhn.hl7v2.HL7Exception;
-import ca.uhn.hl7v2.model.Message;
 import ca.uhn.hl7v2.model.v25.message.ACK;
-import ca.uhn.hl7v2.model.v25.message.ADT_A01;
-import ca.uhn.hl7v2.model.v25.message.ADT_A39;
 import ca.uhn.hl7v2.model.v25.message.QBP_Q21;
 import ca.uhn.hl7v2.model.v25.message.RSP_K23;
-import ca.uhn.hl7v2.model.v25.segment.MSH;
-import ca.uhn.hl7v2.parser.GenericParser;
-import ca.uhn.hl7v2.parser.Parser;
-import ca.uhn.hl7v2.util.Terser;
+import org.openhim.mediator.DefaultOrchestrator;
+import org.openhim.mediator.MediatorSettings;
+import org.openhim.mediator.connectors.HL7Batch;
 import org.openhim.mediator.datatypes.AssigningAuthority;
+import org.openhim.mediator.datatypes.Demographics;
 import org.openhim.mediator.datatypes.Identifier;
+import org.openhim.mediator.demographics.DemographicsCache;
+import org.openhim.mediator.demographics.PDQEnrichmentActor;
 import org.openhim.mediator.engine.MediatorConfig;
 import org.openhim.mediator.engine.messages.ExceptError;
 import org.openhim.mediator.engine.messages.MediatorRequestMessage;
 import org.openhim.mediator.engine.messages.MediatorSocketRequest;
 import org.openhim.mediator.engine.messages.MediatorSocketResponse;
 import org.openhim.mediator.messages.ATNAAudit;
+import org.openhim.mediator.messages.LookupDemographics;
+import org.openhim.mediator.messages.LookupDemographicsResponse;
 import org.openhim.mediator.messages.RegisterNewPatient;
 import org.openhim.mediator.messages.RegisterNewPatientXds;
 import org.openhim.mediator.messages.MergePatientXds;
+import org.openhim.mediator.messages.PrioritizedSocketRequest;
 import org.openhim.mediator.messages.RegisterNewPatientResponse;
 import org.openhim.mediator.messages.ResolvePatientIdentifier;
 import org.openhim.mediator.messages.ResolvePatientIdentifierResponse;
+import org.openhim.mediator.tracing.FlightEvents;
+import org.openhim.mediator.tracing.Tracer;
+import scala.concurrent.duration.Duration;
 
 /**
  * Actor for processing PIX messages.
  * <br/><br/>
  * Supports identifier cross-referencing requests (QBP_Q21) and Patient Identity Feed (ADT_A04).
  * <br/><br/>
+ * With pdq.enrich.enabled, ADT_A04 feeds carry the patient's demographics, fetched by the pdq-enricher actor
+ * unless they are in the DemographicsCache. A feed whose demographics haven't arrived within pdq.timeoutMs is
+ * sent without them.
+ * <br/><br/>
  * Messages supported:
  * <ul>
  * <li>ResolvePatientIdentifier - responds with ResolvePatientIdentifierResponse. The identifier returned will be null if the id could not be resolved.</li>
@@ -58,107 +70,221 @@ import org.openhim.mediator.messages.ResolvePatientIdentifierResponse;
 public class PIXRequestActor extends UntypedActor {
     LoggingAdapter log = Logging.getLogger(getContext().system(), this);
 
+    private static final Map<MediatorConfig, AtomicInteger> pendingFeeds = new WeakHashMap<>();
+
     private MediatorConfig config;
+    private final MediatorSettings.Holder settings;
 
-    private Map<String, MediatorRequestMessage> originalRequests = new HashMap<>();
+    private Map<String, TrackedFeed> originalRequests = new HashMap<>();
+    private final Map<String, AwaitingDemographics> awaitingDemographics = new HashMap<>();
     private ActorRef requestHandler;
 
-    private static final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMddHHmmssZ");
-    private static final SimpleDateFormat dateFormatDay = new SimpleDateFormat("yyyyMMdd");
+    private final XdsFeedMessageBuilder messageBuilder;
+    private final Tracer tracer;
+    private final DemographicsCache demographicsCache;
+    private final AtomicInteger pending;
+    private final long feedTimeoutMillis;
 
 
-    public PIXRequestActor(MediatorConfig config) {
-        this.config = config;
+    private static class AwaitingDemographics {
+        final RegisterNewPatientXds feed;
+        final Cancellable timeout;
+
+        AwaitingDemographics(RegisterNewPatientXds feed, Cancellable timeout) {
+            this.feed = feed;
+            this.timeout = timeout;
+        }
     }
 
+    private static class DemographicsTimedOut {
+        final String lookupId;
 
-    private void constructBasicMSHSegment(String correlationId, Terser t) throws HL7Exception {
-        MSH msh = (MSH) t.getSegment("MSH");
-        t.set("MSH-1", "|");
-        t.set("MSH-2", "^~\\&");
-        t.set("MSH-3-1", config.getProperty("pix.sendingApplication"));
-        t.set("MSH-4-1", config.getProperty("pix.sendingFacility"));
-        t.set("MSH-5-1", config.getProperty("pix.receivingApplication"));
-        t.set("MSH-6-1", config.getProperty("pix.receivingFacility"));
-        msh.getDateTimeOfMessage().getTime().setValue(dateFormat.format(new Date()));
-        t.set("MSH-10", correlationId);
-        t.set("MSH-11-1", "P");
-        t.set("MSH-12-1-1", "2.3.1");
+        DemographicsTimedOut(String lookupId) {
+            this.lookupId = lookupId;
+        }
     }
 
-    public String constructADT_A40(String correlationId, MergePatientXds msg) throws HL7Exception {
+    private static class TrackedFeed {
+        final MediatorRequestMessage request;
+        final Cancellable expiry;
 
-        ADT_A39 adt_a39 = new ADT_A39();
-        Terser t = new Terser(adt_a39);
+        TrackedFeed(MediatorRequestMessage request, Cancellable expiry) {
+            this.request = request;
+            this.expiry = expiry;
+        }
+    }
 
-        constructBasicMSHSegment(correlationId, t);
+    private static class FeedExpired {
+        final String correlationId;
 
-        t.set("MSH-9-1", "ADT");
-        t.set("MSH-9-2", "A40");
-        t.set("MSH-9-3", "ADT_A39");
+        FeedExpired(String correlationId) {
+            this.correlationId = correlationId;
+        }
+    }
 
-        t.set("EVN-2", dateFormatDay.format(new Date()));
+    public PIXRequestActor(MediatorConfig config) {
+        this.config = config;
+        this.settings = MediatorSettings.holderFor(config);
+        this.messageBuilder = new XdsFeedMessageBuilder(config);
+        this.tracer = Tracer.forConfig(config);
+        this.demographicsCache = DemographicsCache.forConfig(config);
+        this.pending = pendingCounter(config);
+        this.feedTimeoutMillis = DefaultOrchestrator.getFeedTimeoutMillis(config);
+    }
 
-        for (Identifier id : msg.getPatientIdentifiers()) {
-            t.set("/PATIENT(0)/PID-3-1", id.getIdentifier());
-            t.set("/PATIENT(0)/PID-3-4", id.getAssigningAuthority().getAssigningAuthority());
-            t.set("/PATIENT(0)/PID-3-4-2", id.getAssigningAuthority().getAssigningAuthorityId());
-            t.set("/PATIENT(0)/PID-3-4-3", id.getAssigningAuthority().getAssigningAuthorityIdType());
+    private static AtomicInteger pendingCounter(MediatorConfig config) {
+        synchronized (pendingFeeds) {
+            AtomicInteger counter = pendingFeeds.get(config);
+            if (counter == null) {
+                counter = new AtomicInteger();
+                pendingFeeds.put(config, counter);
+            }
+            return counter;
         }
+    }
+
+    /**
+     * @return the feeds sent to the registry and waiting for a response, over all PIX request actors of the config
+     */
+    public static int getPendingFeeds(MediatorConfig config) {
+        return pendingCounter(config).get();
+    }
 
-        for(Identifier id : msg.getPreUpdateIdentifiers()) {
-            t.set("/PATIENT(0)/MRG-1-1", id.getIdentifier());
-            t.set("/PATIENT(0)/MRG-1-4", id.getAssigningAuthority().getAssigningAuthority());
-            t.set("/PATIENT(0)/MRG-1-4-2", id.getAssigningAuthority().getAssigningAuthorityId());
-            t.set("/PATIENT(0)/MRG-1-4-3", id.getAssigningAuthority().getAssigningAuthorityIdType());
+    @Override
+    public void postStop() throws Exception {
+        pending.addAndGet(-originalRequests.size());
+        for (TrackedFeed tracked : originalRequests.values()) {
+            tracked.expiry.cancel();
         }
-        
-        Parser p = new GenericParser();
+        for (AwaitingDemographics awaiting : awaitingDemographics.values()) {
+            awaiting.timeout.cancel();
+        }
+    }
 
-        return p.encode(adt_a39);
+    /**
+     * Waits for the registry's response to the feed for up to xds.feed.timeoutMs. Failed exchanges are reported
+     * to the feed's request handler without the correlation ID, so they are only cleaned up by then. The expiry
+     * is cancelled once the feed is answered, so that it doesn't hold on to the request.
+     */
+    private void track(String correlationId, MediatorRequestMessage msg) {
+        Cancellable expiry = getContext().system().scheduler().scheduleOnce(
+                Duration.create(feedTimeoutMillis, TimeUnit.MILLISECONDS), getSelf(), new FeedExpired(correlationId),
+                getContext().dispatcher(), getSelf());
+        TrackedFeed previous = originalRequests.put(correlationId, new TrackedFeed(msg, expiry));
+        if (previous == null) {
+            pending.incrementAndGet();
+        } else {
+            previous.expiry.cancel();
+        }
     }
 
+    private void processFeedExpired(FeedExpired msg) {
+        MediatorRequestMessage request = untrack(msg.correlationId);
+        if (request == null) {
+            return;
+        }
+        log.warning("No response from the XDS registry for feed " + msg.correlationId);
+        request.getRequestHandler().tell(new ExceptError(new SocketTimeoutException(
+                "No response from the XDS registry for feed " + msg.correlationId)), getSelf());
+    }
 
-    public String constructADT_A04(String correlationId, RegisterNewPatientXds msg) throws HL7Exception {
+    private MediatorRequestMessage untrack(String correlationId) {
+        TrackedFeed tracked = originalRequests.remove(correlationId);
+        if (tracked == null) {
+            return null;
+        }
+        tracked.expiry.cancel();
+        pending.decrementAndGet();
+        return tracked.request;
+    }
 
-        ADT_A01 adt_a04 = new ADT_A01();
-        Terser t = new Terser(adt_a04);
+    /**
+     * @return a new control ID for the feed message, linked to the request's trace. Feeds may share a trace,
+     * e.g. those of a bulk request or with the same traceparent header, but each needs an ID of its own to be
+     * matched to its acknowledgement.
+     */
+    private String correlationId(String traceId) {
+        String correlationId = UUID.randomUUID().toString();
+        tracer.link(traceId, correlationId);
+        return correlationId;
+    }
 
-        constructBasicMSHSegment(correlationId, t);
 
-        t.set("MSH-9-1", "ADT");
-        t.set("MSH-9-2", "A04");
-        t.set("MSH-9-3", "ADT_A01");
+    public String constructADT_A40(String correlationId, MergePatientXds msg) throws HL7Exception {
+        return messageBuilder.constructADT_A40(correlationId, msg);
+    }
 
-        t.set("EVN-2", dateFormatDay.format(new Date()));
+    public String constructADT_A04(String correlationId, RegisterNewPatientXds msg) throws HL7Exception {
+        return messageBuilder.constructADT_A04(correlationId, msg);
+    }
 
-        for (Identifier id : msg.getPatientIdentifiers()) {
-            t.set("PID-3-1", id.getIdentifier());
-            t.set("PID-3-4", id.getAssigningAuthority().getAssigningAuthority());
-            t.set("PID-3-4-2", id.getAssigningAuthority().getAssigningAuthorityId());
-            t.set("PID-3-4-3", id.getAssigningAuthority().getAssigningAuthorityIdType());
+    /**
+     * With pdq.enrich.enabled, the feed waits for the patient's demographics, unless they are cached
+     */
+    private void enrichAndSyncXDSRegistryPixFeed(RegisterNewPatientXds msg) {
+        if (!PDQEnrichmentActor.isEnabled(config) || msg.getPatientIdentifiers().isEmpty()) {
+            syncXDSRegistryPixFeed(msg, null);
+            return;
         }
 
-        t.set("PV1-2", "O");
-        
-        Parser p = new GenericParser();
+        Identifier patient = msg.getPatientIdentifiers().get(0);
+        Demographics cached = demographicsCache.get(patient);
+        if (cached != null) {
+            syncXDSRegistryPixFeed(msg, cached);
+            return;
+        }
 
-        return p.encode(adt_a04);
+        String lookupId = UUID.randomUUID().toString();
+        String timeout = config.getProperty("pdq.timeoutMs");
+        Cancellable timer = getContext().system().scheduler().scheduleOnce(
+                Duration.create(timeout != null ? Long.parseLong(timeout) : 2000, TimeUnit.MILLISECONDS), getSelf(),
+                new DemographicsTimedOut(lookupId), getContext().dispatcher(), getSelf());
+        awaitingDemographics.put(lookupId, new AwaitingDemographics(msg, timer));
+        getContext().actorSelection(config.userPathFor("pdq-enricher")).tell(
+                new LookupDemographics(getSelf(), getSelf(), lookupId, patient), getSelf());
     }
 
-    private void syncXDSRegistryPixFeed(RegisterNewPatientXds msg) {
-        try {
-            String correlationId = UUID.randomUUID().toString();
-            String pixRequest = constructADT_A04(correlationId, msg);
-            originalRequests.put(correlationId, msg);
+    private void processLookupDemographicsResponse(LookupDemographicsResponse msg) {
+        AwaitingDemographics awaiting = awaitingDemographics.remove(msg.getOriginalRequest().getCorrelationId());
+        if (awaiting != null) {
+            awaiting.timeout.cancel();
+            syncXDSRegistryPixFeed(awaiting.feed, msg.getDemographics());
+        }
+    }
 
-            int port = Integer.parseInt(config.getProperty("xds.registry.port"));
+    private void processDemographicsTimedOut(DemographicsTimedOut msg) {
+        AwaitingDemographics awaiting = awaitingDemographics.remove(msg.lookupId);
+        if (awaiting != null) {
+            log.warning("No demographics for feed within pdq.timeoutMs, sending it without them");
+            syncXDSRegistryPixFeed(awaiting.feed, null);
+        }
+    }
 
-            ActorSelection connector = getContext().actorSelection(config.userPathFor("mllp-connector"));
-            MediatorSocketRequest request = new MediatorSocketRequest(
-                    msg.getRequestHandler(), getSelf(), "Sync XDS Registry PixFeed", correlationId,
-                    config.getProperty("xds.registry.host"), port, pixRequest);
-            connector.tell(request, getSelf());
+    /**
+     * @return a request to the registry, over TLS to xds.registry.securePort if xds.registry.secure is set
+     */
+    private MediatorSocketRequest registryRequest(ActorRef requestHandler, String correlationId, String body) {
+        MediatorSettings current = settings.get();
+        boolean secure = current.isRegistrySecure();
+        int port = secure ? current.getRegistrySecurePort() : current.getRegistryPort();
+
+        return new MediatorSocketRequest(requestHandler, getSelf(), "Sync XDS Registry PixFeed", correlationId,
+                current.getRegistryHost(), port, body, secure);
+    }
+
+    private void syncXDSRegistryPixFeed(RegisterNewPatientXds msg, Demographics demographics) {
+        try {
+            String correlationId = correlationId(msg.getTraceId());
+            long start = Tracer.nowMicros();
+            Object flightEvent = FlightEvents.begin(FlightEvents.Stage.ENCODE);
+            String pixRequest = messageBuilder.constructADT_A04(correlationId, msg, demographics);
+            FlightEvents.end(flightEvent, correlationId, "ADT^A04", null);
+            tracer.span(correlationId, "encode ADT^A04", start, Tracer.nowMicros(), "controlId", correlationId);
+            track(correlationId, msg);
+
+            ActorSelection connector = getContext().actorSelection(config.userPathFor("xds-registry-connector"));
+            connector.tell(new PrioritizedSocketRequest(registryRequest(msg.getRequestHandler(), correlationId, pixRequest),
+                    msg.getPriority()), getSelf());
 
         } catch (HL7Exception ex) {
             msg.getRequestHandler().tell(new ExceptError(ex), getSelf());
@@ -167,18 +293,18 @@ public class PIXRequestActor extends UntypedActor {
 
     private void syncXDSRegistryMergeFeed(MergePatientXds msg) {
         try {
-            String correlationId = UUID.randomUUID().toString();
+            String correlationId = correlationId(msg.getTraceId());
+            long start = Tracer.nowMicros();
+            Object flightEvent = FlightEvents.begin(FlightEvents.Stage.ENCODE);
             String pixRequest = constructADT_A40(correlationId, msg);
+            FlightEvents.end(flightEvent, correlationId, "ADT^A40", null);
+            tracer.span(correlationId, "encode ADT^A40", start, Tracer.nowMicros(), "controlId", correlationId);
 
-            originalRequests.put(correlationId, msg);
-
-            int port = Integer.parseInt(config.getProperty("xds.registry.port"));
+            track(correlationId, msg);
 
-            ActorSelection connector = getContext().actorSelection(config.userPathFor("mllp-connector"));
-            MediatorSocketRequest request = new MediatorSocketRequest(
-                    msg.getRequestHandler(), getSelf(), "Sync XDS Registry PixFeed", correlationId,
-                    config.getProperty("xds.registry.host"), port, pixRequest);
-            connector.tell(request, getSelf());
+            ActorSelection connector = getContext().actorSelection(config.userPathFor("xds-registry-connector"));
+            connector.tell(new PrioritizedSocketRequest(registryRequest(msg.getRequestHandler(), correlationId, pixRequest),
+                    msg.getPriority()), getSelf());
 
         } catch (HL7Exception ex) {
             msg.getRequestHandler().tell(new ExceptError(ex), getSelf());
@@ -189,8 +315,9 @@ public class PIXRequestActor extends UntypedActor {
         String err = null;
         log.info(msg.getBody());
         try {
-            err = parseACKError(msg.getBody());
-            originalRequest.getRespondTo().tell(new RegisterNewPatientResponse(originalRequest, err == null, err), getSelf());
+            err = parseACKError(msg, "ADT^A04");
+            originalRequest.getRespondTo().tell(new RegisterNewPatientResponse(originalRequest, err == null, err,
+                    isQueued(msg, err)), getSelf());
         } catch (HL7Exception ex) {
             msg.getOriginalRequest().getRequestHandler().tell(new ExceptError(ex), getSelf());
         } finally {
@@ -202,8 +329,9 @@ public class PIXRequestActor extends UntypedActor {
         String err = null;
         log.info(msg.getBody());
         try {
-            err = parseACKError(msg.getBody());
-            originalRequest.getRespondTo().tell(new RegisterNewPatientResponse(originalRequest, err == null, err), getSelf());
+            err = parseACKError(msg, "ADT^A40");
+            originalRequest.getRespondTo().tell(new RegisterNewPatientResponse(originalRequest, err == null, err,
+                    isQueued(msg, err)), getSelf());
         } catch (HL7Exception ex) {
             msg.getOriginalRequest().getRequestHandler().tell(new ExceptError(ex), getSelf());
         } finally {
@@ -211,47 +339,32 @@ public class PIXRequestActor extends UntypedActor {
         }
     }
 
-    private String parseACKError(String response) throws HL7Exception {
-        Parser parser = new GenericParser();
-        Object parsedMsg = parser.parse(response);
-
-        //Terser terser = new Terser(parsedMsg);
-        Message modelmsg = (Message)parsedMsg;
-        Terser terser = new Terser(modelmsg);
-
-        /*if (!(parsedMsg instanceof ACK)) {
-            return "Message response received in unsupported format: " + parsedMsg.getClass();
-        }*/
-        if (!("ACK".equalsIgnoreCase(terser.get("/.MSH-9-1")))){
-            return "Message response received in unsupported format: " + modelmsg.getClass();
-        }
-
-        /*ACK msg = (ACK)parsedMsg;
-        if (msg.getMSA()!=null && msg.getMSA().getAcknowledgmentCode()!=null &&
-                "AA".equalsIgnoreCase(msg.getMSA().getAcknowledgmentCode().getValue())) {
-            return null;
-        }*/
+    /**
+     * @return whether the feed was only committed for sending later (MSA-1 CA), e.g. spilled to disk
+     */
+    private static boolean isQueued(MediatorSocketResponse response, String err) {
+        return err == null && "CA".equalsIgnoreCase(HL7Batch.acknowledgementCode(response.getBody()));
+    }
 
-        if (terser.get("/.MSA-1") != null && "AA".equalsIgnoreCase(terser.get("/.MSA-1"))){
-            return null;
+    private String parseACKError(MediatorSocketResponse response, String operation) throws HL7Exception {
+        String correlationId = response.getOriginalRequest().getCorrelationId();
+        long start = Tracer.nowMicros();
+        Object flightEvent = FlightEvents.begin(FlightEvents.Stage.ACK_PARSE);
+        String err;
+        try {
+            err = messageBuilder.parseACKError(response.getBody());
+        } catch (HL7Exception ex) {
+            FlightEvents.end(flightEvent, correlationId, operation, "invalid");
+            throw ex;
         }
-
-        String err = "Failed to register new patient:\n";
-
-        /*if (msg.getERR()!=null && msg.getERR().getErr3_HL7ErrorCode()!=null) {
-            if (msg.getERR().getErr3_HL7ErrorCode().getCwe1_Identifier()!=null) {
-                err += msg.getERR().getErr3_HL7ErrorCode().getCwe1_Identifier().getValue() + "\n";
-            }
-            if (msg.getERR().getErr3_HL7ErrorCode().getCwe2_Text()!=null) {
-                err += msg.getERR().getErr3_HL7ErrorCode().getCwe2_Text().getValue() + "\n";
-            }
-        }*/
-
+        FlightEvents.end(flightEvent, correlationId, operation, err == null ? "accepted" : "rejected");
+        tracer.span(correlationId, "parse ACK", start, Tracer.nowMicros(),
+                "outcome", err == null ? "accepted" : "rejected");
         return err;
     }
 
     private void processResponse(MediatorSocketResponse msg) {
-        MediatorRequestMessage originalRequest = originalRequests.remove(msg.getOriginalRequest().getCorrelationId());
+        MediatorRequestMessage originalRequest = untrack(msg.getOriginalRequest().getCorrelationId());
 
         if (originalRequest instanceof RegisterNewPatientXds) {
             log.info("Sync XDS PIX Feed Success.");
@@ -262,7 +375,8 @@ public class PIXRequestActor extends UntypedActor {
             log.info(msg.getBody());
             processSyncXdsADT_A40Response(msg, (MergePatientXds) originalRequest);
         } else {
-
+            // the feed already failed or expired
+            log.warning("Ignoring registry response for unknown feed " + msg.getOriginalRequest().getCorrelationId());
         }
     }
 
@@ -272,10 +386,16 @@ public class PIXRequestActor extends UntypedActor {
             processResponse((MediatorSocketResponse) msg);
         } else if (msg instanceof RegisterNewPatientXds) {
             log.info("Received Sync Pix Feed to XDS Registry to register new patient");
-            syncXDSRegistryPixFeed((RegisterNewPatientXds) msg);
+            enrichAndSyncXDSRegistryPixFeed((RegisterNewPatientXds) msg);
         } else if (msg instanceof MergePatientXds) {
             log.info("Received Sync Pix Feed to XDS Registry to merge existing patients");
             syncXDSRegistryMergeFeed((MergePatientXds) msg);
+        } else if (msg instanceof LookupDemographicsResponse) {
+            processLookupDemographicsResponse((LookupDemographicsResponse) msg);
+        } else if (msg instanceof DemographicsTimedOut) {
+            processDemographicsTimedOut((DemographicsTimedOut) msg);
+        } else if (msg instanceof FeedExpired) {
+            processFeedExpired((FeedExpired) msg);
         } else {
             unhandled(msg);
         }
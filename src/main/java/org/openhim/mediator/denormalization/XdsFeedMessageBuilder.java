@@ -0,0 +1,196 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.denormalization;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+
+import ca.uhn.hl7v2.HL7Exception;
+import ca.uhn.hl7v2.model.Message;
+import ca.uhn.hl7v2.model.v25.message.ADT_A01;
+import ca.uhn.hl7v2.model.v25.message.ADT_A39;
+import ca.uhn.hl7v2.model.v25.segment.MSH;
+import ca.uhn.hl7v2.parser.GenericParser;
+import ca.uhn.hl7v2.parser.Parser;
+import ca.uhn.hl7v2.util.Terser;
+import org.openhim.mediator.MediatorSettings;
+import org.openhim.mediator.datatypes.Demographics;
+import org.openhim.mediator.datatypes.Identifier;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.messages.MergePatientXds;
+import org.openhim.mediator.messages.RegisterNewPatientXds;
+
+/**
+ * Builds the Patient Identity Feed messages (ADT_A04, ADT_A40) sent to the XDS registry
+ * and parses the registry acknowledgements.
+ * <br/><br/>
+ * Instances are not thread safe; each actor should hold its own builder.
+ */
+public class XdsFeedMessageBuilder {
+    private final MediatorSettings.Holder settings;
+    private final Parser parser = new GenericParser();
+
+    private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyyMMddHHmmssZ");
+    private final SimpleDateFormat dateFormatDay = new SimpleDateFormat("yyyyMMdd");
+
+
+    public XdsFeedMessageBuilder(MediatorConfig config) {
+        this.settings = MediatorSettings.holderFor(config);
+    }
+
+
+    private void constructBasicMSHSegment(String correlationId, Terser t) throws HL7Exception {
+        MediatorSettings current = settings.get();
+        MSH msh = (MSH) t.getSegment("MSH");
+        t.set("MSH-1", "|");
+        t.set("MSH-2", "^~\\&");
+        t.set("MSH-3-1", current.getSendingApplication());
+        t.set("MSH-4-1", current.getSendingFacility());
+        t.set("MSH-5-1", current.getReceivingApplication());
+        t.set("MSH-6-1", current.getReceivingFacility());
+        msh.getDateTimeOfMessage().getTime().setValue(dateFormat.format(new Date()));
+        t.set("MSH-10", correlationId);
+        t.set("MSH-11-1", "P");
+        t.set("MSH-12-1-1", "2.3.1");
+    }
+
+    private static void setIfPresent(Terser t, String spec, String value) throws HL7Exception {
+        if (value != null && !value.isEmpty()) {
+            t.set(spec, value);
+        }
+    }
+
+    private static void setPatientIdentifier(Terser t, String group, Identifier id) throws HL7Exception {
+        t.set(group + "PID-3-1", id.getIdentifier());
+        t.set(group + "PID-3-4", id.getAssigningAuthority().getAssigningAuthority());
+        t.set(group + "PID-3-4-2", id.getAssigningAuthority().getAssigningAuthorityId());
+        t.set(group + "PID-3-4-3", id.getAssigningAuthority().getAssigningAuthorityIdType());
+    }
+
+    public String constructADT_A40(String correlationId, MergePatientXds msg) throws HL7Exception {
+
+        ADT_A39 adt_a39 = new ADT_A39();
+        Terser t = new Terser(adt_a39);
+
+        constructBasicMSHSegment(correlationId, t);
+
+        t.set("MSH-9-1", "ADT");
+        t.set("MSH-9-2", "A40");
+        t.set("MSH-9-3", "ADT_A39");
+
+        t.set("EVN-2", dateFormatDay.format(new Date()));
+
+        // one PATIENT group (PID + MRG) per merged pair: patient identifier i survives, pre-update identifier i is merged into it
+        List<Identifier> patientIdentifiers = msg.getPatientIdentifiers();
+        List<Identifier> preUpdateIdentifiers = msg.getPreUpdateIdentifiers();
+
+        int groups = 0;
+        for (int i = 0; i < patientIdentifiers.size(); i++) {
+            if (i >= preUpdateIdentifiers.size() || preUpdateIdentifiers.get(i) == null) {
+                // nothing merged into the patient in this identifier's domain
+                continue;
+            }
+
+            String group = "/PATIENT(" + groups++ + ")/";
+            setPatientIdentifier(t, group, patientIdentifiers.get(i));
+
+            Identifier preUpdateId = preUpdateIdentifiers.get(i);
+            t.set(group + "MRG-1-1", preUpdateId.getIdentifier());
+            t.set(group + "MRG-1-4", preUpdateId.getAssigningAuthority().getAssigningAuthority());
+            t.set(group + "MRG-1-4-2", preUpdateId.getAssigningAuthority().getAssigningAuthorityId());
+            t.set(group + "MRG-1-4-3", preUpdateId.getAssigningAuthority().getAssigningAuthorityIdType());
+        }
+
+        if (groups == 0 && !patientIdentifiers.isEmpty()) {
+            // the registry rejects the merge, rather than it being lost
+            setPatientIdentifier(t, "/PATIENT(0)/", patientIdentifiers.get(0));
+        }
+
+        return parser.encode(adt_a39);
+    }
+
+    public String constructADT_A04(String correlationId, RegisterNewPatientXds msg) throws HL7Exception {
+        return constructADT_A04(correlationId, msg, null);
+    }
+
+    /**
+     * @param demographics written to PID-5, 7, 8 and 13; may be null
+     */
+    public String constructADT_A04(String correlationId, RegisterNewPatientXds msg, Demographics demographics) throws HL7Exception {
+
+        ADT_A01 adt_a04 = new ADT_A01();
+        Terser t = new Terser(adt_a04);
+
+        constructBasicMSHSegment(correlationId, t);
+
+        t.set("MSH-9-1", "ADT");
+        t.set("MSH-9-2", "A04");
+        t.set("MSH-9-3", "ADT_A01");
+
+        t.set("EVN-2", dateFormatDay.format(new Date()));
+
+        // every synced domain's identifier as a PID-3 repetition, so the registry links them in one message
+        List<Identifier> patientIdentifiers = msg.getPatientIdentifiers();
+        for (int i = 0; i < patientIdentifiers.size(); i++) {
+            String field = "PID-3(" + i + ")";
+            Identifier id = patientIdentifiers.get(i);
+            t.set(field + "-1", id.getIdentifier());
+            t.set(field + "-4", id.getAssigningAuthority().getAssigningAuthority());
+            t.set(field + "-4-2", id.getAssigningAuthority().getAssigningAuthorityId());
+            t.set(field + "-4-3", id.getAssigningAuthority().getAssigningAuthorityIdType());
+        }
+
+        if (demographics != null) {
+            setIfPresent(t, "PID-5-1", demographics.getFamilyName());
+            setIfPresent(t, "PID-5-2", demographics.getGivenName());
+            setIfPresent(t, "PID-7-1", demographics.getBirthDate());
+            setIfPresent(t, "PID-8", demographics.getGender());
+            setIfPresent(t, "PID-13-1", demographics.getTelecom());
+        }
+
+        t.set("PV1-2", "O");
+
+        return parser.encode(adt_a04);
+    }
+
+    /**
+     * @return null if the registry accepted the message (MSA-1 = AA), or the mediator committed it to its spill
+     * queue for sending later (MSA-1 = CA), else an error description
+     */
+    public String parseACKError(String response) throws HL7Exception {
+        Message modelmsg = parser.parse(response);
+        Terser terser = new Terser(modelmsg);
+
+        if (!("ACK".equalsIgnoreCase(terser.get("/.MSH-9-1")))){
+            return "Message response received in unsupported format: " + modelmsg.getClass();
+        }
+
+        String ackCode = terser.get("/.MSA-1");
+        if ("AA".equalsIgnoreCase(ackCode) || "CA".equalsIgnoreCase(ackCode)) {
+            return null;
+        }
+
+        StringBuilder err = new StringBuilder("Failed to register new patient: ").append(ackCode);
+        // the ERR fields differ between versions; take whichever the registry filled in
+        for (String path : new String[] {"/.MSA-3", "/.ERR-1-4-1", "/.ERR-1-4-2", "/.ERR-3-1", "/.ERR-3-2", "/.ERR-8"}) {
+            String value = getQuietly(terser, path);
+            if (value != null && !value.isEmpty()) {
+                err.append(' ').append(value);
+            }
+        }
+        return err.toString();
+    }
+
+    private static String getQuietly(Terser terser, String path) {
+        try {
+            return terser.get(path);
+        } catch (HL7Exception | RuntimeException ex) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.messages;
+
+import java.util.List;
+
+import org.openhim.mediator.deadletters.DeadLetter;
+
+public class DeadLetterList {
+    private final List<DeadLetter> deadLetters;
+
+    public DeadLetterList(List<DeadLetter> deadLetters) {
+        this.deadLetters = deadLetters;
+    }
+
+    public List<DeadLetter> getDeadLetters() {
+        return deadLetters;
+    }
+}
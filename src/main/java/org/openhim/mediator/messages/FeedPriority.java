@@ -0,0 +1,31 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.messages;
+
+/**
+ * Priority class of a feed, deciding its lane in the xds-registry-connector.
+ */
+public enum FeedPriority {
+    /** Feeds for patients being registered right now, e.g. at a clinic */
+    REALTIME,
+    /** Reconciliation runs, merge clean-ups and replays */
+    BULK;
+
+    /**
+     * @return the priority with the given name (case insensitive), or null if there is none
+     */
+    public static FeedPriority parse(String name) {
+        if (name != null) {
+            for (FeedPriority priority : values()) {
+                if (priority.name().equalsIgnoreCase(name.trim())) {
+                    return priority;
+                }
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,27 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.messages;
+
+import akka.actor.ActorRef;
+import org.openhim.mediator.datatypes.Identifier;
+import org.openhim.mediator.engine.messages.MediatorRequestMessage;
+
+/**
+ * Fetch a patient's demographics from the PDQ supplier.
+ */
+public class LookupDemographics extends MediatorRequestMessage {
+    private final Identifier identifier;
+
+    public LookupDemographics(ActorRef requestHandler, ActorRef respondTo, String correlationId, Identifier identifier) {
+        super(requestHandler, respondTo, "lookup-demographics", correlationId);
+        this.identifier = identifier;
+    }
+
+    public Identifier getIdentifier() {
+        return identifier;
+    }
+}
@@ -0,0 +1,27 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.messages;
+
+import org.openhim.mediator.datatypes.Demographics;
+import org.openhim.mediator.engine.messages.MediatorRequestMessage;
+import org.openhim.mediator.engine.messages.MediatorResponseMessage;
+
+public class LookupDemographicsResponse extends MediatorResponseMessage {
+    private final Demographics demographics;
+
+    public LookupDemographicsResponse(MediatorRequestMessage originalRequest, Demographics demographics) {
+        super(originalRequest);
+        this.demographics = demographics;
+    }
+
+    /**
+     * @return the patient's demographics; Demographics.NONE if unknown or the lookup failed
+     */
+    public Demographics getDemographics() {
+        return demographics;
+    }
+}
@@ -13,17 +13,37 @@ import org.openhim.mediator.datatypes.Identifier;
 import org.openhim.mediator.engine.messages.MediatorRequestMessage;
 
 /**
- * Create a new patient demographic record.
+ * Merge patient records in the XDS registry.
+ * <br/><br/>
+ * The lists are paired by index: preUpdateIdentifiers[i] is merged into patientIdentifiers[i].
+ * Several pairs are sent as one ADT_A40 with a PATIENT group per pair.
  */
 public class MergePatientXds extends MediatorRequestMessage {
     private final List<Identifier> patientIdentifiers;
     private final List<Identifier> preUpdateIdentifiers;
+    private final String traceId;
+    private final FeedPriority priority;
 
     public MergePatientXds(ActorRef requestHandler, ActorRef respondTo, List<Identifier> patientIdentifiers, 
             List<Identifier> preUpdateIdentifiers) {
+        this(requestHandler, respondTo, patientIdentifiers, preUpdateIdentifiers, null);
+    }
+
+    /**
+     * @param traceId the trace of the request, linked to the feed message's control ID; null if none
+     */
+    public MergePatientXds(ActorRef requestHandler, ActorRef respondTo, List<Identifier> patientIdentifiers,
+            List<Identifier> preUpdateIdentifiers, String traceId) {
+        this(requestHandler, respondTo, patientIdentifiers, preUpdateIdentifiers, traceId, FeedPriority.REALTIME);
+    }
+
+    public MergePatientXds(ActorRef requestHandler, ActorRef respondTo, List<Identifier> patientIdentifiers,
+            List<Identifier> preUpdateIdentifiers, String traceId, FeedPriority priority) {
         super(requestHandler, respondTo);
         this.patientIdentifiers = patientIdentifiers;
         this.preUpdateIdentifiers = preUpdateIdentifiers;
+        this.traceId = traceId;
+        this.priority = priority;
     }
 
     public List<Identifier> getPatientIdentifiers() {
@@ -33,4 +53,12 @@ public class MergePatientXds extends MediatorRequestMessage {
     public List<Identifier> getPreUpdateIdentifiers() {
         return preUpdateIdentifiers;
     }
-}
\ No newline at end of file
+
+    public String getTraceId() {
+        return traceId;
+    }
+
+    public FeedPriority getPriority() {
+        return priority;
+    }
+}
\ No newline at end of file
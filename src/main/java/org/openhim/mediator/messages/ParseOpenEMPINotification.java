@@ -0,0 +1,34 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.messages;
+
+import akka.actor.ActorRef;
+import org.openhim.mediator.engine.messages.MediatorRequestMessage;
+
+/**
+ * Extract the operation and patient identifiers from an OpenEMPI JSON notification.
+ */
+public class ParseOpenEMPINotification extends MediatorRequestMessage {
+    private final String body;
+
+    public ParseOpenEMPINotification(ActorRef requestHandler, ActorRef respondTo, String body) {
+        super(requestHandler, respondTo);
+        this.body = body;
+    }
+
+    /**
+     * @param correlationId the request's trace ID, recorded with the parse
+     */
+    public ParseOpenEMPINotification(ActorRef requestHandler, ActorRef respondTo, String body, String correlationId) {
+        super(requestHandler, respondTo, null, correlationId);
+        this.body = body;
+    }
+
+    public String getBody() {
+        return body;
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.messages;
+
+import java.util.List;
+
+import org.openhim.mediator.datatypes.Identifier;
+import org.openhim.mediator.engine.messages.MediatorRequestMessage;
+import org.openhim.mediator.engine.messages.MediatorResponseMessage;
+
+public class ParseOpenEMPINotificationResponse extends MediatorResponseMessage {
+    private final String operation;
+    private final String transition;
+    private final List<Identifier> patientIdentifiers;
+    private final List<Identifier> preUpdateIdentifiers;
+
+    public ParseOpenEMPINotificationResponse(MediatorRequestMessage originalRequest, String operation, String transition,
+            List<Identifier> patientIdentifiers, List<Identifier> preUpdateIdentifiers) {
+        super(originalRequest);
+        this.operation = operation;
+        this.transition = transition;
+        this.patientIdentifiers = patientIdentifiers;
+        this.preUpdateIdentifiers = preUpdateIdentifiers;
+    }
+
+    public String getOperation() {
+        return operation;
+    }
+
+    public String getTransition() {
+        return transition;
+    }
+
+    public List<Identifier> getPatientIdentifiers() {
+        return patientIdentifiers;
+    }
+
+    public List<Identifier> getPreUpdateIdentifiers() {
+        return preUpdateIdentifiers;
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.messages;
+
+import org.openhim.mediator.engine.messages.MediatorSocketRequest;
+
+/**
+ * A registry request for the xds-registry-connector with the lane to queue it in. A plain MediatorSocketRequest
+ * is queued as REALTIME.
+ */
+public class PrioritizedSocketRequest {
+    private final MediatorSocketRequest request;
+    private final FeedPriority priority;
+
+    public PrioritizedSocketRequest(MediatorSocketRequest request, FeedPriority priority) {
+        this.request = request;
+        this.priority = priority;
+    }
+
+    public MediatorSocketRequest getRequest() {
+        return request;
+    }
+
+    public FeedPriority getPriority() {
+        return priority;
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.messages;
+
+/**
+ * Sent by the xds-registry-connector to the dead-letters actor when a feed message could not be delivered
+ * or was rejected by the registry.
+ */
+public class RecordDeadLetter {
+    private final String controlId;
+    private final String payload;
+    private final String error;
+
+    public RecordDeadLetter(String controlId, String payload, String error) {
+        this.controlId = controlId;
+        this.payload = payload;
+        this.error = error;
+    }
+
+    public String getControlId() {
+        return controlId;
+    }
+
+    public String getPayload() {
+        return payload;
+    }
+
+    public String getError() {
+        return error;
+    }
+}
@@ -14,11 +14,20 @@ import org.openhim.mediator.engine.messages.MediatorResponseMessage;
 public class RegisterNewPatientResponse extends MediatorResponseMessage {
     private Boolean successful;
     private String err;
+    private boolean queued;
 
     public RegisterNewPatientResponse(MediatorRequestMessage originalRequest, Boolean successful, String err) {
+        this(originalRequest, successful, err, false);
+    }
+
+    /**
+     * @param queued whether the feed was only committed for sending later (MSA-1 CA), not yet seen by the registry
+     */
+    public RegisterNewPatientResponse(MediatorRequestMessage originalRequest, Boolean successful, String err, boolean queued) {
         super(originalRequest);
         this.successful = successful;
         this.err = err;
+        this.queued = queued;
     }
 
     public Boolean isSuccessful() {
@@ -28,4 +37,8 @@ public class RegisterNewPatientResponse extends MediatorResponseMessage {
     public String getErr() {
         return err;
     }
+
+    public boolean isQueued() {
+        return queued;
+    }
 }
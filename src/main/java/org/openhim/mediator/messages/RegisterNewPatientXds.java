@@ -17,13 +17,37 @@ import org.openhim.mediator.engine.messages.MediatorRequestMessage;
  */
 public class RegisterNewPatientXds extends MediatorRequestMessage {
     private final List<Identifier> patientIdentifiers;
+    private final String traceId;
+    private final FeedPriority priority;
 
     public RegisterNewPatientXds(ActorRef requestHandler, ActorRef respondTo, List<Identifier> patientIdentifiers) {
+        this(requestHandler, respondTo, patientIdentifiers, null);
+    }
+
+    /**
+     * @param traceId the trace of the request, linked to the feed message's control ID; null if none
+     */
+    public RegisterNewPatientXds(ActorRef requestHandler, ActorRef respondTo, List<Identifier> patientIdentifiers, String traceId) {
+        this(requestHandler, respondTo, patientIdentifiers, traceId, FeedPriority.REALTIME);
+    }
+
+    public RegisterNewPatientXds(ActorRef requestHandler, ActorRef respondTo, List<Identifier> patientIdentifiers, String traceId,
+            FeedPriority priority) {
         super(requestHandler, respondTo);
         this.patientIdentifiers = patientIdentifiers;
+        this.traceId = traceId;
+        this.priority = priority;
     }
 
     public List<Identifier> getPatientIdentifiers() {
         return patientIdentifiers;
     }
+
+    public String getTraceId() {
+        return traceId;
+    }
+
+    public FeedPriority getPriority() {
+        return priority;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,110 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.messages;
+
+/**
+ * A snapshot of the exchanges with the XDS registry.
+ * <br/><br/>
+ * Latencies are the time from sending a message until its acknowledgement was received, over the most recent
+ * latencySamples exchanges. Messages held back by the concurrency limit are counted as queued.
+ */
+public class RegistryStats {
+    private final long latencyMeanMillis;
+    private final long latencyP95Millis;
+    private final int latencySamples;
+    private final int inFlight;
+    private final int queued;
+    private final long completed;
+    private final long failed;
+    private final String lastError;
+    private final Long lastErrorTime;
+    private final Integer concurrencyLimit;
+    private final int spilled;
+
+    public RegistryStats(long latencyMeanMillis, long latencyP95Millis, int latencySamples, int inFlight, int queued,
+            long completed, long failed, String lastError, Long lastErrorTime, Integer concurrencyLimit) {
+        this(latencyMeanMillis, latencyP95Millis, latencySamples, inFlight, queued, completed, failed, lastError,
+                lastErrorTime, concurrencyLimit, 0);
+    }
+
+    public RegistryStats(long latencyMeanMillis, long latencyP95Millis, int latencySamples, int inFlight, int queued,
+            long completed, long failed, String lastError, Long lastErrorTime, Integer concurrencyLimit, int spilled) {
+        this.latencyMeanMillis = latencyMeanMillis;
+        this.latencyP95Millis = latencyP95Millis;
+        this.latencySamples = latencySamples;
+        this.inFlight = inFlight;
+        this.queued = queued;
+        this.completed = completed;
+        this.failed = failed;
+        this.lastError = lastError;
+        this.lastErrorTime = lastErrorTime;
+        this.concurrencyLimit = concurrencyLimit;
+        this.spilled = spilled;
+    }
+
+    public long getLatencyMeanMillis() {
+        return latencyMeanMillis;
+    }
+
+    public long getLatencyP95Millis() {
+        return latencyP95Millis;
+    }
+
+    public int getLatencySamples() {
+        return latencySamples;
+    }
+
+    /**
+     * @return messages sent to the registry and not yet acknowledged
+     */
+    public int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return messages waiting to be sent to the registry
+     */
+    public int getQueued() {
+        return queued;
+    }
+
+    public long getCompleted() {
+        return completed;
+    }
+
+    public long getFailed() {
+        return failed;
+    }
+
+    /**
+     * @return the last connection error or rejection by the registry, or null if there was none
+     */
+    public String getLastError() {
+        return lastError;
+    }
+
+    /**
+     * @return when the last error occurred (epoch millis), or null
+     */
+    public Long getLastErrorTime() {
+        return lastErrorTime;
+    }
+
+    /**
+     * @return the current adaptive limit on messages in flight, or null if limiting is disabled
+     */
+    public Integer getConcurrencyLimit() {
+        return concurrencyLimit;
+    }
+
+    /**
+     * @return messages spilled to disk, waiting to be sent; not counted as queued
+     */
+    public int getSpilled() {
+        return spilled;
+    }
+}
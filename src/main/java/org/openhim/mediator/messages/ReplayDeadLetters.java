@@ -0,0 +1,24 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.messages;
+
+import org.openhim.mediator.deadletters.DeadLetterStore;
+
+/**
+ * Queues the matching pending dead letters for replay. Responds with DeadLetterList containing the queued letters.
+ */
+public class ReplayDeadLetters {
+    private final DeadLetterStore.Filter filter;
+
+    public ReplayDeadLetters(DeadLetterStore.Filter filter) {
+        this.filter = filter;
+    }
+
+    public DeadLetterStore.Filter getFilter() {
+        return filter;
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.messages;
+
+import org.openhim.mediator.MediatorSettings;
+import org.openhim.mediator.engine.MediatorConfig;
+
+/**
+ * Published on the event stream after the configuration has been reloaded. The config's properties have been
+ * updated to the new values by then.
+ */
+public class SettingsReloaded {
+    private final MediatorConfig config;
+    private final MediatorSettings settings;
+
+    public SettingsReloaded(MediatorConfig config, MediatorSettings settings) {
+        this.config = config;
+        this.settings = settings;
+    }
+
+    /**
+     * @return the config that was reloaded; a JVM may run more than one mediator
+     */
+    public MediatorConfig getConfig() {
+        return config;
+    }
+
+    public MediatorSettings getSettings() {
+        return settings;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.messages;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import akka.actor.ActorRef;
+import org.openhim.mediator.datatypes.Identifier;
+
+/**
+ * A patient feed (register or merge) sent through the cluster to the node owning the patient.
+ * <br/><br/>
+ * Unlike the engine request messages this crosses node boundaries, so it only carries serializable state.
+ * The outcome is sent to replyTo as a ShardedFeedResponse.
+ */
+public class ShardedFeedRequest implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public enum Operation {
+        REGISTER, MERGE
+    }
+
+    private final Operation operation;
+    private final ArrayList<Identifier> patientIdentifiers;
+    private final ArrayList<Identifier> preUpdateIdentifiers;
+    private final ActorRef replyTo;
+    private final String correlationId;
+    private final FeedPriority priority;
+
+    public ShardedFeedRequest(Operation operation, List<Identifier> patientIdentifiers, List<Identifier> preUpdateIdentifiers,
+            ActorRef replyTo, String correlationId) {
+        this(operation, patientIdentifiers, preUpdateIdentifiers, replyTo, correlationId, FeedPriority.REALTIME);
+    }
+
+    public ShardedFeedRequest(Operation operation, List<Identifier> patientIdentifiers, List<Identifier> preUpdateIdentifiers,
+            ActorRef replyTo, String correlationId, FeedPriority priority) {
+        this.operation = operation;
+        this.priority = priority;
+        this.patientIdentifiers = new ArrayList<>(patientIdentifiers);
+        this.preUpdateIdentifiers = preUpdateIdentifiers != null ? new ArrayList<>(preUpdateIdentifiers) : new ArrayList<Identifier>();
+        this.replyTo = replyTo;
+        this.correlationId = correlationId;
+    }
+
+    public FeedPriority getPriority() {
+        return priority;
+    }
+
+    public Operation getOperation() {
+        return operation;
+    }
+
+    public List<Identifier> getPatientIdentifiers() {
+        return patientIdentifiers;
+    }
+
+    public List<Identifier> getPreUpdateIdentifiers() {
+        return preUpdateIdentifiers;
+    }
+
+    public ActorRef getReplyTo() {
+        return replyTo;
+    }
+
+    public String getCorrelationId() {
+        return correlationId;
+    }
+
+    /**
+     * @return the patient this feed belongs to (the first patient identifier, as CX).
+     * All feeds for one patient are handled in order by the same node.
+     */
+    public String getPatientKey() {
+        return patientIdentifiers.get(0).toCX();
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.messages;
+
+import java.io.Serializable;
+
+/**
+ * The registry outcome of a ShardedFeedRequest.
+ */
+public class ShardedFeedResponse implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String correlationId;
+    private final boolean successful;
+    private final String err;
+    private final boolean queued;
+
+    public ShardedFeedResponse(String correlationId, boolean successful, String err, boolean queued) {
+        this.correlationId = correlationId;
+        this.successful = successful;
+        this.err = err;
+        this.queued = queued;
+    }
+
+    public String getCorrelationId() {
+        return correlationId;
+    }
+
+    public boolean isSuccessful() {
+        return successful;
+    }
+
+    public String getErr() {
+        return err;
+    }
+
+    /**
+     * @return whether the feed was only committed for sending later, see RegisterNewPatientResponse
+     */
+    public boolean isQueued() {
+        return queued;
+    }
+}
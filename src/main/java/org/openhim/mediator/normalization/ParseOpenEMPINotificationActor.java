@@ -0,0 +1,145 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.normalization;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import akka.actor.UntypedActor;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import org.openhim.mediator.MediatorSettings;
+import org.openhim.mediator.datatypes.AssigningAuthority;
+import org.openhim.mediator.datatypes.Identifier;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.messages.ParseOpenEMPINotification;
+import org.openhim.mediator.messages.ParseOpenEMPINotificationResponse;
+import org.openhim.mediator.tracing.FlightEvents;
+
+/**
+ * Stateless worker that converts an OpenEMPI JSON notification into patient identifiers.
+ * <br/><br/>
+ * Only identifiers in the synced domains are kept (see SyncDomains), in the configured order of the domains.
+ * <br/><br/>
+ * Runs on the transformation dispatcher so that JSON parsing doesn't compete with network response handling.
+ * <br/><br/>
+ * Messages supported:
+ * <ul>
+ * <li>ParseOpenEMPINotification - responds with ParseOpenEMPINotificationResponse</li>
+ * </ul>
+ */
+public class ParseOpenEMPINotificationActor extends UntypedActor {
+    LoggingAdapter log = Logging.getLogger(getContext().system(), this);
+
+    private final SyncDomains defaultDomains;
+    private final MediatorSettings.Holder settings;
+
+
+    /**
+     * Syncs the default domain only
+     */
+    public ParseOpenEMPINotificationActor() {
+        this.defaultDomains = new SyncDomains(null);
+        this.settings = null;
+    }
+
+    /**
+     * Syncs the domains configured in pix.syncDomains
+     */
+    public ParseOpenEMPINotificationActor(MediatorConfig config) {
+        this.defaultDomains = null;
+        this.settings = MediatorSettings.holderFor(config);
+    }
+
+    /**
+     * @return the identifiers of the synced domains, indexed by the domain's rank; the first of each domain is used
+     */
+    private static Identifier[] syncedIdentifiers(JsonArray arr, SyncDomains domains) {
+        Identifier[] identifiers = new Identifier[domains.size()];
+        for (int i = 0; i < arr.size(); i++) {
+            JsonObject identifierDomain = arr.get(i).getAsJsonObject().get("identifierDomain").getAsJsonObject();
+            int rank = domains.rank(identifierDomain.get("identifierDomainName").getAsString());
+
+            if (rank >= 0 && identifiers[rank] == null) {
+                identifiers[rank] = new Identifier(arr.get(i).getAsJsonObject().get("identifier").getAsString(),
+                        new AssigningAuthority(
+                                identifierDomain.get("namespaceIdentifier").getAsString(),
+                                identifierDomain.get("universalIdentifier").getAsString(),
+                                identifierDomain.get("universalIdentifierTypeCode").getAsString()));
+            }
+        }
+        return identifiers;
+    }
+
+    private static String unquote(String value) {
+        return value != null ? value.replace("\"", "") : null;
+    }
+
+    private void parse(ParseOpenEMPINotification msg) {
+        Object flightEvent = FlightEvents.begin(FlightEvents.Stage.PARSE);
+        String operation = null;
+        try {
+            JsonObject jsonObject = new JsonParser().parse(msg.getBody().trim()).getAsJsonObject();
+            operation = jsonObject.get("source").toString();
+            String transition = jsonObject.get("transition").toString();
+
+            SyncDomains domains = settings != null ? settings.get().getSyncDomains() : defaultDomains;
+            Identifier[] postUpdate = syncedIdentifiers(jsonObject.getAsJsonArray("postUpdateIdentifiers"), domains);
+            Identifier[] preUpdate = syncedIdentifiers(jsonObject.getAsJsonArray("preUpdateIdentifiers"), domains);
+
+            // Post Update and Pre-Update identifier lists, paired by domain: pre-update identifier i is the one
+            // in the domain of identifier i, or null if the patient had none in that domain
+            List<Identifier> identifierList = new LinkedList<>();
+            List<Identifier> preUpdateIdentifierList = new LinkedList<>();
+
+            for (int i = 0; i < postUpdate.length; i++) {
+                if (postUpdate[i] != null) {
+                    identifierList.add(postUpdate[i]);
+                    preUpdateIdentifierList.add(preUpdate[i]);
+                }
+            }
+
+            if (identifierList.isEmpty()) {
+                // nothing to sync; passed on as an empty identifier, as the registry reports the error
+                Identifier preUpdateIdentifier = null;
+                for (Identifier identifier : preUpdate) {
+                    if (identifier != null && preUpdateIdentifier == null) {
+                        preUpdateIdentifier = identifier;
+                    }
+                }
+                identifierList.add(new Identifier("", preUpdateIdentifier != null ?
+                        preUpdateIdentifier.getAssigningAuthority() : new AssigningAuthority("", "", "")));
+                preUpdateIdentifierList.add(preUpdateIdentifier != null ?
+                        preUpdateIdentifier : new Identifier("", new AssigningAuthority("", "", "")));
+            }
+
+            FlightEvents.end(flightEvent, msg.getCorrelationId(), unquote(operation), "parsed");
+            msg.getRespondTo().tell(new ParseOpenEMPINotificationResponse(msg, operation, transition,
+                    identifierList, preUpdateIdentifierList), getSelf());
+        } catch (JsonParseException | IllegalStateException | NullPointerException | ClassCastException ex) {
+            FlightEvents.end(flightEvent, msg.getCorrelationId(), unquote(operation), "invalid");
+            log.warning("Failed to parse OpenEMPI notification: " + ex.getMessage());
+            msg.getRequestHandler().tell(new ExceptError(ex), getSelf());
+        } finally {
+            getContext().stop(getSelf());
+        }
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof ParseOpenEMPINotification) {
+            parse((ParseOpenEMPINotification) msg);
+        } else {
+            unhandled(msg);
+        }
+    }
+}
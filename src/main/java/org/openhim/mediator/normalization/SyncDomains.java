@@ -0,0 +1,56 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.normalization;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The identifier domains synced to the XDS registry (pix.syncDomains), looked up by OpenEMPI identifierDomainName.
+ * <br/><br/>
+ * Domains are matched by name, ignoring case. Identifiers are sent in the configured order, so the first domain
+ * is the patient's primary identifier, e.g. the one feeds are sharded by in clustered mode.
+ * <br/><br/>
+ * Immutable.
+ */
+public final class SyncDomains {
+    public static final String DEFAULT = "OpenEMPI";
+
+    private final Map<String, Integer> ranks = new HashMap<>();
+
+
+    /**
+     * @param domains comma separated domain names; null or blank for the default
+     */
+    public SyncDomains(String domains) {
+        if (domains == null || domains.trim().isEmpty()) {
+            domains = DEFAULT;
+        }
+        for (String domain : domains.split(",")) {
+            String key = domain.trim().toLowerCase(Locale.ROOT);
+            if (!key.isEmpty() && !ranks.containsKey(key)) {
+                ranks.put(key, ranks.size());
+            }
+        }
+    }
+
+    /**
+     * @return the domain's position in the configured list, or -1 if it isn't synced
+     */
+    public int rank(String identifierDomainName) {
+        if (identifierDomainName == null) {
+            return -1;
+        }
+        Integer rank = ranks.get(identifierDomainName.trim().toLowerCase(Locale.ROOT));
+        return rank != null ? rank : -1;
+    }
+
+    public int size() {
+        return ranks.size();
+    }
+}
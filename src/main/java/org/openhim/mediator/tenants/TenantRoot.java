@@ -0,0 +1,38 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.tenants;
+
+import akka.actor.Props;
+import akka.actor.UntypedActor;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.StartupActorsConfig;
+
+/**
+ * Parent of a tenant's startup actors, at /user/&lt;tenant config name&gt; so that config.userPathFor() finds them
+ * the same way as the mediator's own. Actors with a MediatorConfig constructor receive the tenant's config,
+ * as with the engine's root actor.
+ */
+public class TenantRoot extends UntypedActor {
+
+    public TenantRoot(MediatorConfig config, StartupActorsConfig actors) {
+        for (StartupActorsConfig.ActorToLaunch actor : actors.getActors()) {
+            Props props;
+            try {
+                actor.getActorClass().getConstructor(MediatorConfig.class);
+                props = Props.create(actor.getActorClass(), config);
+            } catch (NoSuchMethodException ex) {
+                props = Props.create(actor.getActorClass());
+            }
+            getContext().actorOf(props, actor.getName());
+        }
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        unhandled(msg);
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.tenants;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import akka.actor.Actor;
+import akka.actor.ActorRef;
+import akka.actor.Props;
+import akka.actor.UntypedActor;
+import com.google.gson.Gson;
+import org.apache.http.HttpStatus;
+import org.openhim.mediator.AdminOrchestrator;
+import org.openhim.mediator.DeadLetterOrchestrator;
+import org.openhim.mediator.DefaultOrchestrator;
+import org.openhim.mediator.HealthOrchestrator;
+import org.openhim.mediator.ReadinessOrchestrator;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPResponse;
+
+/**
+ * Passes a request on to the orchestrator for its route, with the config of the request's tenant (see Tenants).
+ * <br/><br/>
+ * The tenant is taken from the path, /tenants/&lt;name&gt;/&lt;route&gt;, or else from the request's tenant header
+ * (mediator.tenants.header, X-Tenant by default), or else is mediator.tenants.default. Without any of these the
+ * mediator's own settings are used. The tenant routes are the feed routes, /dead-letters, /admin/settings,
+ * /admin/stats, /health and /ready; an unknown tenant or route gets 404. The dead letter and admin routes check the
+ * admin token against the tenant's config (see AdminAccess).
+ * <br/><br/>
+ * The orchestrator answers the request itself.
+ */
+public class TenantRouter extends UntypedActor {
+    private static final Pattern TENANT_PATH = Pattern.compile("^/tenants/([^/]+)(/.*)$");
+
+    static final Map<String, Class<? extends Actor>> ROUTES = new LinkedHashMap<>();
+    static {
+        ROUTES.put("/mpixds-sync", DefaultOrchestrator.class);
+        ROUTES.put("/mpixds-sync/bulk", DefaultOrchestrator.class);
+        ROUTES.put("/dead-letters", DeadLetterOrchestrator.class);
+        ROUTES.put("/dead-letters/replay", DeadLetterOrchestrator.class);
+        ROUTES.put("/admin/settings", AdminOrchestrator.class);
+        ROUTES.put("/admin/stats", AdminOrchestrator.class);
+        ROUTES.put("/health", HealthOrchestrator.class);
+        ROUTES.put("/ready", ReadinessOrchestrator.class);
+    }
+
+    private final MediatorConfig config;
+
+
+    public TenantRouter(MediatorConfig config) {
+        this.config = config;
+    }
+
+    private static String header(MediatorHTTPRequest request, String name) {
+        if (request.getHeaders() != null) {
+            for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+                if (name.equalsIgnoreCase(header.getKey())) {
+                    return header.getValue();
+                }
+            }
+        }
+        return null;
+    }
+
+    private void respondNotFound(MediatorHTTPRequest request, String error) {
+        MediatorHTTPResponse response = new MediatorHTTPResponse(request, new Gson().toJson(Collections.singletonMap("error", error)),
+                HttpStatus.SC_NOT_FOUND, Collections.singletonMap("content-type", "application/json"));
+        request.getRespondTo().tell(response.toFinishRequest(), getSelf());
+    }
+
+    private void route(MediatorHTTPRequest request) {
+        String tenant;
+        String path;
+        Matcher tenantPath = TENANT_PATH.matcher(request.getPath());
+        if (tenantPath.matches()) {
+            tenant = tenantPath.group(1);
+            path = tenantPath.group(2);
+        } else {
+            String headerName = config.getProperty("mediator.tenants.header");
+            tenant = header(request, headerName != null ? headerName : "X-Tenant");
+            if (tenant == null || tenant.trim().isEmpty()) {
+                tenant = config.getProperty("mediator.tenants.default");
+            }
+            path = request.getPath();
+        }
+
+        MediatorConfig target = config;
+        if (tenant != null && !tenant.trim().isEmpty()) {
+            target = Tenants.forConfig(config).get(tenant.trim());
+            if (target == null) {
+                respondNotFound(request, "Unknown tenant " + tenant);
+                return;
+            }
+        }
+
+        Class<? extends Actor> orchestrator = ROUTES.get(path);
+        if (orchestrator == null) {
+            respondNotFound(request, "No tenant route " + path);
+            return;
+        }
+
+        ActorRef handler = getContext().actorOf(Props.create(orchestrator, target));
+        handler.tell(new MediatorHTTPRequest(request.getRequestHandler(), request.getRespondTo(), request.getOrchestration(),
+                request.getMethod(), request.getScheme(), request.getHost(), request.getPort(), path, request.getBody(),
+                request.getHeaders(), request.getParams(), request.getCorrelationId()), getSender());
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        if (msg instanceof MediatorHTTPRequest) {
+            route((MediatorHTTPRequest) msg);
+        } else {
+            unhandled(msg);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.tenants;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.WeakHashMap;
+
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import org.openhim.mediator.MediatorSettings;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.StartupActorsConfig;
+
+/**
+ * Named tenants (mediator.tenants): districts with their own OpenEMPI and XDS registry, served by one mediator.
+ * <br/><br/>
+ * Each tenant has a MediatorConfig of its own, holding the mediator properties overlaid with the tenant's
+ * tenant.&lt;name&gt;.* properties, e.g. tenant.north.xds.registry.host or tenant.north.pix.receivingFacility.
+ * As the settings, tracer and drain state are kept per MediatorConfig, and each tenant has its own startup actors
+ * (see TenantRoot), a tenant has its own registry connector, connections, concurrency limit, queue, spill queue
+ * and dead letters. A tenant whose registry is slow uses up its own budgets without holding up the others.
+ * The dispatchers for the JSON and HL7 work are shared.
+ * <br/><br/>
+ * Some settings can't be shared between tenants, so they are not inherited from the mediator properties:
+ * <ul>
+ * <li>the change feed (openempi.changes.*) is only pulled for tenants that configure it</li>
+ * <li>clustered mode (mediator.cluster.*) only applies to the mediator's own settings</li>
+ * <li>the spill directory, dead letter file, capture directory and span file get the tenant's name as a suffix</li>
+ * <li>the blocking MLLP connector is used, so that each tenant's exchanges run on threads of its own</li>
+ * </ul>
+ * Anything set for the tenant itself takes precedence.
+ * <br/><br/>
+ * Thread safe.
+ */
+public class Tenants {
+    private static final Map<MediatorConfig, Tenants> tenants = new WeakHashMap<>();
+
+    private static final String[] NOT_INHERITED = {"tenant.", "mediator.tenants", "openempi.changes.", "mediator.cluster."};
+
+    // the per tenant files and directories, with their defaults
+    private static final Map<String, String> PER_TENANT_PATHS = new LinkedHashMap<>();
+    static {
+        PER_TENANT_PATHS.put("xds.registry.spill.dir", "spill");
+        PER_TENANT_PATHS.put("xds.deadLetters.file", "dead-letters.jsonl");
+        PER_TENANT_PATHS.put("mediator.capture.dir", "capture");
+        PER_TENANT_PATHS.put("mediator.tracing.file", null);
+    }
+
+    private final MediatorConfig config;
+    private final Map<String, MediatorConfig> configs = new LinkedHashMap<>();
+
+
+    private Tenants(MediatorConfig config) {
+        this.config = config;
+
+        for (String name : names(config)) {
+            MediatorConfig tenant = new MediatorConfig(config.getName() + "-" + name, config.getServerHost(), config.getServerPort());
+            tenant.setRootTimeout(config.getRootTimeout());
+            tenant.setRoutingTable(config.getRoutingTable());
+            tenant.setProperties(overlay(config.getProperties(), config.getName(), name));
+            configs.put(name, tenant);
+        }
+    }
+
+    /**
+     * @return whether tenants are configured (mediator.tenants)
+     */
+    public static boolean isEnabled(MediatorConfig config) {
+        return !names(config).isEmpty();
+    }
+
+    /**
+     * @return the tenants of the mediator's config
+     * @throws IllegalArgumentException if a tenant name isn't valid
+     */
+    public static Tenants forConfig(MediatorConfig config) {
+        synchronized (tenants) {
+            Tenants forConfig = tenants.get(config);
+            if (forConfig == null) {
+                forConfig = new Tenants(config);
+                tenants.put(config, forConfig);
+            }
+            return forConfig;
+        }
+    }
+
+    /**
+     * @return the tenant names in mediator.tenants, a comma separated list
+     */
+    static List<String> names(MediatorConfig config) {
+        String value = config.getProperty("mediator.tenants");
+        if (value == null || value.trim().isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        List<String> names = new ArrayList<>();
+        for (String name : value.split(",")) {
+            name = name.trim();
+            if (!name.matches("[A-Za-z0-9_-]+")) {
+                throw new IllegalArgumentException("Invalid tenant name '" + name + "' in mediator.tenants");
+            }
+            if (!names.contains(name)) {
+                names.add(name);
+            }
+        }
+        return names;
+    }
+
+    private static boolean isInherited(String property) {
+        for (String prefix : NOT_INHERITED) {
+            if (property.startsWith(prefix)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return the path with the tenant's name appended to its file name, before the extension
+     */
+    static String withSuffix(String path, String tenant) {
+        File file = new File(path);
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String suffixed = dot > 0 ? name.substring(0, dot) + "-" + tenant + name.substring(dot) : name + "-" + tenant;
+        return file.getParent() != null ? new File(file.getParent(), suffixed).getPath() : suffixed;
+    }
+
+    /**
+     * @return the tenant's properties: the mediator's inherited properties, overlaid with tenant.&lt;tenant&gt;.*
+     */
+    static Properties overlay(Properties properties, String mediatorName, String tenant) {
+        Properties overlay = new Properties();
+        for (String property : properties.stringPropertyNames()) {
+            if (isInherited(property)) {
+                overlay.setProperty(property, properties.getProperty(property));
+            }
+        }
+        for (Map.Entry<String, String> path : PER_TENANT_PATHS.entrySet()) {
+            String value = properties.getProperty(path.getKey(), path.getValue());
+            if (value != null) {
+                overlay.setProperty(path.getKey(), withSuffix(value, tenant));
+            }
+        }
+        overlay.setProperty("xds.registry.connector", "blocking");
+        overlay.setProperty("mediator.name", mediatorName + "-" + tenant);
+
+        String prefix = "tenant." + tenant + ".";
+        for (String property : properties.stringPropertyNames()) {
+            if (property.startsWith(prefix)) {
+                overlay.setProperty(property.substring(prefix.length()), properties.getProperty(property));
+            }
+        }
+        return overlay;
+    }
+
+    /**
+     * @return the tenant's config, or null if there is no such tenant
+     */
+    public MediatorConfig get(String name) {
+        return name != null ? configs.get(name) : null;
+    }
+
+    public Collection<String> getNames() {
+        return Collections.unmodifiableCollection(configs.keySet());
+    }
+
+    public Collection<MediatorConfig> getConfigs() {
+        return Collections.unmodifiableCollection(configs.values());
+    }
+
+    /**
+     * Starts each tenant's actors under /user/&lt;mediator name&gt;-&lt;tenant&gt;
+     */
+    public void launch(ActorSystem system, StartupActorsConfig actors) {
+        for (MediatorConfig tenant : configs.values()) {
+            system.actorOf(Props.create(TenantRoot.class, tenant, actors), tenant.getName());
+        }
+    }
+
+    /**
+     * Applies reloaded mediator properties to the tenants. Tenants added or removed need a restart.
+     */
+    public void reload(Properties properties, ActorSystem system) {
+        for (Map.Entry<String, MediatorConfig> tenant : configs.entrySet()) {
+            MediatorSettings.reload(tenant.getValue(), overlay(properties, config.getName(), tenant.getKey()), system);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.tracing;
+
+/**
+ * Java Flight Recorder events for the stages of a feed, so that a recording (see FlightRecording) shows the
+ * mediator's work next to the JVM's own events. Each event has the feed's correlation ID (the trace ID and
+ * MSH-10), the operation and the outcome.
+ * <br/><br/>
+ * Unlike spans, events are recorded for every feed, but only while a recording is running; otherwise begin()
+ * returns null and the cost is a check. On a JVM without Flight Recorder (before Java 11) nothing is recorded.
+ * <br/><br/>
+ * The mediator is built for Java 7, so FlightEvents and FlightRecording hold no jdk.jfr types. They call into
+ * JfrEvents and JfrRecording, which do, only once isAvailable() is true, so that those classes are never loaded
+ * on an older JVM.
+ * <br/><br/>
+ * Thread safe; an event may end on another thread than it began.
+ */
+public class FlightEvents {
+
+    public enum Stage {
+        /** extracting the identifiers from the OpenEMPI JSON notification */
+        PARSE,
+        /** building the HL7 feed message */
+        ENCODE,
+        /** sending the feed message over MLLP until the registry acknowledged it */
+        REGISTRY_EXCHANGE,
+        /** parsing the acknowledgement */
+        ACK_PARSE
+    }
+
+    private static final boolean AVAILABLE = isFlightRecorderPresent();
+
+    private static boolean isFlightRecorderPresent() {
+        try {
+            Class.forName("jdk.jfr.FlightRecorder");
+            return true;
+        } catch (ClassNotFoundException | LinkageError ex) {
+            return false;
+        }
+    }
+
+    /**
+     * @return whether this JVM has Flight Recorder
+     */
+    public static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    /**
+     * Starts timing a stage.
+     *
+     * @return the event to pass to end(), or null if the stage isn't being recorded
+     */
+    public static Object begin(Stage stage) {
+        return AVAILABLE ? JfrEvents.begin(stage) : null;
+    }
+
+    /**
+     * Ends and records an event from begin(). Does nothing for null.
+     */
+    public static void end(Object event, String correlationId, String operation, String outcome) {
+        if (event != null) {
+            JfrEvents.end(event, correlationId, operation, outcome);
+        }
+    }
+}
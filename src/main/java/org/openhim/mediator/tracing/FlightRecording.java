@@ -0,0 +1,106 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.tracing;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Map;
+
+import org.openhim.mediator.engine.MediatorConfig;
+
+/**
+ * Starts and stops an on-demand Java Flight Recorder recording of the mediator, with the FlightEvents of every
+ * feed and the JVM's events of the mediator.jfr.settings configuration ("profile" by default).
+ * <br/><br/>
+ * A recording is bounded: it stops by itself after its duration, at most mediator.jfr.maxDurationSeconds, and
+ * keeps at most mediator.jfr.maxSizeMb of the latest data. When it stops the recording is written to a new file
+ * in mediator.jfr.dir. There is one recording per JVM; starting another while one runs fails.
+ * <br/><br/>
+ * Thread safe.
+ */
+public class FlightRecording {
+    private static final int DEFAULT_DURATION_SECONDS = 60;
+
+    public static boolean isAvailable() {
+        return FlightEvents.isAvailable();
+    }
+
+    private static long longProperty(MediatorConfig config, String name, long defaultValue) {
+        String value = config.getProperty(name);
+        return value != null ? Long.parseLong(value.trim()) : defaultValue;
+    }
+
+    /**
+     * Starts a recording.
+     *
+     * @param durationSeconds how long to record, or null for the default of a minute; capped at
+     *                        mediator.jfr.maxDurationSeconds
+     * @param maxSizeMb       the most data to keep, or null for mediator.jfr.maxSizeMb; capped at mediator.jfr.maxSizeMb
+     * @return the status of the new recording
+     * @throws IllegalStateException if Flight Recorder isn't available, or a recording is already running
+     * @throws IOException           if the settings can't be read
+     */
+    public static Map<String, Object> start(MediatorConfig config, Long durationSeconds, Long maxSizeMb) throws IOException {
+        if (!isAvailable()) {
+            throw new IllegalStateException("Flight Recorder is not available in this JVM");
+        }
+
+        long maxDuration = longProperty(config, "mediator.jfr.maxDurationSeconds", 600);
+        long maxSize = longProperty(config, "mediator.jfr.maxSizeMb", 100);
+        long duration = Math.min(durationSeconds != null ? durationSeconds : DEFAULT_DURATION_SECONDS, maxDuration);
+        long size = Math.min(maxSizeMb != null ? maxSizeMb : maxSize, maxSize);
+        if (duration <= 0 || size <= 0) {
+            throw new IllegalArgumentException("the duration and size must be positive");
+        }
+
+        String dir = config.getProperty("mediator.jfr.dir");
+        File file = new File(dir != null ? dir : "recordings",
+                "mpixds-sync-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + ".jfr").getAbsoluteFile();
+        if (!file.getParentFile().isDirectory() && !file.getParentFile().mkdirs()) {
+            throw new IOException("can't create " + file.getParent());
+        }
+
+        String settings = config.getProperty("mediator.jfr.settings");
+        return JfrRecording.start(file, settings != null ? settings : "profile", duration, size * 1024 * 1024);
+    }
+
+    /**
+     * Stops the recording, writing it to its file. Does nothing if it already stopped.
+     *
+     * @throws IllegalStateException if no recording was started
+     */
+    public static Map<String, Object> stop() throws IOException {
+        if (!isAvailable()) {
+            throw new IllegalStateException("Flight Recorder is not available in this JVM");
+        }
+        return JfrRecording.stop();
+    }
+
+    /**
+     * @return the state of the last recording, its file and settings; only "available" if none was started
+     */
+    public static Map<String, Object> status() {
+        if (!isAvailable()) {
+            return Collections.<String, Object>singletonMap("available", false);
+        }
+        return JfrRecording.status(true);
+    }
+
+    /**
+     * @return the file of the last recording
+     * @throws IllegalStateException if there is no recording, or it is still running
+     */
+    public static File recordedFile() {
+        if (!isAvailable()) {
+            throw new IllegalStateException("Flight Recorder is not available in this JVM");
+        }
+        return JfrRecording.recordedFile();
+    }
+}
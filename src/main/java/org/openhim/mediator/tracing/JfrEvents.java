@@ -0,0 +1,94 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.tracing;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The Flight Recorder event types behind FlightEvents.
+ */
+class JfrEvents {
+
+    @Category({"OpenHIM", "MPI-XDS Sync"})
+    @StackTrace(false)
+    abstract static class MediatorEvent extends Event {
+        @Label("Correlation ID")
+        @Description("The feed's trace ID, also the feed message's MSH-10")
+        String correlationId;
+
+        @Label("Operation")
+        String operation;
+
+        @Label("Outcome")
+        String outcome;
+    }
+
+    @Name("org.openhim.mediator.ParseNotification")
+    @Label("Parse Notification")
+    @Description("Extracting the identifiers from an OpenEMPI JSON notification")
+    static class ParseEvent extends MediatorEvent {
+    }
+
+    @Name("org.openhim.mediator.EncodeFeed")
+    @Label("Encode Feed")
+    @Description("Building an HL7 feed message")
+    static class EncodeEvent extends MediatorEvent {
+    }
+
+    @Name("org.openhim.mediator.RegistryExchange")
+    @Label("Registry Exchange")
+    @Description("Sending a feed message over MLLP until the registry acknowledged it, over all endpoints tried")
+    static class RegistryExchangeEvent extends MediatorEvent {
+    }
+
+    @Name("org.openhim.mediator.ParseAck")
+    @Label("Parse ACK")
+    @Description("Parsing the registry's acknowledgement")
+    static class AckParseEvent extends MediatorEvent {
+    }
+
+
+    static Object begin(FlightEvents.Stage stage) {
+        MediatorEvent event;
+        switch (stage) {
+            case PARSE:
+                event = new ParseEvent();
+                break;
+            case ENCODE:
+                event = new EncodeEvent();
+                break;
+            case REGISTRY_EXCHANGE:
+                event = new RegistryExchangeEvent();
+                break;
+            default:
+                event = new AckParseEvent();
+                break;
+        }
+
+        if (!event.isEnabled()) {
+            return null;
+        }
+        event.begin();
+        return event;
+    }
+
+    static void end(Object e, String correlationId, String operation, String outcome) {
+        MediatorEvent event = (MediatorEvent) e;
+        event.end();
+        if (event.shouldCommit()) {
+            event.correlationId = correlationId;
+            event.operation = operation;
+            event.outcome = outcome;
+            event.commit();
+        }
+    }
+}
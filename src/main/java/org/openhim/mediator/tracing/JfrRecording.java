@@ -0,0 +1,97 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.tracing;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.RecordingState;
+
+/**
+ * The Flight Recorder recording behind FlightRecording.
+ */
+class JfrRecording {
+    private static Recording recording;
+    private static File file;
+    private static long startedAt;
+
+    private static boolean isRunning() {
+        return recording != null &&
+                (recording.getState() == RecordingState.RUNNING || recording.getState() == RecordingState.DELAYED);
+    }
+
+    static synchronized Map<String, Object> start(File destination, String settings, long durationSeconds,
+                                                  long maxSizeBytes) throws IOException {
+        if (isRunning()) {
+            throw new IllegalStateException("a recording is already running");
+        }
+
+        Configuration configuration;
+        try {
+            configuration = Configuration.getConfiguration(settings);
+        } catch (ParseException ex) {
+            throw new IOException("invalid Flight Recorder settings " + settings + ": " + ex.getMessage(), ex);
+        }
+
+        Recording next = new Recording(configuration);
+        next.setName("mpixds-sync");
+        next.setToDisk(true);
+        next.setMaxSize(maxSizeBytes);
+        next.setDuration(java.time.Duration.ofSeconds(durationSeconds));
+        next.setDestination(destination.toPath());
+        next.start();
+
+        if (recording != null) {
+            recording.close();
+        }
+        recording = next;
+        file = destination;
+        startedAt = System.currentTimeMillis();
+        return status(true);
+    }
+
+    static synchronized Map<String, Object> stop() throws IOException {
+        if (recording == null) {
+            throw new IllegalStateException("no recording was started");
+        }
+        if (isRunning()) {
+            recording.stop();
+        }
+        return status(true);
+    }
+
+    static synchronized Map<String, Object> status(boolean available) {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("available", available);
+        if (recording != null) {
+            status.put("state", recording.getState().name());
+            status.put("startedAt", startedAt);
+            status.put("durationSeconds", recording.getDuration().getSeconds());
+            status.put("maxSizeBytes", recording.getMaxSize());
+            status.put("file", file.getPath());
+            if (!isRunning() && file.isFile()) {
+                status.put("fileSizeBytes", file.length());
+            }
+        }
+        return status;
+    }
+
+    static synchronized File recordedFile() {
+        if (recording == null) {
+            throw new IllegalStateException("no recording was started");
+        }
+        if (isRunning()) {
+            throw new IllegalStateException("the recording is still running");
+        }
+        return file;
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.tracing;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A finished span. Times are in microseconds since the epoch, as in the Zipkin v2 model.
+ */
+public class Span {
+    private final String traceId;
+    private final String id;
+    private final String parentId;
+    private final String name;
+    private final long timestampMicros;
+    private final long durationMicros;
+    private final Map<String, String> tags;
+
+    public Span(String traceId, String id, String parentId, String name, long timestampMicros, long durationMicros,
+                Map<String, String> tags) {
+        this.traceId = traceId;
+        this.id = id;
+        this.parentId = parentId;
+        this.name = name;
+        this.timestampMicros = timestampMicros;
+        this.durationMicros = durationMicros;
+        this.tags = tags != null ? tags : Collections.<String, String>emptyMap();
+    }
+
+    public String getTraceId() {
+        return traceId;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return the ID of the trace's root span, or null for the root span
+     */
+    public String getParentId() {
+        return parentId;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getTimestampMicros() {
+        return timestampMicros;
+    }
+
+    public long getDurationMicros() {
+        return durationMicros;
+    }
+
+    public Map<String, String> getTags() {
+        return tags;
+    }
+}
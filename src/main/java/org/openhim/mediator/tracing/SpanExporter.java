@@ -0,0 +1,171 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.tracing;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.gson.Gson;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Exports spans in the Zipkin v2 JSON format on a background thread: appended to a file, one span per line,
+ * and/or POSTed in batches to a Zipkin compatible collector (e.g. http://zipkin:9411/api/v2/spans).
+ * <br/><br/>
+ * Spans are dropped rather than slowing down the feeds when the exporter falls behind or the collector is down.
+ */
+public class SpanExporter implements Runnable {
+    private static final int MAX_QUEUED = 10000;
+    private static final int MAX_BATCH = 500;
+    private static final long FLUSH_MILLIS = 500;
+
+    private final File file;
+    private final String collectorUrl;
+    private final Map<String, String> localEndpoint;
+    private final BlockingQueue<Span> queue = new ArrayBlockingQueue<>(MAX_QUEUED);
+    private final Gson gson = new Gson();
+
+    private final AtomicLong dropped = new AtomicLong();
+
+
+    /**
+     * @param file the file to append spans to, or null
+     * @param collectorUrl the collector's span endpoint, or null
+     */
+    public SpanExporter(File file, String collectorUrl, String serviceName) {
+        this.file = file;
+        this.collectorUrl = collectorUrl;
+        this.localEndpoint = new LinkedHashMap<>();
+        this.localEndpoint.put("serviceName", serviceName != null ? serviceName : "mpixds-sync-mediator");
+    }
+
+    public Thread start() {
+        Thread thread = new Thread(this, "span-exporter");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    public void export(Span span) {
+        if (!queue.offer(span)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    /**
+     * @return the number of spans dropped because the queue was full
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    Map<String, Object> toZipkin(Span span) {
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("traceId", span.getTraceId());
+        if (span.getParentId() != null) {
+            json.put("parentId", span.getParentId());
+        }
+        json.put("id", span.getId());
+        json.put("name", span.getName());
+        json.put("timestamp", span.getTimestampMicros());
+        json.put("duration", span.getDurationMicros());
+        json.put("localEndpoint", localEndpoint);
+        if (!span.getTags().isEmpty()) {
+            json.put("tags", span.getTags());
+        }
+        return json;
+    }
+
+    @Override
+    public void run() {
+        List<Span> batch = new ArrayList<>();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                Span first = queue.poll(FLUSH_MILLIS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH - 1);
+                flush(batch);
+                batch.clear();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    void flush(List<Span> batch) {
+        List<Map<String, Object>> spans = new ArrayList<>();
+        for (Span span : batch) {
+            spans.add(toZipkin(span));
+        }
+
+        if (file != null) {
+            writeToFile(spans);
+        }
+        if (collectorUrl != null) {
+            post(spans);
+        }
+    }
+
+    private void writeToFile(List<Map<String, Object>> spans) {
+        Writer out = null;
+        try {
+            out = new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8);
+            for (Map<String, Object> span : spans) {
+                out.write(gson.toJson(span));
+                out.write('\n');
+            }
+        } catch (IOException ex) {
+            dropped.addAndGet(spans.size());
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+    }
+
+    private void post(List<Map<String, Object>> spans) {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(collectorUrl).openConnection();
+            connection.setConnectTimeout(2000);
+            connection.setReadTimeout(5000);
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setDoOutput(true);
+
+            OutputStream out = connection.getOutputStream();
+            out.write(gson.toJson(spans).getBytes(StandardCharsets.UTF_8));
+            out.close();
+
+            if (connection.getResponseCode() >= 300) {
+                dropped.addAndGet(spans.size());
+            }
+        } catch (IOException ex) {
+            dropped.addAndGet(spans.size());
+        } finally {
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+}
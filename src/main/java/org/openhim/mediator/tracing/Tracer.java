@@ -0,0 +1,256 @@
+/*
+ * This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ */
+
+package org.openhim.mediator.tracing;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openhim.mediator.MediatorSettings;
+import org.openhim.mediator.engine.MediatorConfig;
+
+/**
+ * Lightweight tracing of a feed from the HTTP request through to the registry acknowledgement.
+ * <br/><br/>
+ * A trace ID is created for every request at ingress, or taken from the request's W3C traceparent header. Each
+ * feed message sent to the registry has a control ID (MSH-10) of its own, since requests may share a trace, which
+ * is linked to the trace so that the actors along the way can find the trace from the message alone. A trace is
+ * sampled with probability mediator.tracing.sampleRate,
+ * unless the traceparent header decided already. Only sampled traces are kept and have their spans exported.
+ * <br/><br/>
+ * Spans are children of the trace's root span and are exported in the Zipkin v2 JSON format, see SpanExporter.
+ * <br/><br/>
+ * Thread safe.
+ */
+public class Tracer {
+    // traces that didn't end, e.g. because the request failed, are dropped after this long
+    private static final long MAX_TRACE_AGE_MICROS = TimeUnit.MINUTES.toMicros(10);
+    private static final long EVICTION_INTERVAL_MICROS = TimeUnit.MINUTES.toMicros(1);
+
+    private static final long EPOCH_MICROS_AT_NANO_ZERO =
+            TimeUnit.MILLISECONDS.toMicros(System.currentTimeMillis()) - TimeUnit.NANOSECONDS.toMicros(System.nanoTime());
+
+    private static final Map<MediatorConfig, Tracer> tracers = new WeakHashMap<>();
+
+    /**
+     * A trace in progress
+     */
+    public static class Trace {
+        private final String traceId;
+        private final String rootSpanId;
+        private final String parentId;
+        private final boolean sampled;
+        private final long startMicros = nowMicros();
+        private final Set<String> controlIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        private volatile boolean ended = false;
+
+        private Trace(String traceId, String rootSpanId, String parentId, boolean sampled) {
+            this.traceId = traceId;
+            this.rootSpanId = rootSpanId;
+            this.parentId = parentId;
+            this.sampled = sampled;
+        }
+
+        /**
+         * @return the 32 hex character trace ID
+         */
+        public String getTraceId() {
+            return traceId;
+        }
+
+        public boolean isSampled() {
+            return sampled;
+        }
+    }
+
+    private final MediatorSettings.Holder settings;
+    private final SpanExporter exporter;
+    // by trace ID and by the control IDs linked to the trace
+    private final Map<String, Trace> active = new ConcurrentHashMap<>();
+    private final AtomicLong nextEvictionMicros = new AtomicLong(nowMicros() + EVICTION_INTERVAL_MICROS);
+
+
+    Tracer(MediatorSettings.Holder settings, SpanExporter exporter) {
+        this.settings = settings;
+        this.exporter = exporter;
+    }
+
+    /**
+     * @return the config's tracer, exporting to mediator.tracing.file and mediator.tracing.zipkinUrl
+     */
+    public static Tracer forConfig(MediatorConfig config) {
+        synchronized (tracers) {
+            Tracer tracer = tracers.get(config);
+            if (tracer == null) {
+                String file = config.getProperty("mediator.tracing.file");
+                SpanExporter exporter = null;
+                if (isEnabled(config) && (file != null || config.getProperty("mediator.tracing.zipkinUrl") != null)) {
+                    exporter = new SpanExporter(file != null ? new File(file) : null,
+                            config.getProperty("mediator.tracing.zipkinUrl"), config.getProperty("mediator.name"));
+                    exporter.start();
+                }
+                tracer = new Tracer(MediatorSettings.holderFor(config), exporter);
+                tracers.put(config, tracer);
+            }
+            return tracer;
+        }
+    }
+
+    public static boolean isEnabled(MediatorConfig config) {
+        return "true".equalsIgnoreCase(config.getProperty("mediator.tracing.enabled"));
+    }
+
+    /**
+     * @return the current time in microseconds since the epoch, with the resolution of System.nanoTime()
+     */
+    public static long nowMicros() {
+        return EPOCH_MICROS_AT_NANO_ZERO + TimeUnit.NANOSECONDS.toMicros(System.nanoTime());
+    }
+
+    private static String randomHex(int bytes) {
+        Random random = ThreadLocalRandom.current();
+        StringBuilder hex = new StringBuilder(bytes * 2);
+        for (int i = 0; i < bytes; i++) {
+            hex.append(String.format("%02x", random.nextInt(256)));
+        }
+        return hex.toString();
+    }
+
+    private double sampleRate() {
+        MediatorSettings current = settings.get();
+        if (exporter == null || !"true".equalsIgnoreCase(current.getProperty("mediator.tracing.enabled"))) {
+            return 0;
+        }
+        String rate = current.getProperty("mediator.tracing.sampleRate");
+        return rate != null ? Double.parseDouble(rate) : 1.0;
+    }
+
+    /**
+     * Starts a trace for an incoming request.
+     *
+     * @param traceparent the request's W3C traceparent header, or null. A malformed header is ignored.
+     */
+    public Trace start(String traceparent) {
+        String traceId = null;
+        String parentId = null;
+        Boolean sampled = null;
+
+        // version-traceid-parentid-flags
+        if (traceparent != null) {
+            String[] parts = traceparent.trim().split("-");
+            if (parts.length == 4 && parts[0].matches("[0-9a-f]{2}") && !"ff".equals(parts[0]) &&
+                    parts[1].matches("[0-9a-f]{32}") && !parts[1].matches("0+") &&
+                    parts[2].matches("[0-9a-f]{16}") && !parts[2].matches("0+") && parts[3].matches("[0-9a-f]{2}")) {
+                traceId = parts[1];
+                parentId = parts[2];
+                sampled = (Integer.parseInt(parts[3], 16) & 1) == 1 && exporter != null;
+            }
+        }
+
+        if (traceId == null) {
+            traceId = randomHex(16);
+            sampled = ThreadLocalRandom.current().nextDouble() < sampleRate();
+        }
+
+        Trace trace = new Trace(traceId, randomHex(8), parentId, sampled);
+        if (sampled) {
+            evictStale(trace.startMicros);
+            active.put(traceId, trace);
+        }
+        return trace;
+    }
+
+    /**
+     * Drops the traces that didn't end, at most once every EVICTION_INTERVAL_MICROS, so that starting a trace
+     * doesn't walk all those in progress
+     */
+    private void evictStale(long now) {
+        long next = nextEvictionMicros.get();
+        if (now < next || !nextEvictionMicros.compareAndSet(next, now + EVICTION_INTERVAL_MICROS)) {
+            return;
+        }
+        Iterator<Trace> it = active.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().startMicros > MAX_TRACE_AGE_MICROS) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * Links a feed message's control ID to the trace of its request, if that trace is sampled and in progress
+     */
+    public void link(String traceId, String controlId) {
+        Trace trace = traceId != null ? active.get(traceId) : null;
+        if (trace == null || trace.ended) {
+            return;
+        }
+        trace.controlIds.add(controlId);
+        active.put(controlId, trace);
+    }
+
+    /**
+     * @return whether the trace with the ID, which may be a linked control ID, is sampled and in progress
+     */
+    public boolean isSampled(String traceId) {
+        return traceId != null && active.containsKey(traceId);
+    }
+
+    /**
+     * Records a span of a sampled trace in progress. Does nothing for any other ID.
+     *
+     * @param traceId the trace ID, or a linked control ID
+     * @param tags name and value pairs
+     */
+    public void span(String traceId, String name, long startMicros, long endMicros, String... tags) {
+        Trace trace = traceId != null ? active.get(traceId) : null;
+        if (trace == null) {
+            return;
+        }
+        exporter.export(new Span(trace.traceId, randomHex(8), trace.rootSpanId, name, startMicros,
+                Math.max(0, endMicros - startMicros), tags(tags)));
+    }
+
+    /**
+     * Ends a trace, recording its root span. Only the first call for a trace has an effect.
+     */
+    public void end(Trace trace, String name, String... tags) {
+        if (trace == null || trace.ended) {
+            return;
+        }
+        trace.ended = true;
+        for (String controlId : trace.controlIds) {
+            active.remove(controlId);
+        }
+        // another request may have continued the same trace
+        active.remove(trace.traceId, trace);
+        if (trace.sampled) {
+            exporter.export(new Span(trace.traceId, trace.rootSpanId, trace.parentId, name, trace.startMicros,
+                    nowMicros() - trace.startMicros, tags(tags)));
+        }
+    }
+
+    private static Map<String, String> tags(String... tags) {
+        if (tags.length == 0) {
+            return Collections.emptyMap();
+        }
+        Map<String, String> map = new LinkedHashMap<>();
+        for (int i = 0; i + 1 < tags.length; i += 2) {
+            map.put(tags[i], tags[i + 1]);
+        }
+        return map;
+    }
+}
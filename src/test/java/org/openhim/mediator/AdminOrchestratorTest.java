@@ -0,0 +1,216 @@
+package org.openhim.mediator;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.testkit.JavaTestKit;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.FinishRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.openhim.mediator.tracing.FlightEvents;
+import org.openhim.mediator.tracing.FlightRecording;
+
+import static org.junit.Assert.*;
+
+public class AdminOrchestratorTest {
+
+    private static final String TOKEN = "admin-secret";
+
+    static ActorSystem system;
+
+    private final List<Pair<MediatorConfig, Properties>> configs = new ArrayList<>();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create();
+    }
+
+    @AfterClass
+    public static void teardown() {
+        JavaTestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    @After
+    public void restoreSettings() {
+        // the admin API changes the settings in place, so put back what each test started with
+        for (Pair<MediatorConfig, Properties> config : configs) {
+            MediatorSettings.reload(config.getLeft(), config.getRight(), system);
+        }
+        configs.clear();
+    }
+
+    private MediatorConfig config(boolean enabled) {
+        MediatorConfig config = new MediatorConfig("admin-test", "localhost", 4500);
+        Properties props = new Properties();
+        props.setProperty("mediator.admin.enabled", Boolean.toString(enabled));
+        props.setProperty("mediator.admin.token", TOKEN);
+        props.setProperty("xds.registry.host", "registry-a");
+        props.setProperty("xds.registry.port", "3602");
+        props.setProperty("xds.registry.limit.max", "500");
+        props.setProperty("xds.registry.batch.maxSize", "50");
+        config.setProperties(props);
+        configs.add(Pair.of(config, (Properties) props.clone()));
+        return config;
+    }
+
+    private static FinishRequest request(JavaTestKit kit, MediatorConfig config, String method, String path, String body) {
+        return request(kit, config, method, path, body, TOKEN);
+    }
+
+    private static FinishRequest request(JavaTestKit kit, MediatorConfig config, String method, String path, String body,
+                                         String token) {
+        ActorRef admin = system.actorOf(Props.create(AdminOrchestrator.class, config));
+        Map<String, String> headers = token == null ? Collections.<String, String>emptyMap()
+                : Collections.singletonMap("X-Admin-Token", token);
+        admin.tell(new MediatorHTTPRequest(kit.getRef(), kit.getRef(), "unit-test", method, "http", null, null, path,
+                body, headers, Collections.<Pair<String, String>>emptyList()), kit.getRef());
+        return kit.expectMsgClass(JavaTestKit.duration("5 seconds"), FinishRequest.class);
+    }
+
+    @Test
+    public void testChangeSettings() {
+        final MediatorConfig config = config(true);
+
+        new JavaTestKit(system) {{
+            FinishRequest response = request(this, config, "POST", "/admin/settings",
+                    "{\"xds.registry.batch.maxSize\": 20, \"xds.registry.limit.max\": 200}");
+            assertEquals(200, response.getResponseStatus().intValue());
+            assertTrue(response.getResponse().contains("\"xds.registry.limit.max\":\"200\""));
+
+            MediatorSettings settings = MediatorSettings.holderFor(config).get();
+            assertEquals("20", settings.getProperty("xds.registry.batch.maxSize"));
+            assertEquals("200", settings.getProperty("xds.registry.limit.max"));
+            assertEquals("200", config.getProperty("xds.registry.limit.max"));
+
+            response = request(this, config, "GET", "/admin/settings", null);
+            assertEquals(200, response.getResponseStatus().intValue());
+            assertTrue(response.getResponse().contains("\"xds.registry.batch.maxSize\":\"20\""));
+        }};
+    }
+
+    @Test
+    public void testInvalidChangeIsRejected() {
+        final MediatorConfig config = config(true);
+
+        new JavaTestKit(system) {{
+            FinishRequest response = request(this, config, "POST", "/admin/settings",
+                    "{\"xds.registry.batch.maxSize\": 20, \"xds.registry.limit.max\": \"lots\"}");
+            assertEquals(400, response.getResponseStatus().intValue());
+
+            response = request(this, config, "POST", "/admin/settings", "{\"mediator.port\": 4901}");
+            assertEquals(400, response.getResponseStatus().intValue());
+
+            // where feeds go can only be changed in the --conf file
+            response = request(this, config, "POST", "/admin/settings", "{\"xds.registry.host\": \"registry-b\"}");
+            assertEquals(400, response.getResponseStatus().intValue());
+            response = request(this, config, "POST", "/admin/settings", "{\"xds.registry.secure\": false}");
+            assertEquals(400, response.getResponseStatus().intValue());
+
+            MediatorSettings settings = MediatorSettings.holderFor(config).get();
+            assertEquals("registry-a", settings.getRegistryHost());
+            assertEquals("50", settings.getProperty("xds.registry.batch.maxSize"));
+            assertEquals("500", settings.getProperty("xds.registry.limit.max"));
+        }};
+    }
+
+    @Test
+    public void testTokenIsRequired() {
+        final MediatorConfig config = config(true);
+
+        new JavaTestKit(system) {{
+            String body = "{\"xds.registry.limit.max\": 200}";
+            assertEquals(401, request(this, config, "POST", "/admin/settings", body, null).getResponseStatus().intValue());
+            assertEquals(401, request(this, config, "POST", "/admin/settings", body, "wrong").getResponseStatus().intValue());
+            assertEquals(401, request(this, config, "GET", "/admin/stats", null, null).getResponseStatus().intValue());
+
+            config.getProperties().remove("mediator.admin.token");
+            assertEquals(403, request(this, config, "POST", "/admin/settings", body, TOKEN).getResponseStatus().intValue());
+
+            assertEquals("500", MediatorSettings.holderFor(config).get().getProperty("xds.registry.limit.max"));
+        }};
+    }
+
+    @Test
+    public void testDisabled() {
+        final MediatorConfig config = config(false);
+
+        new JavaTestKit(system) {{
+            FinishRequest response = request(this, config, "POST", "/admin/settings", "{\"xds.registry.limit.max\": 200}");
+            assertEquals(404, response.getResponseStatus().intValue());
+            assertEquals("500", MediatorSettings.holderFor(config).get().getProperty("xds.registry.limit.max"));
+        }};
+    }
+
+    @Test
+    public void testFlightRecording() throws Exception {
+        Assume.assumeTrue(FlightRecording.isAvailable());
+        final MediatorConfig config = config(true);
+        config.getProperties().setProperty("mediator.jfr.dir", folder.getRoot().getPath());
+        config.getProperties().setProperty("mediator.jfr.maxDurationSeconds", "120");
+
+        new JavaTestKit(system) {{
+            FinishRequest response = request(this, config, "POST", "/admin/jfr/start", "{\"durationSeconds\": 600}");
+            assertEquals(200, response.getResponseStatus().intValue());
+            assertTrue(response.getResponse().contains("\"durationSeconds\":120"));
+            assertEquals(409, request(this, config, "POST", "/admin/jfr/start", null).getResponseStatus().intValue());
+            assertEquals(409, request(this, config, "GET", "/admin/jfr/recording", null).getResponseStatus().intValue());
+
+            Object event = FlightEvents.begin(FlightEvents.Stage.ENCODE);
+            assertNotNull(event);
+            FlightEvents.end(event, "test-correlation-id", "ADT^A04", null);
+
+            response = request(this, config, "POST", "/admin/jfr/stop", null);
+            assertEquals(200, response.getResponseStatus().intValue());
+            assertTrue(response.getResponse().contains("\"fileSizeBytes\""));
+
+            config.getProperties().setProperty("mediator.jfr.maxDownloadMb", "0");
+            assertEquals(413, request(this, config, "GET", "/admin/jfr/recording", null).getResponseStatus().intValue());
+            config.getProperties().remove("mediator.jfr.maxDownloadMb");
+
+            response = request(this, config, "GET", "/admin/jfr/recording", null);
+            assertEquals(200, response.getResponseStatus().intValue());
+            File download = folder.newFile("download.jfr");
+            FileUtils.writeByteArrayToFile(download, Base64.decodeBase64(response.getResponse()));
+
+            boolean found = false;
+            try {
+                for (RecordedEvent recorded : RecordingFile.readAllEvents(download.toPath())) {
+                    if ("org.openhim.mediator.EncodeFeed".equals(recorded.getEventType().getName())) {
+                        assertEquals("test-correlation-id", recorded.getString("correlationId"));
+                        assertEquals("ADT^A04", recorded.getString("operation"));
+                        found = true;
+                    }
+                }
+            } catch (java.io.IOException ex) {
+                fail(ex.getMessage());
+            }
+            assertTrue(found);
+        }};
+
+        // not recording
+        assertNull(FlightEvents.begin(FlightEvents.Stage.ENCODE));
+    }
+}
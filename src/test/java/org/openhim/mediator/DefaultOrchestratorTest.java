@@ -4,30 +4,118 @@ import akka.actor.ActorRef;
 import akka.actor.ActorSystem;
 import akka.actor.Props;
 import akka.testkit.JavaTestKit;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
 import java.util.Collections;
+import java.util.Properties;
+import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.tuple.Pair;
+import org.apache.http.HttpStatus;
 import org.junit.*;
+import org.openhim.mediator.connectors.XdsRegistryConnector;
 import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.StartupActorsConfig;
+import org.openhim.mediator.engine.connectors.MLLPConnector;
 import org.openhim.mediator.engine.messages.FinishRequest;
 import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.openhim.mediator.testing.MockMLLPRegistry;
+import org.openhim.mediator.testing.TestMediatorRoot;
 
 import static org.junit.Assert.*;
 
 public class DefaultOrchestratorTest {
 
     static ActorSystem system;
+    static MockMLLPRegistry registry;
+    static MediatorConfig registryConfig;
 
     @BeforeClass
-    public static void setup() {
+    public static void setup() throws Exception {
         system = ActorSystem.create();
+        registry = new MockMLLPRegistry();
+
+        registryConfig = new MediatorConfig("mediator-orchestrator-test", "localhost", 4500);
+        Properties props = new Properties();
+        props.setProperty("pix.sendingApplication", "openhim");
+        props.setProperty("pix.sendingFacility", "openhim");
+        props.setProperty("pix.receivingApplication", "pix");
+        props.setProperty("pix.receivingFacility", "pix");
+        props.setProperty("xds.registry.host", "localhost");
+        props.setProperty("xds.registry.port", Integer.toString(registry.getPort()));
+        // the first feed is slow while HAPI loads its classes
+        props.setProperty("xds.feed.timeoutMs", "5000");
+        registryConfig.setProperties(props);
+
+        StartupActorsConfig actors = new StartupActorsConfig();
+        actors.addActor("mllp-connector", MLLPConnector.class);
+        actors.addActor("xds-registry-connector", XdsRegistryConnector.class);
+        TestMediatorRoot.launch(system, registryConfig, actors);
     }
 
     @AfterClass
     public static void teardown() {
+        registry.stop();
         JavaTestKit.shutdownActorSystem(system);
         system = null;
     }
 
+    private static String loadResource(String name) throws IOException {
+        return IOUtils.toString(DefaultOrchestratorTest.class.getClassLoader().getResourceAsStream(name));
+    }
+
+    private static FinishRequest post(JavaTestKit kit, String body) {
+        ActorRef orchestrator = system.actorOf(Props.create(DefaultOrchestrator.class, registryConfig));
+        // the orchestrations go to the request handler
+        ActorRef requestHandler = new JavaTestKit(system).getRef();
+        orchestrator.tell(new MediatorHTTPRequest(requestHandler, kit.getRef(), "unit-test", "POST", "http", null, null,
+                "/mpixds-sync", body, Collections.<String, String>emptyMap(),
+                Collections.<Pair<String, String>>emptyList()), kit.getRef());
+        return kit.expectMsgClass(JavaTestKit.duration("5 seconds"), FinishRequest.class);
+    }
+
+    @Test
+    public void testFeedOutcomesMapToHttpStatus() throws Exception {
+        final String notification = loadResource("openempi-add-notification.json");
+
+        new JavaTestKit(system) {{
+            assertEquals(HttpStatus.SC_OK, post(this, notification).getResponseStatus().intValue());
+
+            assertEquals(HttpStatus.SC_BAD_REQUEST, post(this, "{\"source\": ").getResponseStatus().intValue());
+            assertEquals(HttpStatus.SC_BAD_REQUEST, post(this, "").getResponseStatus().intValue());
+
+            registry.setAckCode("AE");
+            try {
+                FinishRequest rejected = post(this, notification);
+                assertEquals(HttpStatus.SC_BAD_GATEWAY, rejected.getResponseStatus().intValue());
+                assertTrue(rejected.getResponse(), rejected.getResponse().contains("AE"));
+            } finally {
+                registry.setAckCode("AA");
+            }
+
+            registry.setResponseDelayMillis(2000);
+            registryConfig.getProperties().setProperty("xds.feed.timeoutMs", "500");
+            try {
+                long start = System.currentTimeMillis();
+                assertEquals(HttpStatus.SC_GATEWAY_TIMEOUT, post(this, notification).getResponseStatus().intValue());
+                assertTrue(System.currentTimeMillis() - start < 2000);
+            } finally {
+                registry.setResponseDelayMillis(0);
+                registryConfig.getProperties().setProperty("xds.feed.timeoutMs", "5000");
+            }
+        }};
+    }
+
+    @Test
+    public void testStatusForErrors() {
+        assertEquals(HttpStatus.SC_BAD_REQUEST, DefaultOrchestrator.statusFor(new IllegalStateException(), false));
+        assertEquals(HttpStatus.SC_GATEWAY_TIMEOUT, DefaultOrchestrator.statusFor(new SocketTimeoutException(), true));
+        // the feed timed out while the notification was still being parsed
+        assertEquals(HttpStatus.SC_GATEWAY_TIMEOUT, DefaultOrchestrator.statusFor(new SocketTimeoutException(), false));
+        assertEquals(HttpStatus.SC_BAD_GATEWAY, DefaultOrchestrator.statusFor(new ConnectException(), true));
+        assertEquals(HttpStatus.SC_INTERNAL_SERVER_ERROR, DefaultOrchestrator.statusFor(new NullPointerException(), true));
+    }
+
     @Before
     public void setUp() throws Exception {
     }
@@ -0,0 +1,138 @@
+package org.openhim.mediator;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Properties;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.event.Logging;
+import akka.testkit.JavaTestKit;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.http.HttpStatus;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openhim.mediator.connectors.XdsRegistryConnector;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.StartupActorsConfig;
+import org.openhim.mediator.engine.connectors.MLLPConnector;
+import org.openhim.mediator.engine.messages.FinishRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.openhim.mediator.testing.MockMLLPRegistry;
+import org.openhim.mediator.testing.TestMediatorRoot;
+
+import static org.junit.Assert.*;
+
+public class MediatorDrainTest {
+
+    static ActorSystem system;
+    static MockMLLPRegistry registry;
+    static String notification;
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        system = ActorSystem.create();
+        registry = new MockMLLPRegistry();
+        notification = IOUtils.toString(MediatorDrainTest.class.getClassLoader().getResourceAsStream("openempi-add-notification.json"));
+        MediatorReadiness.markWarmedUp();
+    }
+
+    @AfterClass
+    public static void teardown() {
+        MediatorReadiness.reset();
+        registry.stop();
+        JavaTestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    private static MediatorConfig launch(String name) {
+        MediatorConfig config = new MediatorConfig(name, "localhost", 4500);
+        Properties props = new Properties();
+        props.setProperty("pix.sendingApplication", "openhim");
+        props.setProperty("pix.sendingFacility", "openhim");
+        props.setProperty("pix.receivingApplication", "pix");
+        props.setProperty("pix.receivingFacility", "pix");
+        props.setProperty("xds.registry.host", "localhost");
+        props.setProperty("xds.registry.port", Integer.toString(registry.getPort()));
+        config.setProperties(props);
+
+        StartupActorsConfig actors = new StartupActorsConfig();
+        actors.addActor("mllp-connector", MLLPConnector.class);
+        actors.addActor("xds-registry-connector", XdsRegistryConnector.class);
+        TestMediatorRoot.launch(system, config, actors);
+        return config;
+    }
+
+    private static void request(JavaTestKit kit, Class<?> orchestratorClass, MediatorConfig config, String path, String body) {
+        ActorRef orchestrator = system.actorOf(Props.create(orchestratorClass, config));
+        orchestrator.tell(new MediatorHTTPRequest(new JavaTestKit(system).getRef(), kit.getRef(), "unit-test", "POST", "http",
+                null, null, path, body, Collections.<String, String>emptyMap(),
+                Collections.<Pair<String, String>>emptyList()), kit.getRef());
+    }
+
+    private static void awaitInProgress(MediatorDrain drain, int expected) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (drain.getInProgress() != expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, drain.getInProgress());
+    }
+
+    @Test
+    public void testInProgressFeedsCompleteAndNewOnesAreTurnedAway() throws Exception {
+        final MediatorConfig config = launch("mediator-drain-test");
+        final MediatorDrain drain = MediatorDrain.forConfig(config);
+
+        new JavaTestKit(system) {{
+            registry.setResponseDelayMillis(500);
+            try {
+                request(this, DefaultOrchestrator.class, config, "/mpixds-sync", notification);
+                awaitInProgress(drain, 1);
+
+                assertTrue(drain.drain(5000, Logging.getLogger(system, "drain-test")));
+                FinishRequest response = expectMsgClass(duration("5 seconds"), FinishRequest.class);
+                assertEquals(HttpStatus.SC_OK, response.getResponseStatus().intValue());
+            } finally {
+                registry.setResponseDelayMillis(0);
+            }
+
+            int received = registry.getMessagesReceived();
+            request(this, DefaultOrchestrator.class, config, "/mpixds-sync", notification);
+            assertEquals(HttpStatus.SC_SERVICE_UNAVAILABLE,
+                    expectMsgClass(duration("5 seconds"), FinishRequest.class).getResponseStatus().intValue());
+            assertEquals(received, registry.getMessagesReceived());
+
+            request(this, ReadinessOrchestrator.class, config, "/ready", null);
+            FinishRequest ready = expectMsgClass(duration("5 seconds"), FinishRequest.class);
+            assertEquals(HttpStatus.SC_SERVICE_UNAVAILABLE, ready.getResponseStatus().intValue());
+            assertTrue(ready.getResponse().contains("shutting down"));
+        }};
+    }
+
+    @Test
+    public void testFeedsStillInProgressAtTheDeadlineAreAnswered() throws Exception {
+        final MediatorConfig config = launch("mediator-drain-deadline-test");
+        final MediatorDrain drain = MediatorDrain.forConfig(config);
+
+        new JavaTestKit(system) {{
+            registry.setResponseDelayMillis(3000);
+            try {
+                request(this, DefaultOrchestrator.class, config, "/mpixds-sync", notification);
+                awaitInProgress(drain, 1);
+
+                long start = System.currentTimeMillis();
+                assertFalse(drain.drain(200, Logging.getLogger(system, "drain-test")));
+                assertTrue(System.currentTimeMillis() - start < 2500);
+
+                FinishRequest response = expectMsgClass(duration("1 second"), FinishRequest.class);
+                assertEquals(HttpStatus.SC_SERVICE_UNAVAILABLE, response.getResponseStatus().intValue());
+                assertEquals(0, drain.getInProgress());
+            } finally {
+                registry.setResponseDelayMillis(0);
+            }
+        }};
+    }
+}
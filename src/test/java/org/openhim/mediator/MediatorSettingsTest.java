@@ -0,0 +1,133 @@
+package org.openhim.mediator;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import akka.actor.ActorSystem;
+import akka.event.Logging;
+import akka.testkit.JavaTestKit;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.messages.SettingsReloaded;
+
+import static org.junit.Assert.*;
+
+public class MediatorSettingsTest {
+
+    static ActorSystem system;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create();
+    }
+
+    @AfterClass
+    public static void teardown() {
+        JavaTestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    private static Properties registryProperties(String host, String port) {
+        Properties props = new Properties();
+        props.setProperty("pix.sendingApplication", "openhim");
+        props.setProperty("xds.registry.host", host);
+        props.setProperty("xds.registry.port", port);
+        return props;
+    }
+
+    private static MediatorConfig config(Properties props) {
+        MediatorConfig config = new MediatorConfig("mediator-settings-test", "localhost", 4500);
+        config.setProperties(props);
+        return config;
+    }
+
+    @Test
+    public void testReloadSwapsTheSnapshot() {
+        final MediatorConfig config = config(registryProperties("registry-a", "3602"));
+        MediatorSettings.Holder holder = MediatorSettings.holderFor(config);
+        MediatorSettings before = holder.get();
+        assertEquals("registry-a", before.getRegistryHost());
+        assertEquals(3602, before.getRegistryPort());
+        assertEquals("openhim", before.getSendingApplication());
+
+        new JavaTestKit(system) {{
+            system.eventStream().subscribe(getRef(), SettingsReloaded.class);
+
+            Properties props = registryProperties("registry-b", "3702");
+            props.remove("pix.sendingApplication");
+            MediatorSettings.reload(config, props, system);
+
+            SettingsReloaded reloaded = expectMsgClass(duration("5 seconds"), SettingsReloaded.class);
+            assertSame(config, reloaded.getConfig());
+            system.eventStream().unsubscribe(getRef());
+        }};
+
+        MediatorSettings after = holder.get();
+        assertEquals("registry-b", after.getRegistryHost());
+        assertEquals(3702, after.getRegistryPort());
+        assertEquals("registry-b", config.getProperty("xds.registry.host"));
+        assertNull(config.getProperty("pix.sendingApplication"));
+
+        // snapshots don't change
+        assertEquals("registry-a", before.getRegistryHost());
+        assertEquals("openhim", before.getSendingApplication());
+    }
+
+    @Test
+    public void testInvalidReloadKeepsTheSettings() {
+        MediatorConfig config = config(registryProperties("registry-a", "3602"));
+        MediatorSettings.Holder holder = MediatorSettings.holderFor(config);
+        MediatorSettings before = holder.get();
+
+        try {
+            MediatorSettings.reload(config, registryProperties("registry-b", "not-a-port"), system);
+            fail("expected the reload to be rejected");
+        } catch (NumberFormatException ex) {
+            // expected
+        }
+
+        assertSame(before, holder.get());
+        assertEquals("3602", config.getProperty("xds.registry.port"));
+    }
+
+    @Test
+    public void testChangedConfigFileIsReloaded() throws Exception {
+        final File file = folder.newFile("mediator.properties");
+        write(file, registryProperties("registry-a", "3602"));
+        final MediatorConfig config = config(registryProperties("registry-a", "3602"));
+        final MediatorSettings.Holder holder = MediatorSettings.holderFor(config);
+
+        Thread watcher = new ConfigFileWatcher(file, config, system, Logging.getLogger(system, "test")).start();
+        try {
+            // give the watch service time to register
+            Thread.sleep(500);
+            write(file, registryProperties("registry-b", "3602"));
+
+            new JavaTestKit(system) {{
+                new AwaitCond(duration("10 seconds"), duration("100 millis")) {
+                    @Override
+                    protected boolean cond() {
+                        return "registry-b".equals(holder.get().getRegistryHost());
+                    }
+                };
+            }};
+        } finally {
+            watcher.interrupt();
+        }
+    }
+
+    private static void write(File file, Properties props) throws Exception {
+        try (OutputStream out = new FileOutputStream(file)) {
+            props.store(out, null);
+        }
+    }
+}
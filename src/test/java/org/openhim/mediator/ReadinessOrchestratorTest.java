@@ -0,0 +1,74 @@
+package org.openhim.mediator;
+
+import java.util.Collections;
+import java.util.Properties;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.testkit.JavaTestKit;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.http.HttpStatus;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.FinishRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.openhim.mediator.messages.RegistryStats;
+
+import static org.junit.Assert.*;
+
+public class ReadinessOrchestratorTest {
+
+    static ActorSystem system;
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create();
+    }
+
+    @AfterClass
+    public static void teardown() {
+        JavaTestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    @After
+    public void resetReadiness() {
+        MediatorReadiness.reset();
+    }
+
+    private static MediatorConfig config() {
+        MediatorConfig config = new MediatorConfig("mediator-readiness-test", "localhost", 4500);
+        Properties props = new Properties();
+        props.setProperty("mediator.ready.maxRegistryLatencyMs", "1000");
+        props.setProperty("mediator.ready.maxInFlight", "10");
+        config.setProperties(props);
+        return config;
+    }
+
+    @Test
+    public void testNotReadyWhileWarmingUp() {
+        new JavaTestKit(system) {{
+            ActorRef readiness = system.actorOf(Props.create(ReadinessOrchestrator.class, config()));
+            readiness.tell(new MediatorHTTPRequest(getRef(), getRef(), "unit-test", "GET", "http", null, null, "/ready",
+                    null, Collections.<String, String>emptyMap(), Collections.<Pair<String, String>>emptyList()), getRef());
+
+            FinishRequest response = expectMsgClass(JavaTestKit.duration("5 seconds"), FinishRequest.class);
+            assertEquals(HttpStatus.SC_SERVICE_UNAVAILABLE, response.getResponseStatus().intValue());
+            assertTrue(response.getResponse().contains("warming up"));
+        }};
+    }
+
+    @Test
+    public void testNotReadyWhenThresholdsAreCrossed() {
+        MediatorReadiness.markWarmedUp();
+        MediatorConfig config = config();
+
+        assertNull(MediatorReadiness.notReadyReason(config, new RegistryStats(200, 900, 50, 10, 0, 50, 0, null, null, null)));
+        assertNotNull(MediatorReadiness.notReadyReason(config, new RegistryStats(200, 1500, 50, 0, 0, 50, 0, null, null, null)));
+        assertNotNull(MediatorReadiness.notReadyReason(config, new RegistryStats(200, 900, 50, 11, 0, 50, 0, null, null, null)));
+    }
+}
@@ -0,0 +1,131 @@
+package org.openhim.mediator.capture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class CaptureTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String loadResource(String name) throws IOException {
+        return IOUtils.toString(CaptureTest.class.getClassLoader().getResourceAsStream(name));
+    }
+
+    @Test
+    public void testCaptureIsReadBackRedactedAndRotated() throws Exception {
+        String add = loadResource("openempi-add-notification.json");
+        File dir = folder.newFolder("capture");
+        // small files, so every few records start a new file
+        TrafficCapture capture = new TrafficCapture(dir, 1000, 3, new CaptureRedactor("test-key"));
+
+        List<CaptureRecord> records = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            records.add(new CaptureRecord(1000 + i, "/mpixds-sync", i % 2 == 0 ? "bulk" : null, add));
+        }
+        capture.write(records);
+
+        List<File> files = TrafficCapture.files(dir);
+        assertEquals(3, files.size());
+
+        List<CaptureRecord> read = CaptureReader.read(Collections.singletonList(dir));
+        assertFalse(read.isEmpty());
+        assertTrue(read.size() < records.size());
+        CaptureRecord last = read.get(read.size() - 1);
+        assertEquals(1019, last.getTimestamp());
+        assertEquals("/mpixds-sync", last.getPath());
+        assertNull(last.getPriority());
+        assertEquals("bulk", read.get(read.size() - 2).getPriority());
+
+        // the identifiers are replaced, the same way every time; the structure is kept
+        assertFalse(last.getBody().contains("ECID-1234"));
+        assertFalse(last.getBody().contains("CLINIC-99"));
+        assertTrue(last.getBody().contains("\"source\":\"ADD\""));
+        assertTrue(last.getBody().contains("\"identifierDomainName\":\"OpenEMPI\""));
+        assertEquals(last.getBody(), read.get(0).getBody());
+        assertEquals(last.getBody(), new CaptureRedactor("test-key").redact(add));
+        assertNotEquals(last.getBody(), new CaptureRedactor("other-key").redact(add));
+    }
+
+    @Test
+    public void testTruncatedCaptureIsReadUpToTheCut() throws Exception {
+        File dir = folder.newFolder("truncated");
+        TrafficCapture capture = new TrafficCapture(dir, Long.MAX_VALUE, 1, null);
+
+        List<CaptureRecord> records = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            records.add(new CaptureRecord(i, "/mpixds-sync", null, "{\"n\":" + i + "}"));
+        }
+        capture.write(records);
+
+        File file = TrafficCapture.files(dir).get(0);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(raf.length() - 10);
+        }
+
+        List<CaptureRecord> read = CaptureReader.read(Arrays.asList(file));
+        assertFalse(read.isEmpty());
+        for (int i = 0; i < read.size(); i++) {
+            assertEquals("{\"n\":" + i + "}", read.get(i).getBody());
+        }
+    }
+
+    @Test
+    public void testReplayScalesTheCapturedSpacing() throws Exception {
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                InputStream in = exchange.getRequestBody();
+                received.add(exchange.getRequestURI().getPath() + " " + exchange.getRequestHeaders().getFirst("X-Feed-Priority")
+                        + " " + new String(IOUtils.toByteArray(in), StandardCharsets.UTF_8));
+                int status = exchange.getRequestURI().getPath().endsWith("/bulk") ? 500 : 201;
+                exchange.sendResponseHeaders(status, -1);
+                exchange.close();
+            }
+        });
+        server.start();
+
+        try {
+            String url = "http://localhost:" + server.getAddress().getPort();
+            List<CaptureRecord> records = Arrays.asList(
+                    new CaptureRecord(0, "/mpixds-sync", null, "{}"),
+                    new CaptureRecord(1000, "/mpixds-sync", "realtime", "{}"),
+                    new CaptureRecord(2000, "/mpixds-sync/bulk", null, "{}"));
+
+            // 2 s of capture at 4x
+            CaptureReplay.Report report = new CaptureReplay(url, 4, 2, "X-Feed-Priority").run(records);
+            assertEquals(3, report.getSent());
+            assertEquals(Integer.valueOf(2), report.getStatusCounts().get(201));
+            assertEquals(Integer.valueOf(1), report.getStatusCounts().get(500));
+            assertTrue(report.getElapsedMillis() >= 500);
+            assertTrue(received.contains("/mpixds-sync realtime {}"));
+            assertTrue(received.contains("/mpixds-sync/bulk null {}"));
+
+            report = new CaptureReplay(url, CaptureReplay.MAX_SPEED, 2, "X-Feed-Priority").run(records);
+            assertEquals(3, report.getSent());
+            assertTrue(report.getElapsedMillis() < 500);
+        } finally {
+            server.stop(0);
+        }
+    }
+}
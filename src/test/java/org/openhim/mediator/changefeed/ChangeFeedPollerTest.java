@@ -0,0 +1,255 @@
+package org.openhim.mediator.changefeed;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import akka.actor.ActorSystem;
+import akka.testkit.JavaTestKit;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.commons.io.IOUtils;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openhim.mediator.connectors.XdsRegistryConnector;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.StartupActorsConfig;
+import org.openhim.mediator.engine.connectors.MLLPConnector;
+import org.openhim.mediator.testing.MockMLLPRegistry;
+import org.openhim.mediator.testing.TestMediatorRoot;
+
+import static org.junit.Assert.*;
+
+public class ChangeFeedPollerTest {
+
+    static ActorSystem system;
+    static MockMLLPRegistry registry;
+    static HttpServer changeFeed;
+    static final List<String> requestedCursors = new CopyOnWriteArrayList<>();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static String loadResource(String name) throws IOException {
+        return IOUtils.toString(ChangeFeedPollerTest.class.getClassLoader().getResourceAsStream(name));
+    }
+
+    /**
+     * Serves the pages [add, add, leave] and [add], and then no more events. /same-patient serves one page of
+     * three adds for the same patient.
+     */
+    @BeforeClass
+    public static void setup() throws Exception {
+        system = ActorSystem.create();
+        registry = new MockMLLPRegistry();
+
+        String add = loadResource("openempi-add-notification.json");
+        String leave = loadResource("openempi-update-notification.json").replace("\"JOIN\"", "\"LEAVE\"");
+        final String firstPage = "{\"events\": [" + add.replace("ECID-1234", "ECID-1") + "," +
+                add.replace("ECID-1234", "ECID-2") + "," + leave + "], \"nextCursor\": \"3\"}";
+        final String secondPage = "{\"events\": [" + add.replace("ECID-1234", "ECID-3") + "], \"nextCursor\": \"4\"}";
+        String samePatient = add.replace("ECID-1234", "ECID-5").replace("CLINIC-99", "CLINIC-5");
+        final String samePatientPage = "{\"events\": [" + samePatient + "," + samePatient + "," + samePatient +
+                "], \"nextCursor\": \"s3\"}";
+
+        changeFeed = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        changeFeed.createContext("/changes", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String query = exchange.getRequestURI().getQuery();
+                String cursor = query.contains("cursor=") ? query.substring(query.indexOf("cursor=") + 7) : null;
+                requestedCursors.add(String.valueOf(cursor));
+
+                String page;
+                if (cursor == null) {
+                    page = firstPage;
+                } else if ("3".equals(cursor)) {
+                    page = secondPage;
+                } else {
+                    page = "{\"events\": [], \"nextCursor\": \"" + cursor + "\"}";
+                }
+
+                byte[] body = page.getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                exchange.close();
+            }
+        });
+        changeFeed.createContext("/same-patient", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                String query = exchange.getRequestURI().getQuery();
+                String page = query.contains("cursor=") ? "{\"events\": [], \"nextCursor\": \"s3\"}" : samePatientPage;
+
+                byte[] body = page.getBytes(StandardCharsets.UTF_8);
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream out = exchange.getResponseBody();
+                out.write(body);
+                exchange.close();
+            }
+        });
+        changeFeed.start();
+    }
+
+    @AfterClass
+    public static void teardown() {
+        changeFeed.stop(0);
+        registry.stop();
+        JavaTestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    private static MediatorConfig launch(String name, File cursorFile) {
+        return launch(name, cursorFile, new Properties());
+    }
+
+    private static MediatorConfig launch(String name, File cursorFile, Properties extra) {
+        MediatorConfig config = new MediatorConfig(name, "localhost", 4800);
+        Properties props = new Properties();
+        props.setProperty("pix.sendingApplication", "openhim");
+        props.setProperty("pix.sendingFacility", "openhim");
+        props.setProperty("pix.receivingApplication", "pix");
+        props.setProperty("pix.receivingFacility", "pix");
+        props.setProperty("xds.registry.host", "localhost");
+        props.setProperty("xds.registry.port", Integer.toString(registry.getPort()));
+        props.setProperty("openempi.changes.enabled", "true");
+        props.setProperty("openempi.changes.url", "http://localhost:" + changeFeed.getAddress().getPort() + "/changes");
+        props.setProperty("openempi.changes.cursorFile", cursorFile.getPath());
+        props.setProperty("openempi.changes.pollIntervalMs", "50");
+        props.putAll(extra);
+        config.setProperties(props);
+
+        StartupActorsConfig actors = new StartupActorsConfig();
+        actors.addActor("mllp-connector", MLLPConnector.class);
+        actors.addActor("xds-registry-connector", XdsRegistryConnector.class);
+        actors.addActor("change-feed", ChangeFeedPoller.class);
+        TestMediatorRoot.launch(system, config, actors);
+        return config;
+    }
+
+    private static void awaitCursor(ChangeFeedCursor cursor, String expected) throws Exception {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!expected.equals(cursor.load()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(expected, cursor.load());
+    }
+
+    @Test
+    public void testPullsAllPagesAndSavesTheCursor() throws Exception {
+        File cursorFile = new File(folder.getRoot(), "cursor");
+        ChangeFeedCursor cursor = new ChangeFeedCursor(cursorFile);
+        int received = registry.getMessagesReceived();
+        int requests = requestedCursors.size();
+
+        launch("mediator-change-feed-test", cursorFile);
+        awaitCursor(cursor, "4");
+        // the leave needs no feed
+        assertEquals(received + 3, registry.getMessagesReceived());
+        List<String> cursors = requestedCursors.subList(requests, requestedCursors.size());
+        assertTrue(cursors.contains("null"));
+        assertTrue(cursors.contains("3"));
+    }
+
+    @Test
+    public void testStartsFromTheSavedCursor() throws Exception {
+        File cursorFile = new File(folder.getRoot(), "cursor");
+        ChangeFeedCursor cursor = new ChangeFeedCursor(cursorFile);
+        cursor.save("3");
+        int received = registry.getMessagesReceived();
+        int requests = requestedCursors.size();
+
+        launch("mediator-change-feed-restart-test", cursorFile);
+        awaitCursor(cursor, "4");
+        assertEquals(received + 1, registry.getMessagesReceived());
+        List<String> cursors = requestedCursors.subList(requests, requestedCursors.size());
+        assertTrue(cursors.contains("3"));
+        assertFalse(cursors.contains("null"));
+    }
+
+    @Test
+    public void testFailedEventsAreRetriedWithoutMovingTheCursor() throws Exception {
+        File cursorFile = new File(folder.getRoot(), "cursor");
+        ChangeFeedCursor cursor = new ChangeFeedCursor(cursorFile);
+        int received = registry.getMessagesReceived();
+
+        // the registry doesn't answer in time
+        registry.setResponseDelayMillis(1000);
+        try {
+            Properties props = new Properties();
+            props.setProperty("xds.feed.timeoutMs", "200");
+            MediatorConfig config = launch("mediator-change-feed-retry-test", cursorFile, props);
+            Thread.sleep(1500);
+            assertNull(cursor.load());
+            config.getProperties().setProperty("xds.feed.timeoutMs", "5000");
+        } finally {
+            registry.setResponseDelayMillis(0);
+        }
+        awaitCursor(cursor, "4");
+        assertTrue(registry.getMessagesReceived() - received > 3);
+    }
+
+    @Test
+    public void testEventsForTheSamePatientAreHandledInOrder() throws Exception {
+        File cursorFile = new File(folder.getRoot(), "cursor");
+        ChangeFeedCursor cursor = new ChangeFeedCursor(cursorFile);
+        int received = registry.getMessagesReceived();
+
+        registry.setResponseDelayMillis(300);
+        try {
+            Properties props = new Properties();
+            props.setProperty("openempi.changes.url", "http://localhost:" + changeFeed.getAddress().getPort() + "/same-patient");
+            launch("mediator-change-feed-order-test", cursorFile, props);
+
+            long deadline = System.currentTimeMillis() + 5000;
+            while (registry.getMessagesReceived() == received && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            // the next event waits for the first to be acknowledged
+            Thread.sleep(150);
+            assertEquals(received + 1, registry.getMessagesReceived());
+
+            awaitCursor(cursor, "s3");
+            assertEquals(received + 3, registry.getMessagesReceived());
+        } finally {
+            registry.setResponseDelayMillis(0);
+        }
+    }
+
+    @Test
+    public void testPatientKeys() {
+        Set<String> keys = ChangeFeedPage.patientKeys("{\"preUpdateIdentifiers\": [{\"identifier\": \"1\", " +
+                "\"identifierDomain\": {\"identifierDomainName\": \"OpenEMPI\"}}], \"postUpdateIdentifiers\": " +
+                "[{\"identifier\": \"2\", \"identifierDomain\": {\"identifierDomainName\": \"OpenEMPI\"}}]}");
+        assertEquals(new HashSet<>(Arrays.asList("OpenEMPI|1", "OpenEMPI|2")), keys);
+        assertTrue(ChangeFeedPage.patientKeys("{\"source\": \"ADD\"}").isEmpty());
+        assertTrue(ChangeFeedPage.patientKeys("not json").isEmpty());
+    }
+
+    @Test
+    public void testParsePage() {
+        ChangeFeedPage page = ChangeFeedPage.parse("{\"events\": [{\"source\": \"ADD\"}], \"nextCursor\": \"7\"}");
+        assertEquals(1, page.getEvents().size());
+        assertEquals("7", page.getNextCursor());
+        assertNull(ChangeFeedPage.parse("{\"events\": []}").getNextCursor());
+
+        try {
+            ChangeFeedPage.parse("{\"events\": [{\"source\": \"ADD\"}]}");
+            fail("a page of events needs a nextCursor");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
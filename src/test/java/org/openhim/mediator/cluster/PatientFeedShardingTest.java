@@ -0,0 +1,298 @@
+package org.openhim.mediator.cluster;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.cluster.Cluster;
+import akka.cluster.Member;
+import akka.cluster.MemberStatus;
+import akka.testkit.JavaTestKit;
+import com.typesafe.config.ConfigFactory;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.openhim.mediator.connectors.XdsRegistryConnector;
+import org.openhim.mediator.datatypes.AssigningAuthority;
+import org.openhim.mediator.deadletters.DeadLetterActor;
+import org.openhim.mediator.datatypes.Identifier;
+import org.openhim.mediator.engine.CoreResponse;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.StartupActorsConfig;
+import org.openhim.mediator.engine.connectors.MLLPConnector;
+import org.openhim.mediator.engine.messages.MediatorSocketRequest;
+import org.openhim.mediator.engine.messages.MediatorSocketResponse;
+import org.openhim.mediator.messages.ShardedFeedRequest;
+import org.openhim.mediator.messages.ShardedFeedResponse;
+import org.openhim.mediator.testing.MockMLLPRegistry;
+import org.openhim.mediator.testing.TestMediatorRoot;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs several mediator cluster nodes in one JVM, on loopback. Each node sends its feeds to its own stub registry,
+ * so the registries show which node handled a feed.
+ */
+public class PatientFeedShardingTest {
+
+    static class Node {
+        final MockMLLPRegistry registry;
+        final ActorSystem system;
+        final ActorRef region;
+
+        Node() throws Exception {
+            registry = new MockMLLPRegistry();
+
+            MediatorConfig config = new MediatorConfig("mediator-cluster-test", "localhost", 4500);
+            Properties props = new Properties();
+            props.setProperty("pix.sendingApplication", "openhim");
+            props.setProperty("pix.sendingFacility", "openhim");
+            props.setProperty("pix.receivingApplication", "pix");
+            props.setProperty("pix.receivingFacility", "pix");
+            props.setProperty("xds.registry.host", "localhost");
+            props.setProperty("xds.registry.port", Integer.toString(registry.getPort()));
+            props.setProperty("mediator.cluster.enabled", "true");
+            props.setProperty("mediator.cluster.host", "127.0.0.1");
+            props.setProperty("mediator.cluster.port", "0");
+            props.setProperty("mediator.cluster.shards", "20");
+            config.setProperties(props);
+
+            system = ActorSystem.create(MediatorCluster.SYSTEM_NAME,
+                    ConfigFactory.parseString("akka.persistence.snapshot-store.local.dir = \"target/cluster-snapshots\"")
+                            .withFallback(MediatorCluster.akkaConfig(config)));
+
+            StartupActorsConfig actors = new StartupActorsConfig();
+            actors.addActor("mllp-connector", MLLPConnector.class);
+            actors.addActor("xds-registry-connector", XdsRegistryConnector.class);
+            TestMediatorRoot.launch(system, config, actors);
+
+            region = MediatorCluster.startFeedRegion(system, config);
+        }
+
+        Cluster cluster() {
+            return Cluster.get(system);
+        }
+
+        void stop() {
+            JavaTestKit.shutdownActorSystem(system);
+            registry.stop();
+        }
+    }
+
+    static Node node1;
+    static Node node2;
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        node1 = new Node();
+        node2 = new Node();
+
+        node1.cluster().join(node1.cluster().selfAddress());
+        node2.cluster().join(node1.cluster().selfAddress());
+        awaitMembersUp(2);
+    }
+
+    @AfterClass
+    public static void teardown() {
+        node2.stop();
+        node1.stop();
+    }
+
+    private static void awaitMembersUp(final int count) {
+        new JavaTestKit(node1.system) {{
+            new AwaitCond(duration("20 seconds"), duration("100 millis")) {
+                @Override
+                protected boolean cond() {
+                    int up = 0;
+                    for (Member member : node1.cluster().state().getMembers()) {
+                        if (member.status() == MemberStatus.up()) {
+                            up++;
+                        }
+                    }
+                    return up == count;
+                }
+            };
+        }};
+    }
+
+    private static List<Identifier> ids(String id) {
+        return Collections.singletonList(new Identifier(id, new AssigningAuthority("OpenEMPI", "2.16.840.1.113883.4.357", "ISO")));
+    }
+
+    private static ShardedFeedRequest register(String patient, ActorRef replyTo, String correlationId) {
+        return new ShardedFeedRequest(ShardedFeedRequest.Operation.REGISTER, ids(patient), null, replyTo, correlationId);
+    }
+
+    private static JavaTestKit probe(ActorSystem system) {
+        JavaTestKit probe = new JavaTestKit(system);
+        probe.new IgnoreMsg() {
+            @Override
+            protected boolean ignore(Object msg) {
+                return msg instanceof CoreResponse.Orchestration;
+            }
+        };
+        return probe;
+    }
+
+    private static List<ShardedFeedResponse> expectResponses(JavaTestKit probe, int count) {
+        List<ShardedFeedResponse> responses = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            responses.add(probe.expectMsgClass(JavaTestKit.duration("20 seconds"), ShardedFeedResponse.class));
+        }
+        return responses;
+    }
+
+    @Test
+    public void testFeedsAreSpreadAcrossNodes() throws Exception {
+        JavaTestKit probe = probe(node2.system);
+        int received1 = node1.registry.getMessagesReceived();
+        int received2 = node2.registry.getMessagesReceived();
+
+        for (int i = 0; i < 20; i++) {
+            node2.region.tell(register("spread-" + i, probe.getRef(), Integer.toString(i)), probe.getRef());
+        }
+
+        for (ShardedFeedResponse response : expectResponses(probe, 20)) {
+            assertTrue(response.isSuccessful());
+        }
+
+        int handled1 = node1.registry.getMessagesReceived() - received1;
+        int handled2 = node2.registry.getMessagesReceived() - received2;
+        assertEquals(20, handled1 + handled2);
+        assertTrue("node 1 handled no feeds", handled1 > 0);
+        assertTrue("node 2 handled no feeds", handled2 > 0);
+    }
+
+    @Test
+    public void testFeedsForOnePatientAreHandledInOrderByOneNode() throws Exception {
+        JavaTestKit probe = probe(node1.system);
+        int received1 = node1.registry.getMessagesReceived();
+        int received2 = node2.registry.getMessagesReceived();
+
+        node1.registry.setResponseDelayMillis(20);
+        node2.registry.setResponseDelayMillis(20);
+        try {
+            for (int i = 0; i < 5; i++) {
+                node1.region.tell(register("ordered", probe.getRef(), Integer.toString(i)), probe.getRef());
+            }
+
+            List<ShardedFeedResponse> responses = expectResponses(probe, 5);
+            for (int i = 0; i < 5; i++) {
+                assertTrue(responses.get(i).isSuccessful());
+                assertEquals(Integer.toString(i), responses.get(i).getCorrelationId());
+            }
+        } finally {
+            node1.registry.setResponseDelayMillis(0);
+            node2.registry.setResponseDelayMillis(0);
+        }
+
+        int handled1 = node1.registry.getMessagesReceived() - received1;
+        int handled2 = node2.registry.getMessagesReceived() - received2;
+        assertTrue((handled1 == 5 && handled2 == 0) || (handled1 == 0 && handled2 == 5));
+    }
+
+    @Test
+    public void testSpilledFeedsDontHoldUpThePatientsNextFeed() throws Exception {
+        MockMLLPRegistry registry = new MockMLLPRegistry();
+        try {
+            MediatorConfig config = new MediatorConfig("mediator-cluster-spill-test", "localhost", 4500);
+            Properties props = new Properties();
+            props.setProperty("pix.sendingApplication", "openhim");
+            props.setProperty("pix.sendingFacility", "openhim");
+            props.setProperty("pix.receivingApplication", "pix");
+            props.setProperty("pix.receivingFacility", "pix");
+            props.setProperty("xds.registry.host", "localhost");
+            props.setProperty("xds.registry.port", Integer.toString(registry.getPort()));
+            props.setProperty("xds.registry.readTimeout", "10000");
+            props.setProperty("xds.registry.limit.enabled", "false");
+            props.setProperty("xds.registry.spill.enabled", "true");
+            props.setProperty("xds.registry.spill.threshold", "1");
+            props.setProperty("xds.registry.spill.dir", Files.createTempDirectory("spill").toString());
+            props.setProperty("xds.deadLetters.enabled", "true");
+            props.setProperty("xds.deadLetters.file", File.createTempFile("dead-letters", ".jsonl").getPath());
+            config.setProperties(props);
+
+            StartupActorsConfig actors = new StartupActorsConfig();
+            actors.addActor("mllp-connector", MLLPConnector.class);
+            actors.addActor("xds-registry-connector", XdsRegistryConnector.class);
+            actors.addActor("dead-letters", DeadLetterActor.class);
+            TestMediatorRoot.launch(node1.system, config, actors);
+
+            JavaTestKit probe = probe(node1.system);
+            registry.setResponseDelayMillis(3000);
+
+            // takes up the connector's room in memory, so that the feeds are spilled
+            node1.system.actorSelection(config.userPathFor("xds-registry-connector")).tell(
+                    new MediatorSocketRequest(probe.getRef(), probe.getRef(), "test", "blocker", "localhost", registry.getPort(),
+                            "MSH|^~\\&|openhim|openhim|pix|pix|20150101000000||ADT^A04^ADT_A01|blocker|P|2.3.1\r"), probe.getRef());
+            Thread.sleep(200);
+
+            ActorRef entity = node1.system.actorOf(Props.create(PatientFeedEntity.class, config));
+            for (int i = 0; i < 3; i++) {
+                entity.tell(register("spilled", probe.getRef(), Integer.toString(i)), probe.getRef());
+            }
+
+            // committed one after the other, well before the blocker is answered
+            for (int i = 0; i < 3; i++) {
+                ShardedFeedResponse response = probe.expectMsgClass(JavaTestKit.duration("2 seconds"), ShardedFeedResponse.class);
+                assertEquals(Integer.toString(i), response.getCorrelationId());
+                assertTrue(response.isSuccessful());
+                assertTrue(response.isQueued());
+            }
+            probe.expectMsgClass(JavaTestKit.duration("5 seconds"), MediatorSocketResponse.class);
+        } finally {
+            registry.stop();
+        }
+    }
+
+    @Test
+    public void testShardsMoveWhenNodesJoinAndLeave() throws Exception {
+        Node node3 = new Node();
+        try {
+            node3.cluster().join(node1.cluster().selfAddress());
+            awaitMembersUp(3);
+
+            // the joining node takes on new shards
+            JavaTestKit probe = probe(node3.system);
+            for (int i = 0; i < 20; i++) {
+                node3.region.tell(register("moving-" + i, probe.getRef(), Integer.toString(i)), probe.getRef());
+            }
+            expectResponses(probe, 20);
+            assertTrue("node 3 handled no feeds", node3.registry.getMessagesReceived() > 0);
+
+            // and hands them back when it leaves
+            node1.cluster().leave(node3.cluster().selfAddress());
+            awaitMembersUp(2);
+            new JavaTestKit(node1.system) {{
+                new AwaitCond(duration("20 seconds"), duration("100 millis")) {
+                    @Override
+                    protected boolean cond() {
+                        int members = 0;
+                        for (Member ignored : node1.cluster().state().getMembers()) {
+                            members++;
+                        }
+                        return members == 2;
+                    }
+                };
+            }};
+            int handled3 = node3.registry.getMessagesReceived();
+
+            probe = probe(node1.system);
+            for (int i = 0; i < 20; i++) {
+                node1.region.tell(register("moving-" + i, probe.getRef(), Integer.toString(i)), probe.getRef());
+            }
+            for (ShardedFeedResponse response : expectResponses(probe, 20)) {
+                assertTrue(response.isSuccessful());
+            }
+            assertEquals(handled3, node3.registry.getMessagesReceived());
+        } finally {
+            node3.stop();
+        }
+    }
+}
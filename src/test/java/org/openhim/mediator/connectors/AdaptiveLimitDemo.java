@@ -0,0 +1,140 @@
+package org.openhim.mediator.connectors;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import akka.actor.ActorNotFound;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.actor.UntypedActor;
+import akka.pattern.Patterns;
+import akka.util.Timeout;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.StartupActorsConfig;
+import org.openhim.mediator.engine.connectors.MLLPConnector;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.MediatorSocketRequest;
+import org.openhim.mediator.engine.messages.MediatorSocketResponse;
+import org.openhim.mediator.messages.GetRegistryStats;
+import org.openhim.mediator.messages.RegistryStats;
+import org.openhim.mediator.testing.MockMLLPRegistry;
+import org.openhim.mediator.testing.TestMediatorRoot;
+import scala.concurrent.Await;
+import scala.concurrent.duration.Duration;
+
+/**
+ * Shows the adaptive concurrency limit following the registry: a stub registry that processes a fixed number of
+ * messages at a time is kept busy by more clients than it can serve, and is slowed down and sped up again.
+ * Prints the limit, round trip times and throughput every second.
+ * <br/><br/>
+ * Not a unit test; run with
+ * <pre>java -cp target/classes:target/test-classes:&lt;dependencies&gt; org.openhim.mediator.connectors.AdaptiveLimitDemo [clients] [registryCapacity]</pre>
+ */
+public class AdaptiveLimitDemo {
+
+    /**
+     * Sends a new message as soon as the previous one is acknowledged
+     */
+    public static class Client extends UntypedActor {
+        private final ActorRef connector;
+        private final int port;
+        private final AtomicInteger acknowledged;
+        private int sequence = 0;
+
+        public Client(ActorRef connector, int port, AtomicInteger acknowledged) {
+            this.connector = connector;
+            this.port = port;
+            this.acknowledged = acknowledged;
+        }
+
+        private void sendNext() {
+            String id = getSelf().path().name() + "-" + sequence++;
+            String msg = "MSH|^~\\&|openhim|openhim|pix|pix|20150101000000||ADT^A04^ADT_A01|" + id + "|P|2.3.1\r";
+            connector.tell(new MediatorSocketRequest(getSelf(), getSelf(), "demo", id, "localhost", port, msg), getSelf());
+        }
+
+        @Override
+        public void preStart() {
+            sendNext();
+        }
+
+        @Override
+        public void onReceive(Object msg) throws Exception {
+            if (msg instanceof MediatorSocketResponse) {
+                acknowledged.incrementAndGet();
+                sendNext();
+            } else if (msg instanceof ExceptError) {
+                sendNext();
+            }
+        }
+    }
+
+    private static void phase(String name, ActorRef connector, MockMLLPRegistry registry, long delay, int seconds,
+            AtomicInteger acknowledged) throws Exception {
+        registry.setResponseDelayMillis(delay);
+        System.out.println("-- " + name + ": registry delay " + delay + " ms");
+
+        for (int i = 0; i < seconds; i++) {
+            int before = acknowledged.get();
+            Thread.sleep(1000);
+            RegistryStats stats = (RegistryStats) Await.result(
+                    Patterns.ask(connector, new GetRegistryStats(), 5000), Duration.create(5, TimeUnit.SECONDS));
+            System.out.println(String.format("limit %4d  in flight %4d  queued %4d  p95 %5d ms  %6d msg/s",
+                    stats.getConcurrencyLimit(), stats.getInFlight(), stats.getQueued(), stats.getLatencyP95Millis(),
+                    acknowledged.get() - before));
+        }
+    }
+
+    public static void main(String... args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        int capacity = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+
+        MockMLLPRegistry registry = new MockMLLPRegistry();
+        registry.setCapacity(capacity);
+
+        MediatorConfig config = new MediatorConfig("demo", "localhost", 0);
+        Properties props = new Properties();
+        props.setProperty("xds.registry.connector", "blocking");
+        props.setProperty("xds.registry.connector.threads", Integer.toString(clients));
+        props.setProperty("xds.registry.limit.enabled", "true");
+        props.setProperty("mediator.health.latencySamples", "50");
+        config.setProperties(props);
+
+        ActorSystem system = ActorSystem.create("demo");
+        try {
+            StartupActorsConfig actors = new StartupActorsConfig();
+            actors.addActor("mllp-connector", MLLPConnector.class);
+            actors.addActor("blocking-mllp-connector", BlockingMLLPConnector.class);
+            TestMediatorRoot.launch(system, config, actors);
+            // the root actor starts the connectors asynchronously
+            for (int attempt = 0; ; attempt++) {
+                try {
+                    Await.result(system.actorSelection(config.userPathFor("blocking-mllp-connector")).resolveOne(
+                            new Timeout(1, TimeUnit.SECONDS)), Duration.create(1, TimeUnit.SECONDS));
+                    break;
+                } catch (ActorNotFound ex) {
+                    if (attempt == 50) {
+                        throw ex;
+                    }
+                    Thread.sleep(100);
+                }
+            }
+
+            ActorRef connector = system.actorOf(Props.create(XdsRegistryConnector.class, config), "xds-registry-connector");
+            AtomicInteger acknowledged = new AtomicInteger();
+            for (int i = 0; i < clients; i++) {
+                system.actorOf(Props.create(Client.class, connector, registry.getPort(), acknowledged), "client-" + i);
+            }
+
+            System.out.println(clients + " clients, registry processes " + capacity + " messages at a time");
+            phase("fast", connector, registry, 5, 10, acknowledged);
+            phase("slow", connector, registry, 50, 10, acknowledged);
+            phase("fast again", connector, registry, 5, 10, acknowledged);
+        } finally {
+            system.shutdown();
+            registry.stop();
+        }
+    }
+}
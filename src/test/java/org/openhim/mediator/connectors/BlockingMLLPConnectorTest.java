@@ -0,0 +1,194 @@
+package org.openhim.mediator.connectors;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.testkit.JavaTestKit;
+import org.junit.*;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.AddOrchestrationToCoreResponse;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.MediatorSocketRequest;
+import org.openhim.mediator.engine.messages.MediatorSocketResponse;
+import org.openhim.mediator.testing.MockMLLPRegistry;
+
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+public class BlockingMLLPConnectorTest {
+
+    static ActorSystem system;
+    MockMLLPRegistry registry;
+    MediatorConfig testConfig;
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create();
+    }
+
+    @AfterClass
+    public static void teardown() {
+        JavaTestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        registry = new MockMLLPRegistry();
+        testConfig = new MediatorConfig("mediator-pix", "localhost", 4500);
+        Properties props = new Properties();
+        props.setProperty("xds.registry.connector.threads", "16");
+        props.setProperty("xds.registry.readTimeout", "2000");
+        testConfig.setProperties(props);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        registry.stop();
+    }
+
+    @Test
+    public void testExchange() throws Exception {
+        new JavaTestKit(system) {{
+            ActorRef connector = system.actorOf(Props.create(BlockingMLLPConnector.class, testConfig));
+
+            String msg = "MSH|^~\\&|openhim|openhim|pix|pix|20150101000000||ADT^A04^ADT_A01|corr-1|P|2.3.1\r";
+            connector.tell(new MediatorSocketRequest(getRef(), getRef(), "test", "corr-1", "localhost", registry.getPort(), msg), getRef());
+
+            MediatorSocketResponse response = expectMsgClass(duration("2 seconds"), MediatorSocketResponse.class);
+            assertEquals("corr-1", response.getOriginalRequest().getCorrelationId());
+            assertTrue(response.getBody().contains("MSA|AA|corr-1"));
+        }};
+    }
+
+    @Test
+    public void testConnectionFailureSendsExceptError() throws Exception {
+        new JavaTestKit(system) {{
+            ActorRef connector = system.actorOf(Props.create(BlockingMLLPConnector.class, testConfig));
+            int port = registry.getPort();
+            registry.stop();
+
+            connector.tell(new MediatorSocketRequest(getRef(), getRef(), "test", "corr-2", "localhost", port, "MSH|^~\\&|\r"), getRef());
+
+            expectMsgClass(duration("2 seconds"), ExceptError.class);
+        }};
+    }
+
+    @Test
+    public void testUnexpectedFailureSendsExceptError() throws Exception {
+        new JavaTestKit(system) {{
+            ActorRef connector = system.actorOf(Props.create(BlockingMLLPConnector.class, testConfig));
+
+            // no port
+            connector.tell(new MediatorSocketRequest(getRef(), getRef(), "test", "corr-4", "localhost", null, "MSH|^~\\&|\r"), getRef());
+
+            expectMsgClass(duration("2 seconds"), ExceptError.class);
+        }};
+    }
+
+    private MediatorConfig reuseConfig() {
+        MediatorConfig config = new MediatorConfig("mediator-pix", "localhost", 4500);
+        Properties props = new Properties();
+        props.setProperty("xds.registry.readTimeout", "2000");
+        props.setProperty("xds.registry.connection.reuse", "true");
+        config.setProperties(props);
+        return config;
+    }
+
+    private static String message(String id) {
+        return "MSH|^~\\&|openhim|openhim|pix|pix|20150101000000||ADT^A04^ADT_A01|" + id + "|P|2.3.1\r";
+    }
+
+    @Test
+    public void testClosedConnectionIsRetried() throws Exception {
+        registry.setMessagesPerConnection(1);
+        final MediatorConfig config = reuseConfig();
+
+        new JavaTestKit(system) {{
+            ActorRef connector = system.actorOf(Props.create(BlockingMLLPConnector.class, config));
+
+            connector.tell(new MediatorSocketRequest(getRef(), getRef(), "test", "reuse-1", "localhost", registry.getPort(), message("reuse-1")), getRef());
+            expectMsgClass(duration("2 seconds"), MediatorSocketResponse.class);
+            expectMsgClass(duration("2 seconds"), AddOrchestrationToCoreResponse.class);
+
+            // let the registry close the idle connection
+            Thread.sleep(200);
+            connector.tell(new MediatorSocketRequest(getRef(), getRef(), "test", "reuse-2", "localhost", registry.getPort(), message("reuse-2")), getRef());
+            MediatorSocketResponse response = expectMsgClass(duration("2 seconds"), MediatorSocketResponse.class);
+            assertTrue(response.getBody().contains("MSA|AA|reuse-2"));
+            assertEquals(2, registry.getMessagesReceived());
+            assertEquals(2, registry.getConnectionsAccepted());
+        }};
+    }
+
+    @Test
+    public void testReadTimeoutIsNotRetried() throws Exception {
+        final MediatorConfig config = reuseConfig();
+
+        new JavaTestKit(system) {{
+            ActorRef connector = system.actorOf(Props.create(BlockingMLLPConnector.class, config));
+
+            connector.tell(new MediatorSocketRequest(getRef(), getRef(), "test", "slow-1", "localhost", registry.getPort(), message("slow-1")), getRef());
+            expectMsgClass(duration("2 seconds"), MediatorSocketResponse.class);
+            expectMsgClass(duration("2 seconds"), AddOrchestrationToCoreResponse.class);
+
+            // the registry has the message, so it mustn't be sent again on a new connection
+            registry.setResponseDelayMillis(3000);
+            connector.tell(new MediatorSocketRequest(getRef(), getRef(), "test", "slow-2", "localhost", registry.getPort(), message("slow-2")), getRef());
+            expectMsgClass(duration("5 seconds"), ExceptError.class);
+            Thread.sleep(500);
+            assertEquals(2, registry.getMessagesReceived());
+            assertEquals(1, registry.getConnectionsAccepted());
+        }};
+    }
+
+    @Test
+    public void testSecureExchangesReuseTheConnection() throws Exception {
+        final MockMLLPRegistry secureRegistry = MockMLLPRegistry.secure();
+        final MediatorConfig config = new MediatorConfig("mediator-pix", "localhost", 4500);
+        Properties props = new Properties();
+        props.setProperty("xds.registry.readTimeout", "2000");
+        props.setProperty("xds.registry.tls.trustStore", MockMLLPRegistry.trustStorePath());
+        props.setProperty("xds.registry.tls.trustStorePassword", "changeit");
+        props.setProperty("xds.registry.connection.reuse", "true");
+        config.setProperties(props);
+
+        try {
+            new JavaTestKit(system) {{
+                ActorRef connector = system.actorOf(Props.create(BlockingMLLPConnector.class, config));
+
+                for (String id : new String[]{"tls-1", "tls-2", "tls-3"}) {
+                    String msg = "MSH|^~\\&|openhim|openhim|pix|pix|20150101000000||ADT^A04^ADT_A01|" + id + "|P|2.3.1\r";
+                    connector.tell(new MediatorSocketRequest(getRef(), getRef(), "test", id, "localhost", secureRegistry.getPort(), msg, true), getRef());
+
+                    MediatorSocketResponse response = expectMsgClass(duration("5 seconds"), MediatorSocketResponse.class);
+                    assertTrue(response.getBody().contains("MSA|AA|" + id));
+                    expectMsgClass(duration("5 seconds"), AddOrchestrationToCoreResponse.class);
+                }
+                assertEquals(3, secureRegistry.getMessagesReceived());
+                assertEquals(1, secureRegistry.getConnectionsAccepted());
+            }};
+        } finally {
+            secureRegistry.stop();
+        }
+    }
+
+    @Test
+    public void testUntrustedRegistryIsRejected() throws Exception {
+        final MockMLLPRegistry secureRegistry = MockMLLPRegistry.secure();
+
+        try {
+            new JavaTestKit(system) {{
+                ActorRef connector = system.actorOf(Props.create(BlockingMLLPConnector.class, testConfig));
+
+                connector.tell(new MediatorSocketRequest(getRef(), getRef(), "test", "corr-3", "localhost", secureRegistry.getPort(), "MSH|^~\\&|\r", true), getRef());
+
+                expectMsgClass(duration("5 seconds"), ExceptError.class);
+                assertEquals(0, secureRegistry.getMessagesReceived());
+            }};
+        } finally {
+            secureRegistry.stop();
+        }
+    }
+}
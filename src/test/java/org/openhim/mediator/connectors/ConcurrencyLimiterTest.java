@@ -0,0 +1,100 @@
+package org.openhim.mediator.connectors;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ConcurrencyLimiterTest {
+
+    @Test
+    public void testLimitGrowsWhileRoundTripsStayLow() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 1, 100, 2.0, 0.9, 10000);
+        long now = 0;
+
+        for (int i = 0; i < 200; i++) {
+            limiter.onSample(10, false, limiter.getLimit(), now += 10);
+        }
+
+        assertTrue("limit " + limiter.getLimit(), limiter.getLimit() > 10);
+        assertEquals(10, limiter.getMinRttMillis());
+    }
+
+    @Test
+    public void testSlowButUnsaturatedRegistryKeepsAHighLimit() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(100, 1, 500, 2.0, 0.9, 2000);
+        long now = 0;
+
+        // a steady 500 ms round trip however many messages are outstanding, for a minute of windows
+        while (now < 60000) {
+            limiter.onSample(500, false, limiter.getLimit(), now += Math.max(1, 500 / limiter.getLimit()));
+            assertTrue("limit " + limiter.getLimit() + " at " + now + " ms", limiter.getLimit() >= 100);
+        }
+        assertTrue("limit " + limiter.getLimit(), limiter.getLimit() > 200);
+    }
+
+    @Test
+    public void testLimitDoesNotGrowWhenUnused() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(10, 1, 100, 2.0, 0.9, 10000);
+        long now = 0;
+
+        for (int i = 0; i < 200; i++) {
+            limiter.onSample(10, false, 1, now += 10);
+        }
+
+        assertEquals(10, limiter.getLimit());
+    }
+
+    @Test
+    public void testLimitShrinksOncePerRoundTripWhenRoundTripsRise() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(50, 1, 100, 2.0, 0.5, 10000);
+        long now = 0;
+        limiter.onSample(10, false, 50, now);
+
+        // a burst of slow acknowledgements from the same round trip only counts once
+        for (int i = 0; i < 10; i++) {
+            limiter.onSample(100, false, 50, now += 1);
+        }
+        assertEquals(25, limiter.getLimit());
+
+        limiter.onSample(100, false, 25, now += 100);
+        assertEquals(12, limiter.getLimit());
+    }
+
+    @Test
+    public void testRejectionsBackOffOncePerRoundTrip() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(20, 5, 100, 2.0, 0.5, 10000);
+        long now = 0;
+
+        // a burst of rejections from the same round trip only counts once
+        for (int i = 0; i < 10; i++) {
+            limiter.onSample(100, true, 20, now += 1);
+        }
+        assertEquals(10, limiter.getLimit());
+
+        for (int i = 0; i < 10; i++) {
+            limiter.onSample(100, true, 20, now += 100);
+        }
+        assertEquals(5, limiter.getLimit());
+    }
+
+    @Test
+    public void testLimitRecoversWhenRegistryStaysSlower() {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(20, 1, 100, 2.0, 0.9, 10000);
+        long now = 0;
+        for (int i = 0; i < 100; i++) {
+            limiter.onSample(10, false, 1, now += 10);
+        }
+
+        // the registry becomes permanently slower
+        for (int i = 0; i < 20; i++) {
+            limiter.onSample(100, false, limiter.getLimit(), now += 100);
+        }
+        int reduced = limiter.getLimit();
+        assertTrue(reduced < 20);
+
+        for (int i = 0; i < 2000; i++) {
+            limiter.onSample(100, false, limiter.getLimit(), now += 100);
+        }
+        assertTrue("limit " + limiter.getLimit(), limiter.getLimit() > reduced);
+    }
+}
@@ -0,0 +1,83 @@
+package org.openhim.mediator.connectors;
+
+import java.util.Map;
+
+import org.junit.Test;
+import org.openhim.mediator.messages.FeedPriority;
+
+import static org.junit.Assert.*;
+
+public class PriorityLanesTest {
+
+    private static PriorityLanes<String, String> fill(PriorityLanes<String, String> lanes, int each) {
+        for (int i = 0; i < each; i++) {
+            lanes.add("bulk-" + i, "bulk-" + i, FeedPriority.BULK);
+            lanes.add("realtime-" + i, "realtime-" + i, FeedPriority.REALTIME);
+        }
+        return lanes;
+    }
+
+    @Test
+    public void testLanesAreServedByWeight() {
+        PriorityLanes<String, String> lanes = fill(new PriorityLanes<String, String>(8, 1, 1.0), 100);
+
+        int realtime = 0;
+        for (int i = 0; i < 90; i++) {
+            Map.Entry<String, String> next = lanes.next(Integer.MAX_VALUE);
+            if (next.getKey().startsWith("realtime")) {
+                realtime++;
+            }
+        }
+        assertEquals(80, realtime);
+        assertEquals(20, lanes.size(FeedPriority.REALTIME));
+    }
+
+    @Test
+    public void testBulkTakesAllSlotsWhileRealtimeIsIdle() {
+        PriorityLanes<String, String> lanes = new PriorityLanes<>(8, 1, 1.0);
+        for (int i = 0; i < 10; i++) {
+            lanes.add("bulk-" + i, "bulk-" + i, FeedPriority.BULK);
+        }
+
+        for (int i = 0; i < 10; i++) {
+            assertEquals("bulk-" + i, lanes.next(Integer.MAX_VALUE).getKey());
+        }
+        assertNull(lanes.next(Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void testBulkShareKeepsSlotsFreeForRealtime() {
+        PriorityLanes<String, String> lanes = new PriorityLanes<>(8, 1, 0.5);
+        for (int i = 0; i < 10; i++) {
+            lanes.add("bulk-" + i, "bulk-" + i, FeedPriority.BULK);
+        }
+
+        // limit 10: at most 5 bulk messages in flight
+        for (int i = 0; i < 5; i++) {
+            assertNotNull(lanes.next(10));
+        }
+        assertNull(lanes.next(10));
+
+        lanes.add("realtime", "realtime", FeedPriority.REALTIME);
+        assertEquals("realtime", lanes.next(10).getKey());
+
+        lanes.completed("bulk-0");
+        assertEquals("bulk-5", lanes.next(10).getKey());
+        assertEquals(5, lanes.inFlight(FeedPriority.BULK));
+    }
+
+    @Test
+    public void testRemoveAndTakeOver() {
+        PriorityLanes<String, String> lanes = fill(new PriorityLanes<String, String>(1, 1, 1.0), 2);
+        assertEquals("realtime-0", lanes.next(Integer.MAX_VALUE).getKey());
+        assertEquals("bulk-0", lanes.remove("bulk-0"));
+        assertNull(lanes.remove("realtime-0"));
+
+        PriorityLanes<String, String> reloaded = new PriorityLanes<>(1, 1, 1.0);
+        reloaded.takeOver(lanes);
+        assertEquals(2, reloaded.size());
+        assertEquals(1, reloaded.inFlight(FeedPriority.REALTIME));
+        reloaded.completed("realtime-0");
+        assertEquals(0, reloaded.inFlight(FeedPriority.REALTIME));
+    }
+}
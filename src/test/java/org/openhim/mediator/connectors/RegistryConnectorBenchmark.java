@@ -0,0 +1,89 @@
+package org.openhim.mediator.connectors;
+
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.actor.UntypedActor;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.connectors.MLLPConnector;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.engine.messages.MediatorSocketRequest;
+import org.openhim.mediator.engine.messages.MediatorSocketResponse;
+import org.openhim.mediator.testing.MockMLLPRegistry;
+
+/**
+ * Compares the engine MLLPConnector against the BlockingMLLPConnector at high concurrency.
+ * <br/><br/>
+ * Not a unit test; run with
+ * <pre>java -cp target/classes:target/test-classes:&lt;dependencies&gt; org.openhim.mediator.connectors.RegistryConnectorBenchmark [exchanges] [registryDelayMs]</pre>
+ */
+public class RegistryConnectorBenchmark {
+
+    public static class Client extends UntypedActor {
+        private final CountDownLatch done;
+        private final AtomicInteger errors;
+
+        public Client(CountDownLatch done, AtomicInteger errors) {
+            this.done = done;
+            this.errors = errors;
+        }
+
+        @Override
+        public void onReceive(Object msg) throws Exception {
+            if (msg instanceof MediatorSocketResponse) {
+                done.countDown();
+            } else if (msg instanceof ExceptError) {
+                errors.incrementAndGet();
+                done.countDown();
+            }
+        }
+    }
+
+    private static void run(String name, ActorSystem system, Props connectorProps, int port, int exchanges) throws Exception {
+        ActorRef connector = system.actorOf(connectorProps);
+        CountDownLatch done = new CountDownLatch(exchanges);
+        AtomicInteger errors = new AtomicInteger();
+        ActorRef client = system.actorOf(Props.create(Client.class, done, errors));
+
+        long start = System.nanoTime();
+        for (int i = 0; i < exchanges; i++) {
+            String msg = "MSH|^~\\&|openhim|openhim|pix|pix|20150101000000||ADT^A04^ADT_A01|" + i + "|P|2.3.1\r";
+            connector.tell(new MediatorSocketRequest(client, client, "bench", Integer.toString(i), "localhost", port, msg), client);
+        }
+        done.await(10, TimeUnit.MINUTES);
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        System.out.println(String.format("%-10s %6d exchanges in %6d ms -> %8.1f msg/s (%d errors)",
+                name, exchanges, elapsedMs, exchanges * 1000.0 / Math.max(1, elapsedMs), errors.get()));
+        system.stop(connector);
+        system.stop(client);
+    }
+
+    public static void main(String... args) throws Exception {
+        int exchanges = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        long delay = args.length > 1 ? Long.parseLong(args[1]) : 50;
+
+        MockMLLPRegistry registry = new MockMLLPRegistry();
+        registry.setResponseDelayMillis(delay);
+
+        MediatorConfig config = new MediatorConfig("benchmark", "localhost", 0);
+        Properties props = new Properties();
+        props.setProperty("xds.registry.connector.threads", Integer.toString(exchanges));
+        config.setProperties(props);
+
+        ActorSystem system = ActorSystem.create("benchmark");
+        try {
+            System.out.println("Registry response delay: " + delay + " ms, cores: " + Runtime.getRuntime().availableProcessors());
+            run("engine", system, Props.create(MLLPConnector.class), registry.getPort(), exchanges);
+            run("blocking", system, Props.create(BlockingMLLPConnector.class, config), registry.getPort(), exchanges);
+        } finally {
+            system.shutdown();
+            registry.stop();
+        }
+    }
+}
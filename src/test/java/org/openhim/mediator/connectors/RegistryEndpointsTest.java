@@ -0,0 +1,54 @@
+package org.openhim.mediator.connectors;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RegistryEndpointsTest {
+
+    @Test
+    public void testEndpointsAreSelectedInOrder() {
+        RegistryEndpoints endpoints = new RegistryEndpoints(Arrays.asList("primary:3602", "secondary:3602"), 1000);
+        List<RegistryEndpoints.Endpoint> all = endpoints.getEndpoints();
+
+        assertEquals("primary", endpoints.select(Collections.<RegistryEndpoints.Endpoint>emptyList(), 0).getHost());
+        assertEquals("secondary", endpoints.select(Collections.singletonList(all.get(0)), 0).getHost());
+        assertNull(endpoints.select(all, 0));
+    }
+
+    @Test
+    public void testFailedEndpointIsSkippedUntilRetry() {
+        RegistryEndpoints endpoints = new RegistryEndpoints(Arrays.asList("primary:3602", "secondary:3602"), 1000);
+        RegistryEndpoints.Endpoint primary = endpoints.getEndpoints().get(0);
+        List<RegistryEndpoints.Endpoint> none = Collections.emptyList();
+
+        endpoints.failed(primary, 0);
+        assertEquals("secondary", endpoints.select(none, 999).getHost());
+        assertEquals("primary", endpoints.select(none, 1000).getHost());
+
+        // consecutive failures double the wait
+        endpoints.failed(primary, 1000);
+        assertEquals("secondary", endpoints.select(none, 2999).getHost());
+        assertEquals("primary", endpoints.select(none, 3000).getHost());
+
+        endpoints.succeeded(primary);
+        endpoints.failed(primary, 3000);
+        assertEquals("primary", endpoints.select(none, 4000).getHost());
+    }
+
+    @Test
+    public void testUnavailableEndpointIsStillSelectedIfNoOtherIsLeft() {
+        RegistryEndpoints endpoints = new RegistryEndpoints(Arrays.asList("primary:3602", "secondary:3602"), 1000);
+        RegistryEndpoints.Endpoint primary = endpoints.getEndpoints().get(0);
+        RegistryEndpoints.Endpoint secondary = endpoints.getEndpoints().get(1);
+
+        endpoints.failed(primary, 0);
+        endpoints.failed(secondary, 500);
+        assertSame(primary, endpoints.select(Collections.<RegistryEndpoints.Endpoint>emptyList(), 600));
+        assertSame(secondary, endpoints.select(Collections.singletonList(primary), 600));
+    }
+}
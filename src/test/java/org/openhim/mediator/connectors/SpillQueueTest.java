@@ -0,0 +1,110 @@
+package org.openhim.mediator.connectors;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.*;
+
+public class SpillQueueTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static byte[] record(int i) {
+        return ("message " + i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testRecordsAreReadInOrderAcrossSegments() throws Exception {
+        File dir = folder.newFolder("spill");
+        // room for a few records per segment
+        SpillQueue queue = new SpillQueue(dir, 64);
+
+        for (int i = 0; i < 20; i++) {
+            queue.append(record(i));
+        }
+        assertEquals(20, queue.size());
+        assertTrue(dir.listFiles().length > 1);
+
+        for (int i = 0; i < 20; i++) {
+            assertArrayEquals(record(i), queue.poll());
+        }
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+        // read segments are deleted
+        assertEquals(1, dir.listFiles().length);
+
+        // larger than a segment
+        byte[] large = new byte[1000];
+        queue.append(large);
+        assertArrayEquals(large, queue.poll());
+        queue.close();
+    }
+
+    @Test
+    public void testRecordsLeftAreReadAfterReopening() throws Exception {
+        File dir = folder.newFolder("reopen");
+        SpillQueue queue = new SpillQueue(dir, 64);
+        for (int i = 0; i < 10; i++) {
+            queue.append(record(i));
+        }
+        for (int i = 0; i < 4; i++) {
+            queue.poll();
+        }
+        queue.close();
+
+        queue = new SpillQueue(dir, 64);
+        assertEquals(6, queue.size());
+        queue.append(record(10));
+        for (int i = 4; i <= 10; i++) {
+            assertArrayEquals(record(i), queue.poll());
+        }
+        assertNull(queue.poll());
+        queue.close();
+    }
+
+    private static void corruptFirstRecord(File segment) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            // the length prefix of the record after the header
+            raf.seek(16);
+            raf.writeInt(-7);
+        }
+    }
+
+    @Test
+    public void testCorruptSegmentIsQuarantined() throws Exception {
+        File dir = folder.newFolder("corrupt");
+        // three records per segment
+        SpillQueue queue = new SpillQueue(dir, 64);
+        for (int i = 0; i < 9; i++) {
+            queue.append(record(i));
+        }
+        corruptFirstRecord(new File(dir, String.format("spill-%019d.seg", 0)));
+
+        try {
+            queue.poll();
+            fail("expected an IOException");
+        } catch (IOException ex) {
+            // quarantined
+        }
+        assertEquals(6, queue.size());
+        assertTrue(new File(dir, String.format("spill-%019d.seg.corrupt", 0)).isFile());
+        assertArrayEquals(record(3), queue.poll());
+        queue.close();
+
+        corruptFirstRecord(new File(dir, String.format("spill-%019d.seg", 2)));
+        queue = new SpillQueue(dir, 64);
+        assertEquals(2, queue.size());
+        assertTrue(new File(dir, String.format("spill-%019d.seg.corrupt", 2)).isFile());
+        assertArrayEquals(record(4), queue.poll());
+        assertArrayEquals(record(5), queue.poll());
+        assertNull(queue.poll());
+        queue.close();
+    }
+}
@@ -0,0 +1,108 @@
+package org.openhim.mediator.connectors;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLSocket;
+
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.testing.MockMLLPRegistry;
+
+/**
+ * Compares plaintext and TLS MLLP exchanges against local stub registries: with a new connection per message,
+ * with a new TLS connection per message that resumes the cached session, and with reused connections.
+ * <br/><br/>
+ * Not a unit test; run with
+ * <pre>java -cp target/classes:target/test-classes:&lt;dependencies&gt; org.openhim.mediator.connectors.TlsBenchmark [exchanges] [threads] [protocol]</pre>
+ */
+public class TlsBenchmark {
+
+    private static MediatorConfig config(boolean reuse, String protocol) {
+        MediatorConfig config = new MediatorConfig("benchmark", "localhost", 0);
+        Properties props = new Properties();
+        props.setProperty("xds.registry.tls.trustStore", MockMLLPRegistry.trustStorePath());
+        props.setProperty("xds.registry.tls.trustStorePassword", "changeit");
+        props.setProperty("xds.registry.tls.protocol", protocol);
+        props.setProperty("xds.registry.connection.reuse", Boolean.toString(reuse));
+        config.setProperties(props);
+        return config;
+    }
+
+    private static void run(String name, final MLLPConnectionPool pool, final int port, final boolean secure,
+                            final boolean resume, int exchanges, int threads) throws Exception {
+        final int perThread = exchanges / threads;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Future<long[]>> results = new ArrayList<>();
+
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            results.add(executor.submit(new Callable<long[]>() {
+                @Override
+                public long[] call() throws Exception {
+                    long[] latencies = new long[perThread];
+                    for (int i = 0; i < perThread; i++) {
+                        String msg = "MSH|^~\\&|openhim|openhim|pix|pix|20150101000000||ADT^A04^ADT_A01|" + i + "|P|2.3.1\r";
+                        long sent = System.nanoTime();
+
+                        MLLPConnectionPool.Connection connection = pool.borrow("localhost", port, secure);
+                        BlockingMLLPConnector.exchange(connection.getSocket(), msg);
+                        if (secure && !resume) {
+                            // forces a full handshake on the next connection
+                            ((SSLSocket) connection.getSocket()).getSession().invalidate();
+                        }
+                        pool.release(connection);
+
+                        latencies[i] = System.nanoTime() - sent;
+                    }
+                    return latencies;
+                }
+            }));
+        }
+
+        List<Long> all = new ArrayList<>();
+        for (Future<long[]> result : results) {
+            for (long latency : result.get()) {
+                all.add(latency);
+            }
+        }
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        executor.shutdown();
+        pool.close();
+
+        Collections.sort(all);
+        System.out.println(String.format("%-28s %6d exchanges in %6d ms -> %8.1f msg/s, p50 %7.2f ms, p99 %7.2f ms",
+                name, all.size(), elapsedMs, all.size() * 1000.0 / Math.max(1, elapsedMs),
+                all.get(all.size() / 2) / 1e6, all.get((int) (all.size() * 0.99)) / 1e6));
+    }
+
+    public static void main(String... args) throws Exception {
+        int exchanges = args.length > 0 ? Integer.parseInt(args[0]) : 4000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+        String protocol = args.length > 2 ? args[2] : "TLSv1.2";
+
+        MockMLLPRegistry plain = new MockMLLPRegistry();
+        MockMLLPRegistry secure = MockMLLPRegistry.secure();
+        try {
+            System.out.println(protocol + ", " + threads + " threads, cores: " + Runtime.getRuntime().availableProcessors());
+
+            // warm up the JIT and the TLS providers
+            run("warm-up", new MLLPConnectionPool(config(false, protocol)), secure.getPort(), true, true, exchanges / 4, threads);
+
+            run("plaintext, new connection", new MLLPConnectionPool(config(false, protocol)), plain.getPort(), false, false, exchanges, threads);
+            run("plaintext, reused", new MLLPConnectionPool(config(true, protocol)), plain.getPort(), false, false, exchanges, threads);
+            run("TLS, full handshake", new MLLPConnectionPool(config(false, protocol)), secure.getPort(), true, false, exchanges, threads);
+            run("TLS, resumed session", new MLLPConnectionPool(config(false, protocol)), secure.getPort(), true, true, exchanges, threads);
+            run("TLS, reused", new MLLPConnectionPool(config(true, protocol)), secure.getPort(), true, true, exchanges, threads);
+        } finally {
+            plain.stop();
+            secure.stop();
+        }
+    }
+}
@@ -0,0 +1,400 @@
+package org.openhim.mediator.connectors;
+
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSelection;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.testkit.JavaTestKit;
+import org.junit.*;
+import org.openhim.mediator.MediatorSettings;
+import org.openhim.mediator.deadletters.DeadLetter;
+import org.openhim.mediator.deadletters.DeadLetterActor;
+import org.openhim.mediator.deadletters.DeadLetterStore;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.connectors.MLLPConnector;
+import org.openhim.mediator.engine.messages.AddOrchestrationToCoreResponse;
+import org.openhim.mediator.engine.messages.MediatorSocketRequest;
+import org.openhim.mediator.engine.messages.MediatorSocketResponse;
+import org.openhim.mediator.engine.StartupActorsConfig;
+import org.openhim.mediator.messages.DeadLetterList;
+import org.openhim.mediator.messages.GetRegistryStats;
+import org.openhim.mediator.messages.ListDeadLetters;
+import org.openhim.mediator.messages.RegistryStats;
+import org.openhim.mediator.testing.MockMLLPRegistry;
+import org.openhim.mediator.testing.TestMediatorRoot;
+
+import static org.junit.Assert.*;
+
+public class XdsRegistryConnectorTest {
+
+    static ActorSystem system;
+    static MockMLLPRegistry registry;
+    static MediatorConfig testConfig;
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        system = ActorSystem.create();
+        registry = new MockMLLPRegistry();
+
+        testConfig = new MediatorConfig("mediator-registry-test", "localhost", 4500);
+        Properties props = new Properties();
+        props.setProperty("pix.sendingApplication", "openhim");
+        props.setProperty("xds.registry.batch.enabled", "true");
+        props.setProperty("xds.registry.batch.maxSize", "3");
+        props.setProperty("xds.registry.batch.maxDelayMs", "300");
+        testConfig.setProperties(props);
+
+        StartupActorsConfig actors = new StartupActorsConfig();
+        actors.addActor("mllp-connector", MLLPConnector.class);
+        actors.addActor("xds-registry-connector", XdsRegistryConnector.class);
+        TestMediatorRoot.launch(system, testConfig, actors);
+    }
+
+    @AfterClass
+    public static void teardown() {
+        registry.stop();
+        JavaTestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    private static String message(String controlId) {
+        return "MSH|^~\\&|openhim|openhim|pix|pix|20150101000000||ADT^A04^ADT_A01|" + controlId + "|P|2.3.1\r" +
+                "PID|||" + controlId + "^^^OpenEMPI\r";
+    }
+
+    private static void ignoreOrchestrations(JavaTestKit probe) {
+        // each exchange relays its orchestration independently of the others' responses
+        probe.new IgnoreMsg() {
+            @Override
+            protected boolean ignore(Object msg) {
+                return msg instanceof AddOrchestrationToCoreResponse;
+            }
+        };
+    }
+
+    @Test
+    public void testEncodeAndSplitBatch() {
+        String batch = HL7Batch.encode("batch-1", Arrays.asList(message("a"), message("b")), testConfig);
+
+        assertTrue(batch.startsWith("FHS|^~\\&|openhim|"));
+        assertTrue(batch.endsWith("BTS|2\rFTS|1\r"));
+
+        Map<String, String> messages = HL7Batch.splitAcknowledgements(batch);
+        assertEquals(new HashSet<>(Arrays.asList("a", "b")), messages.keySet());
+        assertEquals(message("a"), messages.get("a"));
+    }
+
+    @Test
+    public void testMessagesAreSentAsOneBatch() throws Exception {
+        new JavaTestKit(system) {{
+            ActorRef connector = system.actorOf(Props.create(XdsRegistryConnector.class, testConfig));
+            int received = registry.getMessagesReceived();
+            ignoreOrchestrations(this);
+
+            for (String id : Arrays.asList("c1", "c2", "c3")) {
+                connector.tell(new MediatorSocketRequest(getRef(), getRef(), "test", id, "localhost", registry.getPort(), message(id)), getRef());
+            }
+
+            Set<String> acknowledged = new HashSet<>();
+            for (int i = 0; i < 3; i++) {
+                MediatorSocketResponse response = expectMsgClass(duration("5 seconds"), MediatorSocketResponse.class);
+                String id = response.getOriginalRequest().getCorrelationId();
+                assertTrue(response.getBody().contains("MSA|AA|" + id));
+                acknowledged.add(id);
+            }
+            assertEquals(new HashSet<>(Arrays.asList("c1", "c2", "c3")), acknowledged);
+            assertEquals(received + 1, registry.getMessagesReceived());
+        }};
+    }
+
+    @Test
+    public void testRegistryStats() throws Exception {
+        new JavaTestKit(system) {{
+            ActorRef connector = system.actorOf(Props.create(XdsRegistryConnector.class, testConfig));
+            ignoreOrchestrations(this);
+
+            connector.tell(new MediatorSocketRequest(getRef(), getRef(), "test", "s1", "localhost", registry.getPort(), message("s1")), getRef());
+            expectMsgClass(duration("5 seconds"), MediatorSocketResponse.class);
+
+            registry.setAckCode("AE");
+            try {
+                connector.tell(new MediatorSocketRequest(getRef(), getRef(), "test", "s2", "localhost", registry.getPort(), message("s2")), getRef());
+                expectMsgClass(duration("5 seconds"), MediatorSocketResponse.class);
+            } finally {
+                registry.setAckCode("AA");
+            }
+
+            connector.tell(new GetRegistryStats(), getRef());
+            RegistryStats stats = expectMsgClass(duration("5 seconds"), RegistryStats.class);
+            assertEquals(2, stats.getLatencySamples());
+            assertEquals(1, stats.getCompleted());
+            assertEquals(1, stats.getFailed());
+            assertEquals(0, stats.getInFlight());
+            assertEquals(0, stats.getQueued());
+            assertTrue(stats.getLastError().contains("AE"));
+            assertNotNull(stats.getLastErrorTime());
+        }};
+    }
+
+    @Test
+    public void testResponseWithoutAcknowledgementCodeIsAFailure() throws Exception {
+        final MediatorConfig config = new MediatorConfig("mediator-registry-no-ack-test", "localhost", 4500);
+        Properties props = new Properties();
+        props.setProperty("xds.deadLetters.enabled", "true");
+        props.setProperty("xds.deadLetters.file", Files.createTempFile("dead-letters", ".jsonl").toString());
+        config.setProperties(props);
+
+        StartupActorsConfig actors = new StartupActorsConfig();
+        actors.addActor("mllp-connector", MLLPConnector.class);
+        actors.addActor("xds-registry-connector", XdsRegistryConnector.class);
+        actors.addActor("dead-letters", DeadLetterActor.class);
+        TestMediatorRoot.launch(system, config, actors);
+
+        new JavaTestKit(system) {{
+            ActorSelection connector = system.actorSelection(config.userPathFor("xds-registry-connector"));
+            ignoreOrchestrations(this);
+
+            registry.setAckCode(null);
+            try {
+                connector.tell(new MediatorSocketRequest(getRef(), getRef(), "test", "n1", "localhost", registry.getPort(), message("n1")), getRef());
+                expectMsgClass(duration("5 seconds"), MediatorSocketResponse.class);
+            } finally {
+                registry.setAckCode("AA");
+            }
+
+            connector.tell(new GetRegistryStats(), getRef());
+            RegistryStats stats = expectMsgClass(duration("5 seconds"), RegistryStats.class);
+            assertEquals(0, stats.getCompleted());
+            assertEquals(1, stats.getFailed());
+            assertTrue(stats.getLastError().contains("no acknowledgement code"));
+
+            // and it is kept for replay
+            List<DeadLetter> letters = Collections.emptyList();
+            for (int i = 0; i < 50 && letters.isEmpty(); i++) {
+                system.actorSelection(config.userPathFor("dead-letters")).tell(
+                        new ListDeadLetters(new DeadLetterStore.Filter()), getRef());
+                letters = expectMsgClass(duration("5 seconds"), DeadLetterList.class).getDeadLetters();
+                if (letters.isEmpty()) {
+                    Thread.sleep(50);
+                }
+            }
+            assertEquals(1, letters.size());
+            assertEquals("n1", letters.get(0).getId());
+        }};
+    }
+
+    @Test
+    public void testMessagesOverTheConcurrencyLimitAreQueued() throws Exception {
+        final MediatorConfig config = new MediatorConfig("mediator-registry-test", "localhost", 4500);
+        Properties props = new Properties();
+        props.setProperty("xds.registry.limit.enabled", "true");
+        props.setProperty("xds.registry.limit.initial", "1");
+        props.setProperty("xds.registry.limit.max", "1");
+        config.setProperties(props);
+
+        new JavaTestKit(system) {{
+            ActorRef connector = system.actorOf(Props.create(XdsRegistryConnector.class, config));
+            ignoreOrchestrations(this);
+            registry.setResponseDelayMillis(100);
+            try {
+                for (String id : Arrays.asList("q1", "q2", "q3")) {
+                    connector.tell(new MediatorSocketRequest(getRef(), getRef(), "test", id, "localhost", registry.getPort(), message(id)), getRef());
+                }
+
+                connector.tell(new GetRegistryStats(), getRef());
+                RegistryStats stats = expectMsgClass(duration("5 seconds"), RegistryStats.class);
+                assertEquals(1, stats.getInFlight());
+                assertEquals(2, stats.getQueued());
+                assertEquals(Integer.valueOf(1), stats.getConcurrencyLimit());
+
+                for (String id : Arrays.asList("q1", "q2", "q3")) {
+                    MediatorSocketResponse response = expectMsgClass(duration("5 seconds"), MediatorSocketResponse.class);
+                    assertEquals(id, response.getOriginalRequest().getCorrelationId());
+                }
+            } finally {
+                registry.setResponseDelayMillis(0);
+            }
+        }};
+    }
+
+    @Test
+    public void testMessagesOverTheSpillThresholdAreCommittedAndSentInOrder() throws Exception {
+        final MediatorConfig config = new MediatorConfig("mediator-registry-test", "localhost", 4500);
+        Properties props = new Properties();
+        props.setProperty("xds.registry.limit.enabled", "true");
+        props.setProperty("xds.registry.limit.initial", "1");
+        props.setProperty("xds.registry.limit.max", "1");
+        props.setProperty("xds.registry.spill.enabled", "true");
+        props.setProperty("xds.registry.spill.threshold", "2");
+        props.setProperty("xds.registry.spill.dir", Files.createTempDirectory("spill").toString());
+        props.setProperty("xds.deadLetters.enabled", "true");
+        config.setProperties(props);
+
+        new JavaTestKit(system) {{
+            ActorRef connector = system.actorOf(Props.create(XdsRegistryConnector.class, config));
+            ignoreOrchestrations(this);
+            registry.setResponseDelayMillis(100);
+            try {
+                for (String id : Arrays.asList("s1", "s2", "s3", "s4", "s5")) {
+                    connector.tell(new MediatorSocketRequest(getRef(), getRef(), "test", id, "localhost", registry.getPort(), message(id)), getRef());
+                }
+
+                // s1 in flight and s2 queued; the rest are committed straight away
+                for (String id : Arrays.asList("s3", "s4", "s5")) {
+                    MediatorSocketResponse response = expectMsgClass(duration("5 seconds"), MediatorSocketResponse.class);
+                    assertEquals(id, response.getOriginalRequest().getCorrelationId());
+                    assertEquals("CA", HL7Batch.acknowledgementCode(response.getBody()));
+                }
+                connector.tell(new GetRegistryStats(), getRef());
+                RegistryStats stats = expectMsgClass(duration("5 seconds"), RegistryStats.class);
+                assertEquals(3, stats.getSpilled());
+
+                for (String id : Arrays.asList("s1", "s2")) {
+                    MediatorSocketResponse response = expectMsgClass(duration("5 seconds"), MediatorSocketResponse.class);
+                    assertEquals(id, response.getOriginalRequest().getCorrelationId());
+                }
+
+                // the spilled messages follow, in order
+                for (int i = 0; i < 50 && !"s5".equals(registry.getLastControlId()); i++) {
+                    Thread.sleep(100);
+                }
+                assertEquals("s5", registry.getLastControlId());
+                connector.tell(new GetRegistryStats(), getRef());
+                stats = expectMsgClass(duration("5 seconds"), RegistryStats.class);
+                assertEquals(0, stats.getSpilled());
+            } finally {
+                registry.setResponseDelayMillis(0);
+            }
+        }};
+    }
+
+    @Test
+    public void testNothingIsSpilledWithoutDeadLetters() throws Exception {
+        final MediatorConfig config = new MediatorConfig("mediator-registry-test", "localhost", 4500);
+        Properties props = new Properties();
+        props.setProperty("xds.registry.limit.enabled", "true");
+        props.setProperty("xds.registry.limit.initial", "1");
+        props.setProperty("xds.registry.limit.max", "1");
+        props.setProperty("xds.registry.spill.enabled", "true");
+        props.setProperty("xds.registry.spill.threshold", "1");
+        props.setProperty("xds.registry.spill.dir", Files.createTempDirectory("spill").toString());
+        config.setProperties(props);
+
+        new JavaTestKit(system) {{
+            ActorRef connector = system.actorOf(Props.create(XdsRegistryConnector.class, config));
+            ignoreOrchestrations(this);
+            for (String id : Arrays.asList("m1", "m2", "m3")) {
+                connector.tell(new MediatorSocketRequest(getRef(), getRef(), "test", id, "localhost", registry.getPort(), message(id)), getRef());
+            }
+
+            // acknowledged by the registry rather than committed by the mediator
+            Set<String> acknowledged = new HashSet<>();
+            for (int i = 0; i < 3; i++) {
+                MediatorSocketResponse response = expectMsgClass(duration("5 seconds"), MediatorSocketResponse.class);
+                assertEquals("AA", HL7Batch.acknowledgementCode(response.getBody()));
+                acknowledged.add(response.getOriginalRequest().getCorrelationId());
+            }
+            assertEquals(new HashSet<>(Arrays.asList("m1", "m2", "m3")), acknowledged);
+        }};
+    }
+
+    private static int closedPort() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+
+    @Test
+    public void testFailoverToNextEndpoint() throws Exception {
+        final MediatorConfig config = new MediatorConfig("mediator-registry-test", "localhost", 4500);
+        Properties props = new Properties();
+        props.setProperty("xds.registry.endpoints", "localhost:" + closedPort() + ",localhost:" + registry.getPort());
+        config.setProperties(props);
+
+        new JavaTestKit(system) {{
+            ActorRef connector = system.actorOf(Props.create(XdsRegistryConnector.class, config));
+            ignoreOrchestrations(this);
+            int received = registry.getMessagesReceived();
+
+            // the request's own endpoint is replaced by the configured ones
+            connector.tell(new MediatorSocketRequest(getRef(), getRef(), "test", "f1", "unused", 1, message("f1")), getRef());
+            MediatorSocketResponse response = expectMsgClass(duration("10 seconds"), MediatorSocketResponse.class);
+            assertTrue(response.getBody().contains("MSA|AA|f1"));
+            assertEquals("f1", response.getOriginalRequest().getCorrelationId());
+            assertEquals(received + 1, registry.getMessagesReceived());
+        }};
+    }
+
+    @Test
+    public void testSlowMessagesAreHedgedToTheNextEndpoint() throws Exception {
+        final MockMLLPRegistry secondary = new MockMLLPRegistry();
+        final MediatorConfig config = new MediatorConfig("mediator-registry-test", "localhost", 4500);
+        Properties props = new Properties();
+        props.setProperty("xds.registry.endpoints", "localhost:" + registry.getPort() + ",localhost:" + secondary.getPort());
+        props.setProperty("xds.registry.hedge.enabled", "true");
+        props.setProperty("xds.registry.hedge.percentile", "90");
+        config.setProperties(props);
+
+        try {
+            new JavaTestKit(system) {{
+                ActorRef connector = system.actorOf(Props.create(XdsRegistryConnector.class, config));
+                ignoreOrchestrations(this);
+
+                // round trip times to derive the hedging delay from
+                for (int i = 0; i < 20; i++) {
+                    connector.tell(new MediatorSocketRequest(getRef(), getRef(), "test", "w" + i, "unused", 1, message("w" + i)), getRef());
+                    expectMsgClass(duration("5 seconds"), MediatorSocketResponse.class);
+                }
+                assertEquals(0, secondary.getMessagesReceived());
+
+                registry.setResponseDelayMillis(1000);
+                try {
+                    connector.tell(new MediatorSocketRequest(getRef(), getRef(), "test", "h1", "unused", 1, message("h1")), getRef());
+                    MediatorSocketResponse response = expectMsgClass(duration("500 millis"), MediatorSocketResponse.class);
+                    assertEquals("h1", response.getOriginalRequest().getCorrelationId());
+                    assertEquals(1, secondary.getMessagesReceived());
+
+                    // the primary's acknowledgement is dropped
+                    expectNoMsg(duration("1500 millis"));
+                } finally {
+                    registry.setResponseDelayMillis(0);
+                }
+            }};
+        } finally {
+            secondary.stop();
+        }
+    }
+
+    @Test
+    public void testReloadedEndpointsAreUsed() throws Exception {
+        final MediatorConfig config = new MediatorConfig("mediator-registry-test", "localhost", 4500);
+        config.setProperties(new Properties());
+
+        new JavaTestKit(system) {{
+            ActorRef connector = system.actorOf(Props.create(XdsRegistryConnector.class, config));
+            ignoreOrchestrations(this);
+            // started, and so subscribed to reloads
+            connector.tell(new GetRegistryStats(), getRef());
+            expectMsgClass(duration("5 seconds"), RegistryStats.class);
+
+            Properties props = new Properties();
+            props.setProperty("xds.registry.endpoints", "localhost:" + registry.getPort());
+            MediatorSettings.reload(config, props, system);
+
+            connector.tell(new MediatorSocketRequest(getRef(), getRef(), "test", "r1", "unused", 1, message("r1")), getRef());
+            MediatorSocketResponse response = expectMsgClass(duration("5 seconds"), MediatorSocketResponse.class);
+            assertTrue(response.getBody().contains("MSA|AA|r1"));
+        }};
+    }
+}
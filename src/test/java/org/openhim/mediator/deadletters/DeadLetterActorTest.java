@@ -0,0 +1,219 @@
+package org.openhim.mediator.deadletters;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.List;
+import java.util.Properties;
+
+import akka.actor.ActorSelection;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.testkit.JavaTestKit;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import org.openhim.mediator.connectors.XdsRegistryConnector;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.StartupActorsConfig;
+import org.openhim.mediator.engine.connectors.MLLPConnector;
+import org.openhim.mediator.engine.messages.AddOrchestrationToCoreResponse;
+import org.openhim.mediator.engine.messages.MediatorSocketRequest;
+import org.openhim.mediator.engine.messages.MediatorSocketResponse;
+import org.openhim.mediator.messages.DeadLetterList;
+import org.openhim.mediator.messages.ListDeadLetters;
+import org.openhim.mediator.messages.RecordDeadLetter;
+import org.openhim.mediator.messages.ReplayDeadLetters;
+import org.openhim.mediator.testing.MockMLLPRegistry;
+import org.openhim.mediator.testing.TestMediatorRoot;
+
+import static org.junit.Assert.*;
+
+public class DeadLetterActorTest {
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    static ActorSystem system;
+    static MockMLLPRegistry registry;
+    static MediatorConfig testConfig;
+    /** dead letters without a registry connector, so that replays get no response */
+    static MediatorConfig unansweredConfig;
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        system = ActorSystem.create();
+        registry = new MockMLLPRegistry();
+
+        testConfig = new MediatorConfig("mediator-dead-letter-test", "localhost", 4700);
+        Properties props = new Properties();
+        props.setProperty("xds.registry.host", "localhost");
+        props.setProperty("xds.registry.port", Integer.toString(registry.getPort()));
+        props.setProperty("xds.deadLetters.enabled", "true");
+        props.setProperty("xds.deadLetters.file", new File(folder.getRoot(), "dead-letters.jsonl").getPath());
+        props.setProperty("xds.deadLetters.replay.batchSize", "2");
+        props.setProperty("xds.deadLetters.replay.intervalMs", "100");
+        testConfig.setProperties(props);
+
+        StartupActorsConfig actors = new StartupActorsConfig();
+        actors.addActor("mllp-connector", MLLPConnector.class);
+        actors.addActor("xds-registry-connector", XdsRegistryConnector.class);
+        actors.addActor("dead-letters", DeadLetterActor.class);
+        TestMediatorRoot.launch(system, testConfig, actors);
+
+        unansweredConfig = new MediatorConfig("mediator-dead-letter-unanswered-test", "localhost", 4701);
+        Properties unansweredProps = new Properties();
+        unansweredProps.setProperty("xds.registry.host", "localhost");
+        unansweredProps.setProperty("xds.registry.port", Integer.toString(registry.getPort()));
+        unansweredProps.setProperty("xds.deadLetters.enabled", "true");
+        unansweredProps.setProperty("xds.deadLetters.file", new File(folder.getRoot(), "unanswered.jsonl").getPath());
+        unansweredProps.setProperty("xds.deadLetters.replay.timeoutMs", "300");
+        unansweredConfig.setProperties(unansweredProps);
+
+        StartupActorsConfig unansweredActors = new StartupActorsConfig();
+        unansweredActors.addActor("dead-letters", DeadLetterActor.class);
+        TestMediatorRoot.launch(system, unansweredConfig, unansweredActors);
+    }
+
+    @AfterClass
+    public static void teardown() {
+        registry.stop();
+        JavaTestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    private static String message(String controlId) {
+        return "MSH|^~\\&|openhim|openhim|pix|pix|20150101000000||ADT^A04^ADT_A01|" + controlId + "|P|2.3.1\r" +
+                "PID|||" + controlId + "^^^OpenEMPI\r";
+    }
+
+    private static List<DeadLetter> list(JavaTestKit probe, DeadLetterStore.Filter filter) {
+        return list(probe, testConfig, filter);
+    }
+
+    private static List<DeadLetter> list(JavaTestKit probe, MediatorConfig config, DeadLetterStore.Filter filter) {
+        system.actorSelection(config.userPathFor("dead-letters")).tell(new ListDeadLetters(filter), probe.getRef());
+        return probe.expectMsgClass(JavaTestKit.duration("5 seconds"), DeadLetterList.class).getDeadLetters();
+    }
+
+    private static DeadLetter.Status status(JavaTestKit probe, MediatorConfig config, String id) {
+        for (DeadLetter letter : list(probe, config, new DeadLetterStore.Filter())) {
+            if (id.equals(letter.getId())) {
+                return letter.getStatus();
+            }
+        }
+        return null;
+    }
+
+    @Test
+    public void testRejectedMessagesAreRecordedAndReplayed() throws Exception {
+        new JavaTestKit(system) {{
+            new IgnoreMsg() {
+                @Override
+                protected boolean ignore(Object msg) {
+                    return msg instanceof AddOrchestrationToCoreResponse;
+                }
+            };
+            ActorSelection connector = system.actorSelection(testConfig.userPathFor("xds-registry-connector"));
+
+            registry.setAckCode("AE");
+            for (int i = 0; i < 3; i++) {
+                connector.tell(new MediatorSocketRequest(getRef(), getRef(), "test", "dl-" + i, "localhost",
+                        registry.getPort(), message("dl-" + i)), getRef());
+                expectMsgClass(duration("5 seconds"), MediatorSocketResponse.class);
+            }
+
+            DeadLetterStore.Filter pendingA04 = new DeadLetterStore.Filter().status(DeadLetter.Status.PENDING).messageType("ADT^A04");
+            List<DeadLetter> letters = list(this, pendingA04);
+            for (int i = 0; i < 50 && letters.size() < 3; i++) {
+                Thread.sleep(50);
+                letters = list(this, pendingA04);
+            }
+            assertEquals(3, letters.size());
+            assertEquals("dl-0", letters.get(0).getId());
+            assertEquals(1, letters.get(0).getAttempts());
+            assertTrue(letters.get(0).getError().contains("AE"));
+            assertEquals(message("dl-0"), letters.get(0).getPayload());
+
+            registry.setAckCode("AA");
+            int received = registry.getMessagesReceived();
+            system.actorSelection(testConfig.userPathFor("dead-letters")).tell(
+                    new ReplayDeadLetters(new DeadLetterStore.Filter().messageType("ADT^A04")), getRef());
+            assertEquals(3, expectMsgClass(duration("5 seconds"), DeadLetterList.class).getDeadLetters().size());
+
+            DeadLetterStore.Filter resolved = new DeadLetterStore.Filter().status(DeadLetter.Status.RESOLVED);
+            for (int i = 0; i < 50 && list(this, resolved).size() < 3; i++) {
+                Thread.sleep(50);
+            }
+            assertEquals(3, list(this, resolved).size());
+            assertEquals(received + 3, registry.getMessagesReceived());
+        }};
+    }
+
+    @Test
+    public void testUnansweredReplaysArePendingAgain() throws Exception {
+        new JavaTestKit(system) {{
+            ActorSelection deadLetters = system.actorSelection(unansweredConfig.userPathFor("dead-letters"));
+            deadLetters.tell(new RecordDeadLetter("un-0", message("un-0"), "timeout"), getRef());
+            deadLetters.tell(new RecordDeadLetter("un-1", message("un-1"), "timeout"), getRef());
+
+            deadLetters.tell(new ReplayDeadLetters(new DeadLetterStore.Filter()), getRef());
+            assertEquals(2, expectMsgClass(duration("5 seconds"), DeadLetterList.class).getDeadLetters().size());
+            assertEquals(DeadLetter.Status.REPLAYING, status(this, unansweredConfig, "un-0"));
+
+            // a response without an MSA segment doesn't resolve the letter
+            MediatorSocketRequest replay = new MediatorSocketRequest(getRef(), getRef(), "test", "un-0", "localhost",
+                    registry.getPort(), message("un-0"));
+            deadLetters.tell(new MediatorSocketResponse(replay, "not an acknowledgement"), getRef());
+            assertEquals(DeadLetter.Status.PENDING, status(this, unansweredConfig, "un-0"));
+
+            // no response at all
+            for (int i = 0; i < 50 && status(this, unansweredConfig, "un-1") == DeadLetter.Status.REPLAYING; i++) {
+                Thread.sleep(50);
+            }
+            assertEquals(DeadLetter.Status.PENDING, status(this, unansweredConfig, "un-1"));
+            assertEquals(1, list(this, unansweredConfig, new DeadLetterStore.Filter()).get(1).getAttempts());
+        }};
+    }
+
+    @Test
+    public void testNoStoreWhenDisabled() throws Exception {
+        final MediatorConfig config = new MediatorConfig("mediator-dead-letter-disabled-test", "localhost", 4702);
+        Properties props = new Properties();
+        File file = new File(folder.getRoot(), "disabled.jsonl");
+        props.setProperty("xds.deadLetters.enabled", "false");
+        props.setProperty("xds.deadLetters.file", file.getPath());
+        config.setProperties(props);
+
+        new JavaTestKit(system) {{
+            system.actorOf(Props.create(DeadLetterActor.class, config)).tell(new ListDeadLetters(new DeadLetterStore.Filter()), getRef());
+            assertTrue(expectMsgClass(duration("5 seconds"), DeadLetterList.class).getDeadLetters().isEmpty());
+        }};
+        assertFalse(file.exists());
+    }
+
+    @Test
+    public void testStoreIsReloadedFromFile() throws Exception {
+        File file = folder.newFile();
+        DeadLetterStore store = new DeadLetterStore(file);
+        store.failed("a", message("a"), "timeout");
+        store.failed("b", message("b"), "AE");
+        store.failed("a", message("a"), "AR");
+        store.setStatus("b", DeadLetter.Status.REPLAYING);
+        store.close();
+
+        // partly written record
+        FileWriter out = new FileWriter(file, true);
+        out.write("{\"id\":\"c\",\"messa");
+        out.close();
+
+        store = new DeadLetterStore(file);
+        List<DeadLetter> letters = store.list(new DeadLetterStore.Filter());
+        assertEquals(2, letters.size());
+        assertEquals("a", letters.get(0).getId());
+        assertEquals(2, letters.get(0).getAttempts());
+        assertEquals("AR", letters.get(0).getError());
+        assertEquals("ADT^A04", letters.get(0).getMessageType());
+        assertEquals(DeadLetter.Status.PENDING, letters.get(1).getStatus());
+        assertEquals(1, store.list(new DeadLetterStore.Filter().errorContains("AE")).size());
+        store.close();
+    }
+}
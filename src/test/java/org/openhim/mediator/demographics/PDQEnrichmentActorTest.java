@@ -0,0 +1,148 @@
+package org.openhim.mediator.demographics;
+
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.actor.UntypedActor;
+import akka.testkit.JavaTestKit;
+import org.junit.*;
+import org.openhim.mediator.datatypes.AssigningAuthority;
+import org.openhim.mediator.datatypes.Demographics;
+import org.openhim.mediator.datatypes.Identifier;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.StartupActorsConfig;
+import org.openhim.mediator.engine.messages.MediatorSocketRequest;
+import org.openhim.mediator.engine.messages.MediatorSocketResponse;
+import org.openhim.mediator.messages.LookupDemographics;
+import org.openhim.mediator.messages.LookupDemographicsResponse;
+import org.openhim.mediator.testing.TestMediatorRoot;
+
+import static org.junit.Assert.*;
+
+public class PDQEnrichmentActorTest {
+
+    static ActorSystem system;
+    static MediatorConfig testConfig;
+    static final AtomicInteger queries = new AtomicInteger();
+
+    /**
+     * Stands in for the MLLP connector and answers PDQ queries: patient 1234 is known, others aren't
+     */
+    public static class StubPDQSupplier extends UntypedActor {
+        @Override
+        public void onReceive(Object msg) throws Exception {
+            if (msg instanceof MediatorSocketRequest) {
+                MediatorSocketRequest request = (MediatorSocketRequest) msg;
+                queries.incrementAndGet();
+                boolean known = request.getBody().contains("@PID.3.1^1234");
+                String response = "MSH|^~\\&|pdq|pdq|openhim|openhim|20150101000000||RSP^K22^RSP_K21|r1|P|2.5\r" +
+                        "MSA|AA|" + request.getCorrelationId() + "\r" +
+                        "QAK|" + request.getCorrelationId() + "|" + (known ? "OK" : "NF") + "\r" +
+                        "QPD|IHE PDQ Query|" + request.getCorrelationId() + "\r" +
+                        (known ? "PID|||1234^^^OpenEMPI||Doe^John||19800101|M|||||555-1234\r" : "");
+                // lets the lookups for the same patient pile up
+                Thread.sleep(50);
+                request.getRespondTo().tell(new MediatorSocketResponse(request, response), getSelf());
+            }
+        }
+    }
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        system = ActorSystem.create();
+
+        testConfig = new MediatorConfig("mediator-pdq-test", "localhost", 4700);
+        Properties props = new Properties();
+        props.setProperty("pix.sendingApplication", "openhim");
+        props.setProperty("pdq.manager.host", "localhost");
+        props.setProperty("pdq.manager.port", "3700");
+        props.setProperty("pdq.enrich.enabled", "true");
+        testConfig.setProperties(props);
+
+        StartupActorsConfig actors = new StartupActorsConfig();
+        actors.addActor("mllp-connector", StubPDQSupplier.class);
+        TestMediatorRoot.launch(system, testConfig, actors);
+    }
+
+    @AfterClass
+    public static void teardown() {
+        JavaTestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    private static Identifier id(String id) {
+        return new Identifier(id, new AssigningAuthority("OpenEMPI", "2.16.840.1.113883.4.357", "ISO"));
+    }
+
+    @Test
+    public void testConcurrentLookupsShareOneQueryAndAreCached() throws Exception {
+        new JavaTestKit(system) {{
+            ActorRef enricher = system.actorOf(Props.create(PDQEnrichmentActor.class, testConfig));
+            int before = queries.get();
+
+            for (int i = 0; i < 3; i++) {
+                enricher.tell(new LookupDemographics(getRef(), getRef(), "l" + i, id("1234")), getRef());
+            }
+            enricher.tell(new LookupDemographics(getRef(), getRef(), "unknown", id("9999")), getRef());
+
+            for (int i = 0; i < 4; i++) {
+                LookupDemographicsResponse response = expectMsgClass(duration("5 seconds"), LookupDemographicsResponse.class);
+                Demographics demographics = response.getDemographics();
+                if ("unknown".equals(response.getOriginalRequest().getCorrelationId())) {
+                    assertTrue(demographics.isEmpty());
+                } else {
+                    assertEquals("Doe", demographics.getFamilyName());
+                    assertEquals("John", demographics.getGivenName());
+                    assertEquals("19800101", demographics.getBirthDate());
+                    assertEquals("M", demographics.getGender());
+                    assertEquals("555-1234", demographics.getTelecom());
+                }
+            }
+            assertEquals(2, queries.get() - before);
+
+            // seen recently
+            assertEquals("Doe", DemographicsCache.forConfig(testConfig).get(id("1234")).getFamilyName());
+            enricher.tell(new LookupDemographics(getRef(), getRef(), "again", id("1234")), getRef());
+            expectMsgClass(duration("5 seconds"), LookupDemographicsResponse.class);
+            assertEquals(2, queries.get() - before);
+        }};
+    }
+
+    @Test
+    public void testQueryThatCantBeSentGivesNoDemographics() throws Exception {
+        final MediatorConfig config = new MediatorConfig("mediator-pdq-unset-port-test", "localhost", 4701);
+        Properties props = new Properties();
+        props.setProperty("pdq.manager.host", "localhost");
+        config.setProperties(props);
+
+        new JavaTestKit(system) {{
+            ActorRef enricher = system.actorOf(Props.create(PDQEnrichmentActor.class, config));
+            enricher.tell(new LookupDemographics(getRef(), getRef(), "no-port", id("1234")), getRef());
+            LookupDemographicsResponse response = expectMsgClass(duration("1 second"), LookupDemographicsResponse.class);
+            assertSame(Demographics.NONE, response.getDemographics());
+        }};
+    }
+
+    @Test
+    public void testCacheEntriesExpire() throws Exception {
+        DemographicsCache cache = new DemographicsCache(500, 20, 2);
+        cache.put(id("1"), new Demographics("Doe", null, null, null, null));
+        cache.put(id("2"), Demographics.NONE);
+        assertNotNull(cache.get(id("1")));
+        assertSame(Demographics.NONE, cache.get(id("2")));
+
+        // beyond maxEntries, the least recently used goes
+        cache.put(id("3"), new Demographics("Roe", null, null, null, null));
+        assertNull(cache.get(id("1")));
+
+        // patients the supplier didn't know expire sooner
+        Thread.sleep(60);
+        assertNull(cache.get(id("2")));
+        assertNotNull(cache.get(id("3")));
+        Thread.sleep(500);
+        assertNull(cache.get(id("3")));
+    }
+}
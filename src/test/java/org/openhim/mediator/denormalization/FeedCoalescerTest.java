@@ -0,0 +1,113 @@
+package org.openhim.mediator.denormalization;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.testkit.JavaTestKit;
+import org.junit.*;
+import org.openhim.mediator.connectors.XdsRegistryConnector;
+import org.openhim.mediator.datatypes.AssigningAuthority;
+import org.openhim.mediator.datatypes.Identifier;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.StartupActorsConfig;
+import org.openhim.mediator.engine.connectors.MLLPConnector;
+import org.openhim.mediator.messages.MergePatientXds;
+import org.openhim.mediator.messages.RegisterNewPatientResponse;
+import org.openhim.mediator.messages.RegisterNewPatientXds;
+import org.openhim.mediator.testing.MockMLLPRegistry;
+import org.openhim.mediator.testing.TestMediatorRoot;
+
+import static org.junit.Assert.*;
+
+public class FeedCoalescerTest {
+
+    static ActorSystem system;
+    static MockMLLPRegistry registry;
+    static MediatorConfig testConfig;
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        system = ActorSystem.create();
+        registry = new MockMLLPRegistry();
+
+        testConfig = new MediatorConfig("mediator-coalesce-test", "localhost", 4600);
+        Properties props = new Properties();
+        props.setProperty("pix.sendingApplication", "openhim");
+        props.setProperty("pix.sendingFacility", "openhim");
+        props.setProperty("pix.receivingApplication", "pix");
+        props.setProperty("pix.receivingFacility", "pix");
+        props.setProperty("xds.registry.host", "localhost");
+        props.setProperty("xds.registry.port", Integer.toString(registry.getPort()));
+        props.setProperty("xds.feed.coalesce.enabled", "true");
+        props.setProperty("xds.merge.batch.maxSize", "1");
+        testConfig.setProperties(props);
+
+        StartupActorsConfig actors = new StartupActorsConfig();
+        actors.addActor("mllp-connector", MLLPConnector.class);
+        actors.addActor("xds-registry-connector", XdsRegistryConnector.class);
+        TestMediatorRoot.launch(system, testConfig, actors);
+    }
+
+    @AfterClass
+    public static void teardown() {
+        registry.stop();
+        JavaTestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    private static Identifier id(String id) {
+        return new Identifier(id, new AssigningAuthority("OpenEMPI", "2.16.840.1.113883.4.357", "ISO"));
+    }
+
+    private static List<Identifier> ids(String id) {
+        return Collections.singletonList(id(id));
+    }
+
+    @Test
+    public void testIdenticalConcurrentFeedsAreSentOnce() throws Exception {
+        new JavaTestKit(system) {{
+            JavaTestKit requestHandler = new JavaTestKit(system);
+            ActorRef coalescer = system.actorOf(Props.create(FeedCoalescer.class, testConfig));
+            int received = registry.getMessagesReceived();
+
+            RegisterNewPatientXds first = new RegisterNewPatientXds(requestHandler.getRef(), getRef(), Arrays.asList(id("1"), id("2")));
+            RegisterNewPatientXds retry = new RegisterNewPatientXds(requestHandler.getRef(), getRef(), Arrays.asList(id("2"), id("1")));
+            RegisterNewPatientXds other = new RegisterNewPatientXds(requestHandler.getRef(), getRef(), ids("3"));
+            coalescer.tell(first, getRef());
+            coalescer.tell(retry, getRef());
+            coalescer.tell(other, getRef());
+
+            boolean firstAnswered = false, retryAnswered = false, otherAnswered = false;
+            for (int i = 0; i < 3; i++) {
+                RegisterNewPatientResponse response = expectMsgClass(duration("5 seconds"), RegisterNewPatientResponse.class);
+                assertTrue(response.isSuccessful());
+                firstAnswered |= response.getOriginalRequest() == first;
+                retryAnswered |= response.getOriginalRequest() == retry;
+                otherAnswered |= response.getOriginalRequest() == other;
+            }
+            assertTrue(firstAnswered && retryAnswered && otherAnswered);
+            assertEquals(received + 2, registry.getMessagesReceived());
+        }};
+    }
+
+    @Test
+    public void testFeedAfterCompletionIsSentAgain() throws Exception {
+        new JavaTestKit(system) {{
+            JavaTestKit requestHandler = new JavaTestKit(system);
+            ActorRef coalescer = system.actorOf(Props.create(FeedCoalescer.class, testConfig));
+            int received = registry.getMessagesReceived();
+
+            for (int i = 0; i < 2; i++) {
+                coalescer.tell(new MergePatientXds(requestHandler.getRef(), getRef(), ids("new"), ids("old")), getRef());
+                RegisterNewPatientResponse response = expectMsgClass(duration("5 seconds"), RegisterNewPatientResponse.class);
+                assertTrue(response.isSuccessful());
+            }
+            assertEquals(received + 2, registry.getMessagesReceived());
+        }};
+    }
+}
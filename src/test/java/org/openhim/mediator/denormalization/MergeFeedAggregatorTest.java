@@ -0,0 +1,100 @@
+package org.openhim.mediator.denormalization;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.testkit.JavaTestKit;
+import org.junit.*;
+import org.openhim.mediator.connectors.XdsRegistryConnector;
+import org.openhim.mediator.datatypes.AssigningAuthority;
+import org.openhim.mediator.datatypes.Identifier;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.connectors.MLLPConnector;
+import org.openhim.mediator.engine.StartupActorsConfig;
+import org.openhim.mediator.messages.MergePatientXds;
+import org.openhim.mediator.messages.RegisterNewPatientResponse;
+import org.openhim.mediator.testing.MockMLLPRegistry;
+import org.openhim.mediator.testing.TestMediatorRoot;
+
+import static org.junit.Assert.*;
+
+public class MergeFeedAggregatorTest {
+
+    static ActorSystem system;
+    static MockMLLPRegistry registry;
+    static MediatorConfig testConfig;
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        system = ActorSystem.create();
+        registry = new MockMLLPRegistry();
+
+        testConfig = new MediatorConfig("mediator-merge-test", "localhost", 4500);
+        Properties props = new Properties();
+        props.setProperty("pix.sendingApplication", "openhim");
+        props.setProperty("pix.sendingFacility", "openhim");
+        props.setProperty("pix.receivingApplication", "pix");
+        props.setProperty("pix.receivingFacility", "pix");
+        props.setProperty("xds.registry.host", "localhost");
+        props.setProperty("xds.registry.port", Integer.toString(registry.getPort()));
+        props.setProperty("xds.merge.batch.maxSize", "3");
+        props.setProperty("xds.merge.batch.maxDelayMs", "300");
+        testConfig.setProperties(props);
+
+        StartupActorsConfig actors = new StartupActorsConfig();
+        actors.addActor("mllp-connector", MLLPConnector.class);
+        actors.addActor("xds-registry-connector", XdsRegistryConnector.class);
+        TestMediatorRoot.launch(system, testConfig, actors);
+    }
+
+    @AfterClass
+    public static void teardown() {
+        registry.stop();
+        JavaTestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    private static List<Identifier> ids(String id) {
+        return Collections.singletonList(new Identifier(id, new AssigningAuthority("OpenEMPI", "2.16.840.1.113883.4.357", "ISO")));
+    }
+
+    @Test
+    public void testConcurrentMergesAreSentAsOneMessage() throws Exception {
+        new JavaTestKit(system) {{
+            JavaTestKit requestHandler = new JavaTestKit(system);
+            ActorRef aggregator = system.actorOf(Props.create(MergeFeedAggregator.class, testConfig));
+            int received = registry.getMessagesReceived();
+
+            for (int i = 0; i < 3; i++) {
+                aggregator.tell(new MergePatientXds(requestHandler.getRef(), getRef(), ids("new-" + i), ids("old-" + i)), getRef());
+            }
+
+            for (int i = 0; i < 3; i++) {
+                RegisterNewPatientResponse response = expectMsgClass(duration("5 seconds"), RegisterNewPatientResponse.class);
+                assertTrue(response.isSuccessful());
+            }
+            assertEquals(received + 1, registry.getMessagesReceived());
+        }};
+    }
+
+    @Test
+    public void testPartialBatchIsFlushedAfterDelay() throws Exception {
+        new JavaTestKit(system) {{
+            JavaTestKit requestHandler = new JavaTestKit(system);
+            ActorRef aggregator = system.actorOf(Props.create(MergeFeedAggregator.class, testConfig));
+
+            int received = registry.getMessagesReceived();
+
+            MergePatientXds merge = new MergePatientXds(requestHandler.getRef(), getRef(), ids("new"), ids("old"));
+            aggregator.tell(merge, getRef());
+
+            RegisterNewPatientResponse response = expectMsgClass(duration("5 seconds"), RegisterNewPatientResponse.class);
+            assertSame(merge, response.getOriginalRequest());
+            assertEquals(received + 1, registry.getMessagesReceived());
+        }};
+    }
+}
@@ -0,0 +1,128 @@
+package org.openhim.mediator.denormalization;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.openhim.mediator.datatypes.AssigningAuthority;
+import org.openhim.mediator.datatypes.Demographics;
+import org.openhim.mediator.datatypes.Identifier;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.messages.MergePatientXds;
+import org.openhim.mediator.messages.RegisterNewPatientXds;
+
+import static org.junit.Assert.*;
+
+public class XdsFeedMessageBuilderTest {
+
+    private XdsFeedMessageBuilder builder;
+
+    @Before
+    public void setUp() throws Exception {
+        MediatorConfig testConfig = new MediatorConfig("mediator-pix", "localhost", 4500);
+        Properties props = new Properties();
+        props.setProperty("pix.sendingApplication", "openhim");
+        props.setProperty("pix.sendingFacility", "openhim");
+        props.setProperty("pix.receivingApplication", "pix");
+        props.setProperty("pix.receivingFacility", "pix");
+        testConfig.setProperties(props);
+
+        builder = new XdsFeedMessageBuilder(testConfig);
+    }
+
+    private static List<Identifier> ids(String id) {
+        return Collections.singletonList(new Identifier(id, new AssigningAuthority("OpenEMPI", "2.16.840.1.113883.4.357", "ISO")));
+    }
+
+    @Test
+    public void testConstructADT_A04() throws Exception {
+        String msg = builder.constructADT_A04("corr-1", new RegisterNewPatientXds(null, null, ids("1234")));
+
+        assertTrue(msg.startsWith("MSH|^~\\&|openhim|openhim|pix|pix|"));
+        assertTrue(msg.contains("|ADT^A04^ADT_A01|corr-1|P|2.3.1"));
+        assertTrue(msg.contains("PID|||1234^^^OpenEMPI&2.16.840.1.113883.4.357&ISO"));
+    }
+
+    @Test
+    public void testConstructADT_A04WithDemographics() throws Exception {
+        String msg = builder.constructADT_A04("corr-6", new RegisterNewPatientXds(null, null, ids("1234")),
+                new Demographics("Doe", "John", "19800101", "M", "555-1234"));
+
+        assertTrue(msg.contains("PID|||1234^^^OpenEMPI&2.16.840.1.113883.4.357&ISO||Doe^John||19800101|M|||||555-1234"));
+    }
+
+    @Test
+    public void testConstructADT_A04WithSeveralDomains() throws Exception {
+        List<Identifier> patientIds = new ArrayList<>();
+        patientIds.addAll(ids("1234"));
+        patientIds.add(new Identifier("CLINIC-99", new AssigningAuthority("Clinic", "1.3.6.1.4.1.21367.2010.1.2", "ISO")));
+
+        String msg = builder.constructADT_A04("corr-4", new RegisterNewPatientXds(null, null, patientIds));
+
+        assertTrue(msg.contains("PID|||1234^^^OpenEMPI&2.16.840.1.113883.4.357&ISO~CLINIC-99^^^Clinic&1.3.6.1.4.1.21367.2010.1.2&ISO"));
+    }
+
+    @Test
+    public void testConstructADT_A40SkipsDomainsWithoutPreUpdateIdentifier() throws Exception {
+        List<Identifier> patientIds = new ArrayList<>();
+        patientIds.addAll(ids("1111"));
+        patientIds.addAll(ids("2222"));
+        List<Identifier> preUpdateIds = new ArrayList<>();
+        preUpdateIds.add(null);
+        preUpdateIds.addAll(ids("4444"));
+
+        String msg = builder.constructADT_A40("corr-5", new MergePatientXds(null, null, patientIds, preUpdateIds));
+        String[] segments = msg.split("\r");
+
+        assertEquals(4, segments.length);
+        assertTrue(segments[2].startsWith("PID|||2222^^^"));
+        assertTrue(segments[3].startsWith("MRG|4444^^^"));
+    }
+
+    @Test
+    public void testConstructADT_A40() throws Exception {
+        String msg = builder.constructADT_A40("corr-2", new MergePatientXds(null, null, ids("1234"), ids("5678")));
+
+        assertTrue(msg.contains("|ADT^A40^ADT_A39|corr-2|P|2.3.1"));
+        assertTrue(msg.contains("PID|||1234^^^OpenEMPI&2.16.840.1.113883.4.357&ISO"));
+        assertTrue(msg.contains("MRG|5678^^^OpenEMPI&2.16.840.1.113883.4.357&ISO"));
+    }
+
+    @Test
+    public void testConstructADT_A40WithSeveralMerges() throws Exception {
+        List<Identifier> patientIds = new ArrayList<>();
+        patientIds.addAll(ids("1111"));
+        patientIds.addAll(ids("2222"));
+        List<Identifier> preUpdateIds = new ArrayList<>();
+        preUpdateIds.addAll(ids("3333"));
+        preUpdateIds.addAll(ids("4444"));
+
+        String msg = builder.constructADT_A40("corr-3", new MergePatientXds(null, null, patientIds, preUpdateIds));
+        String[] segments = msg.split("\r");
+
+        assertEquals(6, segments.length);
+        assertTrue(segments[2].startsWith("PID|||1111^^^"));
+        assertTrue(segments[3].startsWith("MRG|3333^^^"));
+        assertTrue(segments[4].startsWith("PID|||2222^^^"));
+        assertTrue(segments[5].startsWith("MRG|4444^^^"));
+    }
+
+    @Test
+    public void testParseACKError() throws Exception {
+        String aa = "MSH|^~\\&|xds|xds|openhim|openhim|20150101000000||ACK^A04|1|P|2.3.1\rMSA|AA|corr-1\r";
+        String ae = "MSH|^~\\&|xds|xds|openhim|openhim|20150101000000||ACK^A04|1|P|2.3.1\rMSA|AE|corr-1\r";
+
+        assertNull(builder.parseACKError(aa));
+        assertNotNull(builder.parseACKError(ae));
+
+        String withDetail = "MSH|^~\\&|xds|xds|openhim|openhim|20150101000000||ACK^A04|1|P|2.3.1\r" +
+                "MSA|AE|corr-1|Unknown domain\rERR|PID^1^3^204&Unknown key identifier&HL70357\r";
+        String err = builder.parseACKError(withDetail);
+        assertTrue(err, err.contains("AE"));
+        assertTrue(err, err.contains("Unknown domain"));
+        assertTrue(err, err.contains("Unknown key identifier"));
+    }
+}
@@ -0,0 +1,103 @@
+package org.openhim.mediator.normalization;
+
+import java.util.Properties;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.testkit.JavaTestKit;
+import org.apache.commons.io.IOUtils;
+import org.junit.*;
+import org.openhim.mediator.DefaultOrchestrator;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.messages.ExceptError;
+import org.openhim.mediator.messages.ParseOpenEMPINotification;
+import org.openhim.mediator.messages.ParseOpenEMPINotificationResponse;
+
+import static org.junit.Assert.*;
+
+public class ParseOpenEMPINotificationActorTest {
+
+    static ActorSystem system;
+
+    @BeforeClass
+    public static void setup() {
+        system = ActorSystem.create();
+    }
+
+    @AfterClass
+    public static void teardown() {
+        JavaTestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    private static String loadResource(String name) throws Exception {
+        return IOUtils.toString(ParseOpenEMPINotificationActorTest.class.getClassLoader().getResourceAsStream(name));
+    }
+
+    @Test
+    public void testParseAddNotification() throws Exception {
+        final String body = loadResource("openempi-add-notification.json");
+
+        new JavaTestKit(system) {{
+            ActorRef parser = system.actorOf(Props.create(ParseOpenEMPINotificationActor.class)
+                    .withDispatcher(DefaultOrchestrator.TRANSFORM_DISPATCHER));
+            parser.tell(new ParseOpenEMPINotification(getRef(), getRef(), body), getRef());
+
+            ParseOpenEMPINotificationResponse response = expectMsgClass(duration("2 seconds"), ParseOpenEMPINotificationResponse.class);
+            assertTrue(response.getOperation().contains("ADD"));
+            assertTrue(response.getTransition().contains("JOIN"));
+            assertEquals(1, response.getPatientIdentifiers().size());
+            assertEquals("ECID-1234", response.getPatientIdentifiers().get(0).getIdentifier());
+            assertEquals("2.16.840.1.113883.4.357", response.getPatientIdentifiers().get(0).getAssigningAuthority().getAssigningAuthorityId());
+        }};
+    }
+
+    @Test
+    public void testParseSyncsConfiguredDomains() throws Exception {
+        final String body = loadResource("openempi-add-notification.json");
+        final MediatorConfig config = new MediatorConfig("mediator-parse-test", "localhost", 4500);
+        Properties props = new Properties();
+        // primary domain first, whatever the order in the notification
+        props.setProperty("pix.syncDomains", "clinic, OpenEMPI, Lab");
+        config.setProperties(props);
+
+        new JavaTestKit(system) {{
+            ActorRef parser = system.actorOf(Props.create(ParseOpenEMPINotificationActor.class, config));
+            parser.tell(new ParseOpenEMPINotification(getRef(), getRef(), body), getRef());
+
+            ParseOpenEMPINotificationResponse response = expectMsgClass(duration("2 seconds"), ParseOpenEMPINotificationResponse.class);
+            assertEquals(2, response.getPatientIdentifiers().size());
+            assertEquals("CLINIC-99", response.getPatientIdentifiers().get(0).getIdentifier());
+            assertEquals("Clinic", response.getPatientIdentifiers().get(0).getAssigningAuthority().getAssigningAuthority());
+            assertEquals("ECID-1234", response.getPatientIdentifiers().get(1).getIdentifier());
+            assertEquals(2, response.getPreUpdateIdentifiers().size());
+            assertNull(response.getPreUpdateIdentifiers().get(0));
+        }};
+    }
+
+    @Test
+    public void testParseUpdateNotification() throws Exception {
+        final String body = loadResource("openempi-update-notification.json");
+
+        new JavaTestKit(system) {{
+            ActorRef parser = system.actorOf(Props.create(ParseOpenEMPINotificationActor.class));
+            parser.tell(new ParseOpenEMPINotification(getRef(), getRef(), body), getRef());
+
+            ParseOpenEMPINotificationResponse response = expectMsgClass(duration("2 seconds"), ParseOpenEMPINotificationResponse.class);
+            assertTrue(response.getOperation().contains("UPDATE"));
+            assertEquals("ECID-1234", response.getPatientIdentifiers().get(0).getIdentifier());
+            assertEquals("ECID-5678", response.getPreUpdateIdentifiers().get(0).getIdentifier());
+        }};
+    }
+
+    @Test
+    public void testMalformedNotification() throws Exception {
+        new JavaTestKit(system) {{
+            ActorRef parser = system.actorOf(Props.create(ParseOpenEMPINotificationActor.class));
+            parser.tell(new ParseOpenEMPINotification(getRef(), getRef(), "{not json"), getRef());
+
+            expectMsgClass(duration("2 seconds"), ExceptError.class);
+        }};
+    }
+}
@@ -0,0 +1,228 @@
+package org.openhim.mediator.tenants;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.testkit.JavaTestKit;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.tuple.Pair;
+import org.apache.http.HttpStatus;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.openhim.mediator.MediatorSettings;
+import org.openhim.mediator.connectors.BlockingMLLPConnector;
+import org.openhim.mediator.connectors.XdsRegistryConnector;
+import org.openhim.mediator.deadletters.DeadLetterActor;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.StartupActorsConfig;
+import org.openhim.mediator.engine.messages.FinishRequest;
+import org.openhim.mediator.engine.messages.MediatorHTTPRequest;
+import org.openhim.mediator.testing.MockMLLPRegistry;
+
+import static org.junit.Assert.*;
+
+public class TenantsTest {
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    static ActorSystem system;
+    static MockMLLPRegistry north;
+    static MockMLLPRegistry south;
+    static MediatorConfig config;
+    static String notification;
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        system = ActorSystem.create();
+        north = new MockMLLPRegistry();
+        south = new MockMLLPRegistry();
+        notification = IOUtils.toString(TenantsTest.class.getClassLoader().getResourceAsStream("openempi-add-notification.json"));
+
+        config = new MediatorConfig("mediator-tenants-test", "localhost", 4500);
+        Properties props = new Properties();
+        props.setProperty("pix.sendingApplication", "openhim");
+        props.setProperty("pix.sendingFacility", "openhim");
+        props.setProperty("pix.receivingApplication", "pix");
+        props.setProperty("pix.receivingFacility", "pix");
+        props.setProperty("xds.registry.host", "localhost");
+        props.setProperty("mediator.tenants", "north, south");
+        props.setProperty("tenant.north.xds.registry.port", Integer.toString(north.getPort()));
+        props.setProperty("tenant.north.xds.feed.maxInProgress", "2");
+        props.setProperty("tenant.south.xds.registry.port", Integer.toString(south.getPort()));
+        props.setProperty("tenant.south.pix.receivingFacility", "south-registry");
+        props.setProperty("xds.deadLetters.enabled", "true");
+        props.setProperty("xds.deadLetters.file", new File(folder.getRoot(), "dead-letters.jsonl").getPath());
+        props.setProperty("mediator.admin.enabled", "true");
+        props.setProperty("mediator.admin.token", "admin-secret");
+        config.setProperties(props);
+
+        StartupActorsConfig actors = new StartupActorsConfig();
+        actors.addActor("blocking-mllp-connector", BlockingMLLPConnector.class);
+        actors.addActor("xds-registry-connector", XdsRegistryConnector.class);
+        actors.addActor("dead-letters", DeadLetterActor.class);
+        Tenants.forConfig(config).launch(system, actors);
+    }
+
+    @AfterClass
+    public static void teardown() {
+        north.stop();
+        south.stop();
+        JavaTestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    private static void post(JavaTestKit kit, String path, Map<String, String> headers) {
+        request(kit, "POST", path, headers);
+    }
+
+    private static void request(JavaTestKit kit, String method, String path, Map<String, String> headers) {
+        request(kit, method, path, headers, notification);
+    }
+
+    private static void request(JavaTestKit kit, String method, String path, Map<String, String> headers, String body) {
+        ActorRef router = system.actorOf(Props.create(TenantRouter.class, config));
+        router.tell(new MediatorHTTPRequest(new JavaTestKit(system).getRef(), kit.getRef(), "unit-test", method, "http",
+                null, null, path, body, headers, Collections.<Pair<String, String>>emptyList()), kit.getRef());
+    }
+
+    @Test
+    public void testTenantProperties() {
+        Properties props = new Properties();
+        props.setProperty("xds.registry.host", "registry");
+        props.setProperty("xds.registry.limit.max", "100");
+        props.setProperty("xds.deadLetters.file", "data/dead-letters.jsonl");
+        props.setProperty("openempi.changes.enabled", "true");
+        props.setProperty("tenant.north.xds.registry.host", "north-registry");
+        props.setProperty("tenant.south.xds.registry.host", "south-registry");
+
+        Properties tenant = Tenants.overlay(props, "mediator", "north");
+        assertEquals("north-registry", tenant.getProperty("xds.registry.host"));
+        assertEquals("100", tenant.getProperty("xds.registry.limit.max"));
+        assertEquals("data" + File.separator + "dead-letters-north.jsonl", tenant.getProperty("xds.deadLetters.file"));
+        assertEquals("spill-north", tenant.getProperty("xds.registry.spill.dir"));
+        assertEquals("blocking", tenant.getProperty("xds.registry.connector"));
+        assertEquals("mediator-north", tenant.getProperty("mediator.name"));
+        assertNull(tenant.getProperty("openempi.changes.enabled"));
+        assertNull(tenant.getProperty("tenant.south.xds.registry.host"));
+
+        MediatorConfig south = Tenants.forConfig(config).get("south");
+        assertEquals("mediator-tenants-test-south", south.getName());
+        assertEquals("south-registry", south.getProperty("pix.receivingFacility"));
+        assertNull(Tenants.forConfig(config).get("east"));
+    }
+
+    @Test
+    public void testSlowTenantDoesNotHoldUpOthers() throws Exception {
+        new JavaTestKit(system) {{
+            north.setResponseDelayMillis(3000);
+            try {
+                int northReceived = north.getMessagesReceived();
+                int southReceived = south.getMessagesReceived();
+
+                post(this, "/tenants/north/mpixds-sync", Collections.<String, String>emptyMap());
+                post(this, "/tenants/north/mpixds-sync", Collections.<String, String>emptyMap());
+                long deadline = System.currentTimeMillis() + 5000;
+                while (north.getMessagesReceived() < northReceived + 2 && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(10);
+                }
+
+                // over the north tenant's budget
+                post(this, "/tenants/north/mpixds-sync", Collections.<String, String>emptyMap());
+                assertEquals(HttpStatus.SC_SERVICE_UNAVAILABLE,
+                        expectMsgClass(duration("1 second"), FinishRequest.class).getResponseStatus().intValue());
+
+                long start = System.currentTimeMillis();
+                for (int i = 0; i < 5; i++) {
+                    post(this, "/mpixds-sync", Collections.singletonMap("X-Tenant", "south"));
+                    assertEquals(HttpStatus.SC_OK,
+                            expectMsgClass(duration("2 seconds"), FinishRequest.class).getResponseStatus().intValue());
+                }
+                assertTrue(System.currentTimeMillis() - start < 2000);
+                assertEquals(southReceived + 5, south.getMessagesReceived());
+                assertEquals(northReceived + 2, north.getMessagesReceived());
+
+                for (int i = 0; i < 2; i++) {
+                    assertEquals(HttpStatus.SC_OK,
+                            expectMsgClass(duration("5 seconds"), FinishRequest.class).getResponseStatus().intValue());
+                }
+            } finally {
+                north.setResponseDelayMillis(0);
+            }
+        }};
+    }
+
+    @Test
+    public void testTenantDeadLettersNeedTheAdminToken() {
+        new JavaTestKit(system) {{
+            request(this, "GET", "/tenants/north/dead-letters", Collections.<String, String>emptyMap());
+            assertEquals(HttpStatus.SC_UNAUTHORIZED, expectMsgClass(duration("1 second"), FinishRequest.class).getResponseStatus().intValue());
+
+            request(this, "POST", "/tenants/north/dead-letters/replay", Collections.singletonMap("X-Admin-Token", "wrong"));
+            assertEquals(HttpStatus.SC_UNAUTHORIZED, expectMsgClass(duration("1 second"), FinishRequest.class).getResponseStatus().intValue());
+
+            request(this, "GET", "/tenants/north/dead-letters", Collections.singletonMap("X-Admin-Token", "admin-secret"));
+            FinishRequest response = expectMsgClass(duration("5 seconds"), FinishRequest.class);
+            assertEquals(HttpStatus.SC_OK, response.getResponseStatus().intValue());
+            assertTrue(response.getResponse().contains("\"count\""));
+        }};
+    }
+
+    @Test
+    public void testTenantAdminRoutes() {
+        final Map<String, String> token = Collections.singletonMap("X-Admin-Token", "admin-secret");
+        final Properties original = (Properties) config.getProperties().clone();
+        final MediatorConfig northConfig = Tenants.forConfig(config).get("north");
+        final MediatorConfig southConfig = Tenants.forConfig(config).get("south");
+
+        try {
+            new JavaTestKit(system) {{
+                request(this, "POST", "/tenants/north/admin/settings", token, "{\"xds.registry.limit.max\": 123}");
+                assertEquals(HttpStatus.SC_OK, expectMsgClass(duration("1 second"), FinishRequest.class).getResponseStatus().intValue());
+                assertEquals("123", MediatorSettings.holderFor(northConfig).get().getProperty("xds.registry.limit.max"));
+                assertNull(MediatorSettings.holderFor(southConfig).get().getProperty("xds.registry.limit.max"));
+                assertNull(config.getProperty("xds.registry.limit.max"));
+
+                Map<String, String> headers = new HashMap<>(token);
+                headers.put("X-Tenant", "south");
+                request(this, "GET", "/admin/stats", headers, null);
+                FinishRequest response = expectMsgClass(duration("5 seconds"), FinishRequest.class);
+                assertEquals(HttpStatus.SC_OK, response.getResponseStatus().intValue());
+                assertTrue(response.getResponse().contains("\"registry\""));
+
+                // the tenants inherit the mediator's settings
+                request(this, "POST", "/admin/settings", token, "{\"xds.registry.batch.maxSize\": 7}");
+                assertEquals(HttpStatus.SC_OK, expectMsgClass(duration("1 second"), FinishRequest.class).getResponseStatus().intValue());
+                assertEquals("7", config.getProperty("xds.registry.batch.maxSize"));
+                assertEquals("7", MediatorSettings.holderFor(northConfig).get().getProperty("xds.registry.batch.maxSize"));
+                assertEquals("7", MediatorSettings.holderFor(southConfig).get().getProperty("xds.registry.batch.maxSize"));
+            }};
+        } finally {
+            MediatorSettings.reload(config, original, system);
+            Tenants.forConfig(config).reload(original, system);
+        }
+    }
+
+    @Test
+    public void testUnknownTenantOrRoute() {
+        new JavaTestKit(system) {{
+            post(this, "/tenants/east/mpixds-sync", Collections.<String, String>emptyMap());
+            assertEquals(HttpStatus.SC_NOT_FOUND, expectMsgClass(duration("1 second"), FinishRequest.class).getResponseStatus().intValue());
+
+            post(this, "/mpixds-sync", Collections.singletonMap("X-Tenant", "east"));
+            assertEquals(HttpStatus.SC_NOT_FOUND, expectMsgClass(duration("1 second"), FinishRequest.class).getResponseStatus().intValue());
+
+            post(this, "/tenants/north/admin/jfr/start", Collections.<String, String>emptyMap());
+            assertEquals(HttpStatus.SC_NOT_FOUND, expectMsgClass(duration("1 second"), FinishRequest.class).getResponseStatus().intValue());
+        }};
+    }
+}
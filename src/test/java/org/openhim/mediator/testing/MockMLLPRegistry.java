@@ -0,0 +1,236 @@
+package org.openhim.mediator.testing;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+
+import org.apache.commons.io.IOUtils;
+import org.openhim.mediator.connectors.BlockingMLLPConnector;
+import org.openhim.mediator.engine.connectors.MLLPConnector;
+
+/**
+ * A stub XDS registry that acknowledges every MLLP framed message it receives.
+ * <br/><br/>
+ * The response delay and acknowledgement code can be changed while the registry is running,
+ * which makes it possible to simulate a registry slowing down, speeding up or rejecting messages.
+ * <br/><br/>
+ * {@link #secure()} creates a registry that only accepts TLS connections, with the localhost certificate in
+ * tls/registry-keystore.jks. tls/mediator-truststore.jks trusts it.
+ */
+public class MockMLLPRegistry {
+    private final ServerSocket serverSocket;
+    private final Thread acceptThread;
+    private final ExecutorService connectionExecutor = Executors.newCachedThreadPool();
+    private final AtomicInteger messagesReceived = new AtomicInteger();
+    private final AtomicInteger connectionsAccepted = new AtomicInteger();
+
+    private volatile long responseDelayMillis = 0;
+    private volatile Semaphore capacity = null;
+    private volatile int messagesPerConnection = 0;
+    private volatile String ackCode = "AA";
+    private volatile String lastControlId;
+    private volatile boolean running = true;
+
+
+    public MockMLLPRegistry() throws IOException {
+        this(new ServerSocket(0, 1024, InetAddress.getLoopbackAddress()));
+    }
+
+    private MockMLLPRegistry(ServerSocket serverSocket) {
+        this.serverSocket = serverSocket;
+        acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptConnections();
+            }
+        }, "mock-registry-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+
+    public static MockMLLPRegistry secure() throws Exception {
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        try (InputStream in = MockMLLPRegistry.class.getResourceAsStream("/tls/registry-keystore.jks")) {
+            keyStore.load(in, "changeit".toCharArray());
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, "changeit".toCharArray());
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), null, null);
+
+        return new MockMLLPRegistry(context.getServerSocketFactory().createServerSocket(0, 1024, InetAddress.getLoopbackAddress()));
+    }
+
+    /**
+     * @return the path of the trust store that trusts {@link #secure()} registries
+     */
+    public static String trustStorePath() {
+        return MockMLLPRegistry.class.getResource("/tls/mediator-truststore.jks").getPath();
+    }
+
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public void setResponseDelayMillis(long responseDelayMillis) {
+        this.responseDelayMillis = responseDelayMillis;
+    }
+
+    /**
+     * Limits the number of messages processed at the same time; further messages wait for a free slot,
+     * so response times grow with the load, as with a real registry. 0 for unlimited.
+     */
+    public void setCapacity(int capacity) {
+        this.capacity = capacity > 0 ? new Semaphore(capacity, true) : null;
+    }
+
+    /**
+     * Closes every connection after it has been used for the given number of messages, like a registry that
+     * drops idle connections. 0 to keep connections open.
+     */
+    public void setMessagesPerConnection(int messagesPerConnection) {
+        this.messagesPerConnection = messagesPerConnection;
+    }
+
+    /**
+     * @param ackCode the MSA-1 of the acknowledgements, or null for responses without an MSA segment
+     */
+    public void setAckCode(String ackCode) {
+        this.ackCode = ackCode;
+    }
+
+    public int getMessagesReceived() {
+        return messagesReceived.get();
+    }
+
+    /**
+     * @return the control ID (MSH-10) of the last message received
+     */
+    public String getLastControlId() {
+        return lastControlId;
+    }
+
+    public int getConnectionsAccepted() {
+        return connectionsAccepted.get();
+    }
+
+    public void stop() {
+        running = false;
+        IOUtils.closeQuietly(serverSocket);
+        // the socket is only really closed once the blocked accept returns; until then connections are still accepted
+        try {
+            acceptThread.join(5000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        connectionExecutor.shutdownNow();
+    }
+
+    private void acceptConnections() {
+        while (running) {
+            try {
+                final Socket socket = serverSocket.accept();
+                connectionsAccepted.incrementAndGet();
+                connectionExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        handleConnection(socket);
+                    }
+                });
+            } catch (IOException ex) {
+                //closed
+            }
+        }
+    }
+
+    protected void handleConnection(Socket socket) {
+        try {
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            OutputStream out = socket.getOutputStream();
+            int handled = 0;
+
+            while (running) {
+                String request = BlockingMLLPConnector.readMLLPFrame(in);
+                messagesReceived.incrementAndGet();
+                lastControlId = controlId(request);
+
+                Semaphore slots = capacity;
+                if (slots != null) {
+                    slots.acquire();
+                }
+                try {
+                    if (responseDelayMillis > 0) {
+                        Thread.sleep(responseDelayMillis);
+                    }
+                } finally {
+                    if (slots != null) {
+                        slots.release();
+                    }
+                }
+
+                out.write(MLLPConnector.wrapMLLP(respond(request)).getBytes("ISO-8859-1"));
+                out.flush();
+
+                handled++;
+                if (messagesPerConnection > 0 && handled >= messagesPerConnection) {
+                    break;
+                }
+            }
+        } catch (IOException | InterruptedException ex) {
+            //connection closed
+        } finally {
+            IOUtils.closeQuietly(socket);
+        }
+    }
+
+    /**
+     * Builds the acknowledgement for a received message
+     */
+    protected String respond(String request) {
+        if (request.startsWith("FHS")) {
+            return respondToBatch(request);
+        }
+        return buildACK(controlId(request), ackCode);
+    }
+
+    private String respondToBatch(String batch) {
+        StringBuilder response = new StringBuilder();
+        response.append("FHS|^~\\&|xds|xds|openhim|openhim\r");
+        response.append("BHS|^~\\&|xds|xds|openhim|openhim\r");
+        int count = 0;
+        for (String segment : batch.split("\r")) {
+            if (segment.startsWith("MSH")) {
+                response.append(buildACK(controlId(segment), ackCode));
+                count++;
+            }
+        }
+        response.append("BTS|").append(count).append("\r");
+        response.append("FTS|1\r");
+        return response.toString();
+    }
+
+    public static String controlId(String message) {
+        String msh = message.split("\r")[0];
+        String[] fields = msh.split("\\|");
+        return fields.length > 9 ? fields[9] : "";
+    }
+
+    public static String buildACK(String controlId, String ackCode) {
+        String msh = "MSH|^~\\&|xds|xds|openhim|openhim|20150101000000||ACK|" + controlId + "-ack|P|2.3.1\r";
+        return ackCode != null ? msh + "MSA|" + ackCode + "|" + controlId + "\r" : msh;
+    }
+}
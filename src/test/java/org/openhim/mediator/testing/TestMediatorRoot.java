@@ -0,0 +1,36 @@
+package org.openhim.mediator.testing;
+
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.actor.UntypedActor;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.StartupActorsConfig;
+
+/**
+ * Launches startup actors under /user/{mediator name}, the same way the engine's root actor does:
+ * actors with a MediatorConfig constructor receive the config.
+ */
+public class TestMediatorRoot extends UntypedActor {
+
+    public TestMediatorRoot(MediatorConfig config, StartupActorsConfig actors) {
+        for (StartupActorsConfig.ActorToLaunch actor : actors.getActors()) {
+            Props props;
+            try {
+                actor.getActorClass().getConstructor(MediatorConfig.class);
+                props = Props.create(actor.getActorClass(), config);
+            } catch (NoSuchMethodException ex) {
+                props = Props.create(actor.getActorClass());
+            }
+            getContext().actorOf(props, actor.getName());
+        }
+    }
+
+    public static void launch(ActorSystem system, MediatorConfig config, StartupActorsConfig actors) {
+        system.actorOf(Props.create(TestMediatorRoot.class, config, actors), config.getName());
+    }
+
+    @Override
+    public void onReceive(Object msg) throws Exception {
+        unhandled(msg);
+    }
+}
@@ -0,0 +1,188 @@
+package org.openhim.mediator.tracing;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import akka.testkit.JavaTestKit;
+import com.google.gson.Gson;
+import org.apache.commons.io.FileUtils;
+import org.junit.*;
+import org.junit.rules.TemporaryFolder;
+import org.openhim.mediator.connectors.XdsRegistryConnector;
+import org.openhim.mediator.datatypes.AssigningAuthority;
+import org.openhim.mediator.datatypes.Identifier;
+import org.openhim.mediator.denormalization.PIXRequestActor;
+import org.openhim.mediator.engine.MediatorConfig;
+import org.openhim.mediator.engine.StartupActorsConfig;
+import org.openhim.mediator.engine.connectors.MLLPConnector;
+import org.openhim.mediator.messages.RegisterNewPatientResponse;
+import org.openhim.mediator.messages.RegisterNewPatientXds;
+import org.openhim.mediator.testing.MockMLLPRegistry;
+import org.openhim.mediator.testing.TestMediatorRoot;
+
+import static org.junit.Assert.*;
+
+public class TracerTest {
+
+    @ClassRule
+    public static TemporaryFolder folder = new TemporaryFolder();
+
+    static ActorSystem system;
+    static MockMLLPRegistry registry;
+    static MediatorConfig testConfig;
+    static File spans;
+
+    @BeforeClass
+    public static void setup() throws Exception {
+        system = ActorSystem.create();
+        registry = new MockMLLPRegistry();
+        spans = new File(folder.getRoot(), "spans.jsonl");
+
+        testConfig = new MediatorConfig("mediator-tracing-test", "localhost", 4800);
+        Properties props = new Properties();
+        props.setProperty("mediator.name", "tracing-test");
+        props.setProperty("pix.sendingApplication", "openhim");
+        props.setProperty("pix.sendingFacility", "openhim");
+        props.setProperty("pix.receivingApplication", "pix");
+        props.setProperty("pix.receivingFacility", "pix");
+        props.setProperty("xds.registry.host", "localhost");
+        props.setProperty("xds.registry.port", Integer.toString(registry.getPort()));
+        props.setProperty("mediator.tracing.enabled", "true");
+        props.setProperty("mediator.tracing.sampleRate", "1.0");
+        props.setProperty("mediator.tracing.file", spans.getPath());
+        testConfig.setProperties(props);
+
+        StartupActorsConfig actors = new StartupActorsConfig();
+        actors.addActor("mllp-connector", MLLPConnector.class);
+        actors.addActor("xds-registry-connector", XdsRegistryConnector.class);
+        TestMediatorRoot.launch(system, testConfig, actors);
+    }
+
+    @AfterClass
+    public static void teardown() {
+        registry.stop();
+        JavaTestKit.shutdownActorSystem(system);
+        system = null;
+    }
+
+    @Test
+    public void testTraceparentIsContinued() {
+        Tracer tracer = Tracer.forConfig(testConfig);
+
+        Tracer.Trace sampled = tracer.start("00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01");
+        assertEquals("4bf92f3577b34da6a3ce929d0e0e4736", sampled.getTraceId());
+        assertTrue(sampled.isSampled());
+        assertTrue(tracer.isSampled(sampled.getTraceId()));
+        tracer.end(sampled, "test");
+        assertFalse(tracer.isSampled(sampled.getTraceId()));
+
+        Tracer.Trace notSampled = tracer.start("00-4bf92f3577b34da6a3ce929d0e0e4737-00f067aa0ba902b7-00");
+        assertFalse(notSampled.isSampled());
+
+        Tracer.Trace invalid = tracer.start("garbage");
+        assertTrue(invalid.getTraceId().matches("[0-9a-f]{32}"));
+    }
+
+    @Test
+    public void testMalformedTraceparentIsIgnored() {
+        Tracer tracer = Tracer.forConfig(testConfig);
+
+        String[] malformed = {
+                "00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-zz",
+                "00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-",
+                "00-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-1ff",
+                "ff-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01",
+                "x0-4bf92f3577b34da6a3ce929d0e0e4736-00f067aa0ba902b7-01",
+                "00-4bf92f3577b34da6a3ce929d0e0e4736-0000000000000000-01"
+        };
+        for (String traceparent : malformed) {
+            Tracer.Trace trace = tracer.start(traceparent);
+            assertNotEquals(traceparent, "4bf92f3577b34da6a3ce929d0e0e4736", trace.getTraceId());
+            assertTrue(trace.getTraceId().matches("[0-9a-f]{32}"));
+            tracer.end(trace, "test");
+        }
+    }
+
+    @Test
+    public void testSampleRateZeroDoesNotSample() {
+        MediatorConfig config = new MediatorConfig("untraced", "localhost", 1);
+        Properties props = new Properties();
+        props.setProperty("mediator.tracing.enabled", "true");
+        props.setProperty("mediator.tracing.sampleRate", "0");
+        props.setProperty("mediator.tracing.file", new File(folder.getRoot(), "untraced.jsonl").getPath());
+        config.setProperties(props);
+
+        Tracer tracer = Tracer.forConfig(config);
+        Tracer.Trace trace = tracer.start(null);
+        assertFalse(trace.isSampled());
+        assertTrue(trace.getTraceId().matches("[0-9a-f]{32}"));
+    }
+
+    @SuppressWarnings("unchecked")
+    @Test
+    public void testFeedSpansAreExportedForFeedsSharingATrace() throws Exception {
+        new JavaTestKit(system) {{
+            Tracer tracer = Tracer.forConfig(testConfig);
+            Tracer.Trace trace = tracer.start(null);
+            assertTrue(trace.isSampled());
+
+            JavaTestKit requestHandler = new JavaTestKit(system);
+            ActorRef pix = system.actorOf(Props.create(PIXRequestActor.class, testConfig));
+            List<Identifier> ids = Collections.singletonList(
+                    new Identifier("1234", new AssigningAuthority("OpenEMPI", "2.16.840.1.113883.4.357", "ISO")));
+            pix.tell(new RegisterNewPatientXds(requestHandler.getRef(), getRef(), ids, trace.getTraceId()), getRef());
+            pix.tell(new RegisterNewPatientXds(requestHandler.getRef(), getRef(), ids, trace.getTraceId()), getRef());
+            assertTrue(expectMsgClass(duration("5 seconds"), RegisterNewPatientResponse.class).isSuccessful());
+            assertTrue(expectMsgClass(duration("5 seconds"), RegisterNewPatientResponse.class).isSuccessful());
+            tracer.end(trace, "POST /mpixds-sync");
+
+            Set<String> names = new HashSet<>();
+            Set<String> controlIds = new HashSet<>();
+            for (int i = 0; i < 40 && (names.size() < 5 || controlIds.size() < 2); i++) {
+                Thread.sleep(100);
+                names.clear();
+                controlIds.clear();
+                for (Map<String, Object> span : readSpans()) {
+                    if (trace.getTraceId().equals(span.get("traceId"))) {
+                        names.add((String) span.get("name"));
+                        Map<String, Object> tags = (Map<String, Object>) span.get("tags");
+                        if (tags != null && tags.containsKey("controlId")) {
+                            controlIds.add((String) tags.get("controlId"));
+                        }
+                        assertEquals("tracing-test", ((Map<String, Object>) span.get("localEndpoint")).get("serviceName"));
+                    }
+                }
+            }
+            assertTrue(names.toString(), names.contains("encode ADT^A04"));
+            assertTrue(names.toString(), names.contains("registry queue wait"));
+            assertTrue(names.toString(), names.contains("registry exchange"));
+            assertTrue(names.toString(), names.contains("parse ACK"));
+            assertTrue(names.toString(), names.contains("POST /mpixds-sync"));
+            // each feed has a control ID of its own
+            assertEquals(2, controlIds.size());
+            assertTrue(controlIds.contains(registry.getLastControlId()));
+        }};
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Map<String, Object>> readSpans() throws Exception {
+        List<Map<String, Object>> result = new ArrayList<>();
+        if (!spans.exists()) {
+            return result;
+        }
+        for (String line : FileUtils.readLines(spans, StandardCharsets.UTF_8)) {
+            result.add(new Gson().fromJson(line, Map.class));
+        }
+        return result;
+    }
+}